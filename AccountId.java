@@ -0,0 +1,132 @@
+package BANKING;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Account numbers made of digits, packed into a single long.
+ *
+ * An id holds the digits as a number with a 1 in front (so "0042" and "42" stay different) in
+ * the high 56 bits, and an 8-bit check value worked out from them in the low 8. Up to 16 digits
+ * fit. Only one long in 256 that didn't come from parse() has the right check bits, so an id
+ * read back from somewhere can be told apart from garbage with isValid().
+ *
+ * Comparing two ids is one instruction and needs no memory beyond the long itself, where two
+ * account number Strings cost a hash, a pointer chase to each String and its bytes, and a
+ * byte-by-byte compare. An account number is parsed once, where it comes in (Ledger and
+ * Transactions), and the id is what goes on to the account store, the journal record and the
+ * statement index. Account numbers with anything but digits in them, like the inter-bank
+ * clearing account, have no id, and travel as Strings instead.
+ *
+ * The account files keep account numbers as ASCII text, so an id can also be written out as
+ * its digits, compared against them, and hashed the way String.hashCode() would hash them,
+ * all without making the String.
+ */
+final class AccountId {
+
+    // Returned by parse() for an account number that can't be packed. Never a valid id.
+    static final long NONE = 0;
+    static final int MAX_DIGITS = 16;
+
+    private static final int CHECK_BITS = 8;
+
+    private AccountId() {
+    }
+
+    // The id of an account number of 1 to 16 digits, or NONE.
+    static long parse(CharSequence accountNo) {
+        int length = accountNo.length();
+        if (length == 0 || length > MAX_DIGITS) {
+            return NONE;
+        }
+        long value = 1;
+        for (int i = 0; i < length; i++) {
+            int digit = accountNo.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return NONE;
+            }
+            value = value * 10 + digit;
+        }
+        return value << CHECK_BITS | check(value);
+    }
+
+    // The id of the ASCII account number in length bytes at offset, or NONE; the same as parse() on them as a String.
+    static long parse(ByteBuffer bytes, int offset, int length) {
+        if (length == 0 || length > MAX_DIGITS) {
+            return NONE;
+        }
+        long value = 1;
+        for (int i = 0; i < length; i++) {
+            int digit = bytes.get(offset + i) - '0';
+            if (digit < 0 || digit > 9) {
+                return NONE;
+            }
+            value = value * 10 + digit;
+        }
+        return value << CHECK_BITS | check(value);
+    }
+
+    // True if the long is an id parse() could have returned.
+    static boolean isValid(long id) {
+        long value = id >>> CHECK_BITS;
+        return id > 0 && value >= 10 && (id & ((1 << CHECK_BITS) - 1)) == check(value);
+    }
+
+    // The account number back again.
+    static String toString(long id) {
+        if (!isValid(id)) {
+            throw new IllegalArgumentException("Not an account id: " + id);
+        }
+        return Long.toString(id >>> CHECK_BITS).substring(1);
+    }
+
+    // How many digits the account number has.
+    static int length(long id) {
+        int length = 0;
+        for (long value = id >>> CHECK_BITS; value >= 10; value /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    // Writes the account number's digits at offset, as ASCII.
+    static void putAscii(long id, ByteBuffer bytes, int offset) {
+        long value = id >>> CHECK_BITS;
+        for (int i = offset + length(id) - 1; i >= offset; i--, value /= 10) {
+            bytes.put(i, (byte) ('0' + value % 10));
+        }
+    }
+
+    // True if the length ASCII bytes at offset are the account number.
+    static boolean matchesAscii(long id, ByteBuffer bytes, int offset, int length) {
+        if (length != length(id)) {
+            return false;
+        }
+        long value = id >>> CHECK_BITS;
+        for (int i = offset + length - 1; i >= offset; i--, value /= 10) {
+            if (bytes.get(i) != (byte) ('0' + value % 10)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // toString(id).hashCode(), for files laid out by the String's hash.
+    static int stringHash(long id) {
+        int h = 0;
+        int power = 1;
+        for (long value = id >>> CHECK_BITS; value >= 10; value /= 10, power *= 31) {
+            h += (int) ('0' + value % 10) * power;
+        }
+        return h;
+    }
+
+    // Spreads an id's bits for indexing a power-of-two table.
+    static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long check(long value) {
+        return (value * 0xC2B2AE3D27D4EB4FL) >>> (64 - CHECK_BITS);
+    }
+}
@@ -0,0 +1,120 @@
+package BANKING;
+
+/**
+ * Where a bank keeps its accounts: number, credential and balance.
+ * The credential is kept as given; for a customer's password that is PasswordHasher.hash(password).
+ * Balances and amounts are whole minor units (paise/cents), see Money.
+ * Every method is safe to call from many sessions at once, and each one is atomic
+ * on its own, so callers never read-modify-write a balance themselves.
+ *
+ * Accounts can be named by number or, for numbers of digits, by the AccountId the caller has
+ * already parsed, so the number isn't parsed again on the way down. The two name the same
+ * account; a number with no id can only be named by number.
+ */
+interface AccountStore {
+
+    // Which in-memory store inMemory() makes: "heap" (ConcurrentAccountStore) or "offheap" (OffHeapAccountStore).
+    String STORE_PROPERTY = "banking.store";
+
+    // Receives each account during forEach.
+    interface Visitor {
+        void visit(String accountNo, String password, long balance);
+    }
+
+    // Returned by withdraw and transfer when the balance doesn't cover the amount.
+    long INSUFFICIENT_FUNDS = -1;
+    // Returned by deposit and transfer when the amount would take the balance past Long.MAX_VALUE.
+    long INVALID_AMOUNT = -2;
+
+    // Returned by create() when the account number is taken, when the number or credential can't be
+    // kept by this store, or when the store has no room left.
+    long ACCOUNT_EXISTS = -9;
+    long INVALID_ACCOUNT = -10;
+    long STORE_FULL = -11;
+
+    /**
+     * Adds a new account: returns 0, or ACCOUNT_EXISTS, INVALID_ACCOUNT or STORE_FULL without
+     * changing anything. beforeVisible, if not null, runs once the account has passed every check
+     * and has its place, just before anyone else can find it. Creates happen one at a time, so
+     * beforeVisible sees them in the order they take effect.
+     */
+    long create(String accountNo, String password, long balance, Runnable beforeVisible);
+
+    // Adds a new account. Returns false if it wasn't added (see create()).
+    default boolean createAccount(String accountNo, String password, long balance) {
+        return create(accountNo, password, balance, null) == 0;
+    }
+
+    boolean exists(String accountNo);
+
+    // True only if the account exists and the password matches its credential (see PasswordHasher.verify).
+    boolean checkPassword(String accountNo, String password);
+
+    long getBalance(String accountNo);
+
+    // Adds the amount and returns the new balance, or INVALID_AMOUNT.
+    long deposit(String accountNo, long amount);
+
+    // Takes the amount out if the balance covers it and returns the new balance, or INSUFFICIENT_FUNDS.
+    long withdraw(String accountNo, long amount);
+
+    // Moves the amount between two accounts in one step and returns the sender's new balance, INSUFFICIENT_FUNDS or INVALID_AMOUNT.
+    long transfer(String fromAccountNo, String toAccountNo, long amount);
+
+    // The same again by AccountId. AccountId.NONE names no account.
+    boolean exists(long id);
+
+    boolean checkPassword(long id, String password);
+
+    long getBalance(long id);
+
+    long deposit(long id, long amount);
+
+    long withdraw(long id, long amount);
+
+    long transfer(long fromId, long toId, long amount);
+
+    // By id when there is one and by number otherwise, for callers that parsed the number once and kept both.
+    default boolean exists(long id, String accountNo) {
+        return id != AccountId.NONE || accountNo == null ? exists(id) : exists(accountNo);
+    }
+
+    default long getBalance(long id, String accountNo) {
+        return id != AccountId.NONE || accountNo == null ? getBalance(id) : getBalance(accountNo);
+    }
+
+    default long deposit(long id, String accountNo, long amount) {
+        return id != AccountId.NONE || accountNo == null ? deposit(id, amount) : deposit(accountNo, amount);
+    }
+
+    default long withdraw(long id, String accountNo, long amount) {
+        return id != AccountId.NONE || accountNo == null ? withdraw(id, amount) : withdraw(accountNo, amount);
+    }
+
+    // Both by id, or else both by number: an account with an id still has its number.
+    default long transfer(long fromId, String fromAccountNo, long toId, String toAccountNo, long amount) {
+        if (fromId != AccountId.NONE && toId != AccountId.NONE || fromAccountNo == null || toAccountNo == null) {
+            return transfer(fromId, toId, amount);
+        }
+        return transfer(fromAccountNo, toAccountNo, amount);
+    }
+
+    // The sum of all balances, taken at a single point in time.
+    long totalBalance();
+
+    int size();
+
+    // Calls the visitor once per account, with all balances taken at a single point in time.
+    void forEach(Visitor visitor);
+
+    // Every balance as of now, for reports that mustn't hold up the operations (see BalanceSnapshot).
+    BalanceSnapshot snapshot();
+
+    // Pays a day's interest and charges the fee on every account at once (see EndOfDay).
+    EndOfDay.Totals endOfDay(EndOfDay run);
+
+    // An empty store in memory, of the kind the banking.store system property names.
+    static AccountStore inMemory() {
+        return "offheap".equals(System.getProperty(STORE_PROPERTY)) ? new OffHeapAccountStore() : new ConcurrentAccountStore();
+    }
+}
@@ -0,0 +1,141 @@
+package BANKING;
+
+/**
+ * Decides whether a ledger takes on another deposit, withdrawal or transfer right now.
+ *
+ * A journal that takes no more records, after a failed write or once closed, turns everything
+ * away as Transactions.JOURNAL_FAILED: the operation couldn't be recorded, so it mustn't happen.
+ * Then three checks, cheapest first. If the journal has fallen more than maxJournalLagBytes behind
+ * what has been handed to it, the operation is turned away as Transactions.BUSY at once, rather
+ * than queueing behind a disk that can't keep up. Otherwise the account and then the bank must
+ * each have a token left (see RateLimiter), or it's Transactions.RATE_LIMITED. Both refusals
+ * happen before anything changes, so the caller can simply try again later.
+ *
+ * Accounts are hashed onto a fixed number of buckets, so two accounts may now and then share
+ * one; that can only make either of them wait sooner, never let anyone past the limit. The
+ * limits come from the banking.limit.* system properties or configure(); a rate of 0 turns
+ * that check off. A ledger reads them when it opens.
+ */
+final class AdmissionControl {
+
+    static final double DEFAULT_ACCOUNT_RATE = 50;       // operations a second, per account
+    static final int DEFAULT_ACCOUNT_BURST = 100;
+    static final double DEFAULT_BANK_RATE = 100_000;     // per bank
+    static final int DEFAULT_BANK_BURST = 100_000;
+    static final long DEFAULT_MAX_JOURNAL_LAG_BYTES = TransactionJournal.DEFAULT_BUFFER_BYTES;
+    static final int ACCOUNT_BUCKETS = 1 << 14;
+
+    // Read together, so a ledger never mixes two configurations.
+    private static final class Limits {
+        final double accountRate;
+        final int accountBurst;
+        final double bankRate;
+        final int bankBurst;
+        final long maxJournalLagBytes;
+
+        Limits(double accountRate, int accountBurst, double bankRate, int bankBurst, long maxJournalLagBytes) {
+            this.accountRate = accountRate;
+            this.accountBurst = accountBurst;
+            this.bankRate = bankRate;
+            this.bankBurst = bankBurst;
+            this.maxJournalLagBytes = maxJournalLagBytes;
+        }
+    }
+
+    private static volatile Limits limits = new Limits(DEFAULT_ACCOUNT_RATE, DEFAULT_ACCOUNT_BURST,
+            DEFAULT_BANK_RATE, DEFAULT_BANK_BURST, DEFAULT_MAX_JOURNAL_LAG_BYTES);
+
+    static {
+        try {
+            configure(Double.parseDouble(System.getProperty("banking.limit.accountRate", "" + DEFAULT_ACCOUNT_RATE)),
+                    Integer.getInteger("banking.limit.accountBurst", DEFAULT_ACCOUNT_BURST),
+                    Double.parseDouble(System.getProperty("banking.limit.bankRate", "" + DEFAULT_BANK_RATE)),
+                    Integer.getInteger("banking.limit.bankBurst", DEFAULT_BANK_BURST),
+                    Long.getLong("banking.limit.journalLagBytes", DEFAULT_MAX_JOURNAL_LAG_BYTES));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error in rate limit settings, using the defaults: " + e.getMessage());
+        }
+    }
+
+    private final TransactionJournal journal;
+    private final RateLimiter accounts;  // null when off
+    private final RateLimiter bank;      // null when off
+    private final long maxJournalLagBytes;
+
+    AdmissionControl(TransactionJournal journal) {
+        Limits current = limits;
+        this.journal = journal;
+        this.accounts = current.accountRate > 0
+                ? new RateLimiter(current.accountRate, current.accountBurst, ACCOUNT_BUCKETS) : null;
+        this.bank = current.bankRate > 0 ? new RateLimiter(current.bankRate, current.bankBurst, 1) : null;
+        this.maxJournalLagBytes = current.maxJournalLagBytes;
+    }
+
+    // Sets the limits for ledgers opened from now on. A rate (or lag) of 0 means no limit.
+    static void configure(double accountRate, int accountBurst, double bankRate, int bankBurst, long maxJournalLagBytes) {
+        if (accountRate < 0 || bankRate < 0 || maxJournalLagBytes < 0) {
+            throw new IllegalArgumentException("Rates and the journal lag can't be negative");
+        }
+        if (accountBurst < 1 || bankBurst < 1) {
+            throw new IllegalArgumentException("Bursts must be at least 1, not " + accountBurst + " and " + bankBurst);
+        }
+        limits = new Limits(accountRate, accountBurst, bankRate, bankBurst, maxJournalLagBytes);
+    }
+
+    // The per-account rate (0 for none) and burst that ledgers opened from now on will allow.
+    static double accountRate() {
+        return limits.accountRate;
+    }
+
+    static int accountBurst() {
+        return limits.accountBurst;
+    }
+
+    /**
+     * 0 if an operation on the account may go ahead at nowNanos (from System.nanoTime()), taking
+     * its tokens; otherwise Transactions.JOURNAL_FAILED, Transactions.BUSY or Transactions.RATE_LIMITED.
+     */
+    long admit(String accountNo, long nowNanos) {
+        return admit(AccountId.parse(accountNo), accountNo, nowNanos);
+    }
+
+    // The same, for an account named by its id, or by its number when the id is NONE.
+    long admit(long id, String accountNo, long nowNanos) {
+        if (journal.sealed()) {
+            return Transactions.JOURNAL_FAILED;
+        }
+        if (maxJournalLagBytes > 0 && journal.lagBytes() > maxJournalLagBytes) {
+            return Transactions.BUSY;
+        }
+        if (accounts != null && !accounts.tryAcquire(id != AccountId.NONE || accountNo == null ? AccountId.hash(id) : bucketOf(accountNo), nowNanos)) {
+            return Transactions.RATE_LIMITED;
+        }
+        if (bank != null && !bank.tryAcquire(0, nowNanos)) {
+            return Transactions.RATE_LIMITED;
+        }
+        return 0;
+    }
+
+    long journalLagBytes() {
+        return journal.lagBytes();
+    }
+
+    long maxJournalLagBytes() {
+        return maxJournalLagBytes;
+    }
+
+    // Tokens left in the bank's bucket, or -1 with no bank limit.
+    long bankTokens() {
+        return bank == null ? -1 : bank.available(0, System.nanoTime());
+    }
+
+    // Account buckets with no token left just now: roughly, how many accounts are being held back.
+    int accountsAtLimit() {
+        return accounts == null ? 0 : accounts.exhausted(System.nanoTime());
+    }
+
+    private static int bucketOf(String accountNo) {
+        int h = accountNo.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
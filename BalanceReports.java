@@ -0,0 +1,147 @@
+package BANKING;
+
+/**
+ * Reporting queries over a bank's balances: the total held, the largest balances, and the
+ * accounts below a threshold. They read a BalanceSnapshot, so the figures all describe one
+ * moment and the bank keeps taking deposits, withdrawals and transfers while they run.
+ *
+ * All of them come out of a single pass. The top balances are kept in a min-heap of primitive
+ * arrays, and the lowest accounts under the threshold in a max-heap, so a report over millions
+ * of accounts allocates nothing per account.
+ */
+final class BalanceReports {
+
+    // What one pass over a snapshot found.
+    static final class Summary {
+        long accounts;
+        long total;
+        long belowThreshold;
+        final long threshold;
+        final String[] topAccounts;
+        final long[] topBalances;
+        int topCount;
+        final String[] lowAccounts;
+        final long[] lowBalances;
+        int lowCount;
+
+        Summary(int topN, long threshold, int lowN) {
+            this.threshold = threshold;
+            this.topAccounts = new String[topN];
+            this.topBalances = new long[topN];
+            this.lowAccounts = new String[lowN];
+            this.lowBalances = new long[lowN];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("%,d accounts holding %s%n", accounts, Money.format(total)));
+            sortDescending(topAccounts, topBalances, topCount);
+            text.append("Largest balances:\n");
+            for (int i = 0; i < topCount; i++) {
+                text.append(String.format("  %-24s %s%n", topAccounts[i], Money.format(topBalances[i])));
+            }
+            text.append(String.format("%,d accounts below %s", belowThreshold, Money.format(threshold)));
+            sortDescending(lowAccounts, lowBalances, lowCount);
+            text.append(lowCount == 0 ? "\n" : lowCount < belowThreshold ? ", the lowest " + lowCount + ":\n" : ":\n");
+            for (int i = lowCount - 1; i >= 0; i--) {
+                text.append(String.format("  %-24s %s%n", lowAccounts[i], Money.format(lowBalances[i])));
+            }
+            return text.toString();
+        }
+    }
+
+    private BalanceReports() {
+    }
+
+    /**
+     * The total, the topN largest balances, and how many accounts are below the threshold along
+     * with the lowN lowest of them, all as of the snapshot.
+     */
+    static Summary summarize(BalanceSnapshot snapshot, int topN, long threshold, int lowN) {
+        Summary summary = new Summary(topN, threshold, lowN);
+        snapshot.forEach((accountNo, balance) -> {
+            summary.accounts++;
+            summary.total += balance;
+            if (topN > 0) {
+                if (summary.topCount < topN) {
+                    summary.topCount = push(summary.topAccounts, summary.topBalances, summary.topCount, accountNo, balance, 1);
+                } else if (balance > summary.topBalances[0]) {
+                    replaceRoot(summary.topAccounts, summary.topBalances, summary.topCount, accountNo, balance, 1);
+                }
+            }
+            if (balance < threshold) {
+                summary.belowThreshold++;
+                if (lowN > 0) {
+                    if (summary.lowCount < lowN) {
+                        summary.lowCount = push(summary.lowAccounts, summary.lowBalances, summary.lowCount, accountNo, balance, -1);
+                    } else if (balance < summary.lowBalances[0]) {
+                        replaceRoot(summary.lowAccounts, summary.lowBalances, summary.lowCount, accountNo, balance, -1);
+                    }
+                }
+            }
+        });
+        return summary;
+    }
+
+    // Just the total, as of the snapshot.
+    static long total(BalanceSnapshot snapshot) {
+        long[] total = new long[1];
+        snapshot.forEach((accountNo, balance) -> total[0] += balance);
+        return total[0];
+    }
+
+    // Heap helpers. With sign 1 the smallest balance is at the root, with -1 the largest.
+
+    private static int push(String[] accounts, long[] balances, int count, String accountNo, long balance, int sign) {
+        int i = count;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (Long.compare(balances[parent], balance) * sign <= 0) {
+                break;
+            }
+            accounts[i] = accounts[parent];
+            balances[i] = balances[parent];
+            i = parent;
+        }
+        accounts[i] = accountNo;
+        balances[i] = balance;
+        return count + 1;
+    }
+
+    private static void replaceRoot(String[] accounts, long[] balances, int count, String accountNo, long balance, int sign) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= count) {
+                break;
+            }
+            if (child + 1 < count && Long.compare(balances[child + 1], balances[child]) * sign < 0) {
+                child++;
+            }
+            if (Long.compare(balance, balances[child]) * sign <= 0) {
+                break;
+            }
+            accounts[i] = accounts[child];
+            balances[i] = balances[child];
+            i = child;
+        }
+        accounts[i] = accountNo;
+        balances[i] = balance;
+    }
+
+    // Only ever a handful of entries, so insertion sort is plenty.
+    private static void sortDescending(String[] accounts, long[] balances, int count) {
+        for (int i = 1; i < count; i++) {
+            String accountNo = accounts[i];
+            long balance = balances[i];
+            int j = i - 1;
+            for (; j >= 0 && balances[j] < balance; j--) {
+                accounts[j + 1] = accounts[j];
+                balances[j + 1] = balances[j];
+            }
+            accounts[j + 1] = accountNo;
+            balances[j + 1] = balance;
+        }
+    }
+}
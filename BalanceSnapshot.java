@@ -0,0 +1,24 @@
+package BANKING;
+
+/**
+ * Every balance of an account store as it was at one moment, for reports (see BalanceReports)
+ * that shouldn't hold up, or be thrown off by, the operations going on meanwhile.
+ *
+ * Taking one costs next to nothing and keeps the store's operations going; reading it takes
+ * one account's stripe lock at a time, only long enough to read that balance (see SnapshotLog).
+ * Until it is closed the store notes the old balance of every account that changes, so close
+ * it as soon as the report is done.
+ */
+interface BalanceSnapshot extends AutoCloseable {
+
+    // Receives each account during forEach.
+    interface Visitor {
+        void visit(String accountNo, long balance);
+    }
+
+    // Calls the visitor once per account that existed when the snapshot was taken, with its balance then.
+    void forEach(Visitor visitor);
+
+    @Override
+    void close();
+}
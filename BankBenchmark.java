@@ -0,0 +1,1271 @@
+package BANKING;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small stand-alone benchmark for the banking system's hot paths.
+ * Run it with: java BANKING.BankBenchmark [journal|store|snapshot|recovery|parallel|baseline|metrics|otp|interbank|login|statement|sessionlog|idempotency|admission|eod|reports|offheap|accountid|screen|all] [threads] [operationsPerThread] [accounts] [baseline.json]
+ *
+ * The baseline suite is the one to compare changes against: it measures each account operation
+ * across account and thread counts, and writes the numbers to a JSON file as well. The same
+ * operations are JMH benchmarks in src/jmh/java (mvn -Pjmh package; see pom.xml), and the
+ * correctness checks the store, parallel, recovery, interbank, screen and idempotency suites
+ * used to make are tests in src/test/java.
+ *
+ * The stores the suites build are ConcurrentAccountStores, or OffHeapAccountStores with
+ * -Dbanking.store=offheap (see AccountStore.inMemory).
+ *
+ * Accounts are created with a single KDF iteration so that hashing their passwords doesn't
+ * swamp the setup; the login suite measures the configured KDF (-Dbanking.kdf.iterations=...).
+ */
+public class BankBenchmark {
+
+    // One unit of work done repeatedly by each benchmark thread.
+    interface Operation {
+        void run(int thread, int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String suite = args.length > 0 ? args[0] : "all";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int opsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        int kdfIterations = PasswordHasher.iterations();
+        PasswordHasher.configure(PasswordHasher.algorithm(), 1);
+        AdmissionControl.configure(0, 1, 0, 1, 0); // the suites measure the bank flat out; "admission" turns limits on
+        VelocityScreen.configure(VelocityScreen.Rules.NONE, VelocityScreen.DEFAULT_ACCOUNTS); // and "screen" screening
+
+        if (suite.equals("journal") || suite.equals("all")) {
+            journal(threads, opsPerThread);
+        }
+        if (suite.equals("store") || suite.equals("all")) {
+            store(threads, opsPerThread);
+        }
+        if (suite.equals("snapshot") || suite.equals("all")) {
+            snapshot(threads, opsPerThread, args.length > 3 ? Integer.parseInt(args[3]) : 1_000_000);
+        }
+        if (suite.equals("recovery") || suite.equals("all")) {
+            recovery(threads * opsPerThread);
+        }
+        if (suite.equals("parallel") || suite.equals("all")) {
+            parallel(threads, threads * opsPerThread);
+        }
+        if (suite.equals("metrics") || suite.equals("all")) {
+            metrics(threads, threads * opsPerThread);
+        }
+        if (suite.equals("otp") || suite.equals("all")) {
+            otp(threads, threads * opsPerThread);
+        }
+        if (suite.equals("interbank") || suite.equals("all")) {
+            interbank(threads, opsPerThread);
+        }
+        if (suite.equals("login") || suite.equals("all")) {
+            login(threads, threads * opsPerThread, kdfIterations);
+        }
+        if (suite.equals("statement") || suite.equals("all")) {
+            statement(args.length > 3 ? Integer.parseInt(args[3]) : 1_000_000);
+        }
+        if (suite.equals("sessionlog") || suite.equals("all")) {
+            sessionLog(threads, threads * opsPerThread * 50);
+        }
+        if (suite.equals("idempotency") || suite.equals("all")) {
+            idempotency(threads, opsPerThread);
+        }
+        if (suite.equals("admission") || suite.equals("all")) {
+            admission(threads, opsPerThread);
+        }
+        if (suite.equals("eod") || suite.equals("all")) {
+            endOfDay(args.length > 3 ? Integer.parseInt(args[3]) : 50_000_000);
+        }
+        if (suite.equals("reports") || suite.equals("all")) {
+            reports(threads, opsPerThread, args.length > 3 ? Integer.parseInt(args[3]) : 1_000_000);
+        }
+        if (suite.equals("offheap") || suite.equals("all")) {
+            offHeap(threads, opsPerThread, args.length > 3 ? Integer.parseInt(args[3]) : 5_000_000);
+        }
+        if (suite.equals("accountid") || suite.equals("all")) {
+            accountIds(args.length > 3 ? Integer.parseInt(args[3]) : 1_000_000);
+        }
+        if (suite.equals("screen") || suite.equals("all")) {
+            screen(100_000, 3);
+        }
+        if (suite.equals("baseline") || suite.equals("all")) {
+            int[] accountCounts = args.length > 3 ? new int[] {Integer.parseInt(args[3])} : new int[] {1_000, 10_000};
+            baseline(threads, opsPerThread, accountCounts, args.length > 4 ? args[4] : "baseline.json");
+        }
+    }
+
+    // What recording a latency costs, and how close the histogram's percentiles are to the real ones.
+    static void metrics(int maxThreads, int operations) throws Exception {
+        System.out.println("BankMetrics recording");
+        BankMetrics metrics = BankMetrics.forBank("benchmark");
+        double clock = 1e9 / run(1, operations, (t, i) -> System.nanoTime());
+        System.out.printf("  %-45s %,12.1f ns per call%n", "System.nanoTime() alone", clock);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            int perThread = operations / threads;
+            double opsPerSecond = run(threads, perThread,
+                    (t, i) -> metrics.record(BankMetrics.Operation.DEPOSIT, System.nanoTime() - i, i));
+            System.out.printf("  %-45s %,12.1f ns per record, two clock reads included%n", threads + " thread(s)", threads * 1e9 / opsPerSecond);
+        }
+
+        // Known values: 1..1,000,000 ns once each, so the true p50 is 500,000 and p99 990,000.
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 1_000_000; v++) {
+            histogram.record(v);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        for (double percent : new double[] {50, 99, 99.9}) {
+            long exact = (long) (percent * 10_000);
+            long reported = snapshot.percentile(percent);
+            double error = Math.abs(reported - exact) / (double) exact;
+            System.out.printf("  p%-5s reported %,d ns for %,d ns (%.1f%% off)%n", percent, reported, exact, error * 100);
+            if (error > 0.04) {
+                throw new IllegalStateException("Percentile p" + percent + " is " + reported + ", expected about " + exact);
+            }
+        }
+        System.out.print(metrics.toText());
+        System.out.println(metrics.toJson());
+    }
+
+    // Many transfers waiting on OTPs at once: issue and verify speed, and that unanswered ones expire.
+    static void otp(int threads, int challenges) throws Exception {
+        System.out.println("OtpService with " + challenges + " challenges pending at once");
+        try (OtpService otps = new OtpService(2_000, 10, OtpService.DEFAULT_MAX_ATTEMPTS)) {
+            int perThread = challenges / threads;
+            OtpService.Challenge[] issued = new OtpService.Challenge[perThread * threads];
+            report("issue", threads, perThread, (t, i) -> issued[t * perThread + i] = otps.issue(accountNo(i)));
+            System.out.println("  pending: " + otps.pendingCount());
+
+            // Every other challenge is answered: half of those correctly, half with a wrong code first.
+            long[] outcomes = new long[OtpService.Result.values().length];
+            double verifyRate = run(threads, perThread / 2, (t, i) -> {
+                OtpService.Challenge challenge = issued[t * perThread + 2 * i];
+                if (i % 2 == 1) {
+                    otps.verify(challenge.id, challenge.accountNo, "0000".equals(challenge.code) ? "0001" : "0000");
+                }
+                OtpService.Result result = otps.verify(challenge.id, challenge.accountNo, challenge.code);
+                synchronized (outcomes) {
+                    outcomes[result.ordinal()]++;
+                }
+            });
+            System.out.printf("  %-40s %,12.0f ops/s%n", "verify", verifyRate);
+            if (outcomes[OtpService.Result.VERIFIED.ordinal()] != issued.length / 2) {
+                throw new IllegalStateException("Only " + outcomes[OtpService.Result.VERIFIED.ordinal()] + " of "
+                        + issued.length / 2 + " correct codes were accepted");
+            }
+            OtpService.Challenge used = issued[0];
+            if (otps.verify(used.id, used.accountNo, used.code) != OtpService.Result.EXPIRED) {
+                throw new IllegalStateException("A code was accepted twice");
+            }
+
+            long begin = System.nanoTime();
+            while (otps.pendingCount() > 0 && System.nanoTime() - begin < 10_000_000_000L) {
+                Thread.sleep(50);
+            }
+            if (otps.pendingCount() > 0) {
+                throw new IllegalStateException(otps.pendingCount() + " challenges never expired");
+            }
+            System.out.printf("  the other %,d expired by themselves, %,d ms after the last answer%n",
+                    otps.expiredCount(), (System.nanoTime() - begin) / 1_000_000);
+        }
+    }
+
+    /**
+     * Logins through a LoginCache. Cold: each customer's first login, which runs the KDF. Warm:
+     * the same customers logging in again while the cache remembers them. Then checks that a
+     * wrong password is still refused for a remembered customer.
+     */
+    static void login(int threads, int logins, int kdfIterations) throws Exception {
+        PasswordHasher.configure(PasswordHasher.algorithm(), kdfIterations);
+        int accountCount = 64;
+        System.out.println("Logins with " + PasswordHasher.algorithm() + ", " + kdfIterations + " iterations, "
+                + accountCount + " accounts");
+        AccountStore store = new ConcurrentAccountStore();
+        for (int i = 0; i < accountCount; i++) {
+            store.createAccount(accountNo(i), PasswordHasher.hash("pw" + i), 0);
+        }
+        LoginCache cache = new LoginCache();
+        int perThread = accountCount / threads;
+        LatencyHistogram cold = new LatencyHistogram();
+        double coldRate = run(threads, perThread, (t, i) -> {
+            int account = i * threads + t;
+            long start = System.nanoTime();
+            if (!cache.checkPassword(store, accountNo(account), "pw" + account)) {
+                throw new IllegalStateException("Login refused for " + accountNo(account));
+            }
+            cold.recordSince(start);
+        });
+        printLogins("cold (KDF)", coldRate, cold.snapshot());
+
+        LatencyHistogram warm = new LatencyHistogram();
+        String[] passwords = new String[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            passwords[i] = "pw" + i;
+        }
+        double warmRate = run(threads, logins / threads, (t, i) -> {
+            int account = ThreadLocalRandom.current().nextInt(perThread * threads);
+            long start = System.nanoTime();
+            if (!cache.checkPassword(store, accountNo(account), passwords[account])) {
+                throw new IllegalStateException("Login refused for " + accountNo(account));
+            }
+            warm.recordSince(start);
+        });
+        printLogins("warm (cached)", warmRate, warm.snapshot());
+        if (cache.hits() != (long) (logins / threads) * threads) {
+            throw new IllegalStateException(cache.hits() + " cache hits, expected " + (logins / threads) * threads);
+        }
+        if (cache.checkPassword(store, accountNo(0), "pw1")) {
+            throw new IllegalStateException("A wrong password was accepted for a cached login");
+        }
+        System.out.println("  wrong password refused for a cached login");
+        PasswordHasher.configure(PasswordHasher.algorithm(), 1);
+    }
+
+    private static void printLogins(String name, double opsPerSecond, LatencyHistogram.Snapshot latency) {
+        System.out.printf("  %-20s %,12.0f logins/s   p50 %,10.1f us   p99 %,10.1f us%n", name, opsPerSecond,
+                latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0);
+    }
+
+    /**
+     * Statement pages for an account with a very long history: random pages of 50, and a date
+     * range in the middle of it, plus how long the index takes to reopen and to rebuild.
+     */
+    static void statement(int entries) throws Exception {
+        Path dir = Files.createTempDirectory("bank-bench");
+        String accountFile = dir.resolve("accounts.dat").toString();
+        String journalFile = dir.resolve("transactions.journal").toString();
+        int pageSize = 50;
+        String busy = accountNo(0);
+        System.out.println("Statements for an account with " + entries + " transactions");
+
+        Ledger ledger = Ledger.open("statement-bench", accountFile, journalFile);
+        for (int i = 0; i < 10; i++) {
+            ledger.createAccount(accountNo(i), "pw" + i, 0);
+        }
+        Ledger.Batch batch = ledger.openBatch();
+        long begin = System.nanoTime();
+        for (int i = 1; i < entries; i++) {
+            batch.deposit(busy, 1);
+            if (i % 10 == 0) {
+                batch.transfer(busy, accountNo(1 + i % 9), 1); // the other accounts get a little history too
+            }
+        }
+        batch.commit();
+        System.out.printf("  %-40s %,12d ms%n", "journal + index " + entries + " records", (System.nanoTime() - begin) / 1_000_000);
+        ledger.close();
+
+        begin = System.nanoTime();
+        ledger = Ledger.open("statement-bench", accountFile, journalFile);
+        System.out.printf("  %-40s %,12d ms%n", "reopen", (System.nanoTime() - begin) / 1_000_000);
+        StatementIndex.Page all = ledger.statement(busy, 0, Long.MAX_VALUE, 0, pageSize);
+        long expected = entries + entries / 10; // the create, the deposits and the transfers out
+        if (all.matching != expected - 1) {
+            throw new IllegalStateException("Statement has " + all.matching + " records, expected " + (expected - 1));
+        }
+
+        Ledger opened = ledger;
+        int pages = all.pageCount();
+        LatencyHistogram latency = new LatencyHistogram();
+        for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+            for (int q = 0; q < 20_000; q++) {
+                int pageNumber = ThreadLocalRandom.current().nextInt(pages);
+                long start = System.nanoTime();
+                StatementIndex.Page page = opened.statement(busy, 0, Long.MAX_VALUE, pageNumber, pageSize);
+                if (round == 1) {
+                    latency.recordSince(start);
+                }
+                if (page.records.size() != Math.min(pageSize, all.matching - (long) pageNumber * pageSize)) {
+                    throw new IllegalStateException("Page " + pageNumber + " has " + page.records.size() + " records");
+                }
+            }
+        }
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("  %-40s p50 %,8.1f us   p99 %,8.1f us   max %,8.1f us%n", "random page of " + pageSize,
+                snapshot.percentile(50) / 1000.0, snapshot.percentile(99) / 1000.0, snapshot.maxNanos / 1000.0);
+
+        // A date range starting halfway through: one binary search, then the page.
+        long middle = opened.statement(busy, 0, Long.MAX_VALUE, (int) (all.matching / 2), 1).records.get(0).timestamp;
+        long start = System.nanoTime();
+        StatementIndex.Page range = opened.statement(busy, middle, Long.MAX_VALUE, 0, pageSize);
+        System.out.printf("  %-40s %,12.1f us (%,d records in range)%n", "first page from the midpoint date",
+                (System.nanoTime() - start) / 1000.0, range.matching);
+        if (range.records.isEmpty() || range.records.get(0).timestamp < middle) {
+            throw new IllegalStateException("Date range query started before its first date");
+        }
+        ledger.close();
+
+        // And a journal with no index at all, as after an upgrade.
+        Files.delete(dir.resolve("transactions.journal.idx"));
+        begin = System.nanoTime();
+        ledger = Ledger.open("statement-bench", accountFile, journalFile);
+        System.out.printf("  %-40s %,12d ms%n", "rebuild index from journal", (System.nanoTime() - begin) / 1_000_000);
+        if (ledger.statement(busy, 0, Long.MAX_VALUE, 0, pageSize).matching != expected - 1) {
+            throw new IllegalStateException("The rebuilt index doesn't match");
+        }
+        ledger.close();
+    }
+
+    /**
+     * Logging transactions the old way (a shared StringBuilder) against a SessionLog per session
+     * drained in the background: speed, bytes allocated per entry, and that every entry was
+     * either drained or counted as dropped.
+     */
+    static void sessionLog(int sessions, int entries) throws Exception {
+        System.out.println("Transaction log, " + entries + " entries over " + sessions + " session(s)");
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        int perSession = entries / sessions;
+
+        StringBuilder shared = new StringBuilder();
+        long[] allocated = new long[sessions];
+        report("StringBuilder, shared", sessions, perSession, (t, i) -> {
+            long before = i == 0 ? mx.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+            synchronized (shared) {
+                shared.append("Deposited $" + Money.format(i)).append("\n");
+                if (shared.length() > 64 << 20) {
+                    shared.setLength(0); // the real one never did this; it just grew
+                }
+            }
+            if (i == 0) {
+                allocated[t] = -before;
+            } else if (i == perSession - 1) {
+                allocated[t] += mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        });
+        System.out.printf("  %-40s %,12.1f bytes per entry%n", "", average(allocated) / perSession);
+
+        LongAdder drained = new LongAdder();
+        SessionLog.Sink counting = (accountNo, timestamp, type, counterparty, amount, balance) -> drained.increment();
+        SessionLog[] logs = new SessionLog[sessions];
+        for (int t = 0; t < sessions; t++) {
+            logs[t] = SessionLog.open(accountNo(t), SessionLog.DEFAULT_CAPACITY, counting);
+        }
+        for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+            java.util.Arrays.fill(allocated, 0);
+            double rate = run(sessions, perSession, (t, i) -> {
+                long before = i == 0 ? mx.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+                logs[t].append(JournalRecord.DEPOSIT, null, i, i);
+                if (i == 0) {
+                    allocated[t] = -before;
+                } else if (i == perSession - 1) {
+                    allocated[t] += mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+                }
+            });
+            if (round == 1) {
+                System.out.printf("  %-40s %,12.0f ops/s%n", "SessionLog per session", rate);
+                System.out.printf("  %-40s %,12.3f bytes per entry%n", "", average(allocated) / perSession);
+            }
+        }
+        long dropped = 0;
+        long appended = 0;
+        for (SessionLog log : logs) {
+            log.close();
+            dropped += log.dropped();
+            appended += log.appended();
+        }
+        if (drained.sum() + dropped != appended) {
+            throw new IllegalStateException(drained.sum() + " drained and " + dropped + " dropped, but " + appended + " appended");
+        }
+        System.out.printf("  %,d drained to the sink, %,d overwritten before the drainer reached them%n", drained.sum(), dropped);
+    }
+
+    // What a request id costs a deposit, new or repeated, and that each request runs exactly once however many threads send it.
+    // What remembering a request id costs a deposit (IdempotencyTableTest checks each request runs once).
+    static void idempotency(int maxThreads, int opsPerThread) throws Exception {
+        System.out.println("IdempotencyTable, " + opsPerThread + " request ids per thread");
+        AccountStore store = newStore(maxThreads, 0);
+        String[][] ids = new String[maxThreads][opsPerThread];
+        for (int t = 0; t < maxThreads; t++) {
+            for (int i = 0; i < opsPerThread; i++) {
+                ids[t][i] = "req-" + t + "-" + i;
+            }
+        }
+        for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                IdempotencyTable table = new IdempotencyTable();
+                double plain = run(threads, opsPerThread, (t, i) -> store.deposit(accountNo(t), 1));
+                double fresh = run(threads, opsPerThread,
+                        (t, i) -> table.execute(accountNo(t), ids[t][i], () -> store.deposit(accountNo(t), 1)));
+                double repeated = run(threads, opsPerThread,
+                        (t, i) -> table.execute(accountNo(t), ids[t][i], () -> store.deposit(accountNo(t), 1)));
+                if (round == 1) {
+                    System.out.printf("  %d thread(s): %,.0f ns per deposit, %+,.0f ns with a new request id, %+,.0f ns for a repeat%n",
+                            threads, threads * 1e9 / plain, threads * 1e9 / fresh - threads * 1e9 / plain,
+                            threads * 1e9 / repeated - threads * 1e9 / plain);
+                }
+            }
+        }
+    }
+
+    /**
+     * What a rate limit check costs, that an account hammering the bank gets about its burst plus
+     * its rate and no more, and that once the journal falls behind, operations are turned away
+     * quickly instead of queueing.
+     */
+    static void admission(int maxThreads, int opsPerThread) throws Exception {
+        System.out.println("Admission control");
+        RateLimiter open = new RateLimiter(1e12, 1 << 30, AdmissionControl.ACCOUNT_BUCKETS);
+        for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double spread = run(threads, opsPerThread, (t, i) -> open.tryAcquire(i * 31 + t, System.nanoTime()));
+                double one = run(threads, opsPerThread, (t, i) -> open.tryAcquire(0, System.nanoTime()));
+                if (round == 1) {
+                    System.out.printf("  %d thread(s): %,.0f ns per check over many buckets, %,.0f ns all on one, clock read included%n",
+                            threads, threads * 1e9 / spread, threads * 1e9 / one);
+                }
+            }
+        }
+
+        Path dir = Files.createTempDirectory("bank-bench");
+        double rate = 1_000;
+        int burst = 100;
+        AdmissionControl.configure(rate, burst, 0, 1, 0);
+        Ledger ledger = Ledger.open("admission-bench", dir.resolve("a.dat").toString(), dir.resolve("a.journal").toString());
+        for (int i = 0; i < maxThreads; i++) {
+            ledger.createAccount(accountNo(i), "pw" + i, 0);
+        }
+        LongAdder admitted = new LongAdder();
+        long begin = System.nanoTime();
+        run(maxThreads, opsPerThread, (t, i) -> {
+            if (Transactions.succeeded(ledger.deposit(accountNo(0), 1))) {
+                admitted.increment();
+            }
+        });
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        long allowed = burst + (long) (rate * seconds);
+        System.out.printf("  one account, limit %,.0f/s burst %d: %,d of %,d admitted in %.2f s (at most %,d allowed)%n",
+                rate, burst, admitted.sum(), maxThreads * opsPerThread, seconds, allowed);
+        if (admitted.sum() > allowed + 1 || ledger.getBalance(accountNo(0)) != admitted.sum()) {
+            throw new IllegalStateException(admitted.sum() + " admitted, balance " + ledger.getBalance(accountNo(0))
+                    + ", at most " + allowed + " allowed");
+        }
+        ledger.close();
+
+        // A tiny lag allowance, so a few sessions writing at once are enough to get ahead of the journal.
+        int sessions = maxThreads * 4;
+        AdmissionControl.configure(0, 1, 0, 1, 128);
+        Ledger lagging = Ledger.open("admission-lag-bench", dir.resolve("b.dat").toString(), dir.resolve("b.journal").toString());
+        for (int i = 0; i < sessions; i++) {
+            lagging.createAccount(accountNo(i), "pw" + i, 0);
+        }
+        LatencyHistogram turnedAway = new LatencyHistogram();
+        LatencyHistogram taken = new LatencyHistogram();
+        run(sessions, opsPerThread / 4, (t, i) -> {
+            long start = System.nanoTime();
+            long result = lagging.deposit(accountNo(t), 1);
+            (result == Transactions.BUSY ? turnedAway : taken).recordSince(start);
+        });
+        LatencyHistogram.Snapshot busy = turnedAway.snapshot();
+        LatencyHistogram.Snapshot done = taken.snapshot();
+        System.out.printf("  journal lag over 128 bytes: %,d turned away (p50 %,d ns, p99 %,d ns), %,d done (p50 %,d ns, p99 %,d ns)%n",
+                busy.count, busy.percentile(50), busy.percentile(99), done.count, done.percentile(50), done.percentile(99));
+        String text = lagging.metrics().toText();
+        System.out.print(text.substring(text.indexOf("  rate limited")));
+        lagging.close();
+        AdmissionControl.configure(0, 1, 0, 1, 0);
+    }
+
+    /**
+     * End-of-day interest and fees: the pass itself over a large balance column, laid out in
+     * pages like ConcurrentAccountStore's, and then a journaled run on a ledger, which must come
+     * back the same after replaying the journal and must leave the clearing account alone.
+     */
+    static void endOfDay(int accounts) throws Exception {
+        System.out.println("End of day over " + accounts + " accounts, " + Runtime.getRuntime().availableProcessors() + " core(s)");
+        EndOfDay run = EndOfDay.daily(3.5, 25 * Money.MINOR_UNITS, InterBankTransfers.CLEARING_ACCOUNT);
+        long[][] pages = new long[(accounts + EndOfDay.BLOCK - 1) / EndOfDay.BLOCK][];
+        long before = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int p = 0; p < pages.length; p++) {
+            pages[p] = new long[Math.min(EndOfDay.BLOCK, accounts - p * EndOfDay.BLOCK)];
+            for (int i = 0; i < pages[p].length; i++) {
+                pages[p][i] = random.nextLong(100_000 * Money.MINOR_UNITS);
+                before += pages[p][i];
+            }
+        }
+        for (int round = 0; round < 3; round++) { // the first warms up the JIT
+            EndOfDay.Totals totals = EndOfDay.forkJoin(pages.length, (page, into) -> run.apply(pages[page], 0, pages[page].length, into));
+            long after = 0;
+            for (long[] page : pages) {
+                for (long balance : page) {
+                    after += balance;
+                }
+            }
+            if (after != before + totals.interest - totals.fees || totals.accounts != accounts) {
+                throw new IllegalStateException("Balances moved by " + (after - before) + ", totals say "
+                        + (totals.interest - totals.fees) + " over " + totals.accounts + " accounts");
+            }
+            before = after;
+            if (round > 0) {
+                System.out.printf("  %-40s %,12d ms (%.2f ns per account)%n", "fork/join pass",
+                        totals.nanos / 1_000_000, totals.nanos / (double) accounts);
+            }
+        }
+
+        Path dir = Files.createTempDirectory("bank-bench");
+        int ledgerAccounts = (int) Math.min(accounts, Ledger.DEFAULT_CAPACITY / 2);
+        Ledger ledger = Ledger.open("eod-bench", dir.resolve("a.dat").toString(), dir.resolve("a.journal").toString());
+        Ledger.Batch batch = ledger.openBatch();
+        for (int i = 0; i < ledgerAccounts; i++) {
+            ledger.createAccount(accountNo(i), "pw" + i, 0);
+            batch.deposit(accountNo(i), i % 3 == 0 ? 1_000 : 10_000_000L + i);
+        }
+        batch.commit();
+        ledger.createClearingAccount();
+        ledger.deposit(InterBankTransfers.CLEARING_ACCOUNT, 12_345);
+        long journalBefore = Files.size(dir.resolve("a.journal"));
+        long balanceBefore = ledger.totalBalance();
+        EndOfDay.Totals totals = ledger.endOfDay(run);
+        System.out.printf("  %-40s %,12d ms, %,d bytes journaled%n", "ledger of " + ledgerAccounts + " accounts",
+                totals.nanos / 1_000_000, Files.size(dir.resolve("a.journal")) - journalBefore);
+        System.out.println("  " + totals);
+        if (ledger.totalBalance() != balanceBefore + totals.interest - totals.fees
+                || ledger.getBalance(InterBankTransfers.CLEARING_ACCOUNT) != 12_345) {
+            throw new IllegalStateException("Ledger total or clearing account doesn't match the run's totals");
+        }
+
+        // As if the process died now: a copy of the files replays the journal, end of day included.
+        Path crashed = Files.createTempDirectory("bank-bench");
+        Files.copy(dir.resolve("a.dat"), crashed.resolve("a.dat"));
+        Files.copy(dir.resolve("a.journal"), crashed.resolve("a.journal"));
+        Ledger recovered = Ledger.open("eod-bench-recovered", crashed.resolve("a.dat").toString(), crashed.resolve("a.journal").toString());
+        long[] mismatches = new long[1];
+        ledger.forEach((accountNo, password, balance) -> {
+            if (recovered.getBalance(accountNo) != balance) {
+                mismatches[0]++;
+            }
+        });
+        if (mismatches[0] != 0) {
+            throw new IllegalStateException(mismatches[0] + " balances differ after replaying the journal");
+        }
+        System.out.println("  every balance the same after replaying the journal");
+        recovered.close();
+        ledger.close();
+    }
+
+    /**
+     * Reports over balance snapshots: what taking one costs as the book grows, what an open one
+     * costs the writers, that every report adds up while transfers run, and that the memory it
+     * holds follows the accounts changed rather than the accounts held.
+     */
+    static void reports(int threads, int opsPerThread, int accounts) throws Exception {
+        System.out.println("Balance snapshots and reports, " + threads + " writer thread(s)");
+        long opening = 1_000 * Money.MINOR_UNITS;
+        for (int size = Math.min(10_000, accounts); ; size = Math.min(size * 10, accounts)) {
+            AccountStore store = newStore(size, opening);
+            long nanos = 0;
+            for (int round = 0; round < 2; round++) { // the first warms up the JIT
+                long begin = System.nanoTime();
+                for (int i = 0; i < 1_000; i++) {
+                    store.snapshot().close();
+                }
+                nanos = System.nanoTime() - begin;
+            }
+            System.out.printf("  %-40s %,12.1f us%n", "take + close, " + size + " accounts", nanos / 1_000 / 1_000.0);
+            if (size == accounts) {
+                break;
+            }
+        }
+
+        AccountStore store = newStore(accounts, opening);
+        long expected = (long) accounts * opening;
+        Operation transfers = (t, i) -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            store.transfer(accountNo(random.nextInt(accounts)), accountNo(random.nextInt(accounts)), 1 + random.nextInt(100));
+        };
+        for (int round = 0; round < 2; round++) {
+            run(threads, opsPerThread, transfers);
+        }
+        report("transfers, no snapshot", threads, opsPerThread, transfers);
+        try (BalanceSnapshot open = store.snapshot()) {
+            report("transfers, one snapshot open", threads, opsPerThread, transfers);
+            if (BalanceReports.total(open) != expected) {
+                throw new IllegalStateException("Snapshot total " + BalanceReports.total(open) + ", expected " + expected);
+            }
+        }
+
+        // Reports run back to back on their own thread while the writers go on; transfers keep the total fixed.
+        boolean[] stop = new boolean[1];
+        long[] reportsRun = new long[1];
+        Exception[] failure = new Exception[1];
+        Thread reporter = new Thread(() -> {
+            while (!stop[0]) {
+                try (BalanceSnapshot snapshot = store.snapshot()) {
+                    BalanceReports.Summary summary = BalanceReports.summarize(snapshot, 10, opening / 2, 10);
+                    if (summary.total != expected || summary.accounts != accounts) {
+                        failure[0] = new IllegalStateException("Report saw " + summary.accounts + " accounts holding "
+                                + summary.total + ", expected " + accounts + " holding " + expected);
+                        return;
+                    }
+                    reportsRun[0]++;
+                }
+            }
+        });
+        reporter.start();
+        report("transfers, reports running", threads, opsPerThread, transfers);
+        stop[0] = true;
+        reporter.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        System.out.println("  " + reportsRun[0] + " report(s) ran alongside, every one adding up to " + Money.format(expected));
+        try (BalanceSnapshot snapshot = store.snapshot()) {
+            System.out.print(BalanceReports.summarize(snapshot, 3, opening / 2, 3).toString().replaceAll("(?m)^", "    "));
+        }
+
+        // Memory noted for an open snapshot, per account changed after it was taken.
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        String[] accountNos = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            accountNos[i] = accountNo(i);
+        }
+        long deposited = 0;
+        for (int changed = Math.min(1_000, accounts); ; changed = Math.min(changed * 10, accounts)) {
+            try (BalanceSnapshot snapshot = store.snapshot()) {
+                long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+                for (int i = 0; i < changed; i++) {
+                    store.deposit(accountNos[i], 1);
+                }
+                long allocated = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+                System.out.printf("  %-40s %,12d bytes (%.1f per account)%n", changed + " accounts changed", allocated,
+                        allocated / (double) changed);
+                if (BalanceReports.total(snapshot) != expected + deposited) {
+                    throw new IllegalStateException("Snapshot saw the deposits made after it was taken");
+                }
+            }
+            deposited += changed;
+            if (changed == accounts) {
+                break;
+            }
+        }
+
+        // The mapped store too, with an account created after the snapshot.
+        Path file = Files.createTempDirectory("bank-bench").resolve("accounts.dat");
+        try (MappedAccountStore mapped = MappedAccountStore.create(file, 1_024)) {
+            for (int i = 0; i < 100; i++) {
+                mapped.createAccount(accountNo(i), "pw" + i, opening);
+            }
+            try (BalanceSnapshot snapshot = mapped.snapshot()) {
+                mapped.createAccount(accountNo(100), "pw", opening);
+                mapped.transfer(accountNo(0), accountNo(1), opening);
+                mapped.withdraw(accountNo(2), opening);
+                BalanceReports.Summary summary = BalanceReports.summarize(snapshot, 1, opening, 1);
+                if (summary.accounts != 100 || summary.total != 100 * opening || summary.belowThreshold != 0) {
+                    throw new IllegalStateException("Mapped snapshot saw later changes: " + summary);
+                }
+            }
+        }
+        Files.delete(file);
+        System.out.println("  mapped store snapshot unchanged by later creates, transfers and withdrawals");
+    }
+
+    /**
+     * The same book on the heap and off it: heap used, what a full collection costs with the
+     * accounts loaded, what the collector does during a run of operations, and their speed.
+     * Run it with a heap big enough for the on-heap store, e.g. -Xmx3g for 5M accounts.
+     */
+    static void offHeap(int threads, int opsPerThread, int accounts) throws Exception {
+        System.out.println("On-heap and off-heap stores, " + accounts + " accounts");
+        java.lang.management.MemoryMXBean memory = java.lang.management.ManagementFactory.getMemoryMXBean();
+        for (String kind : new String[] {"heap", "offheap"}) {
+            AccountStore store = kind.equals("heap")
+                    ? new ConcurrentAccountStore(Runtime.getRuntime().availableProcessors() * 16, accounts)
+                    : new OffHeapAccountStore(Runtime.getRuntime().availableProcessors() * 16, accounts);
+            long begin = System.nanoTime();
+            for (int i = 0; i < accounts; i++) {
+                store.createAccount(accountNo(i), "pw" + i, 1000);
+            }
+            long loaded = System.nanoTime() - begin;
+            System.gc();
+            begin = System.nanoTime();
+            System.gc();
+            long fullGc = System.nanoTime() - begin;
+            System.out.printf("  %-8s load %,8d ms, heap used %,8d MB, full GC %,6d ms%s%n", kind, loaded / 1_000_000,
+                    memory.getHeapMemoryUsage().getUsed() >> 20, fullGc / 1_000_000,
+                    store instanceof OffHeapAccountStore ? String.format(", off-heap %,d MB", ((OffHeapAccountStore) store).offHeapBytes() >> 20) : "");
+
+            // Operations that allocate a little per call, as a server's would, so the young collector runs.
+            Operation mixed = (t, i) -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                String from = accountNo(random.nextInt(accounts));
+                if (i % 2 == 0) {
+                    store.deposit(from, 1);
+                } else {
+                    store.transfer(from, accountNo(random.nextInt(accounts)), 1);
+                }
+            };
+            run(threads, opsPerThread, mixed); // warms up the JIT
+            long[] gcBefore = gcTotals();
+            double opsPerSecond = run(threads, opsPerThread, mixed);
+            long[] gcAfter = gcTotals();
+            System.out.printf("  %-8s %,12.0f ops/s, %,d collections taking %,d ms%n", kind, opsPerSecond,
+                    gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+            if (store.totalBalance() != accounts * 1000L + threads * (long) (opsPerThread / 2 + opsPerThread % 2) * 2) {
+                throw new IllegalStateException(kind + " store total is " + store.totalBalance());
+            }
+        }
+    }
+
+    /**
+     * Looking accounts up by String key against by AccountId. The account numbers are made
+     * afresh for each lookup, as they would be parsed off the wire, so String.hashCode isn't
+     * cached. Then what a key costs to hold either way, and that ids survive the round trip.
+     */
+    static void accountIds(int accounts) throws Exception {
+        System.out.println("Account lookups by String and by AccountId, " + accounts + " accounts");
+        java.util.Map<String, Integer> map = new java.util.HashMap<>();
+        ConcurrentAccountStore store = new ConcurrentAccountStore(Runtime.getRuntime().availableProcessors() * 16, accounts);
+        long[] ids = new long[accounts];
+        for (int i = 0; i < accounts; i++) {
+            String accountNo = accountNo(i);
+            map.put(accountNo, i);
+            store.createAccount(accountNo, "pw", 0);
+            ids[i] = AccountId.parse(accountNo);
+            if (!AccountId.isValid(ids[i]) || !AccountId.toString(ids[i]).equals(accountNo)) {
+                throw new IllegalStateException(accountNo + " doesn't survive the round trip");
+            }
+        }
+        int lookups = 4_000_000;
+        int[] order = new int[lookups];
+        char[][] wire = new char[lookups][];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < lookups; i++) {
+            order[i] = random.nextInt(accounts);
+            wire[i] = accountNo(order[i]).toCharArray();
+        }
+        long[] found = new long[1];
+        for (int round = 0; round < 2; round++) { // the first warms up the JIT
+            double stringMap = run(1, lookups, (t, i) -> found[0] += map.get(new String(wire[i])));
+            double stringStore = run(1, lookups, (t, i) -> found[0] += store.exists(new String(wire[i])) ? 1 : 0);
+            double parsedOnce = run(1, lookups, (t, i) -> found[0] += store.slotOf(ids[order[i]]));
+            if (round == 1) {
+                System.out.printf("  %-40s %,12.1f ns per lookup%n", "HashMap<String, Integer>", 1e9 / stringMap);
+                System.out.printf("  %-40s %,12.1f ns per lookup%n", "store, String parsed to id each time", 1e9 / stringStore);
+                System.out.printf("  %-40s %,12.1f ns per lookup%n", "store, id parsed once", 1e9 / parsedOnce);
+            }
+        }
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+        String[] keys = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            keys[i] = new String(wire[i % lookups]);
+        }
+        long stringBytes = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before - 16L - 4L * accounts;
+        System.out.printf("  %-40s %,12.1f bytes per key (an id is 8)%n", "String account number", stringBytes / (double) accounts);
+
+        int accepted = 0;
+        for (int i = 0; i < 1_000_000; i++) {
+            if (AccountId.isValid(random.nextLong() >>> 9)) {
+                accepted++;
+            }
+        }
+        System.out.printf("  %-40s %,12d of 1,000,000%n", "random longs passing the check", accepted);
+        if (AccountId.parse("#clearing") != AccountId.NONE || AccountId.parse("0042") == AccountId.parse("42")) {
+            throw new IllegalStateException("Only digit strings should have ids, and leading zeros should count");
+        }
+    }
+
+    /**
+     * Velocity screening: the screen's own latency with transfers arriving at a steady rate,
+     * paced the way a busy bank would see them. VelocityScreenTest checks each rule.
+     */
+    static void screen(int perSecond, int seconds) throws Exception {
+        System.out.println("Velocity screen at " + perSecond + " transfers a second for " + seconds + " s");
+        long minor = Money.MINOR_UNITS;
+        VelocityScreen.Rules rules = new VelocityScreen.Rules(new int[] {10, 60, 200},
+                new long[] {200_000 * minor, 1_000_000 * minor, 5_000_000 * minor}, 100_000 * minor, 5);
+        // 50k busy senders, each paying one of 4 payees; everything under the limits but the odd burst.
+        int senders = 50_000;
+        String[] accountNos = new String[senders];
+        for (int i = 0; i < senders; i++) {
+            accountNos[i] = accountNo(i);
+        }
+        String[] payees = {"P0", "P1", "P2", "P3"};
+        for (int round = 0; round < 2; round++) { // the first warms up the JIT
+            VelocityScreen screen = new VelocityScreen(rules, VelocityScreen.DEFAULT_ACCOUNTS, VelocityScreen.DEFAULT_PAYEES);
+            LatencyHistogram latency = new LatencyHistogram();
+            long refused = 0;
+            long interval = 1_000_000_000L / perSecond;
+            int transfers = perSecond * seconds;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long begin = System.nanoTime();
+            for (int i = 0; i < transfers; i++) {
+                long due = begin + i * interval;
+                while (System.nanoTime() < due) {
+                    Thread.onSpinWait();
+                }
+                String from = accountNos[random.nextInt(senders)];
+                String to = payees[random.nextInt(payees.length)];
+                long start = System.nanoTime();
+                long result = screen.screen(from, to, 1 + random.nextInt(50_000), start);
+                latency.recordSince(start);
+                if (result < 0) {
+                    refused++;
+                }
+            }
+            double achieved = transfers * 1e9 / (System.nanoTime() - begin);
+            LatencyHistogram.Snapshot snapshot = latency.snapshot();
+            if (round == 1) {
+                System.out.printf("  %-40s %,12.0f transfers/s%n", "achieved", achieved);
+                System.out.printf("  %-40s p50 %,d ns, p99 %,d ns, p99.9 %,d ns, max %,d ns (one clock read included)%n",
+                        "screen", snapshot.percentile(50), snapshot.percentile(99), snapshot.percentile(99.9), snapshot.maxNanos);
+                System.out.printf("  %-40s %,12d of %,d%n", "screened out", refused, transfers);
+                System.out.printf("  %-40s %,12d MB, %,d accounts evicted%n", "state", screen.bytes() >> 20, screen.evicted());
+                if (snapshot.percentile(99) > 5_000) {
+                    throw new IllegalStateException("Screening p99 is " + snapshot.percentile(99) + " ns, over the 5 us budget");
+                }
+            }
+        }
+    }
+
+    // Collections and milliseconds spent in them so far, across all collectors.
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private static double average(long[] values) {
+        double sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    // Transfers between three banks, settled in the background (InterBankTransfersTest checks that no
+    // money appears or vanishes, and that a restart settles what a crash left held).
+    static void interbank(int threads, int opsPerThread) throws Exception {
+        Path dir = Files.createTempDirectory("bank-bench");
+        String[] names = {"Bank A", "Bank B", "Bank C"};
+        int accountCount = 1_000;
+        Ledger[] ledgers = new Ledger[names.length];
+        InterBankTransfers clearing = new InterBankTransfers(0);
+        for (int b = 0; b < names.length; b++) {
+            ledgers[b] = Ledger.open(names[b], dir.resolve(b + ".dat").toString(), dir.resolve(b + ".journal").toString());
+            for (int i = 0; i < accountCount; i++) {
+                ledgers[b].createAccount(accountNo(i), "pw" + i, 1_000_000);
+            }
+            clearing.register(names[b], ledgers[b]);
+        }
+        System.out.println("Inter-bank transfers between " + names.length + " banks of " + accountCount + " accounts");
+
+        InterBankTransfers.Settlement total = new InterBankTransfers.Settlement();
+        int[] settlements = new int[1];
+        Runnable settleOnce = () -> {
+            InterBankTransfers.Settlement result = clearing.settle();
+            if (result.settled + result.reversed > 0) {
+                settlements[0]++;
+            }
+            total.settled += result.settled;
+            total.reversed += result.reversed;
+            total.netMovements += result.netMovements;
+            total.grossAmount += result.grossAmount;
+            total.netAmount += result.netAmount;
+        };
+        java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+        Thread settler = new Thread(() -> {
+            while (!done.get()) {
+                settleOnce.run();
+                java.util.concurrent.locks.LockSupport.parkNanos(20_000_000);
+            }
+        });
+        settler.start();
+        // One in twenty goes to an account that doesn't exist, and has to come back.
+        report("submit (hold at source)", threads, opsPerThread, (t, i) -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int from = random.nextInt(names.length);
+            int to = (from + 1 + random.nextInt(names.length - 1)) % names.length;
+            String target = i % 20 == 0 ? "missing-" + i : accountNo(random.nextInt(accountCount));
+            clearing.submit(names[from], accountNo(random.nextInt(accountCount)), names[to], target, 1 + random.nextInt(50));
+        });
+        done.set(true);
+        settler.join();
+        settleOnce.run();
+        System.out.println("  " + settlements[0] + " cycles: " + total.settled + " settled (" + Money.format(total.grossAmount)
+                + "), " + total.reversed + " reversed, " + total.netMovements + " net movements (" + Money.format(total.netAmount) + ")");
+
+        // Then everything in a single cycle, as if the window were long.
+        report("submit, one cycle", threads, opsPerThread, (t, i) -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int from = random.nextInt(names.length);
+            int to = (from + 1 + random.nextInt(names.length - 1)) % names.length;
+            clearing.submit(names[from], accountNo(random.nextInt(accountCount)), names[to],
+                    accountNo(random.nextInt(accountCount)), 1 + random.nextInt(50));
+        });
+        System.out.println("  " + clearing.settle());
+        clearing.close();
+        for (Ledger ledger : ledgers) {
+            ledger.close();
+        }
+    }
+
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASURED_ITERATIONS = 3;
+
+    /**
+     * Deposit, withdraw, transfer and login on both kinds of bank, for each account count and
+     * for 1, 2, 4... up to maxThreads threads: "memory" is SimpleBankingApp's in-memory store,
+     * "ledger" is a Bank's journaled account file. "journal" is writing one transaction line,
+     * which is what logTransaction used to do. Each figure is the mean of a few runs after a warm-up.
+     */
+    static void baseline(int maxThreads, int opsPerThread, int[] accountCounts, String jsonFile) throws Exception {
+        Path dir = Files.createTempDirectory("bank-bench");
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"suite\": \"baseline\",\n");
+        json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"operationsPerThread\": ").append(opsPerThread).append(",\n");
+        json.append("  \"results\": [\n");
+        boolean first = true;
+
+        for (int accountCount : accountCounts) {
+            String[] numbers = new String[accountCount];
+            String[] passwords = new String[accountCount];
+            for (int i = 0; i < accountCount; i++) {
+                numbers[i] = accountNo(i);
+                passwords[i] = "pw" + i;
+            }
+            long openingBalance = 1_000_000_000L * Money.MINOR_UNITS; // enough that no withdrawal is refused
+
+            AccountStore memory = newStore(accountCount, openingBalance);
+            Ledger ledger = null;
+            if (accountCount <= Ledger.DEFAULT_CAPACITY * 3 / 4) {
+                String name = "bench-" + accountCount;
+                ledger = Ledger.open(name, dir.resolve(name + ".dat").toString(), dir.resolve(name + ".journal").toString());
+                for (int i = 0; i < accountCount; i++) {
+                    ledger.createAccount(numbers[i], passwords[i], openingBalance);
+                }
+            } else {
+                System.out.println("Skipping ledger with " + accountCount + " accounts: more than its account file holds");
+            }
+            TransactionJournal journal = new TransactionJournal(dir.resolve("log-" + accountCount + ".txt").toString());
+
+            System.out.println("Baseline with " + accountCount + " accounts");
+            String[] targets = {"memory", "ledger", "journal"};
+            for (String target : targets) {
+                AccountStore accounts = target.equals("memory") ? memory : ledger;
+                if (target.equals("ledger") && ledger == null) {
+                    continue;
+                }
+                String[] benchmarks = target.equals("journal")
+                        ? new String[] {"logTransaction"}
+                        : new String[] {"deposit", "withdraw", "transfer", "login"};
+                for (String benchmark : benchmarks) {
+                    Operation op;
+                    switch (benchmark) {
+                        case "deposit":
+                            op = (t, i) -> Transactions.deposit(accounts,
+                                    numbers[ThreadLocalRandom.current().nextInt(accountCount)], 1);
+                            break;
+                        case "withdraw":
+                            op = (t, i) -> Transactions.withdraw(accounts,
+                                    numbers[ThreadLocalRandom.current().nextInt(accountCount)], 1);
+                            break;
+                        case "transfer":
+                            op = (t, i) -> {
+                                int from = ThreadLocalRandom.current().nextInt(accountCount);
+                                Transactions.transfer(accounts, numbers[from], numbers[(from + 1) % accountCount], 1);
+                            };
+                            break;
+                        case "login":
+                            op = (t, i) -> {
+                                int account = ThreadLocalRandom.current().nextInt(accountCount);
+                                accounts.checkPassword(numbers[account], passwords[account]);
+                            };
+                            break;
+                        default:
+                            op = (t, i) -> journal.writeLine("Account " + numbers[i % accountCount]
+                                    + ": Deposited " + i + ". Balance: " + i);
+                            break;
+                    }
+                    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                        for (int w = 0; w < WARMUP_ITERATIONS; w++) {
+                            run(threads, opsPerThread, op);
+                        }
+                        double[] iterations = new double[MEASURED_ITERATIONS];
+                        double sum = 0;
+                        for (int m = 0; m < MEASURED_ITERATIONS; m++) {
+                            iterations[m] = run(threads, opsPerThread, op);
+                            sum += iterations[m];
+                        }
+                        double mean = sum / MEASURED_ITERATIONS;
+                        System.out.printf("  %-45s %,12.0f ops/s%n", target + " " + benchmark + ", " + threads + " thread(s)", mean);
+
+                        json.append(first ? "" : ",\n");
+                        first = false;
+                        json.append(String.format("    {\"benchmark\": \"%s\", \"target\": \"%s\", \"accounts\": %d, \"threads\": %d, "
+                                + "\"opsPerSecond\": %.0f, \"iterations\": [", benchmark, target, accountCount, threads, mean));
+                        for (int m = 0; m < MEASURED_ITERATIONS; m++) {
+                            json.append(m == 0 ? "" : ", ").append(String.format("%.0f", iterations[m]));
+                        }
+                        json.append("]}");
+                    }
+                }
+            }
+            journal.close();
+            if (ledger != null) {
+                ledger.close();
+            }
+        }
+        json.append("\n  ]\n}\n");
+        Files.write(Path.of(jsonFile), json.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        System.out.println("Baseline written to " + jsonFile);
+    }
+
+    // Partitioned posting of a random operation stream, against posting it on one thread (PartitionedExecutorTest checks they agree).
+    static void parallel(int lanes, int operations) throws Exception {
+        int accountCount = 1_000;
+        System.out.println("Partitioned posting of " + operations + " operations over " + accountCount + " accounts");
+        byte[] types = new byte[operations];
+        String[] from = new String[operations];
+        String[] to = new String[operations];
+        long[] amounts = new long[operations];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < operations; i++) {
+            types[i] = (byte) (1 + random.nextInt(3));
+            from[i] = accountNo(random.nextInt(accountCount));
+            to[i] = accountNo(random.nextInt(accountCount));
+            // Large amounts against small balances, so plenty are refused and order matters.
+            amounts[i] = 1 + random.nextInt(2000);
+        }
+
+        AccountStore sequential = newStore(accountCount, 1000);
+        long begin = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            BatchPoster.execute(sequential, types[i], from[i], to[i], amounts[i]);
+        }
+        long nanos = System.nanoTime() - begin;
+        System.out.printf("  %-45s %,12.0f ops/s%n", "1 thread", operations * 1e9 / nanos);
+
+        AccountStore partitioned = newStore(accountCount, 1000);
+        AccountStore[] views = new AccountStore[lanes];
+        java.util.Arrays.fill(views, partitioned);
+        long[] results = new long[operations];
+        begin = System.nanoTime();
+        try (PartitionedExecutor executor = new PartitionedExecutor(views, 4096, results)) {
+            for (int i = 0; i < operations; i++) {
+                executor.submit(i, types[i], from[i], to[i], amounts[i]);
+            }
+            executor.awaitQuiescence();
+        }
+        nanos = System.nanoTime() - begin;
+        System.out.printf("  %-45s %,12.0f ops/s%n", lanes + " lane(s)", operations * 1e9 / nanos);
+    }
+
+    // Replay speed of a journal onto a checkpoint, ending in a deliberately torn record (JournalRecoveryTest checks the result).
+    static void recovery(int records) throws Exception {
+        Path dir = Files.createTempDirectory("bank-bench");
+        Path checkpoint = dir.resolve("accounts.dat");
+        Path journalFile = dir.resolve("transactions.journal");
+        int accountCount = 10_000;
+        System.out.println("Journal replay of " + records + " records onto " + accountCount + " accounts");
+
+        try (TransactionJournal journal = new TransactionJournal(journalFile.toString())) {
+            JournalRecord record = new JournalRecord();
+            long end = 0;
+            for (int i = 0; i < accountCount; i++) {
+                record.set(JournalRecord.CREATE, accountNo(i), null, 1000, 1000).credential = "pw" + i;
+                end = journal.append(record.encode());
+            }
+            for (int i = 0; i < records; i++) {
+                String account = accountNo(i % accountCount);
+                if (i % 3 == 2) {
+                    record.set(JournalRecord.TRANSFER, account, accountNo((i * 7) % accountCount), 1, 0);
+                } else {
+                    record.set(i % 3 == 0 ? JournalRecord.DEPOSIT : JournalRecord.WITHDRAW, account, null, 5, 0);
+                }
+                end = journal.append(record.encode());
+            }
+            journal.awaitDurable(end);
+        }
+        // Simulate a crash in the middle of writing one more record.
+        byte[] torn = new JournalRecord().set(JournalRecord.DEPOSIT, accountNo(0), null, 1, 0).encode();
+        Files.write(journalFile, java.util.Arrays.copyOf(torn, torn.length / 2), java.nio.file.StandardOpenOption.APPEND);
+
+        JournalRecovery.Result result = new JournalRecovery.Result();
+        JournalRecovery.recover(checkpoint, dir.resolve("accounts.dat.work"), journalFile, accountCount * 2L, result).close();
+        System.out.println("  " + result);
+    }
+
+    // How long a large memory-mapped account file takes to open and to serve its first lookups.
+    static void snapshot(int threads, int opsPerThread, int accountCount) throws Exception {
+        Path file = Files.createTempDirectory("bank-bench").resolve("accounts.dat");
+        System.out.println("MappedAccountStore with " + accountCount + " accounts");
+        long begin = System.nanoTime();
+        try (MappedAccountStore store = MappedAccountStore.create(file, accountCount * 2L)) {
+            for (int i = 0; i < accountCount; i++) {
+                store.createAccount(accountNo(i), "pw" + i, 1000);
+            }
+        }
+        System.out.printf("  build + force                            %,12d ms%n", (System.nanoTime() - begin) / 1_000_000);
+
+        begin = System.nanoTime();
+        try (MappedAccountStore store = MappedAccountStore.open(file)) {
+            long opened = System.nanoTime() - begin;
+            store.getBalance(accountNo(accountCount / 2));
+            long firstLookup = System.nanoTime() - begin;
+            System.out.printf("  open                                     %,12d us%n", opened / 1000);
+            System.out.printf("  open + first lookup                      %,12d us%n", firstLookup / 1000);
+            report("in-place deposits, " + threads + " thread(s)", threads, opsPerThread,
+                    (t, i) -> store.deposit(accountNo(ThreadLocalRandom.current().nextInt(accountCount)), 1));
+        }
+        Files.delete(file);
+    }
+
+    // The old open-append-close writer against the group-commit journal under each sync and ack policy.
+    static void journal(int threads, int opsPerThread) throws Exception {
+        Path dir = Files.createTempDirectory("bank-bench");
+        System.out.println("Journal write throughput, " + threads + " threads x " + opsPerThread + " ops");
+
+        File perCallFile = dir.resolve("per-call.txt").toFile();
+        report("per-call FileWriter", threads, opsPerThread, (t, i) -> {
+            // This is what logTransaction used to do on every operation.
+            try (FileWriter fw = new FileWriter(perCallFile, true);
+                 BufferedWriter bw = new BufferedWriter(fw)) {
+                bw.write("Account " + t + ": Deposited " + i + ". Balance: " + i);
+                bw.newLine();
+            }
+        });
+
+        File perCallSyncFile = dir.resolve("per-call-sync.txt").toFile();
+        report("per-call FileWriter + fsync", threads, opsPerThread, (t, i) -> {
+            try (FileOutputStream out = new FileOutputStream(perCallSyncFile, true);
+                 BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out))) {
+                bw.write("Account " + t + ": Deposited " + i + ". Balance: " + i);
+                bw.newLine();
+                bw.flush();
+                out.getFD().sync();
+            }
+        });
+
+        for (TransactionJournal.SyncPolicy policy : TransactionJournal.SyncPolicy.values()) {
+            for (TransactionJournal.AckPolicy ack : TransactionJournal.AckPolicy.values()) {
+                Path file = dir.resolve("journal-" + policy + "-" + ack + ".txt");
+                LongAdder written = new LongAdder();
+                TransactionJournal journal = new TransactionJournal(file.toString(), policy, ack,
+                        TransactionJournal.DEFAULT_BATCH_WINDOW_MICROS, TransactionJournal.DEFAULT_BUFFER_BYTES);
+                try (journal) {
+                    report("journal, sync=" + policy + ", ack=" + ack, threads, opsPerThread, (t, i) -> {
+                        String line = "Account " + t + ": Deposited " + i + ". Balance: " + i;
+                        journal.writeLine(line);
+                        written.add(line.length() + 1);
+                    });
+                }
+                // Every byte appended must be in the file once close() returns, whatever the ack policy.
+                LatencyHistogram.Snapshot lag = journal.flushLag();
+                System.out.printf("  %,d batches, flush lag p50 %,d us, p99 %,d us, max %,d us%s%n", journal.batches(),
+                        lag.percentile(50) / 1000, lag.percentile(99) / 1000, lag.maxNanos / 1000,
+                        Files.size(file) == written.sum() ? "" : ", FAILED: file has " + Files.size(file)
+                                + " bytes, expected " + written.sum());
+            }
+        }
+    }
+
+    // Deposit scaling on a shared store, plus a stress run that checks no money is created or lost.
+    static void store(int maxThreads, int opsPerThread) throws Exception {
+        int accountCount = 10_000;
+        System.out.println("AccountStore deposits to random accounts, " + accountCount + " accounts");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            AccountStore store = newStore(accountCount, 1000);
+            report(threads + " thread(s)", threads, opsPerThread,
+                    (t, i) -> store.deposit(accountNo(ThreadLocalRandom.current().nextInt(accountCount)), 1));
+        }
+
+        // Random transfers, and withdraw/deposit pairs, between a small set of accounts so threads collide.
+        // AccountStoreStressTest checks that no money is lost doing this.
+        int hotAccounts = 64;
+        AccountStore store = newStore(hotAccounts, 1000);
+        report("stress: transfers on " + hotAccounts + " hot accounts", maxThreads, opsPerThread, (t, i) -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String from = accountNo(random.nextInt(hotAccounts));
+            String to = accountNo(random.nextInt(hotAccounts));
+            int amount = 1 + random.nextInt(200);
+            if (i % 4 == 0) {
+                if (store.withdraw(from, amount) != AccountStore.INSUFFICIENT_FUNDS) {
+                    store.deposit(to, amount);
+                }
+            } else {
+                store.transfer(from, to, amount);
+            }
+        });
+
+        // The hot path should allocate nothing once the account numbers are in hand.
+        String[] numbers = new String[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            numbers[i] = accountNo(i);
+        }
+        AccountStore allocStore = newStore(accountCount, 1000);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        for (int round = 0; round < 2; round++) { // first round warms up the JIT
+            long allocatedBefore = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 1_000_000; i++) {
+                String from = numbers[i % accountCount];
+                String to = numbers[(i * 7) % accountCount];
+                allocStore.deposit(from, 3);
+                allocStore.withdraw(from, 2);
+                allocStore.transfer(from, to, 1);
+            }
+            long allocated = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+            if (round == 1) {
+                System.out.printf("  allocated %.3f bytes per deposit+withdraw+transfer%n", allocated / 1_000_000.0);
+            }
+        }
+    }
+
+    static AccountStore newStore(int accountCount, long openingBalance) {
+        AccountStore store = AccountStore.inMemory();
+        for (int i = 0; i < accountCount; i++) {
+            store.createAccount(accountNo(i), "pw" + i, openingBalance);
+        }
+        return store;
+    }
+
+    static String accountNo(int i) {
+        return Integer.toString(1_000_000 + i);
+    }
+
+    // Runs the operation on every thread at once and prints the combined throughput.
+    static double report(String name, int threads, int opsPerThread, Operation op) throws Exception {
+        double opsPerSecond = run(threads, opsPerThread, op);
+        System.out.printf("  %-40s %,12.0f ops/s%n", name, opsPerSecond);
+        return opsPerSecond;
+    }
+
+    static double run(int threads, int opsPerThread, Operation op) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        Exception[] failure = new Exception[1];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        op.run(thread, i);
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return (double) threads * opsPerThread * 1_000_000_000L / elapsed;
+    }
+}
@@ -0,0 +1,167 @@
+package BANKING;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for BankServer: opens many sessions at once, each with its own new account,
+ * and has every session send a mix of deposits, withdrawals, balance checks and OTP-confirmed
+ * transfers as fast as the server answers. Prints throughput and round-trip latency percentiles.
+ *
+ * A session keeps to the limits the server enforces, so that what's measured is the server
+ * working rather than turning requests away: it paces itself to the per-account rate, sends no
+ * more transfers than the velocity screen lets one account send in a day (checking its balance
+ * in their place after that), and sends a request again after a RATE_LIMITED or BUSY reply.
+ * The limits are read from the same banking.limit.* and banking.screen.* system properties as
+ * the server reads, so start both with the same ones.
+ *
+ * Run it with: java BANKING.BankLoadClient [sessions] [requestsPerSession] [port] [host]
+ */
+public class BankLoadClient {
+
+    private static final int TRANSFER_AMOUNT = 1;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : BankServer.DEFAULT_PORT;
+        String host = args.length > 3 ? args[3] : "localhost";
+        String prefix = "L" + (System.currentTimeMillis() % 1_000_000) + "-";
+        double rate = AdmissionControl.accountRate();
+        int burst = AdmissionControl.accountBurst();
+        int transfers = VelocityScreen.transfersAllowed(TRANSFER_AMOUNT * Money.MINOR_UNITS);
+
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong retries = new AtomicLong();
+        CountDownLatch connected = new CountDownLatch(sessions);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(sessions);
+        ThreadFactory threads = BankServer.sessionThreadFactory("load-");
+
+        System.out.println("Opening " + sessions + " sessions to " + host + ":" + port);
+        System.out.println("Each session sends " + (rate > 0 ? "up to " + rate + " requests/s" : "requests unpaced")
+                + (transfers < Integer.MAX_VALUE ? " and at most " + transfers + " transfers" : ""));
+        for (int s = 0; s < sessions; s++) {
+            String accountNo = prefix + s;
+            String target = prefix + ((s + 1) % sessions);
+            threads.newThread(() -> {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    Session session = new Session(socket, rate, burst, retries);
+                    expectOk(session.send("CREATE " + accountNo + " pw"), errors);
+                    expectOk(session.send("LOGIN " + accountNo + " pw"), errors);
+                    expectOk(session.send("DEPOSIT 1000"), errors);
+                    connected.countDown();
+                    start.await();
+                    int transfersLeft = transfers;
+                    for (int i = 0; i < requests; i++) {
+                        String command;
+                        switch (i % 4) {
+                            case 0:
+                                command = "DEPOSIT 10";
+                                break;
+                            case 1:
+                                command = "WITHDRAW 5";
+                                break;
+                            case 2:
+                                command = "BALANCE";
+                                break;
+                            default:
+                                command = transfersLeft-- > 0 ? "TRANSFER " + target + " " + TRANSFER_AMOUNT : "BALANCE";
+                                break;
+                        }
+                        session.pace();
+                        long begin = System.nanoTime();
+                        String reply = session.send(command);
+                        latency.recordSince(begin);
+                        expectOk(reply, errors);
+                    }
+                    session.call("QUIT");
+                } catch (IOException | InterruptedException e) {
+                    errors.incrementAndGet();
+                    System.out.println("Error in session " + accountNo + ": " + e.getMessage());
+                    connected.countDown();
+                } finally {
+                    finished.countDown();
+                }
+            }).start();
+        }
+
+        connected.await();
+        System.out.println("All sessions connected and logged in; sending " + requests + " requests each");
+        long begin = System.nanoTime();
+        start.countDown();
+        finished.await();
+        long nanos = System.nanoTime() - begin;
+
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%,d requests in %,d ms: %,.0f requests/s, %,d errors, %,d sent again after RATE_LIMITED or BUSY%n",
+                snapshot.count, nanos / 1_000_000, snapshot.count * 1e9 / nanos, errors.get(), retries.get());
+        System.out.printf("round trip: p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms%n",
+                snapshot.percentile(50) / 1e6, snapshot.percentile(99) / 1e6,
+                snapshot.percentile(99.9) / 1e6, snapshot.maxNanos / 1e6);
+    }
+
+    // One connection, sending at no more than the server lets one account.
+    private static final class Session {
+        private final BufferedReader in;
+        private final Writer out;
+        private final RateLimiter pace;  // null when the server has no per-account rate
+        private final long backOffNanos;
+        private final AtomicLong retries;
+
+        Session(Socket socket, double rate, int burst, AtomicLong retries) throws IOException {
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            // A little under the server's limit, so requests bunched up on the way still fit.
+            this.pace = rate > 0 ? new RateLimiter(rate * 0.9, Math.max(1, burst / 2), 1) : null;
+            this.backOffNanos = rate > 0 ? (long) (1e9 / rate) : 1_000_000;
+            this.retries = retries;
+        }
+
+        // Waits until the server would let the account make another request.
+        void pace() {
+            while (pace != null && !pace.tryAcquire(0, System.nanoTime())) {
+                LockSupport.parkNanos(backOffNanos);
+            }
+        }
+
+        // Sends the command, confirming a transfer's OTP, until the reply isn't a request to try again later.
+        String send(String command) throws IOException {
+            while (true) {
+                String reply = call(command);
+                if (reply.startsWith("OTP ")) {
+                    reply = call("OTP " + reply.substring(4));
+                }
+                if (!reply.equals("ERR RATE_LIMITED") && !reply.equals("ERR BUSY")) {
+                    return reply;
+                }
+                retries.incrementAndGet();
+                LockSupport.parkNanos(backOffNanos);
+            }
+        }
+
+        String call(String command) throws IOException {
+            out.write(command);
+            out.write('\n');
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new EOFException("server closed the connection");
+            }
+            return reply;
+        }
+    }
+
+    private static void expectOk(String reply, AtomicLong errors) {
+        if (!reply.startsWith("OK")) {
+            errors.incrementAndGet();
+        }
+    }
+}
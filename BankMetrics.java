@@ -0,0 +1,246 @@
+package BANKING;
+
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How one bank's operations are doing: a latency histogram and a success count for each
+ * operation, plus counts of refused withdrawals and transfers, failed OTPs and file errors,
+ * how admission control (see AdmissionControl) is holding operations back, and how far the
+ * journal's flusher is behind (see TransactionJournal.flushLag()).
+ *
+ * There is one instance per bank name, shared by everything working on that bank, so the
+ * menus, the ledger and batch posting all add to the same numbers. Use it as:
+ *   long start = System.nanoTime();
+ *   long balance = ...;
+ *   metrics.record(BankMetrics.Operation.DEPOSIT, start, balance);
+ */
+final class BankMetrics {
+
+    enum Operation {
+        DEPOSIT("deposit"),
+        WITHDRAW("withdraw"),
+        TRANSFER("transfer"),
+        LOGIN("login"),
+        JOURNAL("logTransaction");
+
+        final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final Map<String, BankMetrics> BANKS = new ConcurrentHashMap<>();
+
+    private final String bankName;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder[] successes = new LongAdder[Operation.values().length];
+    private final LongAdder insufficientFunds = new LongAdder();
+    private final LongAdder otpFailures = new LongAdder();
+    private final LongAdder ioErrors = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder screened = new LongAdder();
+    private volatile AdmissionControl admission;
+    private volatile TransactionJournal journal;
+
+    private BankMetrics(String bankName) {
+        this.bankName = bankName;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            successes[i] = new LongAdder();
+        }
+    }
+
+    static BankMetrics forBank(String bankName) {
+        return BANKS.computeIfAbsent(bankName, BankMetrics::new);
+    }
+
+    String bankName() {
+        return bankName;
+    }
+
+    /**
+     * Records one operation that started at startNanos (from System.nanoTime()). The result is
+     * a balance or Transactions result code: non-negative counts as a success, and
+     * INSUFFICIENT_FUNDS, RATE_LIMITED, BUSY and SCREENED are also counted on their own.
+     */
+    void record(Operation operation, long startNanos, long result) {
+        latencies[operation.ordinal()].recordSince(startNanos);
+        if (result >= 0) {
+            successes[operation.ordinal()].increment();
+        } else if (result == Transactions.INSUFFICIENT_FUNDS) {
+            insufficientFunds.increment();
+        } else if (result == Transactions.RATE_LIMITED) {
+            rateLimited.increment();
+        } else if (result == Transactions.BUSY) {
+            busy.increment();
+        } else if (result == Transactions.SCREENED) {
+            screened.increment();
+        }
+    }
+
+    // For operations that either work or don't, such as a login.
+    void record(Operation operation, long startNanos, boolean succeeded) {
+        latencies[operation.ordinal()].recordSince(startNanos);
+        if (succeeded) {
+            successes[operation.ordinal()].increment();
+        }
+    }
+
+    void otpFailed() {
+        otpFailures.increment();
+    }
+
+    void ioError() {
+        ioErrors.increment();
+    }
+
+    // Reports the limiter state and journal lag of this admission control along with the counts.
+    void watch(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    // Reports the flush lag and failed batches of this journal along with the counts.
+    void watch(TransactionJournal journal) {
+        this.journal = journal;
+    }
+
+    LatencyHistogram.Snapshot latency(Operation operation) {
+        return latencies[operation.ordinal()].snapshot();
+    }
+
+    long successes(Operation operation) {
+        return successes[operation.ordinal()].sum();
+    }
+
+    long insufficientFunds() {
+        return insufficientFunds.sum();
+    }
+
+    long otpFailures() {
+        return otpFailures.sum();
+    }
+
+    long ioErrors() {
+        return ioErrors.sum();
+    }
+
+    long rateLimited() {
+        return rateLimited.sum();
+    }
+
+    long busy() {
+        return busy.sum();
+    }
+
+    long screened() {
+        return screened.sum();
+    }
+
+    // A readable summary, one line per operation that has happened at least once.
+    String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append(bankName).append('\n');
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram.Snapshot latency = latency(operation);
+            if (latency.count == 0) {
+                continue;
+            }
+            text.append(String.format("  %-15s %,10d calls %,10d ok   p50 %s  p99 %s  p99.9 %s  max %s  mean %s%n",
+                    operation.label, latency.count, successes(operation),
+                    micros(latency.percentile(50)), micros(latency.percentile(99)), micros(latency.percentile(99.9)),
+                    micros(latency.maxNanos), micros(latency.meanNanos())));
+        }
+        text.append(String.format("  insufficient funds %,d, OTP failures %,d, I/O errors %,d%n",
+                insufficientFunds(), otpFailures(), ioErrors()));
+        text.append(String.format("  rate limited %,d, turned away busy %,d, screened out %,d", rateLimited(), busy(), screened()));
+        AdmissionControl watched = admission;
+        if (watched != null) {
+            text.append(String.format(", journal lag %,d of %,d bytes, bank tokens %,d, accounts at their limit %,d",
+                    watched.journalLagBytes(), watched.maxJournalLagBytes(), watched.bankTokens(), watched.accountsAtLimit()));
+        }
+        TransactionJournal watchedJournal = journal;
+        if (watchedJournal != null) {
+            LatencyHistogram.Snapshot lag = watchedJournal.flushLag();
+            text.append(String.format("%n  journal %s, %,d batches, %,d failed, flush lag p50 %s  p99 %s  max %s",
+                    watchedJournal.ackPolicy(), watchedJournal.batches(), watchedJournal.failedBatches(),
+                    micros(lag.percentile(50)), micros(lag.percentile(99)), micros(lag.maxNanos)));
+        }
+        return text.append('\n').toString();
+    }
+
+    String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"bank\": ").append(quote(bankName)).append(", \"operations\": {");
+        Operation[] operations = Operation.values();
+        for (int i = 0; i < operations.length; i++) {
+            LatencyHistogram.Snapshot latency = latency(operations[i]);
+            json.append(i == 0 ? "" : ", ").append(quote(operations[i].label)).append(": {")
+                    .append("\"count\": ").append(latency.count)
+                    .append(", \"succeeded\": ").append(successes(operations[i]))
+                    .append(", \"p50Nanos\": ").append(latency.percentile(50))
+                    .append(", \"p99Nanos\": ").append(latency.percentile(99))
+                    .append(", \"p999Nanos\": ").append(latency.percentile(99.9))
+                    .append(", \"maxNanos\": ").append(latency.maxNanos)
+                    .append(", \"meanNanos\": ").append(latency.meanNanos())
+                    .append('}');
+        }
+        json.append("}, \"insufficientFunds\": ").append(insufficientFunds())
+                .append(", \"otpFailures\": ").append(otpFailures())
+                .append(", \"ioErrors\": ").append(ioErrors())
+                .append(", \"rateLimited\": ").append(rateLimited())
+                .append(", \"busy\": ").append(busy())
+                .append(", \"screened\": ").append(screened());
+        AdmissionControl watched = admission;
+        if (watched != null) {
+            json.append(", \"admission\": {\"journalLagBytes\": ").append(watched.journalLagBytes())
+                    .append(", \"maxJournalLagBytes\": ").append(watched.maxJournalLagBytes())
+                    .append(", \"bankTokens\": ").append(watched.bankTokens())
+                    .append(", \"accountsAtLimit\": ").append(watched.accountsAtLimit())
+                    .append('}');
+        }
+        TransactionJournal watchedJournal = journal;
+        if (watchedJournal != null) {
+            LatencyHistogram.Snapshot lag = watchedJournal.flushLag();
+            json.append(", \"journal\": {\"ackPolicy\": ").append(quote(watchedJournal.ackPolicy().name()))
+                    .append(", \"batches\": ").append(watchedJournal.batches())
+                    .append(", \"failedBatches\": ").append(watchedJournal.failedBatches())
+                    .append(", \"flushLagP50Nanos\": ").append(lag.percentile(50))
+                    .append(", \"flushLagP99Nanos\": ").append(lag.percentile(99))
+                    .append(", \"flushLagMaxNanos\": ").append(lag.maxNanos)
+                    .append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    // Every bank's summary, in name order.
+    static String allToText() {
+        StringBuilder text = new StringBuilder();
+        for (String name : new TreeSet<>(BANKS.keySet())) {
+            text.append(BANKS.get(name).toText());
+        }
+        return text.toString();
+    }
+
+    static String allToJson() {
+        StringBuilder json = new StringBuilder("{\"banks\": [");
+        String separator = "\n  ";
+        for (String name : new TreeSet<>(BANKS.keySet())) {
+            json.append(separator).append(BANKS.get(name).toJson());
+            separator = ",\n  ";
+        }
+        return json.append("\n]}").toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1fus", nanos / 1000.0);
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
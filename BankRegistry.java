@@ -0,0 +1,222 @@
+package BANKING;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * All the banks in the system, read from a config file instead of written into main().
+ *
+ * Banks are numbered 1, 2, 3... in the order they are listed, and each owns the account numbers
+ * that start with its prefix; all prefixes are the same length, so finding an account's bank
+ * is one array lookup. A bank's files are only opened the first time it is used, so thousands
+ * can be listed without thousands of open ledgers.
+ *
+ * What a bank is opened as is up to the caller (MultiBankSystem opens a Bank per entry).
+ *
+ * Config lines look like this; blank lines and lines starting with '#' are skipped, and the
+ * files default to <first word of the name>_accounts.dat and <first word>_transactions.journal.
+ * No two banks may share a file, so banks whose names start with the same word need theirs listed:
+ *   Indian Bank,10
+ *   Global Bank,20,global_accounts.dat,global_transactions.journal
+ */
+final class BankRegistry<B> implements AutoCloseable {
+
+    static final String DEFAULT_CONFIG_FILE = "banks.conf";
+    private static final int MAX_PREFIX_DIGITS = 6;
+
+    // One line of the config.
+    static final class BankConfig {
+        final String name;
+        final String accountPrefix;
+        final String accountFile;
+        final String journalFile;
+
+        BankConfig(String name, String accountPrefix, String accountFile, String journalFile) {
+            this.name = name;
+            this.accountPrefix = accountPrefix;
+            this.accountFile = accountFile;
+            this.journalFile = journalFile;
+        }
+
+        BankConfig(String name, String accountPrefix) {
+            this(name, accountPrefix, fileStem(name) + "_accounts.dat", fileStem(name) + "_transactions.journal");
+        }
+
+        private static String fileStem(String name) {
+            return name.trim().split("\\s+")[0].toLowerCase();
+        }
+    }
+
+    private final BankConfig[] configs;            // by id - 1
+    private final AtomicReferenceArray<B> open;    // by id - 1; null until first used
+    private final Map<String, Integer> idsByName = new HashMap<>();
+    private final int prefixDigits;
+    private final int[] idsByPrefix;               // 0 where no bank owns the prefix
+    private final Function<BankConfig, B> opener;
+    private final Consumer<B> closer;
+
+    BankRegistry(List<BankConfig> banks, Function<BankConfig, B> opener, Consumer<B> closer) {
+        if (banks.isEmpty()) {
+            throw new IllegalArgumentException("No banks configured");
+        }
+        this.configs = banks.toArray(new BankConfig[0]);
+        this.open = new AtomicReferenceArray<>(configs.length);
+        this.opener = opener;
+        this.closer = closer;
+        this.prefixDigits = configs[0].accountPrefix.length();
+        if (prefixDigits < 1 || prefixDigits > MAX_PREFIX_DIGITS) {
+            throw new IllegalArgumentException("Account prefixes must be 1 to " + MAX_PREFIX_DIGITS + " digits");
+        }
+        int tableSize = 1;
+        for (int i = 0; i < prefixDigits; i++) {
+            tableSize *= 10;
+        }
+        this.idsByPrefix = new int[tableSize];
+        Map<String, String> filesUsed = new HashMap<>();
+        for (int i = 0; i < configs.length; i++) {
+            BankConfig config = configs[i];
+            int prefix = parsePrefix(config.accountPrefix, config.accountPrefix.length());
+            if (config.accountPrefix.length() != prefixDigits || prefix < 0) {
+                throw new IllegalArgumentException("Bad account prefix for " + config.name + ": " + config.accountPrefix
+                        + " (every bank needs a prefix of " + prefixDigits + " digits)");
+            }
+            if (idsByPrefix[prefix] != 0) {
+                throw new IllegalArgumentException("Account prefix " + config.accountPrefix + " is used by both "
+                        + configs[idsByPrefix[prefix] - 1].name + " and " + config.name);
+            }
+            if (idsByName.put(config.name, i + 1) != null) {
+                throw new IllegalArgumentException("Bank " + config.name + " is listed twice");
+            }
+            for (String file : new String[] {config.accountFile, config.journalFile}) {
+                String owner = filesUsed.putIfAbsent(file, config.name);
+                if (owner != null) {
+                    throw new IllegalArgumentException("File " + file + " is used by both " + owner + " and " + config.name
+                            + " (give one of them its own files in the config)");
+                }
+            }
+            idsByPrefix[prefix] = i + 1;
+        }
+    }
+
+    /**
+     * Reads the config file. If it doesn't exist, the two original banks are used; if it can't
+     * be read, that's reported and the two original banks are used as well.
+     */
+    static List<BankConfig> loadConfig(Path file) {
+        List<BankConfig> banks = new ArrayList<>();
+        if (Files.exists(file)) {
+            try {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = line.split("\\s*,\\s*");
+                    if (fields.length == 2) {
+                        banks.add(new BankConfig(fields[0], fields[1]));
+                    } else if (fields.length == 4) {
+                        banks.add(new BankConfig(fields[0], fields[1], fields[2], fields[3]));
+                    } else {
+                        throw new IOException("expected name,prefix[,accountFile,journalFile] but found: " + line);
+                    }
+                }
+                if (!banks.isEmpty()) {
+                    return banks;
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading " + file + ", using the default banks: " + e.getMessage());
+            }
+        }
+        banks.clear();
+        banks.add(new BankConfig("Indian Bank", "10", "indian_accounts.dat", "indian_transactions.journal"));
+        banks.add(new BankConfig("Global Bank", "20", "global_accounts.dat", "global_transactions.journal"));
+        return banks;
+    }
+
+    int size() {
+        return configs.length;
+    }
+
+    String name(int id) {
+        return configs[id - 1].name;
+    }
+
+    // What every account number at the bank starts with.
+    String prefix(int id) {
+        return configs[id - 1].accountPrefix;
+    }
+
+    // The bank's id, or 0 if there is no bank by that name.
+    int idOf(String bankName) {
+        Integer id = idsByName.get(bankName);
+        return id == null ? 0 : id;
+    }
+
+    // The id of the bank that owns the account number, or 0 if none does.
+    int route(String accountNo) {
+        int prefix = parsePrefix(accountNo, prefixDigits);
+        return prefix < 0 ? 0 : idsByPrefix[prefix];
+    }
+
+    // The bank, opening it the first time it's asked for.
+    B get(int id) {
+        B bank = open.get(id - 1);
+        if (bank != null) {
+            return bank;
+        }
+        synchronized (open) {
+            bank = open.get(id - 1);
+            if (bank == null) {
+                bank = opener.apply(configs[id - 1]);
+                open.set(id - 1, bank);
+            }
+            return bank;
+        }
+    }
+
+    // Closes every bank that was opened.
+    @Override
+    public void close() {
+        for (int id = 1; id <= configs.length; id++) {
+            B bank = open.get(id - 1);
+            if (bank != null) {
+                closer.accept(bank);
+            }
+        }
+    }
+
+    // The first `digits` characters as a number, or -1 if they aren't all digits.
+    private static int parsePrefix(String s, int digits) {
+        if (s.length() < digits) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < digits; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    int openCount() {
+        int count = 0;
+        for (int i = 0; i < configs.length; i++) {
+            if (open.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,343 @@
+package BANKING;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves one bank to many users at once over TCP, instead of one user at the console.
+ *
+ * Every connection is a session with its own logged-in account and pending transfer, run on
+ * its own thread (a virtual thread where the JVM has them), and all sessions share one Ledger.
+ * The protocol is one command per line, answered by one line: "OK [value]" or "ERR REASON".
+ *   CREATE accountNo password      LOGIN accountNo password      LOGOUT
+ *   BALANCE                        DEPOSIT amount                WITHDRAW amount
+ *   TRANSFER targetAccountNo amount   (answered with "OTP code")
+ *   OTP code                       (confirms the pending transfer; a few tries, for a few minutes)
+ *   METRICS                        (the bank's metrics as one line of JSON)
+ *   QUIT
+ * DEPOSIT, WITHDRAW and TRANSFER may start with "ID requestId ". Sent again with the same id,
+ * e.g. after a timeout, such a command answers with the first result instead of running again
+ * (see IdempotencyTable); a repeated TRANSFER that already went through asks for no new OTP.
+ *
+ * Run it with: java BANKING.BankServer [port] [bankName] [accountFile] [journalFile]
+ * and try it with: java BANKING.BankLoadClient, or by hand with nc localhost 5050. Rate limits
+ * and transfer screening come from the banking.limit.* and banking.screen.* system properties;
+ * start BankLoadClient with the same ones so it keeps within them.
+ */
+public class BankServer implements AutoCloseable {
+
+    static final int DEFAULT_PORT = 5050;
+
+    private final Ledger accounts;
+    private final ServerSocket serverSocket;
+    private final IdempotencyTable requests = new IdempotencyTable();
+    private final ThreadFactory sessionThreads = sessionThreadFactory("session-");
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private volatile boolean closed;
+
+    BankServer(Ledger accounts, int port) throws IOException {
+        this.accounts = accounts;
+        this.serverSocket = new ServerSocket(port, 4096, InetAddress.getLoopbackAddress());
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String bankName = args.length > 1 ? args[1] : "Indian Bank";
+        String accountFile = args.length > 2 ? args[2] : "server_accounts.dat";
+        String journalFile = args.length > 3 ? args[3] : "server_transactions.journal";
+
+        Ledger accounts;
+        try {
+            accounts = Ledger.open(bankName, accountFile, journalFile);
+        } catch (IOException e) {
+            System.out.println(e.getMessage() + "; not serving until it's fixed");
+            return;
+        }
+        BankServer server = new BankServer(accounts, port);
+        // Ctrl-C stops accepting sessions and saves a checkpoint, like choosing Exit at the console.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            accounts.close();
+        }));
+        System.out.println(bankName + " serving on port " + server.serverSocket.getLocalPort()
+                + (isVirtual(server.sessionThreads) ? " (virtual threads)" : " (platform threads)"));
+        server.serve();
+    }
+
+    // Accepts connections until closed, starting a session for each.
+    void serve() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Error accepting connection: " + e.getMessage());
+                }
+                continue;
+            }
+            openSessions.incrementAndGet();
+            sessionThreads.newThread(() -> {
+                try (Socket s = socket) {
+                    new Session(accounts, requests).run(s.getInputStream(), s.getOutputStream());
+                } catch (IOException e) {
+                    // The client went away; nothing to tidy up beyond the socket.
+                } finally {
+                    openSessions.decrementAndGet();
+                }
+            }).start();
+        }
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    int openSessions() {
+        return openSessions.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.out.println("Error closing server socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One connected user: what the console apps keep in static fields (the logged-in account,
+     * the transfer waiting for its OTP) lives here, so sessions can't see each other's state.
+     */
+    static final class Session {
+        private final Ledger accounts;
+        private final IdempotencyTable requests;
+        private String loggedInAccountNo;
+        private String requestId;      // of the command being handled, or null
+        private String pendingTarget;
+        private long pendingAmount;
+        private long pendingChallenge; // OtpService id
+        private String pendingRequestId;
+
+        Session(Ledger accounts, IdempotencyTable requests) {
+            this.accounts = accounts;
+            this.requests = requests;
+        }
+
+        void run(InputStream input, OutputStream output) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 1024);
+            Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 1024);
+            String[] words = new String[3];
+            String line;
+            while ((line = in.readLine()) != null) {
+                String reply = handle(line, words);
+                if (reply == null) {
+                    out.write("OK bye\n");
+                    out.flush();
+                    return;
+                }
+                out.write(reply);
+                out.write('\n');
+                out.flush();
+            }
+        }
+
+        // Carries out one command and returns the reply line, or null for QUIT.
+        String handle(String line, String[] words) {
+            requestId = null;
+            if (line.startsWith("ID ")) {
+                int end = line.indexOf(' ', 3);
+                if (end < 0) {
+                    return "ERR USAGE ID requestId command";
+                }
+                requestId = line.substring(3, end);
+                line = line.substring(end + 1);
+            }
+            int count = splitWords(line, words);
+            if (count == 0) {
+                return "ERR EMPTY_COMMAND";
+            }
+            String command = words[0].toUpperCase();
+            if (command.equals("QUIT")) {
+                return null;
+            }
+            if (command.equals("METRICS")) {
+                return "OK " + accounts.metrics().toJson();
+            }
+            if (command.equals("CREATE") || command.equals("LOGIN")) {
+                if (count != 3) {
+                    return "ERR USAGE " + command + " accountNo password";
+                }
+                if (command.equals("CREATE")) {
+                    long created = accounts.create(words[1], words[2], 0, null);
+                    return created == 0 ? "OK" : "ERR " + Transactions.describe(created);
+                }
+                if (!accounts.checkPassword(words[1], words[2])) {
+                    return "ERR INVALID_CREDENTIALS";
+                }
+                dropPendingTransfer();
+                loggedInAccountNo = words[1];
+                return "OK";
+            }
+            if (loggedInAccountNo == null) {
+                return "ERR NOT_LOGGED_IN";
+            }
+            try {
+                switch (command) {
+                    case "LOGOUT":
+                        dropPendingTransfer();
+                        loggedInAccountNo = null;
+                        return "OK";
+                    case "BALANCE":
+                        return "OK " + Money.format(accounts.getBalance(loggedInAccountNo));
+                    case "DEPOSIT": {
+                        if (count != 2) {
+                            return "ERR USAGE DEPOSIT amount";
+                        }
+                        long amount = Money.parse(words[1]);
+                        return reply(requests.execute(loggedInAccountNo, requestId,
+                                () -> Transactions.deposit(accounts, loggedInAccountNo, amount)));
+                    }
+                    case "WITHDRAW": {
+                        if (count != 2) {
+                            return "ERR USAGE WITHDRAW amount";
+                        }
+                        long amount = Money.parse(words[1]);
+                        return reply(requests.execute(loggedInAccountNo, requestId,
+                                () -> Transactions.withdraw(accounts, loggedInAccountNo, amount)));
+                    }
+                    case "TRANSFER":
+                        return count != 3 ? "ERR USAGE TRANSFER targetAccountNo amount"
+                                : startTransfer(words[1], Money.parse(words[2]));
+                    case "OTP":
+                        return count != 2 ? "ERR USAGE OTP code" : confirmTransfer(words[1]);
+                    default:
+                        return "ERR UNKNOWN_COMMAND";
+                }
+            } catch (NumberFormatException e) {
+                return "ERR INVALID_AMOUNT";
+            }
+        }
+
+        // The same checks as the Transfer menu option; the money moves once the OTP comes back.
+        private String startTransfer(String targetAccount, long amount) {
+            if (requestId != null) {
+                long earlier = requests.resultOf(loggedInAccountNo, requestId);
+                if (earlier != IdempotencyTable.NOT_SEEN) {
+                    return reply(earlier);
+                }
+            }
+            long check = Transactions.checkTransferTarget(accounts, loggedInAccountNo, targetAccount);
+            if (check < 0) {
+                return reply(check);
+            }
+            if (amount <= 0) {
+                return reply(Transactions.INVALID_AMOUNT);
+            }
+            if (amount > accounts.getBalance(loggedInAccountNo)) {
+                return reply(Transactions.INSUFFICIENT_FUNDS);
+            }
+            dropPendingTransfer();
+            pendingTarget = targetAccount;
+            pendingAmount = amount;
+            pendingRequestId = requestId;
+            OtpService.Challenge otp = OtpService.shared().issue(loggedInAccountNo);
+            pendingChallenge = otp.id;
+            return "OTP " + otp.code;
+        }
+
+        private String confirmTransfer(String otp) {
+            if (pendingTarget == null) {
+                return "ERR NO_PENDING_TRANSFER";
+            }
+            OtpService.Result result = OtpService.shared().verify(pendingChallenge, loggedInAccountNo, otp);
+            if (result == OtpService.Result.WRONG_CODE) {
+                accounts.metrics().otpFailed();
+                return "ERR INVALID_OTP"; // the transfer stays pending for another try
+            }
+            String target = pendingTarget;
+            pendingTarget = null;
+            if (result != OtpService.Result.VERIFIED) {
+                accounts.metrics().otpFailed();
+                return "ERR " + result;
+            }
+            long amount = pendingAmount;
+            return reply(requests.execute(loggedInAccountNo, pendingRequestId,
+                    () -> Transactions.transfer(accounts, loggedInAccountNo, target, amount)));
+        }
+
+        private void dropPendingTransfer() {
+            if (pendingTarget != null) {
+                OtpService.shared().cancel(pendingChallenge);
+                pendingTarget = null;
+            }
+        }
+
+        private static String reply(long result) {
+            return Transactions.succeeded(result) ? "OK " + Money.format(result) : "ERR " + Transactions.describe(result);
+        }
+
+        // Splits on spaces into the given array. Returns the number of words, or one more than fits.
+        private static int splitWords(String line, String[] words) {
+            int count = 0;
+            int i = 0;
+            int length = line.length();
+            while (i < length) {
+                while (i < length && line.charAt(i) == ' ') {
+                    i++;
+                }
+                if (i == length) {
+                    break;
+                }
+                int start = i;
+                while (i < length && line.charAt(i) != ' ') {
+                    i++;
+                }
+                if (count == words.length) {
+                    return count + 1;
+                }
+                words[count++] = line.substring(start, i);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Threads for sessions: virtual threads when the JVM has them (Java 21 and later), looked up
+     * by reflection so this still compiles and runs on older JVMs, where it falls back to daemon
+     * platform threads with a small stack.
+     */
+    static ThreadFactory sessionThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger next = new AtomicInteger();
+            return task -> {
+                Thread thread = new Thread(null, task, namePrefix + next.getAndIncrement(), 256 * 1024);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    private static boolean isVirtual(ThreadFactory factory) {
+        try {
+            Method isVirtual = Thread.class.getMethod("isVirtual");
+            return (Boolean) isVirtual.invoke(factory.newThread(() -> { }));
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+}
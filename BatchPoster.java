@@ -0,0 +1,243 @@
+package BANKING;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Posts a file of operations (end-of-day salary credits, standing orders and so on)
+ * without anyone at the keyboard. Every line goes through the same checks as the
+ * Deposit, Withdraw and Transfer menu options, and gets a result line in the output file.
+ *
+ * Input is CSV, one operation per line; blank lines and lines starting with '#' are skipped:
+ *   DEPOSIT,accountNo,amount
+ *   WITHDRAW,accountNo,amount
+ *   TRANSFER,fromAccountNo,toAccountNo,amount
+ * Output has one line per operation: line number, then OK and the new balance,
+ * or REJECTED and the reason, or ERROR and what was wrong with the line.
+ *
+ * The file is read and posted in chunks. Each chunk is journaled as a whole and waited
+ * on once, instead of once per operation, and its throughput is printed as it finishes.
+ * If a chunk can't be written to the journal, every line of it is an ERROR, since none of
+ * it is sure to survive a restart, and the run stops there.
+ * Operations can be spread over several lanes (threads) by account; the results are
+ * the same as posting the file line by line.
+ *
+ * Run it with: java BANKING.BatchPoster accountFile journalFile input.csv [output] [lanes]
+ */
+public class BatchPoster {
+
+    static final int DEFAULT_CHUNK_LINES = 64 * 1024;
+    private static final int IO_BUFFER_BYTES = 1 << 20;
+
+    // Totals for a whole run.
+    static final class Summary {
+        long lines;
+        long posted;
+        long rejected;
+        long errors;
+        long nanos;
+        String stopped;     // why the run stopped before the end of the input, or null
+
+        @Override
+        public String toString() {
+            return String.format("%,d operations: %,d posted, %,d rejected, %,d malformed, in %,d ms (%,.0f ops/s)",
+                    lines, posted, rejected, errors, nanos / 1_000_000, lines * 1e9 / Math.max(1, nanos))
+                    + (stopped == null ? "" : "; stopped: " + stopped);
+        }
+    }
+
+    private final Ledger ledger;
+    private final int chunkLines;
+    private final int lanes;
+    private final PrintStream progress;
+
+    // One chunk of parsed input, and then its results.
+    private final long[] lineNos;
+    private final byte[] types;
+    private final String[] accountNos;
+    private final String[] targetAccountNos;
+    private final long[] amounts;
+    private final String[] errors;
+    private final long[] results;
+
+    /**
+     * @param lanes With more than one lane, operations are spread over that many threads by
+     *              account (see PartitionedExecutor); results are the same as with one.
+     */
+    BatchPoster(Ledger ledger, int chunkLines, int lanes, PrintStream progress) {
+        this.ledger = ledger;
+        this.chunkLines = chunkLines;
+        this.lanes = lanes;
+        this.progress = progress;
+        this.lineNos = new long[chunkLines];
+        this.types = new byte[chunkLines];
+        this.accountNos = new String[chunkLines];
+        this.targetAccountNos = new String[chunkLines];
+        this.amounts = new long[chunkLines];
+        this.errors = new String[chunkLines];
+        this.results = new long[chunkLines];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java BANKING.BatchPoster accountFile journalFile input.csv [output] [lanes]");
+            return;
+        }
+        String output = args.length > 3 ? args[3] : args[2] + ".results";
+        int lanes = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        try (Ledger ledger = Ledger.open("batch", args[0], args[1])) {
+            Summary summary = new BatchPoster(ledger, DEFAULT_CHUNK_LINES, lanes, System.out).post(args[2], output);
+            System.out.println(summary);
+            System.out.println("Results written to " + output);
+        }
+    }
+
+    // Posts every line of the input file and writes one result line per operation.
+    Summary post(String inputFile, String outputFile) throws IOException {
+        Summary summary = new Summary();
+        long begin = System.nanoTime();
+        Ledger.Batch[] batches = new Ledger.Batch[Math.max(1, lanes)];
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = ledger.openBatch();
+        }
+        PartitionedExecutor executor = lanes > 1 ? new PartitionedExecutor(batches, 4096, results) : null;
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(Paths.get(inputFile)), StandardCharsets.UTF_8), IO_BUFFER_BYTES);
+             BufferedWriter out = new BufferedWriter(
+                     new OutputStreamWriter(Files.newOutputStream(Paths.get(outputFile)), StandardCharsets.UTF_8), IO_BUFFER_BYTES)) {
+            String[] fields = new String[4];
+            long lineNo = 0;
+            int chunk = 0;
+            boolean more = true;
+            while (more) {
+                long chunkBegin = System.nanoTime();
+                int count = 0;
+                String line;
+                while (count < chunkLines && (line = in.readLine()) != null) {
+                    lineNo++;
+                    if (line.isEmpty() || line.charAt(0) == '#') {
+                        continue;
+                    }
+                    lineNos[count] = lineNo;
+                    parse(line, count, fields);
+                    if (errors[count] == null) {
+                        if (executor != null) {
+                            executor.submit(count, types[count], accountNos[count], targetAccountNos[count], amounts[count]);
+                        } else {
+                            results[count] = execute(batches[0], types[count], accountNos[count], targetAccountNos[count], amounts[count]);
+                        }
+                    }
+                    count++;
+                }
+                more = count == chunkLines;
+                if (executor != null) {
+                    executor.awaitQuiescence();
+                }
+                boolean committed = true;
+                for (Ledger.Batch batch : batches) {
+                    if (!batch.commit()) {
+                        committed = false;
+                    }
+                }
+                if (!committed) {
+                    for (int i = 0; i < count; i++) {
+                        if (errors[i] == null) {
+                            errors[i] = "not written to the transaction file";
+                        }
+                    }
+                    summary.stopped = "the transaction file couldn't be written after line " + lineNo;
+                    more = false;
+                }
+                writeResults(count, out, summary);
+                if (count > 0) {
+                    chunk++;
+                    long nanos = System.nanoTime() - chunkBegin;
+                    progress.printf("chunk %d: %,d operations in %,d ms (%,.0f ops/s)%n",
+                            chunk, count, nanos / 1_000_000, count * 1e9 / Math.max(1, nanos));
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.close();
+            }
+        }
+        summary.nanos = System.nanoTime() - begin;
+        return summary;
+    }
+
+    static long execute(AccountStore accounts, byte type, String accountNo, String targetAccountNo, long amount) {
+        switch (type) {
+            case PartitionedExecutor.DEPOSIT:
+                return Transactions.deposit(accounts, accountNo, amount);
+            case PartitionedExecutor.WITHDRAW:
+                return Transactions.withdraw(accounts, accountNo, amount);
+            default:
+                return Transactions.transfer(accounts, accountNo, targetAccountNo, amount);
+        }
+    }
+
+    // Fills in entry i of the chunk from one CSV line, or its error if the line can't be understood.
+    private void parse(String line, int i, String[] fields) {
+        errors[i] = null;
+        targetAccountNos[i] = null;
+        int count = split(line, fields);
+        String type = fields[0];
+        try {
+            if (type.equalsIgnoreCase("DEPOSIT") && count == 3) {
+                types[i] = PartitionedExecutor.DEPOSIT;
+                amounts[i] = Money.parse(fields[2]);
+            } else if (type.equalsIgnoreCase("WITHDRAW") && count == 3) {
+                types[i] = PartitionedExecutor.WITHDRAW;
+                amounts[i] = Money.parse(fields[2]);
+            } else if (type.equalsIgnoreCase("TRANSFER") && count == 4) {
+                types[i] = PartitionedExecutor.TRANSFER;
+                targetAccountNos[i] = fields[2];
+                amounts[i] = Money.parse(fields[3]);
+            } else {
+                errors[i] = "unknown operation or wrong number of fields";
+                return;
+            }
+        } catch (NumberFormatException e) {
+            errors[i] = "invalid amount";
+            return;
+        }
+        accountNos[i] = fields[1];
+    }
+
+    private void writeResults(int count, Writer out, Summary summary) throws IOException {
+        for (int i = 0; i < count; i++) {
+            summary.lines++;
+            if (errors[i] != null) {
+                summary.errors++;
+                out.write(lineNos[i] + ",ERROR," + errors[i] + "\n");
+            } else if (Transactions.succeeded(results[i])) {
+                summary.posted++;
+                out.write(lineNos[i] + ",OK," + Money.format(results[i]) + "\n");
+            } else {
+                summary.rejected++;
+                out.write(lineNos[i] + ",REJECTED," + Transactions.describe(results[i]) + "\n");
+            }
+        }
+        out.flush();
+    }
+
+    // Splits on commas into the given array, trimming each field. Returns the number of fields found.
+    static int split(String line, String[] fields) {
+        int count = 0;
+        int start = 0;
+        while (true) {
+            int comma = line.indexOf(',', start);
+            int end = comma < 0 ? line.length() : comma;
+            if (count == fields.length) {
+                return count + 1; // too many fields
+            }
+            fields[count++] = line.substring(start, end).trim();
+            if (comma < 0) {
+                return count;
+            }
+            start = comma + 1;
+        }
+    }
+}
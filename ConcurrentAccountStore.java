@@ -0,0 +1,425 @@
+package BANKING;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A thread-safe AccountStore that keeps balances as primitive longs.
+ *
+ * Every account gets a dense slot number when it is created. Balances, passwords and
+ * account numbers sit in fixed-size pages indexed by slot (a page never moves once
+ * allocated), and an open-addressing table maps account numbers to slots. Looking up
+ * an account, locking it and updating its balance allocates nothing. Account numbers that
+ * are all digits are found by their AccountId, comparing longs kept in the table itself
+ * without touching the key Strings; any others are compared as Strings. Callers that have
+ * the id already pass it in, and only numbers that come in as Strings are parsed here.
+ *
+ * Each slot is guarded by one of a fixed set of striped locks. A transfer takes its two
+ * stripes in index order, so two opposite transfers can't deadlock. Creating accounts is
+ * rare and is serialized on its own lock; lookups never block on it.
+ *
+ * While a snapshot is open, each balance change first notes the old balance (see SnapshotLog).
+ */
+class ConcurrentAccountStore implements AccountStore {
+
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(String[].class);
+
+    // Account number -> slot. Replaced wholesale when it grows; entries are only ever added.
+    private static final class Index {
+        final String[] keys;
+        final long[] ids;     // each key's AccountId, or AccountId.NONE
+        final int[] slots;
+        final int mask;
+
+        Index(int capacity) {
+            keys = new String[capacity];
+            ids = new long[capacity];
+            slots = new int[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    // Pages indexed by slot. The arrays of pages are copied when they grow; the pages themselves are not.
+    private static final class Pages {
+        final long[][] balances;
+        final String[][] passwords;
+        final String[][] accountNos;
+
+        Pages(int pageCount) {
+            balances = new long[pageCount][];
+            passwords = new String[pageCount][];
+            accountNos = new String[pageCount][];
+        }
+    }
+
+    private volatile Index index;
+    private volatile Pages pages;
+    private volatile int size;
+
+    private final Object createLock = new Object();
+    private final Object[] stripes;
+    private final int stripeMask;
+    private final SnapshotLog snapshots;
+
+    public ConcurrentAccountStore() {
+        this(Runtime.getRuntime().availableProcessors() * 16, 1024);
+    }
+
+    public ConcurrentAccountStore(int minStripes, int expectedAccounts) {
+        int count = powerOfTwoAtLeast(minStripes);
+        stripes = new Object[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Object();
+        }
+        stripeMask = count - 1;
+        snapshots = new SnapshotLog(count);
+        index = new Index(powerOfTwoAtLeast(expectedAccounts * 2));
+        pages = new Pages(0);
+    }
+
+    @Override
+    public long create(String accountNo, String password, long balance, Runnable beforeVisible) {
+        synchronized (createLock) {
+            if (slotOf(accountNo) >= 0) {
+                return ACCOUNT_EXISTS;
+            }
+            if (size == Integer.MAX_VALUE - 1) {
+                return STORE_FULL;
+            }
+            if (beforeVisible != null) {
+                beforeVisible.run();
+            }
+            int slot = size;
+            Pages p = pages;
+            int page = slot >>> PAGE_SHIFT;
+            if (page == p.balances.length) {
+                p = addPage(p);
+            }
+            p.balances[page][slot & PAGE_MASK] = balance;
+            p.passwords[page][slot & PAGE_MASK] = password;
+            p.accountNos[page][slot & PAGE_MASK] = accountNo;
+            Index idx = index;
+            if ((slot + 1) * 2 > idx.keys.length) {
+                idx = grow(idx);
+            }
+            insert(idx, accountNo, AccountId.parse(accountNo), slot);
+            size = slot + 1;
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean exists(String accountNo) {
+        return slotOf(accountNo) >= 0;
+    }
+
+    @Override
+    public boolean exists(long id) {
+        return slotOf(id) >= 0;
+    }
+
+    @Override
+    public boolean checkPassword(String accountNo, String password) {
+        return checkPasswordAt(slotOf(accountNo), password);
+    }
+
+    @Override
+    public boolean checkPassword(long id, String password) {
+        return checkPasswordAt(slotOf(id), password);
+    }
+
+    @Override
+    public long getBalance(String accountNo) {
+        return balanceAt(find(accountNo));
+    }
+
+    @Override
+    public long getBalance(long id) {
+        return balanceAt(find(id));
+    }
+
+    @Override
+    public long deposit(String accountNo, long amount) {
+        return depositAt(find(accountNo), amount);
+    }
+
+    @Override
+    public long deposit(long id, long amount) {
+        return depositAt(find(id), amount);
+    }
+
+    @Override
+    public long withdraw(String accountNo, long amount) {
+        return withdrawAt(find(accountNo), amount);
+    }
+
+    @Override
+    public long withdraw(long id, long amount) {
+        return withdrawAt(find(id), amount);
+    }
+
+    @Override
+    public long transfer(String fromAccountNo, String toAccountNo, long amount) {
+        return transferAt(find(fromAccountNo), find(toAccountNo), amount);
+    }
+
+    @Override
+    public long transfer(long fromId, long toId, long amount) {
+        return transferAt(find(fromId), find(toId), amount);
+    }
+
+    private boolean checkPasswordAt(int slot, String password) {
+        return slot >= 0 && PasswordHasher.verify(pages.passwords[slot >>> PAGE_SHIFT][slot & PAGE_MASK], password);
+    }
+
+    private long balanceAt(int slot) {
+        long[] page = pages.balances[slot >>> PAGE_SHIFT];
+        synchronized (stripes[slot & stripeMask]) {
+            return page[slot & PAGE_MASK];
+        }
+    }
+
+    private long depositAt(int slot, long amount) {
+        long[] page = pages.balances[slot >>> PAGE_SHIFT];
+        synchronized (stripes[slot & stripeMask]) {
+            if (amount > Long.MAX_VALUE - page[slot & PAGE_MASK]) {
+                return INVALID_AMOUNT;
+            }
+            snapshots.beforeChange(slot & stripeMask, slot, page[slot & PAGE_MASK]);
+            return page[slot & PAGE_MASK] += amount;
+        }
+    }
+
+    private long withdrawAt(int slot, long amount) {
+        long[] page = pages.balances[slot >>> PAGE_SHIFT];
+        synchronized (stripes[slot & stripeMask]) {
+            if (amount > page[slot & PAGE_MASK]) {
+                return INSUFFICIENT_FUNDS;
+            }
+            snapshots.beforeChange(slot & stripeMask, slot, page[slot & PAGE_MASK]);
+            return page[slot & PAGE_MASK] -= amount;
+        }
+    }
+
+    private long transferAt(int from, int to, long amount) {
+        Pages p = pages;
+        long[] fromPage = p.balances[from >>> PAGE_SHIFT];
+        long[] toPage = p.balances[to >>> PAGE_SHIFT];
+        int fromStripe = from & stripeMask;
+        int toStripe = to & stripeMask;
+        // Always lock the lower stripe first; if both accounts share a stripe, one lock covers both.
+        synchronized (stripes[Math.min(fromStripe, toStripe)]) {
+            synchronized (stripes[Math.max(fromStripe, toStripe)]) {
+                if (amount > fromPage[from & PAGE_MASK]) {
+                    return INSUFFICIENT_FUNDS;
+                }
+                if (amount > Long.MAX_VALUE - toPage[to & PAGE_MASK]) {
+                    return INVALID_AMOUNT;
+                }
+                snapshots.beforeChange(toStripe, to, toPage[to & PAGE_MASK]);
+                snapshots.beforeChange(fromStripe, from, fromPage[from & PAGE_MASK]);
+                toPage[to & PAGE_MASK] += amount;
+                return fromPage[from & PAGE_MASK] -= amount;
+            }
+        }
+    }
+
+    @Override
+    public long totalBalance() {
+        long[] total = new long[1];
+        whileHoldingStripes(0, () -> {
+            long[][] balances = pages.balances;
+            int count = size;
+            for (int slot = 0; slot < count; slot++) {
+                total[0] += balances[slot >>> PAGE_SHIFT][slot & PAGE_MASK];
+            }
+        });
+        return total[0];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        whileHoldingStripes(0, () -> {
+            Pages p = pages;
+            int count = size;
+            for (int slot = 0; slot < count; slot++) {
+                int page = slot >>> PAGE_SHIFT;
+                int at = slot & PAGE_MASK;
+                visitor.visit(p.accountNos[page][at], p.passwords[page][at], p.balances[page][at]);
+            }
+        });
+    }
+
+    // Accounts created after this have slots past its count, so only changed balances need noting.
+    @Override
+    public BalanceSnapshot snapshot() {
+        SnapshotLog.Epoch[] epoch = new SnapshotLog.Epoch[1];
+        int[] count = new int[1];
+        whileHoldingStripes(0, () -> {
+            epoch[0] = snapshots.open();
+            count[0] = size;
+        });
+        return new BalanceSnapshot() {
+            private boolean closed;
+
+            @Override
+            public void forEach(BalanceSnapshot.Visitor visitor) {
+                Pages p = pages;
+                for (int slot = 0; slot < count[0]; slot++) {
+                    int page = slot >>> PAGE_SHIFT;
+                    int at = slot & PAGE_MASK;
+                    long balance;
+                    synchronized (stripes[slot & stripeMask]) {
+                        balance = SnapshotLog.balanceAt(epoch[0], slot & stripeMask, slot, p.balances[page][at]);
+                    }
+                    visitor.visit(p.accountNos[page][at], balance);
+                }
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    snapshots.close();
+                }
+            }
+        };
+    }
+
+    // The pages are the blocks, so each fork/join leaf runs over one long[] page.
+    @Override
+    public EndOfDay.Totals endOfDay(EndOfDay run) {
+        EndOfDay.Totals[] totals = new EndOfDay.Totals[1];
+        whileHoldingStripes(0, () -> {
+            long[][] balances = pages.balances;
+            int count = size;
+            int exempt = slotOf(run.exempt);
+            long before = exempt >= 0 ? balances[exempt >>> PAGE_SHIFT][exempt & PAGE_MASK] : 0;
+            if (snapshots.active()) {
+                for (int slot = 0; slot < count; slot++) {
+                    snapshots.beforeChange(slot & stripeMask, slot, balances[slot >>> PAGE_SHIFT][slot & PAGE_MASK]);
+                }
+            }
+            totals[0] = EndOfDay.forkJoin((count + PAGE_SIZE - 1) >>> PAGE_SHIFT, (page, into) ->
+                    run.apply(balances[page], 0, Math.min(PAGE_SIZE, count - (page << PAGE_SHIFT)), into));
+            if (exempt >= 0) {
+                balances[exempt >>> PAGE_SHIFT][exempt & PAGE_MASK] = before;
+                run.exclude(before, totals[0]);
+            }
+        });
+        return totals[0];
+    }
+
+    // Takes every stripe in order so no transfer is half-applied while the action reads balances.
+    private void whileHoldingStripes(int stripe, Runnable action) {
+        if (stripe == stripes.length) {
+            action.run();
+            return;
+        }
+        synchronized (stripes[stripe]) {
+            whileHoldingStripes(stripe + 1, action);
+        }
+    }
+
+    private int find(String accountNo) {
+        int slot = slotOf(accountNo);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No such account: " + accountNo);
+        }
+        return slot;
+    }
+
+    private int find(long id) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No such account: " + (AccountId.isValid(id) ? AccountId.toString(id) : "id " + id));
+        }
+        return slot;
+    }
+
+    // Linear probe. The key is published after its id and slot, so a visible key always has valid ones.
+    private int slotOf(String accountNo) {
+        long id = AccountId.parse(accountNo);
+        if (id != AccountId.NONE) {
+            return slotOf(id);
+        }
+        Index idx = index;
+        for (int i = hash(accountNo) & idx.mask; ; i = (i + 1) & idx.mask) {
+            String key = (String) KEYS.getAcquire(idx.keys, i);
+            if (key == null) {
+                return -1;
+            }
+            if (key.equals(accountNo)) {
+                return idx.slots[i];
+            }
+        }
+    }
+
+    // The slot of the account with this AccountId, or -1.
+    int slotOf(long id) {
+        if (id == AccountId.NONE) {
+            return -1; // the id every account without one has in the table
+        }
+        Index idx = index;
+        for (int i = AccountId.hash(id) & idx.mask; ; i = (i + 1) & idx.mask) {
+            if (KEYS.getAcquire(idx.keys, i) == null) {
+                return -1;
+            }
+            if (idx.ids[i] == id) {
+                return idx.slots[i];
+            }
+        }
+    }
+
+    private static void insert(Index idx, String accountNo, long id, int slot) {
+        int i = (id != AccountId.NONE ? AccountId.hash(id) : hash(accountNo)) & idx.mask;
+        while (idx.keys[i] != null) {
+            i = (i + 1) & idx.mask;
+        }
+        idx.ids[i] = id;
+        idx.slots[i] = slot;
+        KEYS.setRelease(idx.keys, i, accountNo);
+    }
+
+    private Index grow(Index old) {
+        Index bigger = new Index(old.keys.length * 2);
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] != null) {
+                insert(bigger, old.keys[i], old.ids[i], old.slots[i]);
+            }
+        }
+        index = bigger;
+        return bigger;
+    }
+
+    private Pages addPage(Pages old) {
+        int count = old.balances.length;
+        Pages bigger = new Pages(count + 1);
+        System.arraycopy(old.balances, 0, bigger.balances, 0, count);
+        System.arraycopy(old.passwords, 0, bigger.passwords, 0, count);
+        System.arraycopy(old.accountNos, 0, bigger.accountNos, 0, count);
+        bigger.balances[count] = new long[PAGE_SIZE];
+        bigger.passwords[count] = new String[PAGE_SIZE];
+        bigger.accountNos[count] = new String[PAGE_SIZE];
+        pages = bigger;
+        return bigger;
+    }
+
+    private static int hash(String accountNo) {
+        int h = accountNo.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int powerOfTwoAtLeast(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+}
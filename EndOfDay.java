@@ -0,0 +1,163 @@
+package BANKING;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * End-of-day interest, and the month-end fee, applied to every account of a bank in one pass.
+ *
+ * A run is a daily interest rate and a fee. Each account earns its balance times the rate,
+ * rounded down to a whole minor unit, and then pays the fee, but never more than it holds.
+ * The rate is kept as a fraction of 2^64, so the interest is one Math.multiplyHigh: exact
+ * integer arithmetic that comes out the same everywhere. That is what lets the journal hold a
+ * single END_OF_DAY record for the whole run, which recovery simply runs again, instead of a
+ * record per account.
+ *
+ * The account stores run it over their balances in blocks of BLOCK accounts, split across the
+ * cores with fork/join; the loop over a block is plain arithmetic on a long[] with no calls, no
+ * branches and no allocation. One account can be left out: the inter-bank clearing account
+ * (see InterBankTransfers) only ever holds money on its way somewhere else.
+ *
+ * Run it with: java BANKING.EndOfDay accountFile journalFile annualRatePercent [monthlyFee]
+ * The fee is only charged when it's run on the last day of a month.
+ */
+public final class EndOfDay {
+
+    static final int BLOCK = 1 << 16;
+    private static final double TWO_TO_THE_64 = 0x1p64;
+
+    // What a run did.
+    static final class Totals {
+        long accounts;
+        long interest;
+        long fees;
+        long nanos;
+
+        void add(Totals other) {
+            accounts += other.accounts;
+            interest += other.interest;
+            fees += other.fees;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d accounts: %s interest paid, %s fees charged, in %,d ms",
+                    accounts, Money.format(interest), Money.format(fees), nanos / 1_000_000);
+        }
+    }
+
+    // Adjusts one block of a store's accounts, adding what it did to the totals.
+    interface Blocks {
+        void adjust(int block, Totals totals);
+    }
+
+    final long rate;       // daily, as a fraction of 2^64
+    final long fee;        // minor units per account
+    final String exempt;   // the account left alone, or ""
+
+    EndOfDay(long rate, long fee, String exempt) {
+        if (rate < 0 || fee < 0) {
+            throw new IllegalArgumentException("Rate and fee can't be negative");
+        }
+        this.rate = rate;
+        this.fee = fee;
+        this.exempt = exempt == null ? "" : exempt;
+    }
+
+    // One day's interest at the annual rate (simple, over 365 days), plus the fee.
+    static EndOfDay daily(double annualRatePercent, long fee, String exempt) {
+        double daily = annualRatePercent / 100 / 365;
+        if (!(daily >= 0 && daily < 0.5)) {
+            throw new IllegalArgumentException("Annual rate must be 0 to 18,250%, not " + annualRatePercent);
+        }
+        return new EndOfDay((long) (daily * TWO_TO_THE_64), fee, exempt);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: java BANKING.EndOfDay accountFile journalFile annualRatePercent [monthlyFee]");
+            return;
+        }
+        LocalDate today = LocalDate.now();
+        boolean monthEnd = today.getDayOfMonth() == today.lengthOfMonth();
+        long fee = args.length > 3 && monthEnd ? Money.parse(args[3]) : 0;
+        EndOfDay run = daily(Double.parseDouble(args[2]), fee, InterBankTransfers.CLEARING_ACCOUNT);
+        try (Ledger ledger = Ledger.open("end-of-day", args[0], args[1])) {
+            System.out.println("End of day " + today + (fee > 0 ? ", with month-end fee of " + Money.format(fee) : ""));
+            System.out.println(ledger.endOfDay(run));
+        } catch (IOException e) {
+            System.out.println(e.getMessage() + "; end of day not run");
+        }
+    }
+
+    long interestOn(long balance) {
+        return Math.multiplyHigh(balance, rate);
+    }
+
+    // Applies the run to balances[from, to) and adds what it did to the totals.
+    void apply(long[] balances, int from, int to, Totals totals) {
+        long interest = 0;
+        long fees = 0;
+        for (int i = from; i < to; i++) {
+            long balance = balances[i];
+            long earned = Math.multiplyHigh(balance, rate);
+            long charged = Math.min(fee, balance + earned);
+            balances[i] = balance + earned - charged;
+            interest += earned;
+            fees += charged;
+        }
+        totals.accounts += to - from;
+        totals.interest += interest;
+        totals.fees += fees;
+    }
+
+    /**
+     * Takes out of the totals what the run did to an account whose balance was `before`, for a
+     * store that has just put the exempt account back.
+     */
+    void exclude(long before, Totals totals) {
+        long earned = interestOn(before);
+        totals.accounts--;
+        totals.interest -= earned;
+        totals.fees -= Math.min(fee, before + earned);
+    }
+
+    // Adjusts blocks 0 to blockCount - 1 on the common fork/join pool and returns the combined totals.
+    static Totals forkJoin(int blockCount, Blocks blocks) {
+        long begin = System.nanoTime();
+        Totals totals = blockCount == 0 ? new Totals() : ForkJoinPool.commonPool().invoke(new Split(blocks, 0, blockCount));
+        totals.nanos = System.nanoTime() - begin;
+        return totals;
+    }
+
+    private static final class Split extends RecursiveTask<Totals> {
+        private static final long serialVersionUID = 1L;
+
+        private final Blocks blocks;
+        private final int from;
+        private final int to;
+
+        Split(Blocks blocks, int from, int to) {
+            this.blocks = blocks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Totals compute() {
+            if (to - from == 1) {
+                Totals totals = new Totals();
+                blocks.adjust(from, totals);
+                return totals;
+            }
+            int middle = (from + to) >>> 1;
+            Split right = new Split(blocks, middle, to);
+            right.fork();
+            Totals totals = new Split(blocks, from, middle).compute();
+            totals.add(right.join());
+            return totals;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package BANKING;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Makes retried operations safe: an operation sent again with the same request id, for the same
+ * account, within the time window, gets the first attempt's result back instead of running twice.
+ *
+ * Request ids live in a fixed set of shards, each an open-addressing table of (key, result)
+ * pairs held in two AtomicLongArrays. The key is a 64-bit hash of the account number and the
+ * request id; the first caller to CAS it into an empty slot runs the operation, and anyone else
+ * with the same key finds that slot and waits for its result. Slots are never freed one by one:
+ * each shard keeps a current and a previous generation, and when the current one is a window old
+ * (or half full) it becomes the previous one and the old previous one is dropped. So a request
+ * id is remembered for at least one window (unless the table is too small for the traffic, which
+ * earlyRetirements() shows), and the memory is fixed.
+ *
+ * A claim made into a generation that was retired meanwhile is marked moved and made again in
+ * the current one, so two callers can never both run the same request. Looking up and claiming
+ * take no locks; only retiring a generation does.
+ */
+final class IdempotencyTable {
+
+    static final long DEFAULT_WINDOW_MILLIS = 10 * 60 * 1000;
+    static final int DEFAULT_SHARDS = 16;
+    static final int DEFAULT_SLOTS_PER_SHARD = 1 << 13;
+
+    // Slot values other than results. A result r is stored as r ^ Long.MIN_VALUE, which is never one of these.
+    private static final long PENDING = 0;    // claimed, still running
+    private static final long MOVED = 1;      // claimed as the generation was retired; claimed again in the next
+    private static final long ABANDONED = 2;  // the operation threw; the next attempt may run it
+    private static final long RESULT_FLIP = Long.MIN_VALUE;
+    private static final int FULL = Integer.MIN_VALUE;
+    private static final int AGE_CHECK_INTERVAL = 64;
+
+    // Returned by resultOf for a request that hasn't finished (or was never seen).
+    static final long NOT_SEEN = Long.MIN_VALUE;
+
+    // One generation of one shard.
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicLongArray values;
+        final AtomicInteger used = new AtomicInteger();
+        final long startNanos = System.nanoTime();
+
+        Table(int slots) {
+            keys = new AtomicLongArray(slots);
+            values = new AtomicLongArray(slots);
+        }
+    }
+
+    private static final class Shard {
+        volatile Table current;
+        volatile Table previous;
+
+        Shard(int slots) {
+            current = new Table(slots);
+        }
+    }
+
+    private final Shard[] shards;
+    private final int shardMask;
+    private final int slots;
+    private final int slotMask;
+    private final long windowNanos;
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder earlyRetirements = new LongAdder();
+
+    IdempotencyTable() {
+        this(DEFAULT_SHARDS, DEFAULT_SLOTS_PER_SHARD, DEFAULT_WINDOW_MILLIS);
+    }
+
+    IdempotencyTable(int shardCount, int slotsPerShard, long windowMillis) {
+        int shardTotal = Integer.highestOneBit(Math.max(2, shardCount) - 1) << 1;
+        this.slots = Integer.highestOneBit(Math.max(16, slotsPerShard) - 1) << 1;
+        this.shards = new Shard[shardTotal];
+        for (int i = 0; i < shardTotal; i++) {
+            shards[i] = new Shard(slots);
+        }
+        this.shardMask = shardTotal - 1;
+        this.slotMask = slots - 1;
+        this.windowNanos = windowMillis * 1_000_000;
+    }
+
+    /**
+     * Runs the operation unless this request id has already been seen for the account, and
+     * returns its result; a repeat returns the first result without running anything. With no
+     * request id the operation just runs.
+     */
+    long execute(String accountNo, String requestId, LongSupplier operation) {
+        if (requestId == null) {
+            return operation.getAsLong();
+        }
+        long key = keyOf(accountNo, requestId);
+        Shard shard = shards[(int) (key >>> 32) & shardMask];
+        while (true) {
+            Table table = current(shard);
+            Table previous = shard.previous;
+            if (previous != null && previous != table) {
+                long earlier = await(previous, find(previous, key));
+                if (earlier != ABANDONED) {
+                    duplicates.increment();
+                    return earlier ^ RESULT_FLIP;
+                }
+            }
+            int slot = claim(table, key);
+            if (slot == FULL) {
+                retire(shard, table, true);
+                continue;
+            }
+            if (slot < 0) {
+                // Someone else holds it; wait for them, or take it over if they gave up.
+                slot = -slot - 1;
+                long result = await(table, slot);
+                if (result != ABANDONED) {
+                    duplicates.increment();
+                    return result ^ RESULT_FLIP;
+                }
+                if (!table.values.compareAndSet(slot, ABANDONED, PENDING)) {
+                    continue; // moved on to a newer generation, or someone else took it over
+                }
+            }
+            if (shard.current != table) {
+                // The generation was retired while we claimed; others may already be claiming in the new one.
+                table.values.set(slot, MOVED);
+                continue;
+            }
+            return run(table, slot, operation);
+        }
+    }
+
+    // The result of a finished request, or NOT_SEEN. Never waits and never claims anything.
+    long resultOf(String accountNo, String requestId) {
+        long key = keyOf(accountNo, requestId);
+        Shard shard = shards[(int) (key >>> 32) & shardMask];
+        Table previous = shard.previous;
+        long value = finished(shard.current, key);
+        if (value == PENDING && previous != null) {
+            value = finished(previous, key);
+        }
+        return value ^ RESULT_FLIP; // PENDING flips to NOT_SEEN
+    }
+
+    // The stored result for the key in the table, or PENDING if it has none.
+    private long finished(Table table, long key) {
+        int slot = find(table, key);
+        long value = slot < 0 ? PENDING : table.values.get(slot);
+        return value == MOVED || value == ABANDONED ? PENDING : value;
+    }
+
+    private long run(Table table, int slot, LongSupplier operation) {
+        long result;
+        try {
+            result = operation.getAsLong();
+        } catch (RuntimeException | Error e) {
+            table.values.set(slot, ABANDONED);
+            throw e;
+        }
+        // A retryable refusal isn't the answer to the request, just to this attempt.
+        table.values.set(slot, Transactions.retryable(result) ? ABANDONED : result ^ RESULT_FLIP);
+        executed.increment();
+        return result;
+    }
+
+    /**
+     * The shard's current generation, retiring it first if it's half full or a window old. The
+     * clock is only read every AGE_CHECK_INTERVAL claims, since reading it costs as much as the
+     * rest of a lookup; a quiet generation just lives a little longer.
+     */
+    private Table current(Shard shard) {
+        Table table = shard.current;
+        int used = table.used.get();
+        if (used >= slots / 2) {
+            retire(shard, table, true);
+            table = shard.current;
+        } else if (used % AGE_CHECK_INTERVAL == AGE_CHECK_INTERVAL - 1
+                && System.nanoTime() - table.startNanos >= windowNanos) {
+            retire(shard, table, false);
+            table = shard.current;
+        }
+        return table;
+    }
+
+    private void retire(Shard shard, Table table, boolean early) {
+        synchronized (shard) {
+            if (shard.current != table) {
+                return; // someone else just did
+            }
+            if (early) {
+                earlyRetirements.increment();
+            }
+            shard.previous = table;
+            shard.current = new Table(slots);
+        }
+    }
+
+    /**
+     * Claims the key in the table. Returns the slot if this call claimed it, -(slot + 1) if the
+     * key was already there, or FULL if there was no room (only when many threads pass the
+     * half-full check at once).
+     */
+    private int claim(Table table, long key) {
+        for (int slot = (int) key & slotMask, probes = 0; probes < slots; slot = (slot + 1) & slotMask, probes++) {
+            long found = table.keys.get(slot);
+            if (found == 0) {
+                if (table.keys.compareAndSet(slot, 0, key)) {
+                    table.used.incrementAndGet();
+                    return slot;
+                }
+                found = table.keys.get(slot);
+            }
+            if (found == key) {
+                return -slot - 1;
+            }
+        }
+        return FULL;
+    }
+
+    // The key's slot in the table, or -1.
+    private int find(Table table, long key) {
+        for (int slot = (int) key & slotMask, probes = 0; probes < slots; slot = (slot + 1) & slotMask, probes++) {
+            long found = table.keys.get(slot);
+            if (found == key) {
+                return slot;
+            }
+            if (found == 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    // Waits while the slot is pending and returns its value; ABANDONED if there is no result to reuse.
+    private static long await(Table table, int slot) {
+        if (slot < 0) {
+            return ABANDONED;
+        }
+        int spins = 0;
+        long value;
+        while ((value = table.values.get(slot)) == PENDING) {
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+        return value == MOVED ? ABANDONED : value;
+    }
+
+    // 64 bits of the account and request id together, never 0 (which marks an empty slot).
+    static long keyOf(String accountNo, String requestId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < accountNo.length(); i++) {
+            h = (h ^ accountNo.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ 0xFFFF) * 0x100000001b3L; // keeps "12"+"3" apart from "1"+"23"
+        for (int i = 0; i < requestId.length(); i++) {
+            h = (h ^ requestId.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    long executed() {
+        return executed.sum();
+    }
+
+    long duplicates() {
+        return duplicates.sum();
+    }
+
+    // Generations retired for filling up rather than for age: a sign the table is too small for the traffic.
+    long earlyRetirements() {
+        return earlyRetirements.sum();
+    }
+}
@@ -1,35 +1,17 @@
 package BANKING;
 
-import java.io.*;
+import java.io.IOException;
 import java.util.*;
-import java.util.Random;
-
-// Class to represent a bank account
-class BankAccount {
-    String accountNo;
-    String password;
-    double balance;
-
-    public BankAccount(String accountNo, String password, double balance) {
-        this.accountNo = accountNo;
-        this.password = password;
-        this.balance = balance;
-    }
-}
 
 // Main Banking System class
 public class IndianBankSystem {
-    // Hardcoded accounts (HashMap for storing accounts)
-    private static HashMap<String, BankAccount> accounts = new HashMap<>();
-    private static final String TRANSACTION_FILE = "transactions.txt";
+    // Accounts live in a checkpoint file plus a journal of every transaction since,
+    // so they survive a restart or a crash (the Ledger replays the journal on startup)
+    private static final String ACCOUNT_FILE = "accounts.dat";
+    private static final String TRANSACTION_FILE = "transactions.journal";
+    private static Ledger accounts;
     private static Scanner scanner = new Scanner(System.in);
-    private static Random random = new Random();
-
-    // Initialize some sample accounts
-    static {
-        accounts.put("1001", new BankAccount("1001", "pass123", 5000));
-        accounts.put("1002", new BankAccount("1002", "hello", 10000));
-    }
+    private static final OtpService otps = OtpService.shared();
 
     // Function to create a new account
     public static void createAccount() {
@@ -37,14 +19,18 @@ public class IndianBankSystem {
         System.out.print("Enter a new bank account number: ");
         String accountNo = scanner.nextLine();
         
-        if (accounts.containsKey(accountNo)) {
+        if (accounts.exists(accountNo)) {
             System.out.println("Account number already exists! Try a different one.");
             return;
         }
         
         System.out.print("Enter a password for the account: ");
         String password = scanner.nextLine();
-        accounts.put(accountNo, new BankAccount(accountNo, password, 0));
+        long created = accounts.create(accountNo, password, 0, null);
+        if (created < 0) {
+            System.out.println(Transactions.message(created));
+            return;
+        }
         System.out.println("Account " + accountNo + " created successfully with balance 0.");
     }
 
@@ -55,8 +41,7 @@ public class IndianBankSystem {
         System.out.print("Enter your password: ");
         String password = scanner.nextLine();
 
-        BankAccount account = accounts.get(accountNo);
-        if (account != null && account.password.equals(password)) {
+        if (accounts.checkPassword(accountNo, password)) {
             System.out.println("Login successful!");
             return accountNo;
         } else {
@@ -68,46 +53,38 @@ public class IndianBankSystem {
     // Function to deposit money
     public static void deposit(String accountNo) {
         System.out.print("Enter amount to deposit: ");
-        double amount;
+        long amount;
         try {
-            amount = Double.parseDouble(scanner.nextLine());
+            amount = Money.parse(scanner.nextLine());
         } catch (NumberFormatException e) {
             System.out.println("Invalid amount entered.");
             return;
         }
 
-        if (amount > 0) {
-            BankAccount account = accounts.get(accountNo);
-            account.balance += amount;
-            logTransaction(accountNo, "Deposited " + amount);
-            System.out.println("Deposited " + amount + ". New balance: " + account.balance);
+        long balance = Transactions.deposit(accounts, accountNo, amount);
+        if (Transactions.succeeded(balance)) {
+            System.out.println("Deposited " + Money.format(amount) + ". New balance: " + Money.format(balance));
         } else {
-            System.out.println("Amount must be positive.");
+            System.out.println(Transactions.message(balance));
         }
     }
 
     // Function to withdraw money
     public static void withdraw(String accountNo) {
         System.out.print("Enter amount to withdraw: ");
-        double amount;
+        long amount;
         try {
-            amount = Double.parseDouble(scanner.nextLine());
+            amount = Money.parse(scanner.nextLine());
         } catch (NumberFormatException e) {
             System.out.println("Invalid amount entered.");
             return;
         }
 
-        BankAccount account = accounts.get(accountNo);
-        if (amount > 0) {
-            if (amount <= account.balance) {
-                account.balance -= amount;
-                logTransaction(accountNo, "Withdrew " + amount);
-                System.out.println("Withdrew " + amount + ". New balance: " + account.balance);
-            } else {
-                System.out.println("Insufficient balance.");
-            }
+        long balance = Transactions.withdraw(accounts, accountNo, amount);
+        if (Transactions.succeeded(balance)) {
+            System.out.println("Withdrew " + Money.format(amount) + ". New balance: " + Money.format(balance));
         } else {
-            System.out.println("Amount must be positive.");
+            System.out.println(Transactions.message(balance));
         }
     }
 
@@ -116,64 +93,63 @@ public class IndianBankSystem {
         System.out.print("Enter target bank account number: ");
         String targetAccount = scanner.nextLine();
         
-        if (!accounts.containsKey(targetAccount)) {
+        long check = Transactions.checkTransferTarget(accounts, accountNo, targetAccount);
+        if (check == Transactions.NO_SUCH_TARGET) {
             System.out.println("Target account does not exist.");
             return;
         }
-        if (targetAccount.equals(accountNo)) {
+        if (check == Transactions.SAME_ACCOUNT) {
             System.out.println("Cannot transfer to your own account.");
             return;
         }
 
         System.out.print("Enter amount to transfer: ");
-        double amount;
+        long amount;
         try {
-            amount = Double.parseDouble(scanner.nextLine());
+            amount = Money.parse(scanner.nextLine());
         } catch (NumberFormatException e) {
             System.out.println("Invalid amount entered.");
             return;
         }
 
-        BankAccount sender = accounts.get(accountNo);
-        if (amount > 0 && amount <= sender.balance) {
-            // Generate OTP
-            int otp = 1000 + random.nextInt(9000); // 4-digit OTP
-            System.out.println("OTP generated: " + otp + " (In real system, this would be sent via SMS)");
+        if (amount > 0 && amount <= accounts.getBalance(accountNo)) {
+            // Generate OTP; the service keeps the challenge while we wait for the answer
+            OtpService.Challenge otp = otps.issue(accountNo); // 4-digit OTP
+            System.out.println("OTP generated: " + otp.code + " (In real system, this would be sent via SMS)");
             System.out.print("Enter the OTP to verify: ");
-            int userOtp;
-            try {
-                userOtp = Integer.parseInt(scanner.nextLine());
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid OTP format.");
-                return;
-            }
-
-            if (userOtp == otp) {
-                sender.balance -= amount;
-                accounts.get(targetAccount).balance += amount;
-                logTransaction(accountNo, "Transferred " + amount + " to " + targetAccount);
-                System.out.println("Transferred " + amount + " to " + targetAccount + ". Your new balance: " + sender.balance);
+            OtpService.Result result = otps.verify(otp.id, accountNo, scanner.nextLine());
+            otps.cancel(otp.id); // one try from the menu
+
+            if (result == OtpService.Result.VERIFIED) {
+                // The balance may have moved while we waited for the OTP, so the store checks it again.
+                long balance = Transactions.transfer(accounts, accountNo, targetAccount, amount);
+                if (!Transactions.succeeded(balance)) {
+                    System.out.println("Transfer cancelled. " + Transactions.message(balance));
+                    return;
+                }
+                System.out.println("Transferred " + Money.format(amount) + " to " + targetAccount + ". Your new balance: " + Money.format(balance));
             } else {
-                System.out.println("Invalid OTP. Transfer cancelled.");
+                accounts.metrics().otpFailed();
+                System.out.println(result == OtpService.Result.EXPIRED ? "OTP expired. Transfer cancelled." : "Invalid OTP. Transfer cancelled.");
             }
         } else {
             System.out.println("Invalid amount or insufficient balance.");
         }
     }
 
-    // Function to log transactions
-    public static void logTransaction(String accountNo, String message) {
-        try (FileWriter fw = new FileWriter(TRANSACTION_FILE, true);
-             BufferedWriter bw = new BufferedWriter(fw)) {
-            bw.write("Account " + accountNo + ": " + message + ". Balance: " + accounts.get(accountNo).balance);
-            bw.newLine();
-        } catch (IOException e) {
-            System.out.println("Error writing to transaction file: " + e.getMessage());
-        }
-    }
-
     // Main program
     public static void main(String[] args) {
+        try {
+            accounts = Ledger.open("Indian Bank", ACCOUNT_FILE, TRANSACTION_FILE);
+        } catch (IOException e) {
+            System.out.println(e.getMessage() + "; the bank can't open until it's fixed.");
+            return;
+        }
+        // Initialize some sample accounts the first time the system runs
+        if (accounts.size() == 0) {
+            accounts.createAccount("1001", "pass123", 5000 * Money.MINOR_UNITS);
+            accounts.createAccount("1002", "hello", 10000 * Money.MINOR_UNITS);
+        }
         while (true) {
             System.out.println("\nWelcome to Indian Bank Banking System");
             System.out.println("1. Create New Account");
@@ -218,5 +194,6 @@ public class IndianBankSystem {
             }
         }
         scanner.close();
+        accounts.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,903 @@
+package BANKING;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Moves money between accounts at different banks, each of which keeps its own Ledger.
+ *
+ * A transfer happens in two phases. When it is submitted, the source bank moves the money
+ * from the customer's account into its own clearing account, journaled as one HOLD record that
+ * names the target, and nothing is asked of the destination bank. The transfer then waits, as an
+ * obligation from one bank to another, for the next clearing cycle, which takes all of them:
+ *   - transfers to an account that doesn't exist are compensated: the hold goes back;
+ *   - each bank's net position (everything owed to it minus everything it owes) is worked
+ *     out, and only that amount leaves or arrives at each bank's clearing account;
+ *   - the destination banks credit their customers from their clearing accounts.
+ * Each bank's part of a cycle is posted as one Ledger.Batch and waited on once, so the banks
+ * exchange one net amount per cycle instead of one round trip per transfer. A posting the bank
+ * refuses leaves its money in a clearing account and is counted as failed, and a cycle that
+ * some bank's clearing account couldn't pay for is put off whole.
+ *
+ * Obligations are collected for a cycle in column arrays, and as each arrives its amount is
+ * added to a banks x banks total, so net positions cost O(banks^2) however many transfers
+ * there were. A cycle runs every few seconds in the background, and once more on close().
+ *
+ * Given a clearing journal, a crash at any point is recovered from (see recover()). The holds
+ * are in the banks' own journals already; the clearing journal says where, and what each cycle
+ * was doing:
+ *   BANK_ACTIVE     before a bank's first hold of a cycle: its holds from here on aren't settled
+ *   CYCLE_CUT       per bank, as the cycle is taken: the cycle has the bank's holds before here
+ *   CYCLE_REVERSED  per hold the cycle sends back
+ *   CYCLE_STARTED   all of the above is on disk, so postings begin, each tagged with the cycle
+ *   CYCLE_DONE
+ * A clean close() with nothing left waiting empties the clearing journal.
+ */
+final class InterBankTransfers implements AutoCloseable {
+
+    // Each bank's account for money on its way in or out. Customers can't log in to it.
+    static final String CLEARING_ACCOUNT = "#clearing";
+    static final long DEFAULT_SETTLE_INTERVAL_MILLIS = 5_000;
+    static final String DEFAULT_JOURNAL_FILE = "interbank_transfers.journal";
+
+    /**
+     * One clearing cycle's obligations. Submitting threads append under the read side of
+     * cycleLock; the cycle swaps in a fresh one under the write side, after which the old one
+     * is only read by the settling thread.
+     */
+    private static final class Obligations {
+        static final int CHUNK_BITS = 16;
+        static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        static final class Chunk {
+            final int[] fromBank = new int[CHUNK_SIZE];
+            final int[] toBank = new int[CHUNK_SIZE];
+            final long[] amount = new long[CHUNK_SIZE];
+            final long[] holdEnd = new long[CHUNK_SIZE];     // where the HOLD record ends in the source bank's journal
+            final boolean[] reversed = new boolean[CHUNK_SIZE];
+            final String[] accountNo = new String[CHUNK_SIZE];
+            final String[] targetAccountNo = new String[CHUNK_SIZE];
+        }
+
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(1 << 15);
+        int stride;                // bank capacity; row = fromBank, column = toBank
+        AtomicLongArray gross;     // total owed, per pair of banks
+        AtomicIntegerArray active; // per bank, 1 once its BANK_ACTIVE is journaled for this cycle
+
+        Obligations(int bankCapacity) {
+            this.stride = bankCapacity;
+            this.gross = new AtomicLongArray(bankCapacity * bankCapacity);
+            this.active = new AtomicIntegerArray(bankCapacity);
+        }
+
+        void add(int fromBank, String accountNo, int toBank, String targetAccountNo, long amount, long holdEnd) {
+            int index = size.getAndIncrement();
+            Chunk chunk = chunk(index >>> CHUNK_BITS);
+            int i = index & (CHUNK_SIZE - 1);
+            chunk.fromBank[i] = fromBank;
+            chunk.toBank[i] = toBank;
+            chunk.amount[i] = amount;
+            chunk.holdEnd[i] = holdEnd;
+            chunk.accountNo[i] = accountNo;
+            chunk.targetAccountNo[i] = targetAccountNo;
+            gross.getAndAdd(fromBank * stride + toBank, amount);
+        }
+
+        Chunk chunk(int number) {
+            Chunk chunk = chunks.get(number);
+            if (chunk == null) {
+                chunks.compareAndSet(number, null, new Chunk());
+                chunk = chunks.get(number);
+            }
+            return chunk;
+        }
+
+        // Only while no one is adding (under the write side of cycleLock).
+        void growTo(int bankCapacity) {
+            AtomicLongArray bigger = new AtomicLongArray(bankCapacity * bankCapacity);
+            for (int from = 0; from < stride; from++) {
+                for (int to = 0; to < stride; to++) {
+                    bigger.set(from * bankCapacity + to, gross.get(from * stride + to));
+                }
+            }
+            AtomicIntegerArray moreActive = new AtomicIntegerArray(bankCapacity);
+            for (int bank = 0; bank < stride; bank++) {
+                moreActive.set(bank, active.get(bank));
+            }
+            gross = bigger;
+            active = moreActive;
+            stride = bankCapacity;
+        }
+    }
+
+    // What the clearing journal held when it was opened, for recover().
+    private static final class Plan {
+        final Map<String, List<Long>> active = new HashMap<>();     // every BANK_ACTIVE position, by bank
+        final Map<String, Long> cuts = new HashMap<>();             // each bank's latest cut
+        final Map<String, Long> previousCuts = new HashMap<>();     // and its latest before the last cycle
+        long lastCycle;
+        boolean lastCycleDone = true;
+        Map<String, Long> lastCycleCuts = new HashMap<>();
+        Set<String> lastCycleReversed = new HashSet<>();           // bank + "\n" + hold end
+        long startingCycle;                                         // cut but not yet started
+        Map<String, Long> startingCuts = new HashMap<>();
+        Set<String> startingReversed = new HashSet<>();
+
+        void read(JournalRecord record) {
+            String bank = record.accountNumber();
+            switch (record.type) {
+                case JournalRecord.BANK_ACTIVE:
+                    active.computeIfAbsent(bank, b -> new ArrayList<>()).add(record.balance);
+                    break;
+                case JournalRecord.CYCLE_CUT:
+                    if (record.amount != startingCycle) {
+                        startingCycle = record.amount;
+                        startingCuts = new HashMap<>();
+                        startingReversed = new HashSet<>();
+                    }
+                    startingCuts.put(bank, record.balance);
+                    break;
+                case JournalRecord.CYCLE_REVERSED:
+                    if (record.amount == startingCycle) {
+                        startingReversed.add(bank + "\n" + record.balance);
+                    }
+                    break;
+                case JournalRecord.CYCLE_STARTED:
+                    // Only now does the cycle count: without this record it posted nothing.
+                    if (record.amount == startingCycle) {
+                        previousCuts.clear();
+                        previousCuts.putAll(cuts);
+                        cuts.putAll(startingCuts);
+                        lastCycle = startingCycle;
+                        lastCycleDone = false;
+                        lastCycleCuts = startingCuts;
+                        lastCycleReversed = startingReversed;
+                    }
+                    break;
+                case JournalRecord.CYCLE_DONE:
+                    if (record.amount == lastCycle) {
+                        lastCycleDone = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Where the bank's first hold at or after low and before high can be, or -1 if it has none there.
+        long holdsFrom(String bank, long low, long high) {
+            long from = -1;
+            for (long position : active.getOrDefault(bank, List.of())) {
+                if (position >= low && position < high && (from < 0 || position < from)) {
+                    from = position;
+                }
+            }
+            return from;
+        }
+    }
+
+    // What one clearing cycle did, and how long each step took.
+    static final class Settlement {
+        int settled;
+        int reversed;
+        int failed;         // postings a bank refused; their money is left in a clearing account
+        int deferred;       // transfers put off to the next cycle
+        int netMovements;   // clearing-account postings, at most one per bank
+        int bankPairs;      // pairs of banks with anything owed between them, net
+        long grossAmount;
+        long netAmount;
+        long collectNanos;
+        long reverseNanos;
+        long netNanos;
+        long creditNanos;
+        long commitNanos;
+        long totalNanos;
+
+        @Override
+        public String toString() {
+            return settled + " transfers settled (" + Money.format(grossAmount) + "), " + reversed + " reversed, "
+                    + (failed > 0 ? failed + " failed, " : "") + (deferred > 0 ? deferred + " put off, " : "") + bankPairs + " bank pairs owing, " + netMovements + " net movements (" + Money.format(netAmount) + ")"
+                    + String.format(" in %.1f ms [collect %.1f, reverse %.1f, net %.3f, credit %.1f, commit %.1f]",
+                    totalNanos / 1e6, collectNanos / 1e6, reverseNanos / 1e6, netNanos / 1e6, creditNanos / 1e6, commitNanos / 1e6);
+        }
+    }
+
+    private final Map<String, Integer> bankIds = new ConcurrentHashMap<>();
+    private volatile Ledger[] ledgers = new Ledger[0];   // null for a bank the journal names that can't be opened
+    private volatile String[] names = new String[0];
+
+    private final ReentrantReadWriteLock cycleLock = new ReentrantReadWriteLock();
+    private Obligations current = new Obligations(8);
+    private final Object settleLock = new Object();
+
+    private final TransactionJournal journal;   // null when obligations are only kept in memory
+    private final Path journalPath;
+    private Plan plan;                          // until recover() has used it
+    private volatile boolean recovered;         // and false again once a cycle couldn't be committed
+    private long cycleNumber;                   // the last cycle taken
+
+    private final LatencyHistogram cycleTimes = new LatencyHistogram();
+    private volatile Settlement lastSettlement;
+    private final Thread settler;
+    private volatile boolean closed;
+
+    InterBankTransfers() {
+        this(DEFAULT_SETTLE_INTERVAL_MILLIS);
+    }
+
+    // Keeps obligations in memory only. With an interval of 0, nothing settles until settle() or close() is called.
+    InterBankTransfers(long settleIntervalMillis) {
+        this(settleIntervalMillis, null);
+    }
+
+    /**
+     * Journals obligations to the given file too. Nothing is submitted or settled until recover()
+     * has picked up what a previous run left there. If the file can't be read, that is reported
+     * and obligations are only kept in memory.
+     */
+    InterBankTransfers(long settleIntervalMillis, Path journalPath) {
+        TransactionJournal opened = null;
+        if (journalPath != null) {
+            try {
+                plan = readJournal(journalPath);
+                cycleNumber = Math.max(plan.lastCycle, plan.startingCycle);
+                opened = new TransactionJournal(journalPath.toString());
+            } catch (IOException e) {
+                plan = null;
+                System.out.println("Error reading clearing journal " + journalPath
+                        + ", inter-bank transfers won't be recovered after a restart: " + e.getMessage());
+            }
+        }
+        this.journal = opened;
+        this.journalPath = opened == null ? null : journalPath;
+        this.recovered = opened == null;
+        if (settleIntervalMillis > 0) {
+            settler = new Thread(() -> {
+                while (!closed) {
+                    LockSupport.parkNanos(settleIntervalMillis * 1_000_000);
+                    if (!closed) {
+                        settle();
+                    }
+                }
+            }, "interbank-settlement");
+            settler.setDaemon(true);
+            settler.start();
+        } else {
+            settler = null;
+        }
+    }
+
+    // Adds a bank, giving it a clearing account if it doesn't have one yet.
+    void register(String bankName, Ledger ledger) {
+        if (!ledger.exists(CLEARING_ACCOUNT)) {
+            ledger.createClearingAccount();
+        }
+        cycleLock.writeLock().lock();
+        try {
+            Integer id = bankIds.get(bankName);
+            if (id == null) {
+                addBank(bankName, ledger);
+            } else if (ledgers[id] == null) {
+                Ledger[] opened = ledgers.clone();
+                opened[id] = ledger;
+                ledgers = opened;
+            }
+        } finally {
+            cycleLock.writeLock().unlock();
+        }
+    }
+
+    // Under the write side of cycleLock.
+    private int addBank(String bankName, Ledger ledger) {
+        int id = ledgers.length;
+        Ledger[] moreLedgers = Arrays.copyOf(ledgers, id + 1);
+        moreLedgers[id] = ledger;
+        String[] moreNames = Arrays.copyOf(names, id + 1);
+        moreNames[id] = bankName;
+        if (id >= current.stride) {
+            current.growTo(current.stride * 2);
+        }
+        ledgers = moreLedgers;
+        names = moreNames;
+        bankIds.put(bankName, id);
+        return id;
+    }
+
+    Set<String> bankNames() {
+        return new TreeSet<>(bankIds.keySet());
+    }
+
+    /**
+     * Phase one: checks the source account and holds the money at the source bank.
+     * Returns the customer's new balance, or a Transactions result code if nothing was held.
+     * Whether the target account exists is only found out when the cycle runs.
+     */
+    long submit(String fromBank, String accountNo, String toBank, String targetAccountNo, long amount) {
+        Integer from = bankIds.get(fromBank);
+        Integer to = bankIds.get(toBank);
+        Ledger source = from == null ? null : ledgers[from];
+        if (source == null || accountNo.equals(CLEARING_ACCOUNT) || !source.exists(accountNo)) {
+            return Transactions.NO_SUCH_ACCOUNT;
+        }
+        if (to == null || ledgers[to] == null || targetAccountNo.equals(CLEARING_ACCOUNT)) {
+            return Transactions.NO_SUCH_TARGET;
+        }
+        if (from.intValue() == to.intValue()) {
+            return Transactions.SAME_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return Transactions.INVALID_AMOUNT;
+        }
+        if (!recovered) {
+            return Transactions.BUSY;
+        }
+        long[] holdEnd = {-1};
+        // The hold is made under the read side too, so a cycle's cut falls between one hold and the next.
+        cycleLock.readLock().lock();
+        try {
+            Obligations cycle = current;
+            if (journal != null && !markActive(cycle, from, source)) {
+                return Transactions.BUSY;
+            }
+            long balance = source.hold(accountNo, toBank, targetAccountNo, amount, holdEnd);
+            if (Transactions.succeeded(balance)) {
+                cycle.add(from, accountNo, to, targetAccountNo, amount, holdEnd[0]);
+            }
+            return balance;
+        } finally {
+            cycleLock.readLock().unlock();
+        }
+    }
+
+    // Journals where the bank's holds start before its first one in the cycle. Under the read side of cycleLock.
+    private boolean markActive(Obligations cycle, int bank, Ledger ledger) {
+        if (cycle.active.get(bank) != 0) {
+            return true;
+        }
+        synchronized (cycle.active) {
+            if (cycle.active.get(bank) != 0) {
+                return true;
+            }
+            // Only a position already on disk: a tail lost in a crash would be written over by other records.
+            long position = ledger.journalPosition();
+            if (!ledger.awaitJournal(position)) {
+                return false;
+            }
+            try {
+                journal.awaitDurable(write(JournalRecord.BANK_ACTIVE, names[bank], 0, position));
+            } catch (IOException e) {
+                System.out.println("Error writing clearing journal " + journalPath + ": " + e.getMessage());
+                return false;
+            }
+            cycle.active.set(bank, 1);
+            return true;
+        }
+    }
+
+    int pendingCount() {
+        cycleLock.readLock().lock();
+        try {
+            return current.size.get();
+        } finally {
+            cycleLock.readLock().unlock();
+        }
+    }
+
+    // Phase two for everything submitted so far: one clearing cycle.
+    Settlement settle() {
+        synchronized (settleLock) {
+            Settlement result = new Settlement();
+            if (!recovered) {
+                return result;
+            }
+            long begin = System.nanoTime();
+            Obligations cycle;
+            Ledger[] banks;
+            String[] bankNames;
+            long[] cut;
+            cycleLock.writeLock().lock();
+            try {
+                cycle = current;
+                banks = ledgers;
+                bankNames = names;
+                current = new Obligations(cycle.stride);
+                // Every hold before these positions is in this cycle, and every one after them in a later one.
+                cut = new long[banks.length];
+                for (int bank = 0; bank < banks.length; bank++) {
+                    cut[bank] = banks[bank] == null ? 0 : banks[bank].journalPosition();
+                }
+            } finally {
+                cycleLock.writeLock().unlock();
+            }
+            int count = cycle.size.get();
+            if (count == 0) {
+                return result;
+            }
+            long step = System.nanoTime();
+            result.collectNanos = step - begin;
+
+            // Transfers that can't be delivered go back.
+            for (int index = 0; index < count; index++) {
+                Obligations.Chunk chunk = cycle.chunk(index >>> Obligations.CHUNK_BITS);
+                int i = index & (Obligations.CHUNK_SIZE - 1);
+                Ledger target = banks[chunk.toBank[i]];
+                chunk.reversed[i] = target == null || !target.exists(chunk.targetAccountNo[i]);
+            }
+            result.reverseNanos = System.nanoTime() - step;
+            step = System.nanoTime();
+            long[] net = netPositions(cycle, count, banks.length, result);
+            result.netNanos = System.nanoTime() - step;
+
+            if (!covered(cycle, count, net, banks, bankNames)
+                    || journal != null && !writeStart(++cycleNumber, cycle, count, banks, bankNames, cut)) {
+                putBack(cycle, count);
+                Settlement deferred = new Settlement();
+                deferred.deferred = count;
+                lastSettlement = deferred;
+                return deferred;
+            }
+            step = System.nanoTime();
+            Ledger.Batch[] posting = new Ledger.Batch[banks.length];
+            post(cycle, count, net, banks, bankNames, "cycle " + cycleNumber, posting, null, result);
+            result.creditNanos = System.nanoTime() - step;
+            step = System.nanoTime();
+            boolean committed = true;
+            for (Ledger.Batch batch : posting) {
+                if (batch != null && !batch.commit()) {
+                    committed = false;
+                }
+            }
+            if (!committed) {
+                // Left open in the clearing journal, so the next start posts what didn't reach the disk.
+                System.out.println("Clearing cycle " + cycleNumber + " didn't reach every bank's transaction file;"
+                        + " no more inter-bank transfers until a restart finishes it");
+                recovered = false;
+            } else if (journal != null) {
+                try {
+                    write(JournalRecord.CYCLE_DONE, "", cycleNumber, 0);
+                } catch (IOException e) {
+                    System.out.println("Error writing clearing journal " + journalPath + ": " + e.getMessage());
+                }
+            }
+            long end = System.nanoTime();
+            result.commitNanos = end - step;
+            result.totalNanos = end - begin;
+            cycleTimes.record(result.totalNanos);
+            lastSettlement = result;
+            return result;
+        }
+    }
+
+    // Each bank's net position once the reversed transfers are taken out: what it's owed, less what it owes.
+    private static long[] netPositions(Obligations cycle, int count, int bankCount, Settlement result) {
+        int stride = cycle.stride;
+        long[] gross = new long[stride * stride];
+        for (int i = 0; i < gross.length; i++) {
+            gross[i] = cycle.gross.get(i);
+        }
+        for (int index = 0; index < count; index++) {
+            Obligations.Chunk chunk = cycle.chunk(index >>> Obligations.CHUNK_BITS);
+            int i = index & (Obligations.CHUNK_SIZE - 1);
+            if (chunk.reversed[i]) {
+                gross[chunk.fromBank[i] * stride + chunk.toBank[i]] -= chunk.amount[i];
+            }
+        }
+        long[] net = new long[bankCount];
+        for (int a = 0; a < bankCount; a++) {
+            for (int b = a + 1; b < bankCount; b++) {
+                long aToB = gross[a * stride + b] - gross[b * stride + a];
+                net[a] -= aToB;
+                net[b] += aToB;
+                result.grossAmount += gross[a * stride + b] + gross[b * stride + a];
+                if (aToB != 0) {
+                    result.bankPairs++;
+                }
+            }
+        }
+        return net;
+    }
+
+    // True if every bank's clearing account holds what the cycle takes out of it, less what it puts in first.
+    private static boolean covered(Obligations cycle, int count, long[] net, Ledger[] banks, String[] bankNames) {
+        long[] out = new long[banks.length];
+        for (int index = 0; index < count; index++) {
+            Obligations.Chunk chunk = cycle.chunk(index >>> Obligations.CHUNK_BITS);
+            int i = index & (Obligations.CHUNK_SIZE - 1);
+            out[chunk.reversed[i] ? chunk.fromBank[i] : chunk.toBank[i]] += chunk.amount[i];
+        }
+        for (int bank = 0; bank < banks.length; bank++) {
+            long needed = out[bank] + Math.max(0, -net[bank]) - Math.max(0, net[bank]);
+            if (needed > 0 && banks[bank].getBalance(CLEARING_ACCOUNT) < needed) {
+                System.out.println("Clearing account at " + bankNames[bank] + " holds less than this cycle needs from it ("
+                        + Money.format(needed) + "); its transfers wait for the next cycle");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Puts obligations back to go in the next cycle. No cut was journaled for them, so the next one covers their holds.
+    private void putBack(Obligations cycle, int count) {
+        cycleLock.readLock().lock();
+        try {
+            for (int index = 0; index < count; index++) {
+                Obligations.Chunk chunk = cycle.chunk(index >>> Obligations.CHUNK_BITS);
+                int i = index & (Obligations.CHUNK_SIZE - 1);
+                current.add(chunk.fromBank[i], chunk.accountNo[i], chunk.toBank[i], chunk.targetAccountNo[i],
+                        chunk.amount[i], chunk.holdEnd[i]);
+            }
+        } finally {
+            cycleLock.readLock().unlock();
+        }
+    }
+
+    // Journals the cycle's cuts and reversals, and waits for them to be on disk, before any money moves.
+    private boolean writeStart(long number, Obligations cycle, int count, Ledger[] banks, String[] bankNames, long[] cut) {
+        boolean[] involved = new boolean[banks.length];
+        for (int index = 0; index < count; index++) {
+            Obligations.Chunk chunk = cycle.chunk(index >>> Obligations.CHUNK_BITS);
+            int i = index & (Obligations.CHUNK_SIZE - 1);
+            involved[chunk.fromBank[i]] = true;
+            involved[chunk.toBank[i]] |= !chunk.reversed[i];
+        }
+        try {
+            for (int bank = 0; bank < banks.length; bank++) {
+                // As with BANK_ACTIVE, the cut must be a position already on disk.
+                if (involved[bank]) {
+                    if (!banks[bank].awaitJournal(cut[bank])) {
+                        return false;
+                    }
+                    write(JournalRecord.CYCLE_CUT, bankNames[bank], number, cut[bank]);
+                }
+            }
+            for (int index = 0; index < count; index++) {
+                Obligations.Chunk chunk = cycle.chunk(index >>> Obligations.CHUNK_BITS);
+                int i = index & (Obligations.CHUNK_SIZE - 1);
+                if (chunk.reversed[i]) {
+                    write(JournalRecord.CYCLE_REVERSED, bankNames[chunk.fromBank[i]], number, chunk.holdEnd[i]);
+                }
+            }
+            journal.awaitDurable(write(JournalRecord.CYCLE_STARTED, "", number, 0));
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error writing clearing journal " + journalPath + ", transfers wait for the next cycle: "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Posts a cycle at each bank: the reversals, the net amount out of or into its clearing
+     * account, then the credits to its customers, each tagged with the cycle. Postings a bank's
+     * journal already has (found, when recover() finishes a cycle) aren't made again.
+     */
+    private static void post(Obligations cycle, int count, long[] net, Ledger[] banks, String[] bankNames, String tag,
+                             Ledger.Batch[] posting, List<Map<String, Integer>> found, Settlement result) {
+        for (int index = 0; index < count; index++) {
+            Obligations.Chunk chunk = cycle.chunk(index >>> Obligations.CHUNK_BITS);
+            int i = index & (Obligations.CHUNK_SIZE - 1);
+            if (chunk.reversed[i]) {
+                int from = chunk.fromBank[i];
+                long posted = alreadyPosted(found, from, JournalRecord.TRANSFER, chunk.accountNo[i], chunk.amount[i]) ? 0
+                        : postingFor(from, banks, posting, tag).transfer(CLEARING_ACCOUNT, chunk.accountNo[i], chunk.amount[i]);
+                if (Transactions.succeeded(posted)) {
+                    result.reversed++;
+                } else {
+                    failed(result, posted, "return " + Money.format(chunk.amount[i]) + " to " + chunk.accountNo[i], bankNames[from]);
+                }
+            }
+        }
+        // Payers first, since their holds cover it.
+        for (int bank = 0; bank < banks.length; bank++) {
+            if (net[bank] < 0) {
+                long posted = alreadyPosted(found, bank, JournalRecord.WITHDRAW, "", -net[bank]) ? 0
+                        : postingFor(bank, banks, posting, tag).withdraw(CLEARING_ACCOUNT, -net[bank]);
+                if (Transactions.succeeded(posted)) {
+                    result.netMovements++;
+                    result.netAmount -= net[bank];
+                } else {
+                    failed(result, posted, "pay out " + Money.format(-net[bank]), bankNames[bank]);
+                }
+            }
+        }
+        for (int bank = 0; bank < banks.length; bank++) {
+            if (net[bank] > 0) {
+                long posted = alreadyPosted(found, bank, JournalRecord.DEPOSIT, "", net[bank]) ? 0
+                        : postingFor(bank, banks, posting, tag).deposit(CLEARING_ACCOUNT, net[bank]);
+                if (Transactions.succeeded(posted)) {
+                    result.netMovements++;
+                } else {
+                    failed(result, posted, "take in " + Money.format(net[bank]), bankNames[bank]);
+                }
+            }
+        }
+        // Each destination's clearing account now holds what its customers are owed.
+        for (int index = 0; index < count; index++) {
+            Obligations.Chunk chunk = cycle.chunk(index >>> Obligations.CHUNK_BITS);
+            int i = index & (Obligations.CHUNK_SIZE - 1);
+            if (!chunk.reversed[i]) {
+                int to = chunk.toBank[i];
+                long posted = alreadyPosted(found, to, JournalRecord.TRANSFER, chunk.targetAccountNo[i], chunk.amount[i]) ? 0
+                        : postingFor(to, banks, posting, tag).transfer(CLEARING_ACCOUNT, chunk.targetAccountNo[i], chunk.amount[i]);
+                if (Transactions.succeeded(posted)) {
+                    result.settled++;
+                } else {
+                    failed(result, posted, "credit " + Money.format(chunk.amount[i]) + " to " + chunk.targetAccountNo[i],
+                            bankNames[to]);
+                }
+            }
+        }
+    }
+
+    private static void failed(Settlement result, long code, String what, String bankName) {
+        result.failed++;
+        System.out.println("Clearing couldn't " + what + " at " + bankName + " (" + Transactions.describe(code)
+                + "); the money stays in its clearing account");
+    }
+
+    // A posting from the bank's clearing account, keyed by what it did.
+    private static String postingKey(byte type, String counterparty, long amount) {
+        return type + " " + counterparty + " " + amount;
+    }
+
+    // True, and counted off, if recover() found this posting already made.
+    private static boolean alreadyPosted(List<Map<String, Integer>> found, int bank, byte type, String counterparty, long amount) {
+        if (found == null) {
+            return false;
+        }
+        Map<String, Integer> postings = found.get(bank);
+        String key = postingKey(type, counterparty, amount);
+        Integer left = postings.get(key);
+        if (left == null || left == 0) {
+            return false;
+        }
+        postings.put(key, left - 1);
+        return true;
+    }
+
+    private static Ledger.Batch postingFor(int bank, Ledger[] banks, Ledger.Batch[] posting, String tag) {
+        if (posting[bank] == null) {
+            posting[bank] = banks[bank].openBatch();
+            posting[bank].reference(tag);
+        }
+        return posting[bank];
+    }
+
+    private long write(byte type, String bankName, long cycle, long position) throws IOException {
+        return journal.append(new JournalRecord().set(type, bankName, null, cycle, position).encode());
+    }
+
+    /**
+     * Picks up from the clearing journal where the last run stopped: finishes the cycle that was
+     * posting, if any, making only the postings that didn't reach the banks' journals, and puts
+     * every hold no cycle has taken into the next one. banks gives a bank's Ledger by name,
+     * opening it if need be, or null if there's no such bank any more. Call it once, before
+     * anything is submitted; it does nothing without a clearing journal.
+     */
+    void recover(Function<String, Ledger> banks) {
+        synchronized (settleLock) {
+            if (recovered || plan == null) {
+                return;
+            }
+            Plan found = plan;
+            plan = null;
+            try {
+                if (!found.lastCycleDone) {
+                    finish(found, banks);
+                }
+                requeue(found, banks);
+            } catch (IOException e) {
+                System.out.println("Error recovering inter-bank transfers from " + journalPath + ": " + e.getMessage());
+            }
+            recovered = true;
+        }
+    }
+
+    private void finish(Plan plan, Function<String, Ledger> lookup) throws IOException {
+        long number = plan.lastCycle;
+        String tag = "cycle " + number;
+        Obligations cycle = new Obligations(Math.max(8, ledgers.length));
+        for (Map.Entry<String, Long> cut : plan.lastCycleCuts.entrySet()) {
+            long from = plan.holdsFrom(cut.getKey(), plan.previousCuts.getOrDefault(cut.getKey(), 0L), cut.getValue());
+            if (from >= 0) {
+                readHolds(cycle, cut.getKey(), from, cut.getValue(), plan.lastCycleReversed, lookup);
+            }
+        }
+        Ledger[] banks = ledgers;
+        List<Map<String, Integer>> found = new ArrayList<>();
+        for (int bank = 0; bank < banks.length; bank++) {
+            found.add(new HashMap<>());
+        }
+        for (Map.Entry<String, Long> cut : plan.lastCycleCuts.entrySet()) {
+            int bank = bankFor(cut.getKey(), lookup);
+            if (bank < banks.length && banks[bank] != null) {
+                readPostings(banks[bank], cut.getValue(), tag, found.get(bank));
+            }
+        }
+        grow(cycle, banks.length - 1);
+        Settlement result = new Settlement();
+        int count = cycle.size.get();
+        long[] net = netPositions(cycle, count, banks.length, result);
+        Ledger.Batch[] posting = new Ledger.Batch[banks.length];
+        post(cycle, count, net, banks, names, tag, posting, found, result);
+        for (Ledger.Batch batch : posting) {
+            if (batch != null && !batch.commit()) {
+                throw new IOException("postings for clearing cycle " + number + " didn't reach every bank's transaction file");
+            }
+        }
+        journal.awaitDurable(write(JournalRecord.CYCLE_DONE, "", number, 0));
+        System.out.println("Finished clearing cycle " + number + " from before the restart: " + result.settled
+                + " transfers settled, " + result.reversed + " reversed, " + result.failed + " failed");
+    }
+
+    private void requeue(Plan plan, Function<String, Ledger> lookup) throws IOException {
+        Obligations held = new Obligations(Math.max(8, ledgers.length));
+        for (String bankName : plan.active.keySet()) {
+            long from = plan.holdsFrom(bankName, plan.cuts.getOrDefault(bankName, 0L), Long.MAX_VALUE);
+            if (from >= 0) {
+                readHolds(held, bankName, from, Long.MAX_VALUE, null, lookup);
+            }
+        }
+        int count = held.size.get();
+        if (count > 0) {
+            putBack(held, count);
+            System.out.println(count + " inter-bank transfers from before the restart will settle in the next cycle");
+        }
+    }
+
+    // Adds the bank's holds that end after from and by to, marking the ones in reversed.
+    private void readHolds(Obligations into, String bankName, long from, long to, Set<String> reversed,
+                           Function<String, Ledger> lookup) throws IOException {
+        int bank = bankFor(bankName, lookup);
+        Ledger ledger = ledgers[bank];
+        if (ledger == null) {
+            System.out.println("Bank " + bankName + " can't be opened; its transfers to other banks stay in its clearing account");
+            return;
+        }
+        try (JournalReader reader = new JournalReader(ledger.journalFile(), from)) {
+            JournalRecord record = new JournalRecord();
+            while (reader.next(record) && reader.position() <= to) {
+                if (record.type != JournalRecord.HOLD) {
+                    continue;
+                }
+                int target = bankFor(record.credential, lookup);
+                grow(into, Math.max(bank, target));
+                int index = into.size.get();
+                into.add(bank, record.accountNumber(), target, record.counterpartyNumber(), record.amount, reader.position());
+                if (reversed != null && reversed.contains(bankName + "\n" + reader.position())) {
+                    into.chunk(index >>> Obligations.CHUNK_BITS).reversed[index & (Obligations.CHUNK_SIZE - 1)] = true;
+                }
+            }
+        }
+    }
+
+    private static void grow(Obligations obligations, int bank) {
+        int stride = obligations.stride;
+        while (stride <= bank) {
+            stride *= 2;
+        }
+        if (stride > obligations.stride) {
+            obligations.growTo(stride);
+        }
+    }
+
+    // Counts the bank's postings tagged with the cycle, from the position on.
+    private static void readPostings(Ledger ledger, long from, String tag, Map<String, Integer> into) throws IOException {
+        try (JournalReader reader = new JournalReader(ledger.journalFile(), from)) {
+            JournalRecord record = new JournalRecord();
+            while (reader.next(record)) {
+                boolean posting = record.type == JournalRecord.DEPOSIT || record.type == JournalRecord.WITHDRAW
+                        || record.type == JournalRecord.TRANSFER;
+                if (posting && tag.equals(record.credential)) {
+                    into.merge(postingKey(record.type, record.counterpartyNumber(), record.amount), 1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    // The id of the bank by that name, opening and registering it through the lookup the first time.
+    private int bankFor(String bankName, Function<String, Ledger> lookup) {
+        Integer id = bankIds.get(bankName);
+        if (id == null || ledgers[id] == null) {
+            Ledger ledger = lookup.apply(bankName);
+            if (ledger != null) {
+                register(bankName, ledger);
+            }
+            cycleLock.writeLock().lock();
+            try {
+                id = bankIds.get(bankName);
+                if (id == null) {
+                    id = addBank(bankName, null); // gone from the config; transfers to it go back
+                }
+            } finally {
+                cycleLock.writeLock().unlock();
+            }
+        }
+        return id;
+    }
+
+    // Reads the clearing journal, cutting off a torn tail the way JournalRecovery does.
+    private static Plan readJournal(Path path) throws IOException {
+        Plan plan = new Plan();
+        if (!Files.exists(path)) {
+            return plan;
+        }
+        long validEnd;
+        boolean torn;
+        try (JournalReader reader = new JournalReader(path, 0)) {
+            JournalRecord record = new JournalRecord();
+            while (reader.next(record)) {
+                plan.read(record);
+            }
+            validEnd = reader.position();
+            torn = reader.stoppedAtTornRecord();
+            if (reader.stoppedAtCorruptRecord()) {
+                throw new IOException("bad record at offset " + validEnd + " with more after it; it has been left as it is");
+            }
+        }
+        if (torn) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+                channel.force(true);
+            }
+        }
+        return plan;
+    }
+
+    // How long clearing cycles take, and what the last one did.
+    String metricsText() {
+        LatencyHistogram.Snapshot times = cycleTimes.snapshot();
+        return String.format("Clearing: %,d cycles, p50 %.1f ms, p99 %.1f ms, max %.1f ms, %,d transfers waiting%n  last cycle: %s%n",
+                times.count, times.percentile(50) / 1e6, times.percentile(99) / 1e6, times.maxNanos / 1e6,
+                pendingCount(), lastSettlement == null ? "none yet" : lastSettlement);
+    }
+
+    // Stops the background cycle and settles whatever is still pending.
+    @Override
+    public void close() {
+        closed = true;
+        if (settler != null) {
+            LockSupport.unpark(settler);
+            try {
+                settler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        settle();
+        if (journal != null) {
+            boolean nothingLeft = recovered && pendingCount() == 0;
+            try {
+                journal.close();
+                if (nothingLeft) {
+                    try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                        channel.truncate(0);
+                        channel.force(true);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error closing clearing journal " + journalPath + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package BANKING;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Streams JournalRecords out of a journal file through one fixed-size buffer,
+ * so reading a journal of any length uses the same small amount of memory.
+ *
+ * Reading stops at the first record that is incomplete or fails its checksum. If nothing
+ * but zeros follows it, that is what the end of the file looks like when the process died
+ * mid-write (a torn tail); position() then tells you where the last good record ended.
+ * Anything else after it means the journal was damaged in the middle, which
+ * stoppedAtCorruptRecord() reports, so nobody mistakes it for a tail and cuts it off.
+ *
+ * readAt() reads a single record at a known offset instead (see StatementIndex).
+ */
+class JournalReader implements AutoCloseable {
+
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final int SINGLE_READ_BYTES = 256; // enough for a typical record in one read
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+    private long position;      // file offset of the next record to read
+    private boolean endOfFile;
+    private boolean torn;
+    private boolean corrupt;
+
+    JournalReader(Path path, long startPosition) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        position = startPosition;
+        channel.position(startPosition);
+        buffer.limit(0);
+    }
+
+    /**
+     * Reads the next record into the given object.
+     * @return false at the end of the journal, or at a torn or corrupt record.
+     */
+    boolean next(JournalRecord record) throws IOException {
+        if (torn || corrupt || !fill(4)) {
+            return false;
+        }
+        int bodyLength = buffer.getInt(buffer.position());
+        if (bodyLength <= 0 || bodyLength > BUFFER_BYTES - 8) {
+            return stopAtBadRecord(bodyLength == 0 ? position : -1);
+        }
+        if (!fill(4 + bodyLength + 4)) {
+            return false;
+        }
+        int bodyStart = buffer.position() + 4;
+        crc.reset();
+        crc.update(buffer.array(), bodyStart, bodyLength);
+        if ((int) crc.getValue() != buffer.getInt(bodyStart + bodyLength)) {
+            return stopAtBadRecord(position + 4 + bodyLength + 4);
+        }
+        buffer.position(bodyStart);
+        if (!record.decodeBody(buffer, bodyLength)) {
+            return stopAtBadRecord(position + 4 + bodyLength + 4);
+        }
+        buffer.position(bodyStart + bodyLength + 4);
+        position += 4 + bodyLength + 4;
+        return true;
+    }
+
+    /**
+     * Reads the one record that starts at the given offset, leaving next() where it was.
+     * Safe to call from several threads at once.
+     * @return false if there's no complete, valid record at that offset.
+     */
+    boolean readAt(long offset, JournalRecord record) throws IOException {
+        ByteBuffer single = ByteBuffer.allocate(SINGLE_READ_BYTES);
+        int read = readFully(single, offset);
+        if (read < 4) {
+            return false;
+        }
+        int bodyLength = single.getInt(0);
+        if (bodyLength <= 0 || bodyLength > BUFFER_BYTES - 8) {
+            return false;
+        }
+        if (4 + bodyLength + 4 > single.capacity()) {
+            single = ByteBuffer.allocate(4 + bodyLength + 4);
+            read = readFully(single, offset);
+        }
+        if (read < 4 + bodyLength + 4) {
+            return false;
+        }
+        CRC32 check = new CRC32();
+        check.update(single.array(), 4, bodyLength);
+        if ((int) check.getValue() != single.getInt(4 + bodyLength)) {
+            return false;
+        }
+        single.position(4);
+        return record.decodeBody(single, bodyLength);
+    }
+
+    private int readFully(ByteBuffer into, long offset) throws IOException {
+        while (into.hasRemaining()) {
+            if (channel.read(into, offset + into.position()) < 0) {
+                break;
+            }
+        }
+        return into.position();
+    }
+
+    // The file offset just past the last good record.
+    long position() {
+        return position;
+    }
+
+    // True if reading stopped on a torn tail: bytes that aren't a valid record, with nothing after them.
+    boolean stoppedAtTornRecord() {
+        return torn;
+    }
+
+    // True if reading stopped on a bad record with more of the journal after it.
+    boolean stoppedAtCorruptRecord() {
+        return corrupt;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Stops reading at the record at position(). It is a torn tail if everything from restFrom
+     * to the end of the file is zero (a crash can leave a zero-filled end); restFrom is -1 when
+     * the record is garbage from its first bytes, which no crash while appending leaves behind.
+     */
+    private boolean stopAtBadRecord(long restFrom) throws IOException {
+        if (restFrom >= 0 && zeroFrom(restFrom)) {
+            torn = true;
+        } else {
+            corrupt = true;
+        }
+        return false;
+    }
+
+    private boolean zeroFrom(long offset) throws IOException {
+        ByteBuffer rest = ByteBuffer.allocate(BUFFER_BYTES);
+        while (true) {
+            rest.clear();
+            int read = channel.read(rest, offset);
+            if (read < 0) {
+                return true;
+            }
+            for (int i = 0; i < read; i++) {
+                if (rest.get(i) != 0) {
+                    return false;
+                }
+            }
+            offset += read;
+        }
+    }
+
+    // Makes sure at least 'bytes' bytes are buffered. A short file at this point means a torn record.
+    private boolean fill(int bytes) throws IOException {
+        while (buffer.remaining() < bytes) {
+            if (endOfFile) {
+                torn = buffer.hasRemaining();
+                return false;
+            }
+            buffer.compact();
+            endOfFile = channel.read(buffer) < 0;
+            buffer.flip();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,198 @@
+package BANKING;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * One entry in a bank's transaction journal, and its compact binary form.
+ *
+ * On disk a record is:
+ *   int    body length
+ *   body:  byte type, long timestamp (epoch millis), long amount, long balance after,
+ *          account number, counterparty, credential (each a length byte then the bytes)
+ *   int    CRC32 of the body
+ * The length and checksum let a reader tell a complete record from one that was only
+ * partly written when the process died.
+ *
+ * An END_OF_DAY record covers every account at once (see EndOfDay): its amount is the daily
+ * rate, its balance the fee, and its account number the account left out, if any.
+ *
+ * A HOLD moves money from the account into the bank's clearing account for a transfer to
+ * another bank (see InterBankTransfers); its counterparty is the account at the other bank and
+ * its credential field that bank's name. The postings a clearing cycle makes are ordinary
+ * records with the cycle's reference in the credential field. The CYCLE_ and BANK_ types only
+ * appear in the clearing journal, with a bank's name as the account number.
+ *
+ * An account number made of digits is held as its AccountId rather than as a String, both
+ * when the Ledger sets a record and when a reader decodes one, and is written out as the same
+ * ASCII digits either way; accountNumber() and counterpartyNumber() give the text back.
+ *
+ * Instances are mutable so a reader can decode a whole journal into a single object.
+ */
+final class JournalRecord {
+
+    static final byte CREATE = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte TRANSFER = 4;
+    static final byte END_OF_DAY = 5;
+    static final byte HOLD = 6;
+    // Clearing journal only: amount is the cycle, balance a position in the bank's journal.
+    static final byte BANK_ACTIVE = 7;      // the bank's holds not yet in a cycle start at or after balance
+    static final byte CYCLE_CUT = 8;        // the cycle takes the bank's holds before balance
+    static final byte CYCLE_REVERSED = 9;   // the hold ending at balance goes back to the customer
+    static final byte CYCLE_STARTED = 10;   // the cycle's cuts and reversals are all written; postings begin
+    static final byte CYCLE_DONE = 11;
+
+    // Length prefix + fixed fields + three length bytes + CRC.
+    static final int OVERHEAD = 4 + (1 + 8 + 8 + 8) + 3 + 4;
+    static final int MAX_FIELD_LENGTH = 255;
+
+    byte type;
+    long timestamp;
+    long amount;
+    long balance;      // the account's balance after the operation
+    long accountId = AccountId.NONE;
+    String accountNo;           // null when accountId is set
+    long counterpartyId = AccountId.NONE;   // the other account of a transfer
+    String counterparty = "";   // the other account when it has no id; null when counterpartyId is set
+    String credential = "";     // on CREATE; on a HOLD, the other bank; on a clearing posting, the cycle
+
+    // True if the account number can be journaled as it is: 1 to 255 ASCII characters.
+    static boolean canHold(String accountNo) {
+        if (accountNo.isEmpty() || accountNo.length() > MAX_FIELD_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < accountNo.length(); i++) {
+            if (accountNo.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    JournalRecord set(byte type, String accountNo, String counterparty, long amount, long balance) {
+        return set(type, AccountId.parse(accountNo), accountNo,
+                counterparty == null ? AccountId.NONE : AccountId.parse(counterparty), counterparty, amount, balance);
+    }
+
+    // Each account is named by its id, or by its number when the id is NONE.
+    JournalRecord set(byte type, long accountId, String accountNo, long counterpartyId, String counterparty,
+                      long amount, long balance) {
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+        this.accountId = accountId;
+        this.accountNo = accountId != AccountId.NONE ? null : accountNo;
+        this.counterpartyId = counterpartyId;
+        this.counterparty = counterpartyId != AccountId.NONE ? null : counterparty == null ? "" : counterparty;
+        this.amount = amount;
+        this.balance = balance;
+        this.credential = "";
+        return this;
+    }
+
+    String accountNumber() {
+        return accountId != AccountId.NONE ? AccountId.toString(accountId) : accountNo;
+    }
+
+    // "" if the record has no counterparty.
+    String counterpartyNumber() {
+        return counterpartyId != AccountId.NONE ? AccountId.toString(counterpartyId) : counterparty;
+    }
+
+    boolean hasCounterparty() {
+        return counterpartyId != AccountId.NONE || !counterparty.isEmpty();
+    }
+
+    // Encodes the record, length and checksum included.
+    byte[] encode() {
+        byte[] account = accountId != AccountId.NONE ? null : accountNo.getBytes(StandardCharsets.US_ASCII);
+        byte[] other = counterpartyId != AccountId.NONE ? null : counterparty.getBytes(StandardCharsets.US_ASCII);
+        byte[] secret = credential.getBytes(StandardCharsets.UTF_8);
+        int accountLength = account == null ? AccountId.length(accountId) : account.length;
+        int otherLength = other == null ? AccountId.length(counterpartyId) : other.length;
+        if (accountLength > MAX_FIELD_LENGTH || otherLength > MAX_FIELD_LENGTH || secret.length > MAX_FIELD_LENGTH) {
+            throw new IllegalArgumentException("Journal record field longer than " + MAX_FIELD_LENGTH + " bytes");
+        }
+        int bodyLength = OVERHEAD - 8 + accountLength + otherLength + secret.length;
+        ByteBuffer out = ByteBuffer.allocate(bodyLength + 8);
+        out.putInt(bodyLength);
+        out.put(type).putLong(timestamp).putLong(amount).putLong(balance);
+        putAccount(out, accountId, account, accountLength);
+        putAccount(out, counterpartyId, other, otherLength);
+        out.put((byte) secret.length).put(secret);
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 4, bodyLength);
+        out.putInt((int) crc.getValue());
+        return out.array();
+    }
+
+    private static void putAccount(ByteBuffer out, long id, byte[] text, int length) {
+        out.put((byte) length);
+        if (text != null) {
+            out.put(text);
+        } else {
+            AccountId.putAscii(id, out, out.position());
+            out.position(out.position() + length);
+        }
+    }
+
+    /**
+     * Decodes a body whose length prefix and checksum have already been checked.
+     * Returns false if the fields don't add up to the body length.
+     */
+    boolean decodeBody(ByteBuffer in, int bodyLength) {
+        int end = in.position() + bodyLength;
+        if (bodyLength < OVERHEAD - 8) {
+            return false;
+        }
+        type = in.get();
+        timestamp = in.getLong();
+        amount = in.getLong();
+        balance = in.getLong();
+        int length = fieldLength(in, end);
+        if (length < 0) {
+            return false;
+        }
+        accountId = AccountId.parse(in, in.position(), length);
+        accountNo = accountId != AccountId.NONE ? null : text(in, length, StandardCharsets.US_ASCII);
+        in.position(in.position() + length);
+        length = fieldLength(in, end);
+        if (length < 0) {
+            return false;
+        }
+        counterpartyId = AccountId.parse(in, in.position(), length);
+        counterparty = counterpartyId != AccountId.NONE ? null : text(in, length, StandardCharsets.US_ASCII);
+        in.position(in.position() + length);
+        length = fieldLength(in, end);
+        if (length < 0) {
+            return false;
+        }
+        credential = text(in, length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return in.position() == end;
+    }
+
+    // Reads a field's length byte, or returns -1 if the field runs past the end of the body.
+    private static int fieldLength(ByteBuffer in, int end) {
+        if (in.position() >= end) {
+            return -1;
+        }
+        int length = in.get() & 0xFF;
+        return in.position() + length > end ? -1 : length;
+    }
+
+    private static String text(ByteBuffer in, int length, java.nio.charset.Charset charset) {
+        return new String(in.array(), in.arrayOffset() + in.position(), length, charset);
+    }
+
+    @Override
+    public String toString() {
+        String name = type == CREATE ? "CREATE" : type == DEPOSIT ? "DEPOSIT" : type == WITHDRAW ? "WITHDRAW"
+                : type == TRANSFER ? "TRANSFER" : type == END_OF_DAY ? "END_OF_DAY" : type == HOLD ? "HOLD"
+                : "TYPE" + type;
+        return name + " " + accountNumber() + (hasCounterparty() ? " -> " + counterpartyNumber() : "")
+                + " " + Money.format(amount) + " balance " + Money.format(balance) + " at " + timestamp;
+    }
+}
@@ -0,0 +1,215 @@
+package BANKING;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Brings a bank's accounts back to where they were before a restart or crash.
+ *
+ * The last checkpoint (a MappedAccountStore file) records the journal position it
+ * covers. Recovery copies the checkpoint to a working file, maps it, and replays
+ * every journal record written after that position. A torn record at the end of the
+ * journal is cut off, so the next run appends after the last good record; a bad record
+ * with more after it stops recovery with an IOException and leaves the journal alone.
+ *
+ * After a clean close (see Ledger.close()) the working file is already the checkpoint, with
+ * nothing journaled since, so it is mapped as it is instead of copied, and a large book
+ * still opens in milliseconds. It is marked unclean again before anything changes it.
+ *
+ * The working file is grown (see MappedAccountStore.copyOf()) when it is more than half full
+ * or smaller than the capacity asked for, and again if the replay fills it up.
+ */
+final class JournalRecovery {
+
+    // What a replay did, for the startup message.
+    static final class Result {
+        long records;
+        long skipped;
+        long truncatedBytes;
+        long nanos;
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return records + " journal records replayed in " + (nanos / 1_000_000) + " ms"
+                    + (seconds > 0 ? String.format(" (%,.0f records/s)", records / seconds) : "")
+                    + (skipped > 0 ? ", " + skipped + " unreadable skipped" : "")
+                    + (truncatedBytes > 0 ? ", " + truncatedBytes + " bytes of torn tail removed" : "");
+        }
+    }
+
+    private JournalRecovery() {
+    }
+
+    /**
+     * Restores the working account file from the checkpoint and the journal.
+     * Creates an empty checkpoint if there isn't one yet.
+     */
+    static MappedAccountStore recover(Path checkpoint, Path working, Path journal, long capacity, Result result) throws IOException {
+        if (!Files.exists(checkpoint)) {
+            MappedAccountStore.create(checkpoint, capacity).close();
+        }
+        MappedAccountStore store = reusable(checkpoint, working, journal);
+        if (store == null) {
+            Files.copy(checkpoint, working, StandardCopyOption.REPLACE_EXISTING);
+            store = MappedAccountStore.open(working);
+        }
+        store.setClean(false);
+        if (store.capacity() < capacity || store.size() * 2L > store.capacity()) {
+            store = grow(store, working, capacity);
+        }
+        if (Files.exists(journal)) {
+            long from = store.checkpointPosition();
+            while ((from = replay(store, journal, from, result)) >= 0) {
+                store = grow(store, working, capacity); // full partway: carry on from the create that didn't fit
+            }
+        }
+        return store;
+    }
+
+    // The working file, if a clean close left it identical to the checkpoint with nothing to replay; otherwise null.
+    private static MappedAccountStore reusable(Path checkpoint, Path working, Path journal) throws IOException {
+        if (!Files.exists(working)) {
+            return null;
+        }
+        MappedAccountStore store;
+        try {
+            store = MappedAccountStore.open(working);
+        } catch (IOException e) {
+            return null; // a damaged working file is simply replaced
+        }
+        long position = store.checkpointPosition();
+        if (store.isClean() && position == MappedAccountStore.checkpointPositionOf(checkpoint)
+                && position == (Files.exists(journal) ? Files.size(journal) : 0)) {
+            return store;
+        }
+        store.close();
+        return null;
+    }
+
+    // Replaces the working file with a copy that has room for at least twice its accounts.
+    private static MappedAccountStore grow(MappedAccountStore store, Path working, long capacity) throws IOException {
+        Path grown = working.resolveSibling(working.getFileName() + ".grow");
+        MappedAccountStore.copyOf(store, grown, Math.max(capacity, store.capacity() * 2)).close();
+        store.close();
+        Files.move(grown, working, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return MappedAccountStore.open(working);
+    }
+
+    /**
+     * Applies every journal record from the given position onward to the store.
+     * Amounts are applied as plain balance changes, without the usual checks: each
+     * record already passed them when it was first written, and adding them up gives
+     * the same result whatever order concurrent sessions logged them in. An end-of-day
+     * run doesn't add up like that, but nothing else runs while one is applied and
+     * journaled, so everything before it in the journal was applied before it.
+     * A record naming an account that doesn't exist, or a change the store refuses, means the
+     * journal doesn't match the accounts: nothing of that record is applied, and replay fails.
+     * @return -1 once the whole journal is applied, or the position of a create that didn't
+     *         fit because the store is full, to carry on from once it has more room.
+     */
+    static long replay(MappedAccountStore store, Path journal, long from, Result result) throws IOException {
+        long begin = System.nanoTime();
+        long validEnd;
+        boolean torn;
+        try (JournalReader reader = new JournalReader(journal, from)) {
+            JournalRecord record = new JournalRecord();
+            long recordStart = reader.position();
+            while (reader.next(record)) {
+                boolean applied;
+                if (record.type == JournalRecord.CREATE) {
+                    // A create that lost to an existing account was still journaled by older versions; it changes nothing.
+                    long created = store.create(record.accountNumber(), record.credential, record.amount, null);
+                    if (created == AccountStore.STORE_FULL) {
+                        result.nanos += System.nanoTime() - begin;
+                        return recordStart;
+                    }
+                    applied = created != AccountStore.INVALID_ACCOUNT;
+                } else {
+                    applied = apply(store, record, journal, recordStart);
+                }
+                recordStart = reader.position();
+                if (applied) {
+                    result.records++;
+                } else {
+                    result.skipped++;
+                }
+            }
+            validEnd = reader.position();
+            torn = reader.stoppedAtTornRecord();
+            if (reader.stoppedAtCorruptRecord()) {
+                throw new IOException("Journal " + journal + " has a bad record at offset " + validEnd
+                        + " with more after it; it has been left as it is");
+            }
+        }
+        if (torn) {
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                result.truncatedBytes = channel.size() - validEnd;
+                channel.truncate(validEnd);
+                channel.force(true);
+            }
+        }
+        result.nanos += System.nanoTime() - begin;
+        return -1;
+    }
+
+    // False for a record of a kind this version doesn't know; throws if the record can't be applied.
+    private static boolean apply(MappedAccountStore store, JournalRecord record, Path journal, long at) throws IOException {
+        switch (record.type) {
+            case JournalRecord.DEPOSIT:
+                move(store, AccountId.NONE, null, record.accountId, record.accountNo, record.amount, journal, at);
+                return true;
+            case JournalRecord.WITHDRAW:
+                move(store, record.accountId, record.accountNo, AccountId.NONE, null, record.amount, journal, at);
+                return true;
+            case JournalRecord.TRANSFER:
+                move(store, record.accountId, record.accountNo, record.counterpartyId, record.counterparty, record.amount,
+                        journal, at);
+                return true;
+            case JournalRecord.HOLD:
+                move(store, record.accountId, record.accountNo, AccountId.NONE, InterBankTransfers.CLEARING_ACCOUNT,
+                        record.amount, journal, at);
+                return true;
+            case JournalRecord.END_OF_DAY:
+                store.endOfDay(new EndOfDay(record.amount, record.balance, record.accountNumber()));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Takes the amount from one account and adds it to the other, either of which may be
+     * missing (both id NONE and number null) for a deposit or withdrawal. Both accounts are
+     * looked up before either changes.
+     */
+    private static void move(MappedAccountStore store, long fromId, String fromAccountNo, long toId, String toAccountNo,
+                             long amount, Path journal, long at) throws IOException {
+        boolean from = fromId != AccountId.NONE || fromAccountNo != null;
+        boolean to = toId != AccountId.NONE || toAccountNo != null;
+        if (from && !store.exists(fromId, fromAccountNo)) {
+            throw cantApply(journal, at, "no account " + (fromAccountNo != null ? fromAccountNo : AccountId.toString(fromId)));
+        }
+        if (to && !store.exists(toId, toAccountNo)) {
+            throw cantApply(journal, at, "no account " + (toAccountNo != null ? toAccountNo : AccountId.toString(toId)));
+        }
+        if (from && store.adjust(fromId, fromAccountNo, -amount) == AccountStore.INVALID_AMOUNT) {
+            throw cantApply(journal, at, "a balance would overflow");
+        }
+        if (to && store.adjust(toId, toAccountNo, amount) == AccountStore.INVALID_AMOUNT) {
+            if (from) {
+                store.adjust(fromId, fromAccountNo, amount); // it just came out, so it goes back in
+            }
+            throw cantApply(journal, at, "a balance would overflow");
+        }
+    }
+
+    private static IOException cantApply(Path journal, long at, String why) {
+        return new IOException("Journal " + journal + " has a record at offset " + at + " that doesn't fit the accounts ("
+                + why + "); it has been left as it is");
+    }
+}
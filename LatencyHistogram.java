@@ -0,0 +1,107 @@
+package BANKING;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how long something took, in nanoseconds, in log-linear buckets the way HdrHistogram
+ * does: every power of two is split into 32 equal buckets, so any value is reported within
+ * about 3% of what was recorded, from 1 ns up to hundreds of years, in a fixed 15 KB.
+ *
+ * Recording is one array increment plus two adds, with no allocation and no lock, so it can
+ * be left on. Snapshots are taken while recording continues and may be a few values apart.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_COUNT; // values below this get a bucket each
+    static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BITS - 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.getAndIncrement(bucketOf(nanos));
+        total.add(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    // Convenience for the usual pattern: long start = System.nanoTime(); ...; recordSince(start).
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int top = (int) (value >>> shift); // in [SUB_COUNT, 2 * SUB_COUNT)
+        return LINEAR_LIMIT + (shift - 1) * SUB_COUNT + (top - SUB_COUNT);
+    }
+
+    // The largest value that lands in the bucket.
+    static long highestValueIn(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int k = bucket - LINEAR_LIMIT;
+        int shift = k / SUB_COUNT + 1;
+        long top = k % SUB_COUNT + SUB_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, total.sum(), max.get());
+    }
+
+    // A copy of the counts at one moment, for reporting.
+    static final class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long totalNanos;
+        final long maxNanos;
+
+        private Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        long meanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        // The value at or below which the given percentage of recordings fall, e.g. percentile(99.9).
+        long percentile(double percent) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percent / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueIn(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+    }
+}
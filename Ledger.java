@@ -0,0 +1,704 @@
+package BANKING;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A bank's accounts together with its transaction journal.
+ *
+ * Every change that goes through the ledger is applied to the account store and then
+ * written to the journal as a JournalRecord, and the call returns once the record is on
+ * disk, or at once if the journal's ack policy is FIRE_AND_FORGET (see TransactionJournal,
+ * which then reports a failed write itself). On startup the ledger rebuilds its accounts
+ * from the last checkpoint plus the journal (see JournalRecovery), and close() writes a
+ * fresh checkpoint.
+ *
+ * Passwords are stored and journaled as salted hashes (see PasswordHasher), and recent
+ * successful logins are remembered for a while so they skip the hashing (see LoginCache).
+ * Each record is also indexed by account, for statements (see StatementIndex).
+ *
+ * Deposits, withdrawals and transfers are first checked against the account's and the bank's
+ * rate limits and the journal's lag (see AdmissionControl), and refused as RATE_LIMITED or BUSY
+ * without changing anything if they don't pass. A transfer is then screened against the
+ * sender's recent transfers (see VelocityScreen) before any money moves, and refused as
+ * SCREENED if it looks out of line; one refused by the store afterwards is taken back out of
+ * the sender's counts. Batches skip all of these checks: they are the bank's own bulk work,
+ * posted from files it has already approved and moving money through clearing accounts no
+ * per-customer limit would fit, and they wait on the journal once per commit anyway. They are
+ * still refused once the journal takes no more records.
+ *
+ * An operation whose record can't be journaled, or isn't written when the ack policy waits for
+ * it, returns Transactions.JOURNAL_FAILED instead of a balance: it changed the store, but not
+ * the journal, so it is gone once the bank is recovered, and the caller mustn't count on it.
+ * After a failed write the journal takes no more records, so from then on every operation is
+ * refused as JOURNAL_FAILED before it changes anything (see AdmissionControl), until the bank
+ * is reopened and recovered.
+ * Every operation's latency and outcome goes into the bank's BankMetrics.
+ */
+class Ledger implements AccountStore, AutoCloseable {
+
+    // The accounts a new account file is sized for. A file that is more than half full is grown when it's opened.
+    static final long DEFAULT_CAPACITY = Long.getLong("banking.accounts.capacity", 1 << 16);
+
+    private final String name;
+    private final BankMetrics metrics;
+    private final AccountStore accounts;
+    private final TransactionJournal journal;
+    private final Path journalFile;
+    private final StatementIndex statements;  // null if the index couldn't be opened
+    private final LoginCache logins = new LoginCache();
+    private final AdmissionControl admission;
+    private final VelocityScreen screen = new VelocityScreen();
+    private final Path checkpointFile;
+    private final Path workingFile;
+
+    // Operations hold the read side while they update the store and append their record;
+    // a checkpoint takes the write side so it never sees one without the other.
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private boolean closed;     // guarded by checkpointLock; once set, nothing changes the store
+
+    private Ledger(String name, AccountStore accounts, TransactionJournal journal, Path journalFile,
+                   StatementIndex statements, Path checkpointFile, Path workingFile) {
+        this.name = name;
+        this.metrics = BankMetrics.forBank(name);
+        this.accounts = accounts;
+        this.journal = journal;
+        this.journalFile = journalFile;
+        this.admission = new AdmissionControl(journal);
+        this.metrics.watch(admission);
+        this.metrics.watch(journal);
+        this.statements = statements;
+        this.checkpointFile = checkpointFile;
+        this.workingFile = workingFile;
+    }
+
+    /**
+     * Opens a ledger, recovering its accounts from the checkpoint file and journal. If they can't
+     * be recovered it throws and leaves the files as they are: a bank whose journal didn't replay
+     * mustn't take on customers, or add records after one that replay will never get past.
+     */
+    static Ledger open(String name, String accountFileName, String journalFileName) throws IOException {
+        Path checkpoint = Paths.get(accountFileName);
+        Path working = Paths.get(accountFileName + ".work");
+        Path journalPath = Paths.get(journalFileName);
+        try {
+            JournalRecovery.Result result = new JournalRecovery.Result();
+            MappedAccountStore store = JournalRecovery.recover(checkpoint, working, journalPath, DEFAULT_CAPACITY, result);
+            if (result.records > 0 || result.truncatedBytes > 0) {
+                System.out.println("Recovered " + name + ": " + result);
+            }
+            return new Ledger(name, store, new TransactionJournal(journalFileName), journalPath,
+                    openStatements(name, journalPath), checkpoint, working);
+        } catch (IOException e) {
+            BankMetrics.forBank(name).ioError();
+            throw new IOException("Error recovering accounts for " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    // The journal's statement index, next to it as <journal>.idx; without one, statements are just empty.
+    private static StatementIndex openStatements(String name, Path journalPath) {
+        try {
+            return StatementIndex.open(journalPath.resolveSibling(journalPath.getFileName() + ".idx"), journalPath);
+        } catch (IOException | IllegalStateException e) {
+            BankMetrics.forBank(name).ioError();
+            System.out.println("Error opening statement index for " + name + ", statements will be empty: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The CREATE record is journaled once the store has accepted the account and found it a place,
+     * but before anyone can see it, so nothing done to the account can reach the journal first.
+     * An account the store refuses leaves no record behind. The clearing account's name is
+     * refused too: only the bank makes that one, see createClearingAccount().
+     */
+    @Override
+    public long create(String accountNo, String password, long balance, Runnable beforeVisible) {
+        if (InterBankTransfers.CLEARING_ACCOUNT.equals(accountNo)) {
+            return INVALID_ACCOUNT;
+        }
+        return createAny(accountNo, password, balance, beforeVisible);
+    }
+
+    // Gives the bank its clearing account (see InterBankTransfers), with a password no one is told. False if it has one.
+    boolean createClearingAccount() {
+        byte[] secret = new byte[24];
+        new SecureRandom().nextBytes(secret);
+        return createAny(InterBankTransfers.CLEARING_ACCOUNT, Base64.getEncoder().encodeToString(secret), 0, null) == 0;
+    }
+
+    private long createAny(String accountNo, String password, long balance, Runnable beforeVisible) {
+        if (!JournalRecord.canHold(accountNo)) {
+            return INVALID_ACCOUNT;
+        }
+        if (accounts.exists(accountNo)) {
+            return ACCOUNT_EXISTS; // saves hashing a password for nothing
+        }
+        if (journal.sealed()) {
+            return Transactions.JOURNAL_FAILED;
+        }
+        JournalRecord record = new JournalRecord().set(JournalRecord.CREATE, accountNo, null, balance, balance);
+        record.credential = PasswordHasher.hash(password);
+        long[] end = {-1};
+        long created;
+        checkpointLock.readLock().lock();
+        try {
+            created = closed ? Transactions.JOURNAL_FAILED : accounts.create(accountNo, record.credential, balance, () -> {
+                end[0] = append(record);
+                if (beforeVisible != null) {
+                    beforeVisible.run();
+                }
+            });
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (created == 0 && !awaitDurable(end[0], null)) {
+            return Transactions.JOURNAL_FAILED;
+        }
+        return created;
+    }
+
+    @Override
+    public boolean exists(String accountNo) {
+        return accounts.exists(accountNo);
+    }
+
+    @Override
+    public boolean exists(long id) {
+        return accounts.exists(id);
+    }
+
+    // No one logs in to the clearing account, whatever its password.
+    @Override
+    public boolean checkPassword(String accountNo, String password) {
+        if (InterBankTransfers.CLEARING_ACCOUNT.equals(accountNo)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean matches = logins.checkPassword(accounts, accountNo, password);
+        metrics.record(BankMetrics.Operation.LOGIN, start, matches);
+        return matches;
+    }
+
+    // Logins are keyed by number; making it costs nothing next to checking a password hash.
+    @Override
+    public boolean checkPassword(long id, String password) {
+        return AccountId.isValid(id) && checkPassword(AccountId.toString(id), password);
+    }
+
+    @Override
+    public long getBalance(String accountNo) {
+        return accounts.getBalance(accountNo);
+    }
+
+    @Override
+    public long getBalance(long id) {
+        return accounts.getBalance(id);
+    }
+
+    BankMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * One page of the account's statement from fromMillis to toMillis (inclusive), oldest first.
+     * Waits for records still on their way to the journal, so everything done before the call is in it.
+     */
+    StatementIndex.Page statement(String accountNo, long fromMillis, long toMillis, int pageNumber, int pageSize) {
+        if (statements == null) {
+            return new StatementIndex.Page(pageNumber, pageSize);
+        }
+        try {
+            journal.awaitDurable(journal.position());
+            return statements.statement(accountNo, fromMillis, toMillis, pageNumber, pageSize);
+        } catch (IOException e) {
+            metrics.ioError();
+            System.out.println("Error reading statement for " + name + ": " + e.getMessage());
+            return new StatementIndex.Page(pageNumber, pageSize);
+        }
+    }
+
+    @Override
+    public long deposit(String accountNo, long amount) {
+        return deposit(AccountId.parse(accountNo), accountNo, amount, null);
+    }
+
+    @Override
+    public long withdraw(String accountNo, long amount) {
+        return withdraw(AccountId.parse(accountNo), accountNo, amount, null);
+    }
+
+    @Override
+    public long transfer(String fromAccountNo, String toAccountNo, long amount) {
+        return transfer(AccountId.parse(fromAccountNo), fromAccountNo, AccountId.parse(toAccountNo), toAccountNo, amount, null);
+    }
+
+    @Override
+    public long deposit(long id, long amount) {
+        return deposit(id, null, amount, null);
+    }
+
+    @Override
+    public long withdraw(long id, long amount) {
+        return withdraw(id, null, amount, null);
+    }
+
+    @Override
+    public long transfer(long fromId, long toId, long amount) {
+        return transfer(fromId, null, toId, null, amount, null);
+    }
+
+    // Each account is named by its id, or by its number when the id is NONE; the number is parsed
+    // once, on the way in, and the id is all the store, the journal and the index see of it.
+    // With a batch, the record's journal position is handed to the batch instead of waited on here.
+    private long deposit(long id, String accountNo, long amount, Batch batch) {
+        long start = System.nanoTime();
+        long refusal = batch == null ? admission.admit(id, accountNo, start) : refusal();
+        if (refusal < 0) {
+            metrics.record(BankMetrics.Operation.DEPOSIT, start, refusal);
+            return refusal;
+        }
+        long balance;
+        long end;
+        checkpointLock.readLock().lock();
+        try {
+            balance = closed ? Transactions.JOURNAL_FAILED : accounts.deposit(id, accountNo, amount);
+            if (balance < 0) {
+                metrics.record(BankMetrics.Operation.DEPOSIT, start, balance);
+                return balance;
+            }
+            end = append(JournalRecord.DEPOSIT, id, accountNo, AccountId.NONE, null, amount, balance, batch);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (!awaitDurable(end, batch)) {
+            balance = Transactions.JOURNAL_FAILED;
+        }
+        metrics.record(BankMetrics.Operation.DEPOSIT, start, balance);
+        return balance;
+    }
+
+    private long withdraw(long id, String accountNo, long amount, Batch batch) {
+        long start = System.nanoTime();
+        long refusal = batch == null ? admission.admit(id, accountNo, start) : refusal();
+        if (refusal < 0) {
+            metrics.record(BankMetrics.Operation.WITHDRAW, start, refusal);
+            return refusal;
+        }
+        long balance;
+        long end;
+        checkpointLock.readLock().lock();
+        try {
+            balance = closed ? Transactions.JOURNAL_FAILED : accounts.withdraw(id, accountNo, amount);
+            if (balance < 0) {
+                metrics.record(BankMetrics.Operation.WITHDRAW, start, balance);
+                return balance;
+            }
+            end = append(JournalRecord.WITHDRAW, id, accountNo, AccountId.NONE, null, amount, balance, batch);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (!awaitDurable(end, batch)) {
+            balance = Transactions.JOURNAL_FAILED;
+        }
+        metrics.record(BankMetrics.Operation.WITHDRAW, start, balance);
+        return balance;
+    }
+
+    private long transfer(long fromId, String fromAccountNo, long toId, String toAccountNo, long amount, Batch batch) {
+        long start = System.nanoTime();
+        long refusal = batch == null ? admission.admit(fromId, fromAccountNo, start) : refusal();
+        long screened = refusal == 0 && batch == null
+                ? screen.screen(fromId, fromAccountNo, toId, toAccountNo, amount, start) : 0;
+        if (refusal < 0 || screened < 0) {
+            refusal = Math.min(refusal, screened);
+            metrics.record(BankMetrics.Operation.TRANSFER, start, refusal);
+            return refusal;
+        }
+        long balance;
+        long end;
+        checkpointLock.readLock().lock();
+        try {
+            balance = closed ? Transactions.JOURNAL_FAILED : accounts.transfer(fromId, fromAccountNo, toId, toAccountNo, amount);
+            if (balance < 0) {
+                if (batch == null) {
+                    screen.release(fromId, fromAccountNo, toId, toAccountNo, amount, start, screened);
+                }
+                metrics.record(BankMetrics.Operation.TRANSFER, start, balance);
+                return balance;
+            }
+            end = append(JournalRecord.TRANSFER, fromId, fromAccountNo, toId, toAccountNo, amount, balance, batch);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (!awaitDurable(end, batch)) {
+            balance = Transactions.JOURNAL_FAILED;
+        }
+        metrics.record(BankMetrics.Operation.TRANSFER, start, balance);
+        return balance;
+    }
+
+    /**
+     * Moves the amount from the account into the bank's clearing account, for a transfer to
+     * targetAccountNo at toBank (see InterBankTransfers). Checked and screened like a transfer
+     * to that account, and journaled as a single HOLD record naming it, so a crash can't keep
+     * the hold and lose what it was for. Returns the new balance or a refusal; on success at[0]
+     * is where the record ends in the journal.
+     */
+    long hold(String accountNo, String toBank, String targetAccountNo, long amount, long[] at) {
+        long start = System.nanoTime();
+        long id = AccountId.parse(accountNo);
+        long targetId = AccountId.parse(targetAccountNo);
+        long refusal = admission.admit(id, accountNo, start);
+        long screened = refusal == 0 ? screen.screen(id, accountNo, targetId, targetAccountNo, amount, start) : 0;
+        if (refusal < 0 || screened < 0) {
+            refusal = Math.min(refusal, screened);
+            metrics.record(BankMetrics.Operation.TRANSFER, start, refusal);
+            return refusal;
+        }
+        long balance;
+        long end;
+        checkpointLock.readLock().lock();
+        try {
+            balance = closed ? Transactions.JOURNAL_FAILED
+                    : accounts.transfer(id, accountNo, AccountId.NONE, InterBankTransfers.CLEARING_ACCOUNT, amount);
+            if (balance < 0) {
+                screen.release(id, accountNo, targetId, targetAccountNo, amount, start, screened);
+                metrics.record(BankMetrics.Operation.TRANSFER, start, balance);
+                return balance;
+            }
+            JournalRecord record = new JournalRecord().set(JournalRecord.HOLD, id, accountNo, targetId, targetAccountNo,
+                    amount, balance);
+            record.credential = toBank;
+            end = append(record);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (!awaitDurable(end, null)) {
+            balance = Transactions.JOURNAL_FAILED;
+            end = -1;
+        }
+        metrics.record(BankMetrics.Operation.TRANSFER, start, balance);
+        at[0] = end;
+        return balance;
+    }
+
+    /**
+     * Pays interest and charges fees on every account (see EndOfDay), journaled as one record.
+     * Nothing else changes the accounts meanwhile, so replaying the journal gives the same balances.
+     * With a journal that takes no more records, nothing is paid or charged.
+     */
+    @Override
+    public EndOfDay.Totals endOfDay(EndOfDay run) {
+        JournalRecord record = new JournalRecord().set(JournalRecord.END_OF_DAY, run.exempt, null, run.rate, run.fee);
+        EndOfDay.Totals totals;
+        long end;
+        checkpointLock.writeLock().lock();
+        try {
+            if (closed || journal.sealed()) {
+                System.out.println("End of day not run for " + name + ": its transaction file takes no more records");
+                return new EndOfDay.Totals();
+            }
+            totals = accounts.endOfDay(run);
+            end = append(record);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        awaitDurable(end, null);
+        return totals;
+    }
+
+    /**
+     * A view of this ledger for posting many operations from one thread. Its changes are
+     * journaled like any other, but instead of waiting for each record to reach the disk,
+     * commit() waits once for all of them. Not safe to share between threads.
+     */
+    final class Batch implements AccountStore {
+        private final JournalRecord record = new JournalRecord();
+        private long end = -1;
+        private String reference = "";
+
+        // Marks the records posted from now on as this batch's, in their credential field (see InterBankTransfers).
+        void reference(String reference) {
+            this.reference = reference;
+        }
+
+        @Override
+        public long create(String accountNo, String password, long balance, Runnable beforeVisible) {
+            return Ledger.this.create(accountNo, password, balance, beforeVisible);
+        }
+
+        @Override
+        public boolean exists(String accountNo) {
+            return accounts.exists(accountNo);
+        }
+
+        @Override
+        public boolean checkPassword(String accountNo, String password) {
+            return !InterBankTransfers.CLEARING_ACCOUNT.equals(accountNo) && logins.checkPassword(accounts, accountNo, password);
+        }
+
+        @Override
+        public long getBalance(String accountNo) {
+            return accounts.getBalance(accountNo);
+        }
+
+        @Override
+        public long deposit(String accountNo, long amount) {
+            return Ledger.this.deposit(AccountId.parse(accountNo), accountNo, amount, this);
+        }
+
+        @Override
+        public long withdraw(String accountNo, long amount) {
+            return Ledger.this.withdraw(AccountId.parse(accountNo), accountNo, amount, this);
+        }
+
+        @Override
+        public long transfer(String fromAccountNo, String toAccountNo, long amount) {
+            return Ledger.this.transfer(AccountId.parse(fromAccountNo), fromAccountNo, AccountId.parse(toAccountNo),
+                    toAccountNo, amount, this);
+        }
+
+        @Override
+        public boolean exists(long id) {
+            return accounts.exists(id);
+        }
+
+        @Override
+        public boolean checkPassword(long id, String password) {
+            return AccountId.isValid(id) && checkPassword(AccountId.toString(id), password);
+        }
+
+        @Override
+        public long getBalance(long id) {
+            return accounts.getBalance(id);
+        }
+
+        @Override
+        public long deposit(long id, long amount) {
+            return Ledger.this.deposit(id, null, amount, this);
+        }
+
+        @Override
+        public long withdraw(long id, long amount) {
+            return Ledger.this.withdraw(id, null, amount, this);
+        }
+
+        @Override
+        public long transfer(long fromId, long toId, long amount) {
+            return Ledger.this.transfer(fromId, null, toId, null, amount, this);
+        }
+
+        @Override
+        public long totalBalance() {
+            return accounts.totalBalance();
+        }
+
+        @Override
+        public int size() {
+            return accounts.size();
+        }
+
+        @Override
+        public void forEach(Visitor visitor) {
+            accounts.forEach(visitor);
+        }
+
+        @Override
+        public BalanceSnapshot snapshot() {
+            return accounts.snapshot();
+        }
+
+        @Override
+        public EndOfDay.Totals endOfDay(EndOfDay run) {
+            return Ledger.this.endOfDay(run);
+        }
+
+        /**
+         * Waits until everything posted through this batch so far is on disk, whatever the
+         * journal's ack policy, since a batch is waited on only once. False, after reporting it,
+         * if it never will be: then none of it can be counted on to survive a restart.
+         */
+        boolean commit() {
+            long upTo = end;
+            end = -1;
+            return upTo < 0 || awaitJournal(upTo);
+        }
+    }
+
+    Batch openBatch() {
+        return new Batch();
+    }
+
+    @Override
+    public long totalBalance() {
+        return accounts.totalBalance();
+    }
+
+    @Override
+    public int size() {
+        return accounts.size();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        accounts.forEach(visitor);
+    }
+
+    // Reads nothing from the journal: the accounts already hold every applied operation.
+    @Override
+    public BalanceSnapshot snapshot() {
+        return accounts.snapshot();
+    }
+
+    Path journalFile() {
+        return journalFile;
+    }
+
+    // Where the next record will start in the journal.
+    long journalPosition() {
+        return journal.position();
+    }
+
+    // Waits until the journal is written up to the position. False, after reporting it, if it never will be.
+    boolean awaitJournal(long position) {
+        try {
+            journal.awaitDurable(position);
+            return true;
+        } catch (IOException e) {
+            metrics.ioError();
+            System.out.println("Error writing to transaction file for " + name + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes the current accounts out as the new checkpoint, so the next startup only
+     * replays the journal from here. The new file replaces the old one in a single rename.
+     */
+    void checkpoint() throws IOException {
+        MappedAccountStore store = (MappedAccountStore) accounts;
+        checkpointLock.writeLock().lock();
+        try {
+            long position = journal.position();
+            journal.awaitDurable(position);
+            if (statements != null) {
+                statements.force(position);
+            }
+            store.setCheckpointPosition(position);
+            store.force();
+            Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            Files.copy(workingFile, temp, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checkpoints, then closes the journal and the account file, marking it clean if the
+     * checkpoint worked. All of it is done holding the write side, and operations still
+     * running afterwards (sessions not stopped yet, say) are refused as JOURNAL_FAILED without
+     * changing anything, so a file marked clean never holds a change the journal doesn't.
+     */
+    @Override
+    public void close() {
+        checkpointLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean saved = false;
+            try {
+                checkpoint();
+                saved = true;
+            } catch (IOException e) {
+                metrics.ioError();
+                System.out.println("Error saving accounts for " + name + ": " + e.getMessage());
+            }
+            try {
+                journal.close();
+            } catch (IOException e) {
+                metrics.ioError();
+                System.out.println("Error closing transaction file for " + name + ": " + e.getMessage());
+            }
+            if (accounts instanceof MappedAccountStore) {
+                if (saved) {
+                    ((MappedAccountStore) accounts).setClean(true);
+                }
+                ((MappedAccountStore) accounts).close();
+            }
+            if (statements != null) {
+                statements.close();
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    // Queues the record; returns where it ends in the journal, or -1 if it couldn't be queued.
+    private long append(JournalRecord record) {
+        long start = System.nanoTime();
+        try {
+            byte[] bytes = record.encode();
+            long end = journal.append(bytes);
+            if (statements != null) {
+                statements.add(record, end - bytes.length);
+            }
+            metrics.record(BankMetrics.Operation.JOURNAL, start, true);
+            return end;
+        } catch (IOException e) {
+            metrics.record(BankMetrics.Operation.JOURNAL, start, false);
+            metrics.ioError();
+            System.out.println("Error writing to transaction file for " + name + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // Batches reuse one record object; everyone else gets their own.
+    private long append(byte type, long id, String accountNo, long counterpartyId, String counterparty, long amount,
+                        long balance, Batch batch) {
+        JournalRecord record = batch != null ? batch.record : new JournalRecord();
+        record.set(type, id, accountNo, counterpartyId, counterparty, amount, balance);
+        if (batch != null) {
+            record.credential = batch.reference;
+        }
+        return append(record);
+    }
+
+    // For a batch, which skips admission: JOURNAL_FAILED once the journal takes no more records, otherwise 0.
+    private long refusal() {
+        return journal.sealed() ? Transactions.JOURNAL_FAILED : 0;
+    }
+
+    // Waits for the record as the ack policy says, or hands it to the batch. False, after reporting it, if it won't be written.
+    private boolean awaitDurable(long end, Batch batch) {
+        if (end < 0) {
+            return false; // append() has reported it
+        }
+        if (batch != null) {
+            batch.end = Math.max(batch.end, end);
+            return true;
+        }
+        try {
+            journal.awaitAck(end);
+            return true;
+        } catch (IOException e) {
+            metrics.ioError();
+            System.out.println("Error writing to transaction file for " + name + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
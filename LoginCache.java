@@ -0,0 +1,104 @@
+package BANKING;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Remembers recent successful logins, so a customer logging in again doesn't pay for the KDF
+ * (see PasswordHasher) every time, which matters when many log in at once.
+ *
+ * Only successful logins are remembered, as an HMAC of the password under a key that exists
+ * only in this process, never the password itself. A remembered login is good for a limited
+ * time; after that, or for any other password, the full check runs again. The cache is a
+ * fixed number of slots picked by account number, so it never grows: a new login simply
+ * takes over its slot. Lookups take no locks.
+ */
+final class LoginCache {
+
+    static final int DEFAULT_CAPACITY = 4096;
+    static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    // One remembered login; replaced, never changed.
+    private static final class Entry {
+        final String accountNo;
+        final byte[] passwordMac;
+        final long expiresNanos;
+
+        Entry(String accountNo, byte[] passwordMac, long expiresNanos) {
+            this.accountNo = accountNo;
+            this.passwordMac = passwordMac;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final long ttlNanos;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    LoginCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS);
+    }
+
+    LoginCache(int capacity, long ttlMillis) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1) << 1);
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Error setting up the login cache: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Checks the password against the store, or against a remembered login for the account if
+     * there is one that hasn't run out. A login the store accepts is remembered.
+     */
+    boolean checkPassword(AccountStore store, String accountNo, String password) {
+        byte[] mac = macs.get().doFinal(password.getBytes(StandardCharsets.UTF_8));
+        int slot = slotOf(accountNo);
+        Entry entry = slots.get(slot);
+        if (entry != null && entry.accountNo.equals(accountNo) && System.nanoTime() - entry.expiresNanos < 0
+                && MessageDigest.isEqual(mac, entry.passwordMac)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        if (!store.checkPassword(accountNo, password)) {
+            return false;
+        }
+        slots.set(slot, new Entry(accountNo, mac, System.nanoTime() + ttlNanos));
+        return true;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private int slotOf(String accountNo) {
+        int h = accountNo.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,645 @@
+package BANKING;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An AccountStore that lives in a memory-mapped file of fixed-width account records.
+ *
+ * The file is laid out as an open-addressing hash table: a record's position is picked
+ * from the hash of its account number, so opening the file only maps it and reads the
+ * header. Records are paged in by the OS the first time they are touched, which means
+ * even a 10M-account book opens in milliseconds. Balance updates are written in place.
+ * An account named by AccountId is hashed and compared straight from the id's digits, so
+ * it's found without making the account number's String.
+ *
+ * File layout (all numbers little-endian):
+ *   header, 64 bytes: magic, version, record size, capacity (a power of two), account count,
+ *                     the journal position this file is a checkpoint of, and whether it was
+ *                     closed cleanly (see JournalRecovery)
+ *   records, 128 bytes each:
+ *     0   int    state (0 = empty, 1 = in use)
+ *     4   byte   account number length, then up to 23 ASCII bytes
+ *     28  byte   credential length, then up to 91 UTF-8 bytes
+ *     120 long   balance in minor units
+ *
+ * While a snapshot is open, each balance change and each new account first notes the record's
+ * old balance (see SnapshotLog).
+ */
+class MappedAccountStore implements AccountStore, AutoCloseable {
+
+    static final int MAGIC = 0x4E534B42; // "BKSN"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 128;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_CAPACITY = 16;
+    private static final int HEADER_COUNT = 24;
+    private static final int HEADER_CHECKPOINT = 32;
+    private static final int HEADER_CLEAN = 40;
+
+    private static final int STATE = 0;
+    private static final int ACCOUNT_LENGTH = 4;
+    private static final int ACCOUNT_BYTES = 5;
+    static final int MAX_ACCOUNT_LENGTH = 23;
+    private static final int CREDENTIAL_LENGTH = 28;
+    private static final int CREDENTIAL_BYTES = 29;
+    static final int MAX_CREDENTIAL_LENGTH = 91;
+    private static final int BALANCE = 120;
+
+    private static final int STATE_IN_USE = 1;
+
+    // A single mapping can't exceed 2GB, so the records are split across chunks of 2^23 records (1GB).
+    private static final int CHUNK_SHIFT = 23;
+    private static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+
+    private static final VarHandle INTS =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] chunks;
+    private final long capacity;
+    private final long mask;
+    private volatile long count;
+
+    private final Object createLock = new Object();
+    private final Object[] stripes;
+    private final int stripeMask;
+    private final SnapshotLog snapshots;
+
+    private MappedAccountStore(Path path, FileChannel channel, long capacity) throws IOException {
+        this.path = path;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        int chunkCount = (int) ((capacity + CHUNK_RECORDS - 1) >>> CHUNK_SHIFT);
+        this.chunks = new MappedByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long records = Math.min(CHUNK_RECORDS, capacity - ((long) i << CHUNK_SHIFT));
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + ((long) i << CHUNK_SHIFT) * RECORD_SIZE, records * RECORD_SIZE);
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 16 - 1)) << 1;
+        this.stripes = new Object[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Object();
+        }
+        this.stripeMask = stripeCount - 1;
+        this.snapshots = new SnapshotLog(stripeCount);
+    }
+
+    /**
+     * Creates a new, empty account file able to hold up to three quarters of the given capacity.
+     * The file is sized up front but left sparse, so unused records take no disk space.
+     */
+    static MappedAccountStore create(Path path, long minCapacity) throws IOException {
+        long capacity = Long.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(0);
+            file.setLength(HEADER_SIZE + capacity * RECORD_SIZE);
+            MappedAccountStore store = new MappedAccountStore(path, file.getChannel(), capacity);
+            store.header.putInt(HEADER_MAGIC, MAGIC);
+            store.header.putInt(HEADER_VERSION, VERSION);
+            store.header.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+            store.header.putLong(HEADER_CAPACITY, capacity);
+            store.header.putLong(HEADER_COUNT, 0);
+            return store;
+        }
+    }
+
+    // Maps an existing account file. Only the header is read; records are paged in on demand.
+    static MappedAccountStore open(Path path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            MappedByteBuffer head = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            head.order(ByteOrder.LITTLE_ENDIAN);
+            if (head.getInt(HEADER_MAGIC) != MAGIC || head.getInt(HEADER_VERSION) != VERSION
+                    || head.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+                throw new IOException(path + " is not an account snapshot file");
+            }
+            long capacity = head.getLong(HEADER_CAPACITY);
+            if (Long.bitCount(capacity) != 1 || file.length() < HEADER_SIZE + capacity * RECORD_SIZE) {
+                throw new IOException(path + " is truncated or corrupt");
+            }
+            MappedAccountStore store = new MappedAccountStore(path, file.getChannel(), capacity);
+            store.count = head.getLong(HEADER_COUNT);
+            return store;
+        }
+    }
+
+    // Opens the file if it is there, otherwise creates it.
+    static MappedAccountStore openOrCreate(Path path, long minCapacity) throws IOException {
+        return Files.exists(path) ? open(path) : create(path, minCapacity);
+    }
+
+    // Writes a copy of every account in the source store to a new snapshot file.
+    static MappedAccountStore writeSnapshot(AccountStore source, Path path) throws IOException {
+        MappedAccountStore snapshot = create(path, Math.max(16, (long) source.size() * 2));
+        source.forEach(snapshot::createAccount);
+        snapshot.force();
+        return snapshot;
+    }
+
+    /**
+     * Copies every account in the source, and the journal position it is a checkpoint of, to a new
+     * file with room for at least minCapacity. This is how a file that is filling up is grown.
+     */
+    static MappedAccountStore copyOf(MappedAccountStore source, Path path, long minCapacity) throws IOException {
+        MappedAccountStore copy = create(path, minCapacity);
+        source.forEach(copy::createAccount);
+        copy.setCheckpointPosition(source.checkpointPosition());
+        copy.force();
+        return copy;
+    }
+
+    @Override
+    public long create(String accountNo, String password, long balance, Runnable beforeVisible) {
+        byte[] credential = password.getBytes(StandardCharsets.UTF_8);
+        if (!fits(accountNo, credential)) {
+            return INVALID_ACCOUNT;
+        }
+        synchronized (createLock) {
+            long record = hash(accountNo.hashCode()) & mask;
+            for (; ; record = (record + 1) & mask) {
+                MappedByteBuffer chunk = chunkOf(record);
+                int offset = offsetOf(record);
+                if ((int) INTS.getAcquire(chunk, offset + STATE) != STATE_IN_USE) {
+                    if (isFull()) {
+                        return STORE_FULL;
+                    }
+                    if (beforeVisible != null) {
+                        beforeVisible.run();
+                    }
+                    chunk.put(offset + ACCOUNT_LENGTH, (byte) accountNo.length());
+                    for (int i = 0; i < accountNo.length(); i++) {
+                        chunk.put(offset + ACCOUNT_BYTES + i, (byte) accountNo.charAt(i));
+                    }
+                    chunk.put(offset + CREDENTIAL_LENGTH, (byte) credential.length);
+                    for (int i = 0; i < credential.length; i++) {
+                        chunk.put(offset + CREDENTIAL_BYTES + i, credential[i]);
+                    }
+                    chunk.putLong(offset + BALANCE, balance);
+                    // Publishing the state last means readers never see a half-written record.
+                    synchronized (stripes[(int) record & stripeMask]) {
+                        snapshots.beforeChange((int) record & stripeMask, record, SnapshotLog.ABSENT);
+                        INTS.setRelease(chunk, offset + STATE, STATE_IN_USE);
+                    }
+                    count++;
+                    header.putLong(HEADER_COUNT, count);
+                    return 0;
+                }
+                if (matches(chunk, offset, accountNo)) {
+                    return ACCOUNT_EXISTS;
+                }
+            }
+        }
+    }
+
+    // True if a record has room for the account number (ASCII, up to 23 characters) and the credential.
+    static boolean fits(String accountNo, byte[] credential) {
+        if (accountNo.isEmpty() || accountNo.length() > MAX_ACCOUNT_LENGTH || credential.length > MAX_CREDENTIAL_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < accountNo.length(); i++) {
+            if (accountNo.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The table is kept at most three quarters full, so probes stay short.
+    boolean isFull() {
+        return count * 4 >= capacity * 3;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean exists(String accountNo) {
+        return recordOf(accountNo) >= 0;
+    }
+
+    @Override
+    public boolean exists(long id) {
+        return recordOf(id) >= 0;
+    }
+
+    @Override
+    public boolean checkPassword(String accountNo, String password) {
+        return checkPasswordAt(recordOf(accountNo), password);
+    }
+
+    @Override
+    public boolean checkPassword(long id, String password) {
+        return checkPasswordAt(recordOf(id), password);
+    }
+
+    @Override
+    public long getBalance(String accountNo) {
+        return balanceAt(find(accountNo));
+    }
+
+    @Override
+    public long getBalance(long id) {
+        return balanceAt(find(id));
+    }
+
+    @Override
+    public long deposit(String accountNo, long amount) {
+        return depositAt(find(accountNo), amount);
+    }
+
+    @Override
+    public long deposit(long id, long amount) {
+        return depositAt(find(id), amount);
+    }
+
+    @Override
+    public long withdraw(String accountNo, long amount) {
+        return withdrawAt(find(accountNo), amount);
+    }
+
+    @Override
+    public long withdraw(long id, long amount) {
+        return withdrawAt(find(id), amount);
+    }
+
+    @Override
+    public long transfer(String fromAccountNo, String toAccountNo, long amount) {
+        return transferAt(find(fromAccountNo), find(toAccountNo), amount);
+    }
+
+    @Override
+    public long transfer(long fromId, long toId, long amount) {
+        return transferAt(find(fromId), find(toId), amount);
+    }
+
+    private boolean checkPasswordAt(long record, String password) {
+        return record >= 0 && PasswordHasher.verify(credentialOf(chunkOf(record), offsetOf(record)), password);
+    }
+
+    private long balanceAt(long record) {
+        synchronized (stripes[(int) record & stripeMask]) {
+            return chunkOf(record).getLong(offsetOf(record) + BALANCE);
+        }
+    }
+
+    /**
+     * For journal replay: adds a signed amount to an account that exists, checking only for
+     * overflow. Records may replay in another order than they were applied in, so a balance
+     * can be below zero in between. Returns the new balance, or INVALID_AMOUNT.
+     */
+    long adjust(long id, String accountNo, long delta) {
+        long record = id != AccountId.NONE || accountNo == null ? find(id) : find(accountNo);
+        MappedByteBuffer chunk = chunkOf(record);
+        int at = offsetOf(record) + BALANCE;
+        synchronized (stripes[(int) record & stripeMask]) {
+            long balance = chunk.getLong(at);
+            long adjusted = balance + delta;
+            if (((balance ^ adjusted) & (delta ^ adjusted)) < 0) {
+                return INVALID_AMOUNT;
+            }
+            snapshots.beforeChange((int) record & stripeMask, record, balance);
+            chunk.putLong(at, adjusted);
+            return adjusted;
+        }
+    }
+
+    private long depositAt(long record, long amount) {
+        MappedByteBuffer chunk = chunkOf(record);
+        int at = offsetOf(record) + BALANCE;
+        synchronized (stripes[(int) record & stripeMask]) {
+            long balance = chunk.getLong(at);
+            if (amount > Long.MAX_VALUE - balance) {
+                return INVALID_AMOUNT;
+            }
+            snapshots.beforeChange((int) record & stripeMask, record, balance);
+            balance += amount;
+            chunk.putLong(at, balance);
+            return balance;
+        }
+    }
+
+    private long withdrawAt(long record, long amount) {
+        MappedByteBuffer chunk = chunkOf(record);
+        int at = offsetOf(record) + BALANCE;
+        synchronized (stripes[(int) record & stripeMask]) {
+            long balance = chunk.getLong(at);
+            if (amount > balance) {
+                return INSUFFICIENT_FUNDS;
+            }
+            snapshots.beforeChange((int) record & stripeMask, record, balance);
+            chunk.putLong(at, balance - amount);
+            return balance - amount;
+        }
+    }
+
+    private long transferAt(long from, long to, long amount) {
+        MappedByteBuffer fromChunk = chunkOf(from);
+        MappedByteBuffer toChunk = chunkOf(to);
+        int fromAt = offsetOf(from) + BALANCE;
+        int toAt = offsetOf(to) + BALANCE;
+        int fromStripe = (int) from & stripeMask;
+        int toStripe = (int) to & stripeMask;
+        synchronized (stripes[Math.min(fromStripe, toStripe)]) {
+            synchronized (stripes[Math.max(fromStripe, toStripe)]) {
+                long balance = fromChunk.getLong(fromAt);
+                if (amount > balance) {
+                    return INSUFFICIENT_FUNDS;
+                }
+                long toBalance = toChunk.getLong(toAt);
+                if (amount > Long.MAX_VALUE - toBalance) {
+                    return INVALID_AMOUNT;
+                }
+                snapshots.beforeChange(toStripe, to, toBalance);
+                snapshots.beforeChange(fromStripe, from, balance);
+                toChunk.putLong(toAt, toBalance + amount);
+                fromChunk.putLong(fromAt, balance - amount);
+                return balance - amount;
+            }
+        }
+    }
+
+    @Override
+    public long totalBalance() {
+        long[] total = new long[1];
+        forEach((accountNo, password, balance) -> total[0] += balance);
+        return total[0];
+    }
+
+    @Override
+    public int size() {
+        return (int) count;
+    }
+
+    // Visits every account while holding all stripes, so the view is consistent.
+    @Override
+    public void forEach(Visitor visitor) {
+        whileHoldingStripes(0, () -> {
+            for (long record = 0; record < capacity; record++) {
+                MappedByteBuffer chunk = chunkOf(record);
+                int offset = offsetOf(record);
+                if ((int) INTS.getAcquire(chunk, offset + STATE) == STATE_IN_USE) {
+                    visitor.visit(accountNoOf(chunk, offset), credentialOf(chunk, offset), chunk.getLong(offset + BALANCE));
+                }
+            }
+        });
+    }
+
+    // Records created after this note ABSENT, so only changed records cost anything.
+    @Override
+    public BalanceSnapshot snapshot() {
+        SnapshotLog.Epoch[] epoch = new SnapshotLog.Epoch[1];
+        whileHoldingStripes(0, () -> epoch[0] = snapshots.open());
+        return new BalanceSnapshot() {
+            private boolean closed;
+
+            @Override
+            public void forEach(BalanceSnapshot.Visitor visitor) {
+                for (long record = 0; record < capacity; record++) {
+                    MappedByteBuffer chunk = chunkOf(record);
+                    int offset = offsetOf(record);
+                    int stripe = (int) record & stripeMask;
+                    long balance;
+                    synchronized (stripes[stripe]) {
+                        long live = (int) INTS.getAcquire(chunk, offset + STATE) == STATE_IN_USE
+                                ? chunk.getLong(offset + BALANCE) : SnapshotLog.ABSENT;
+                        balance = SnapshotLog.balanceAt(epoch[0], stripe, record, live);
+                    }
+                    if (balance != SnapshotLog.ABSENT) {
+                        visitor.visit(accountNoOf(chunk, offset), balance);
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    snapshots.close();
+                }
+            }
+        };
+    }
+
+    // Runs over the file in blocks of records, skipping the empty ones.
+    @Override
+    public EndOfDay.Totals endOfDay(EndOfDay run) {
+        EndOfDay.Totals[] totals = new EndOfDay.Totals[1];
+        synchronized (createLock) {
+            whileHoldingStripes(0, () -> {
+                long exempt = recordOf(run.exempt);
+                long before = exempt >= 0 ? chunkOf(exempt).getLong(offsetOf(exempt) + BALANCE) : 0;
+                if (snapshots.active()) {
+                    for (long record = 0; record < capacity; record++) {
+                        MappedByteBuffer chunk = chunkOf(record);
+                        int offset = offsetOf(record);
+                        if (chunk.getInt(offset + STATE) == STATE_IN_USE) {
+                            snapshots.beforeChange((int) record & stripeMask, record, chunk.getLong(offset + BALANCE));
+                        }
+                    }
+                }
+                int blocks = (int) ((capacity + EndOfDay.BLOCK - 1) / EndOfDay.BLOCK);
+                totals[0] = EndOfDay.forkJoin(blocks, (block, into) -> endOfDay(run, (long) block * EndOfDay.BLOCK, into));
+                if (exempt >= 0) {
+                    chunkOf(exempt).putLong(offsetOf(exempt) + BALANCE, before);
+                    run.exclude(before, totals[0]);
+                }
+            });
+        }
+        return totals[0];
+    }
+
+    private void endOfDay(EndOfDay run, long firstRecord, EndOfDay.Totals totals) {
+        long end = Math.min(capacity, firstRecord + EndOfDay.BLOCK);
+        long interest = 0;
+        long fees = 0;
+        long accounts = 0;
+        for (long record = firstRecord; record < end; record++) {
+            MappedByteBuffer chunk = chunkOf(record);
+            int offset = offsetOf(record);
+            if (chunk.getInt(offset + STATE) != STATE_IN_USE) {
+                continue;
+            }
+            long balance = chunk.getLong(offset + BALANCE);
+            long earned = run.interestOn(balance);
+            long charged = Math.min(run.fee, balance + earned);
+            chunk.putLong(offset + BALANCE, balance + earned - charged);
+            interest += earned;
+            fees += charged;
+            accounts++;
+        }
+        totals.accounts += accounts;
+        totals.interest += interest;
+        totals.fees += fees;
+    }
+
+    // The journal position this file reflects: every record before it is already applied.
+    long checkpointPosition() {
+        return header.getLong(HEADER_CHECKPOINT);
+    }
+
+    void setCheckpointPosition(long position) {
+        header.putLong(HEADER_CHECKPOINT, position);
+    }
+
+    // The checkpoint position of an account file, read from its header without mapping it.
+    static long checkpointPositionOf(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (head.hasRemaining()) {
+                if (channel.read(head) < 0) {
+                    break;
+                }
+            }
+            if (head.hasRemaining() || head.getInt(HEADER_MAGIC) != MAGIC) {
+                throw new IOException(path + " is not an account snapshot file");
+            }
+            return head.getLong(HEADER_CHECKPOINT);
+        }
+    }
+
+    // True if the file was last closed with every change in it covered by its checkpoint position.
+    boolean isClean() {
+        return header.getInt(HEADER_CLEAN) == 1;
+    }
+
+    // Sets the clean mark and forces it to disk at once, ahead of any change that follows.
+    void setClean(boolean clean) {
+        header.putInt(HEADER_CLEAN, clean ? 1 : 0);
+        header.force();
+    }
+
+    // Pushes every dirty page of the file to disk.
+    void force() {
+        header.force();
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+    }
+
+    // Takes every stripe in order so no transfer is half-applied while the action runs.
+    private void whileHoldingStripes(int stripe, Runnable action) {
+        if (stripe == stripes.length) {
+            action.run();
+            return;
+        }
+        synchronized (stripes[stripe]) {
+            whileHoldingStripes(stripe + 1, action);
+        }
+    }
+
+    private long find(String accountNo) {
+        long record = recordOf(accountNo);
+        if (record < 0) {
+            throw new IllegalArgumentException("No such account: " + accountNo);
+        }
+        return record;
+    }
+
+    private long find(long id) {
+        long record = recordOf(id);
+        if (record < 0) {
+            throw new IllegalArgumentException("No such account: " + (AccountId.isValid(id) ? AccountId.toString(id) : "id " + id));
+        }
+        return record;
+    }
+
+    // Linear probe from the account's home record until we find it or hit an empty record.
+    private long recordOf(String accountNo) {
+        if (accountNo.length() > MAX_ACCOUNT_LENGTH) {
+            return -1;
+        }
+        long id = AccountId.parse(accountNo);
+        if (id != AccountId.NONE) {
+            return recordOf(id);
+        }
+        for (long record = hash(accountNo.hashCode()) & mask; ; record = (record + 1) & mask) {
+            MappedByteBuffer chunk = chunkOf(record);
+            int offset = offsetOf(record);
+            if ((int) INTS.getAcquire(chunk, offset + STATE) != STATE_IN_USE) {
+                return -1;
+            }
+            if (matches(chunk, offset, accountNo)) {
+                return record;
+            }
+        }
+    }
+
+    // The same probe for an account number with an id, the same home record and all.
+    private long recordOf(long id) {
+        if (!AccountId.isValid(id)) {
+            return -1;
+        }
+        for (long record = hash(AccountId.stringHash(id)) & mask; ; record = (record + 1) & mask) {
+            MappedByteBuffer chunk = chunkOf(record);
+            int offset = offsetOf(record);
+            if ((int) INTS.getAcquire(chunk, offset + STATE) != STATE_IN_USE) {
+                return -1;
+            }
+            if (AccountId.matchesAscii(id, chunk, offset + ACCOUNT_BYTES, chunk.get(offset + ACCOUNT_LENGTH))) {
+                return record;
+            }
+        }
+    }
+
+    private static boolean matches(MappedByteBuffer chunk, int offset, String accountNo) {
+        if (chunk.get(offset + ACCOUNT_LENGTH) != accountNo.length()) {
+            return false;
+        }
+        for (int i = 0; i < accountNo.length(); i++) {
+            if (chunk.get(offset + ACCOUNT_BYTES + i) != (byte) accountNo.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String accountNoOf(MappedByteBuffer chunk, int offset) {
+        byte[] bytes = new byte[chunk.get(offset + ACCOUNT_LENGTH)];
+        chunk.get(offset + ACCOUNT_BYTES, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static String credentialOf(MappedByteBuffer chunk, int offset) {
+        byte[] bytes = new byte[chunk.get(offset + CREDENTIAL_LENGTH)];
+        chunk.get(offset + CREDENTIAL_BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private MappedByteBuffer chunkOf(long record) {
+        return chunks[(int) (record >>> CHUNK_SHIFT)];
+    }
+
+    private static int offsetOf(long record) {
+        return (int) (record & (CHUNK_RECORDS - 1)) * RECORD_SIZE;
+    }
+
+    // Spreads the account number's String.hashCode().
+    private static long hash(int stringHash) {
+        long h = stringHash * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+}
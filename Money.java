@@ -0,0 +1,76 @@
+package BANKING;
+
+/**
+ * Amounts are kept as a whole number of minor units (paise or cents) in a long,
+ * so currency arithmetic is exact instead of drifting like double does.
+ * This class converts between that form and what users type and read.
+ */
+final class Money {
+
+    static final int DECIMALS = 2;
+    static final long MINOR_UNITS = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Parses an amount such as "250", "250.5" or "-12.75" into minor units.
+     * Throws NumberFormatException, just like Double.parseDouble, for anything else,
+     * including more than two decimal places or a value too large to hold.
+     */
+    static long parse(String text) {
+        try {
+            return parseUnchecked(text);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount too large: \"" + text + "\"");
+        }
+    }
+
+    private static long parseUnchecked(String text) {
+        String s = text.trim();
+        int i = 0;
+        boolean negative = false;
+        if (i < s.length() && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long major = 0;
+        int digits = 0;
+        for (; i < s.length() && s.charAt(i) != '.'; i++, digits++) {
+            major = Math.addExact(Math.multiplyExact(major, 10), digit(s, i));
+        }
+        long minor = 0;
+        int decimals = 0;
+        if (i < s.length()) {
+            for (i++; i < s.length(); i++, decimals++) {
+                if (decimals == DECIMALS) {
+                    throw new NumberFormatException("At most " + DECIMALS + " decimal places allowed: \"" + text + "\"");
+                }
+                minor = minor * 10 + digit(s, i);
+            }
+        }
+        if (digits == 0 && decimals == 0) {
+            throw new NumberFormatException("Not an amount: \"" + text + "\"");
+        }
+        for (; decimals < DECIMALS; decimals++) {
+            minor *= 10;
+        }
+        long value = Math.addExact(Math.multiplyExact(major, MINOR_UNITS), minor);
+        return negative ? -value : value;
+    }
+
+    // Formats minor units as a plain decimal, e.g. 123456 becomes "1234.56".
+    static String format(long amount) {
+        long abs = Math.abs(amount);
+        long minor = abs % MINOR_UNITS;
+        return (amount < 0 ? "-" : "") + (abs / MINOR_UNITS) + (minor < 10 ? ".0" : ".") + minor;
+    }
+
+    private static int digit(String s, int i) {
+        char c = s.charAt(i);
+        if (c < '0' || c > '9') {
+            throw new NumberFormatException("Not an amount: \"" + s + "\"");
+        }
+        return c - '0';
+    }
+}
@@ -0,0 +1,556 @@
+package BANKING;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An AccountStore that keeps its accounts outside the Java heap, for books of 100M+ accounts.
+ *
+ * Laid out like ConcurrentAccountStore: each account gets a dense slot when it is created, and
+ * an open-addressing index maps account numbers to slots. But the records, the balances and the
+ * index all live in direct ByteBuffers, so the heap only holds a handful of buffer objects per
+ * 65,536 accounts, and a garbage collection has the same little to do however many are loaded.
+ * Balances are kept apart from the records, so the end-of-day pass runs over nothing but longs.
+ *
+ * Records, 120 bytes each, in pages of 65,536:
+ *     0   byte   account number length, then up to 23 ASCII bytes
+ *     24  byte   credential length, then up to 91 UTF-8 bytes
+ * Alongside them, a page of each account's AccountId (AccountId.NONE if it has none).
+ * Index entries, 8 bytes each: the high 32 bits of the account's hash and slot + 1 in the
+ * low 32 (0 is an empty entry). The probe starts from the low bits of the hash, so the high ones
+ * let it skip almost every other record without reading it. An account with an id is hashed
+ * and compared by id, so it's found without reading its record at all; only account numbers
+ * without one are hashed and compared as text.
+ *
+ * Locking is the same as ConcurrentAccountStore's: striped locks by slot for balances, one lock
+ * for creating accounts, and lookups that never block. An index entry is published only after
+ * its record and balance are written, so a reader that finds it sees the whole account.
+ */
+class OffHeapAccountStore implements AccountStore {
+
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int RECORD_SIZE = 120;
+    private static final int ACCOUNT_LENGTH = 0;
+    private static final int ACCOUNT_BYTES = 1;
+    private static final int CREDENTIAL_LENGTH = 24;
+    private static final int CREDENTIAL_BYTES = 25;
+
+    // An index buffer holds up to 2^24 entries (128MB); bigger indexes are split across several.
+    private static final int INDEX_CHUNK_SHIFT = 24;
+    private static final int INDEX_CHUNK_MASK = (1 << INDEX_CHUNK_SHIFT) - 1;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    // Account number -> slot. Replaced wholesale when it grows; entries are only ever added.
+    private static final class Index {
+        final ByteBuffer[] chunks;
+        final long mask;
+
+        Index(long capacity) {
+            int chunkCount = (int) Math.max(1, capacity >>> INDEX_CHUNK_SHIFT);
+            chunks = new ByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                chunks[i] = ByteBuffer.allocateDirect((int) Math.min(capacity, 1 << INDEX_CHUNK_SHIFT) * Long.BYTES);
+            }
+            mask = capacity - 1;
+        }
+
+        long capacity() {
+            return mask + 1;
+        }
+
+        long entry(long i) {
+            return (long) LONGS.getAcquire(chunks[(int) (i >>> INDEX_CHUNK_SHIFT)], (int) (i & INDEX_CHUNK_MASK) * Long.BYTES);
+        }
+
+        void publish(long i, long entry) {
+            LONGS.setRelease(chunks[(int) (i >>> INDEX_CHUNK_SHIFT)], (int) (i & INDEX_CHUNK_MASK) * Long.BYTES, entry);
+        }
+    }
+
+    // Pages indexed by slot. The arrays of pages are copied when they grow; the pages themselves are not.
+    private static final class Pages {
+        final ByteBuffer[] records;
+        final ByteBuffer[] balances;
+        final ByteBuffer[] ids;
+
+        Pages(int pageCount) {
+            records = new ByteBuffer[pageCount];
+            balances = new ByteBuffer[pageCount];
+            ids = new ByteBuffer[pageCount];
+        }
+    }
+
+    private volatile Index index;
+    private volatile Pages pages;
+    private volatile int size;
+
+    private final Object createLock = new Object();
+    private final Object[] stripes;
+    private final int stripeMask;
+    private final SnapshotLog snapshots;
+
+    public OffHeapAccountStore() {
+        this(Runtime.getRuntime().availableProcessors() * 16, 1024);
+    }
+
+    // Sizing the index for the accounts expected up front saves rebuilding it as they're loaded.
+    public OffHeapAccountStore(int minStripes, long expectedAccounts) {
+        int count = Integer.highestOneBit(Math.max(1, minStripes - 1)) << 1;
+        stripes = new Object[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Object();
+        }
+        stripeMask = count - 1;
+        snapshots = new SnapshotLog(count);
+        index = new Index(Long.highestOneBit(Math.max(16, expectedAccounts * 2) - 1) << 1);
+        pages = new Pages(0);
+    }
+
+    @Override
+    public long create(String accountNo, String password, long balance, Runnable beforeVisible) {
+        byte[] credential = password.getBytes(StandardCharsets.UTF_8);
+        if (!MappedAccountStore.fits(accountNo, credential)) {
+            return INVALID_ACCOUNT;
+        }
+        long id = AccountId.parse(accountNo);
+        synchronized (createLock) {
+            if ((id != AccountId.NONE ? slotOf(id) : slotOfText(accountNo)) >= 0) {
+                return ACCOUNT_EXISTS;
+            }
+            int slot = size;
+            if (slot == Integer.MAX_VALUE - 1) {
+                return STORE_FULL;
+            }
+            if (beforeVisible != null) {
+                beforeVisible.run();
+            }
+            Pages p = pages;
+            int page = slot >>> PAGE_SHIFT;
+            if (page == p.records.length) {
+                p = addPage(p);
+            }
+            ByteBuffer records = p.records[page];
+            int offset = (slot & PAGE_MASK) * RECORD_SIZE;
+            records.put(offset + ACCOUNT_LENGTH, (byte) accountNo.length());
+            for (int i = 0; i < accountNo.length(); i++) {
+                records.put(offset + ACCOUNT_BYTES + i, (byte) accountNo.charAt(i));
+            }
+            records.put(offset + CREDENTIAL_LENGTH, (byte) credential.length);
+            records.put(offset + CREDENTIAL_BYTES, credential);
+            p.balances[page].putLong((slot & PAGE_MASK) * Long.BYTES, balance);
+            p.ids[page].putLong((slot & PAGE_MASK) * Long.BYTES, id);
+            Index idx = index;
+            if ((slot + 1L) * 2 > idx.capacity()) {
+                idx = grow(idx);
+            }
+            insert(idx, id != AccountId.NONE ? hash(id) : hash(accountNo), slot);
+            size = slot + 1;
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean exists(String accountNo) {
+        return slotOf(accountNo) >= 0;
+    }
+
+    @Override
+    public boolean exists(long id) {
+        return slotOf(id) >= 0;
+    }
+
+    @Override
+    public boolean checkPassword(String accountNo, String password) {
+        return checkPasswordAt(slotOf(accountNo), password);
+    }
+
+    @Override
+    public boolean checkPassword(long id, String password) {
+        return checkPasswordAt(slotOf(id), password);
+    }
+
+    @Override
+    public long getBalance(String accountNo) {
+        return balanceAt(find(accountNo));
+    }
+
+    @Override
+    public long getBalance(long id) {
+        return balanceAt(find(id));
+    }
+
+    @Override
+    public long deposit(String accountNo, long amount) {
+        return depositAt(find(accountNo), amount);
+    }
+
+    @Override
+    public long deposit(long id, long amount) {
+        return depositAt(find(id), amount);
+    }
+
+    @Override
+    public long withdraw(String accountNo, long amount) {
+        return withdrawAt(find(accountNo), amount);
+    }
+
+    @Override
+    public long withdraw(long id, long amount) {
+        return withdrawAt(find(id), amount);
+    }
+
+    @Override
+    public long transfer(String fromAccountNo, String toAccountNo, long amount) {
+        return transferAt(find(fromAccountNo), find(toAccountNo), amount);
+    }
+
+    @Override
+    public long transfer(long fromId, long toId, long amount) {
+        return transferAt(find(fromId), find(toId), amount);
+    }
+
+    private boolean checkPasswordAt(int slot, String password) {
+        return slot >= 0 && PasswordHasher.verify(credentialOf(pages, slot), password);
+    }
+
+    private long balanceAt(int slot) {
+        ByteBuffer page = pages.balances[slot >>> PAGE_SHIFT];
+        synchronized (stripes[slot & stripeMask]) {
+            return page.getLong((slot & PAGE_MASK) * Long.BYTES);
+        }
+    }
+
+    private long depositAt(int slot, long amount) {
+        ByteBuffer page = pages.balances[slot >>> PAGE_SHIFT];
+        int at = (slot & PAGE_MASK) * Long.BYTES;
+        synchronized (stripes[slot & stripeMask]) {
+            long balance = page.getLong(at);
+            if (amount > Long.MAX_VALUE - balance) {
+                return INVALID_AMOUNT;
+            }
+            snapshots.beforeChange(slot & stripeMask, slot, balance);
+            page.putLong(at, balance + amount);
+            return balance + amount;
+        }
+    }
+
+    private long withdrawAt(int slot, long amount) {
+        ByteBuffer page = pages.balances[slot >>> PAGE_SHIFT];
+        int at = (slot & PAGE_MASK) * Long.BYTES;
+        synchronized (stripes[slot & stripeMask]) {
+            long balance = page.getLong(at);
+            if (amount > balance) {
+                return INSUFFICIENT_FUNDS;
+            }
+            snapshots.beforeChange(slot & stripeMask, slot, balance);
+            page.putLong(at, balance - amount);
+            return balance - amount;
+        }
+    }
+
+    private long transferAt(int from, int to, long amount) {
+        Pages p = pages;
+        ByteBuffer fromPage = p.balances[from >>> PAGE_SHIFT];
+        ByteBuffer toPage = p.balances[to >>> PAGE_SHIFT];
+        int fromAt = (from & PAGE_MASK) * Long.BYTES;
+        int toAt = (to & PAGE_MASK) * Long.BYTES;
+        int fromStripe = from & stripeMask;
+        int toStripe = to & stripeMask;
+        // Always lock the lower stripe first; if both accounts share a stripe, one lock covers both.
+        synchronized (stripes[Math.min(fromStripe, toStripe)]) {
+            synchronized (stripes[Math.max(fromStripe, toStripe)]) {
+                long balance = fromPage.getLong(fromAt);
+                if (amount > balance) {
+                    return INSUFFICIENT_FUNDS;
+                }
+                long toBalance = toPage.getLong(toAt);
+                if (amount > Long.MAX_VALUE - toBalance) {
+                    return INVALID_AMOUNT;
+                }
+                snapshots.beforeChange(toStripe, to, toBalance);
+                snapshots.beforeChange(fromStripe, from, balance);
+                toPage.putLong(toAt, toBalance + amount);
+                balance = fromPage.getLong(fromAt) - amount; // read again, in case it's the same account
+                fromPage.putLong(fromAt, balance);
+                return balance;
+            }
+        }
+    }
+
+    @Override
+    public long totalBalance() {
+        long[] total = new long[1];
+        whileHoldingStripes(0, () -> {
+            ByteBuffer[] balances = pages.balances;
+            int count = size;
+            for (int slot = 0; slot < count; slot++) {
+                total[0] += balances[slot >>> PAGE_SHIFT].getLong((slot & PAGE_MASK) * Long.BYTES);
+            }
+        });
+        return total[0];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // The account numbers and credentials are decoded into Strings for the visitor, one account at a time.
+    @Override
+    public void forEach(Visitor visitor) {
+        whileHoldingStripes(0, () -> {
+            Pages p = pages;
+            int count = size;
+            for (int slot = 0; slot < count; slot++) {
+                visitor.visit(accountNoOf(p, slot), credentialOf(p, slot),
+                        p.balances[slot >>> PAGE_SHIFT].getLong((slot & PAGE_MASK) * Long.BYTES));
+            }
+        });
+    }
+
+    // Accounts created after this have slots past its count, so only changed balances need noting.
+    @Override
+    public BalanceSnapshot snapshot() {
+        SnapshotLog.Epoch[] epoch = new SnapshotLog.Epoch[1];
+        int[] count = new int[1];
+        whileHoldingStripes(0, () -> {
+            epoch[0] = snapshots.open();
+            count[0] = size;
+        });
+        return new BalanceSnapshot() {
+            private boolean closed;
+
+            @Override
+            public void forEach(BalanceSnapshot.Visitor visitor) {
+                Pages p = pages;
+                for (int slot = 0; slot < count[0]; slot++) {
+                    ByteBuffer page = p.balances[slot >>> PAGE_SHIFT];
+                    long balance;
+                    synchronized (stripes[slot & stripeMask]) {
+                        balance = SnapshotLog.balanceAt(epoch[0], slot & stripeMask, slot,
+                                page.getLong((slot & PAGE_MASK) * Long.BYTES));
+                    }
+                    visitor.visit(accountNoOf(p, slot), balance);
+                }
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    snapshots.close();
+                }
+            }
+        };
+    }
+
+    // The balance pages are the blocks, so each fork/join leaf runs over one buffer of longs.
+    @Override
+    public EndOfDay.Totals endOfDay(EndOfDay run) {
+        EndOfDay.Totals[] totals = new EndOfDay.Totals[1];
+        whileHoldingStripes(0, () -> {
+            ByteBuffer[] balances = pages.balances;
+            int count = size;
+            int exempt = slotOf(run.exempt);
+            long before = exempt >= 0 ? balances[exempt >>> PAGE_SHIFT].getLong((exempt & PAGE_MASK) * Long.BYTES) : 0;
+            if (snapshots.active()) {
+                for (int slot = 0; slot < count; slot++) {
+                    snapshots.beforeChange(slot & stripeMask, slot, balances[slot >>> PAGE_SHIFT].getLong((slot & PAGE_MASK) * Long.BYTES));
+                }
+            }
+            totals[0] = EndOfDay.forkJoin((count + PAGE_SIZE - 1) >>> PAGE_SHIFT, (page, into) ->
+                    endOfDay(run, balances[page], Math.min(PAGE_SIZE, count - (page << PAGE_SHIFT)), into));
+            if (exempt >= 0) {
+                balances[exempt >>> PAGE_SHIFT].putLong((exempt & PAGE_MASK) * Long.BYTES, before);
+                run.exclude(before, totals[0]);
+            }
+        });
+        return totals[0];
+    }
+
+    // EndOfDay.apply's loop, over a page of balances off the heap.
+    private static void endOfDay(EndOfDay run, ByteBuffer page, int accounts, EndOfDay.Totals totals) {
+        long interest = 0;
+        long fees = 0;
+        for (int at = 0; at < accounts * Long.BYTES; at += Long.BYTES) {
+            long balance = page.getLong(at);
+            long earned = run.interestOn(balance);
+            long charged = Math.min(run.fee, balance + earned);
+            page.putLong(at, balance + earned - charged);
+            interest += earned;
+            fees += charged;
+        }
+        totals.accounts += accounts;
+        totals.interest += interest;
+        totals.fees += fees;
+    }
+
+    // Off-heap bytes held by the records, balances, ids and index.
+    long offHeapBytes() {
+        return (long) pages.records.length * PAGE_SIZE * (RECORD_SIZE + 2 * Long.BYTES) + index.capacity() * Long.BYTES;
+    }
+
+    // Takes every stripe in order so no transfer is half-applied while the action reads balances.
+    private void whileHoldingStripes(int stripe, Runnable action) {
+        if (stripe == stripes.length) {
+            action.run();
+            return;
+        }
+        synchronized (stripes[stripe]) {
+            whileHoldingStripes(stripe + 1, action);
+        }
+    }
+
+    private int find(String accountNo) {
+        int slot = slotOf(accountNo);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No such account: " + accountNo);
+        }
+        return slot;
+    }
+
+    private int find(long id) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No such account: " + (AccountId.isValid(id) ? AccountId.toString(id) : "id " + id));
+        }
+        return slot;
+    }
+
+    private int slotOf(String accountNo) {
+        long id = AccountId.parse(accountNo);
+        return id != AccountId.NONE ? slotOf(id) : slotOfText(accountNo);
+    }
+
+    // Linear probe. Only entries whose hash matches have their id compared.
+    private int slotOf(long id) {
+        if (!AccountId.isValid(id)) {
+            return -1;
+        }
+        long h = hash(id);
+        Index idx = index;
+        Pages p = pages;
+        for (long i = h & idx.mask; ; i = (i + 1) & idx.mask) {
+            long entry = idx.entry(i);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((int) (entry >>> 32) == (int) (h >>> 32)) {
+                int slot = (int) entry - 1;
+                if (slot >>> PAGE_SHIFT >= p.ids.length) {
+                    p = pages; // the entry is newer than the pages read above
+                }
+                if (p.ids[slot >>> PAGE_SHIFT].getLong((slot & PAGE_MASK) * Long.BYTES) == id) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    // The same for an account number without an id. Only entries whose hash matches have their record compared.
+    private int slotOfText(String accountNo) {
+        if (accountNo.length() > MappedAccountStore.MAX_ACCOUNT_LENGTH) {
+            return -1;
+        }
+        long h = hash(accountNo);
+        Index idx = index;
+        Pages p = pages;
+        for (long i = h & idx.mask; ; i = (i + 1) & idx.mask) {
+            long entry = idx.entry(i);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((int) (entry >>> 32) == (int) (h >>> 32)) {
+                int slot = (int) entry - 1;
+                if (slot >>> PAGE_SHIFT >= p.records.length) {
+                    p = pages; // the entry is newer than the pages read above
+                }
+                if (matches(p, slot, accountNo)) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    private static void insert(Index idx, long h, int slot) {
+        long i = h & idx.mask;
+        while (idx.entry(i) != 0) {
+            i = (i + 1) & idx.mask;
+        }
+        idx.publish(i, (h & 0xFFFFFFFF00000000L) | (slot + 1L));
+    }
+
+    // Rebuilds the index at twice the size from the records, since entries only keep half of each hash.
+    private Index grow(Index old) {
+        Index bigger = new Index(old.capacity() * 2);
+        Pages p = pages;
+        for (int slot = 0; slot < size; slot++) {
+            long id = p.ids[slot >>> PAGE_SHIFT].getLong((slot & PAGE_MASK) * Long.BYTES);
+            insert(bigger, id != AccountId.NONE ? hash(id) : hash(accountNoOf(p, slot)), slot);
+        }
+        index = bigger;
+        return bigger;
+    }
+
+    private Pages addPage(Pages old) {
+        int count = old.records.length;
+        Pages bigger = new Pages(count + 1);
+        System.arraycopy(old.records, 0, bigger.records, 0, count);
+        System.arraycopy(old.balances, 0, bigger.balances, 0, count);
+        System.arraycopy(old.ids, 0, bigger.ids, 0, count);
+        bigger.records[count] = ByteBuffer.allocateDirect(PAGE_SIZE * RECORD_SIZE);
+        bigger.balances[count] = ByteBuffer.allocateDirect(PAGE_SIZE * Long.BYTES).order(ByteOrder.nativeOrder());
+        bigger.ids[count] = ByteBuffer.allocateDirect(PAGE_SIZE * Long.BYTES).order(ByteOrder.nativeOrder());
+        pages = bigger;
+        return bigger;
+    }
+
+    private static boolean matches(Pages p, int slot, String accountNo) {
+        ByteBuffer records = p.records[slot >>> PAGE_SHIFT];
+        int offset = (slot & PAGE_MASK) * RECORD_SIZE;
+        if (records.get(offset + ACCOUNT_LENGTH) != accountNo.length()) {
+            return false;
+        }
+        for (int i = 0; i < accountNo.length(); i++) {
+            if (records.get(offset + ACCOUNT_BYTES + i) != (byte) accountNo.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String accountNoOf(Pages p, int slot) {
+        ByteBuffer records = p.records[slot >>> PAGE_SHIFT];
+        int offset = (slot & PAGE_MASK) * RECORD_SIZE;
+        byte[] bytes = new byte[records.get(offset + ACCOUNT_LENGTH)];
+        records.get(offset + ACCOUNT_BYTES, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static String credentialOf(Pages p, int slot) {
+        ByteBuffer records = p.records[slot >>> PAGE_SHIFT];
+        int offset = (slot & PAGE_MASK) * RECORD_SIZE;
+        byte[] bytes = new byte[records.get(offset + CREDENTIAL_LENGTH)];
+        records.get(offset + CREDENTIAL_BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 64 bits, so the index can keep 32 of them and start its probe from the rest.
+    private static long hash(String accountNo) {
+        long h = accountNo.hashCode() * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    private static long hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
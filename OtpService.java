@@ -0,0 +1,204 @@
+package BANKING;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One-time passwords for confirming transfers.
+ *
+ * issue() creates a challenge for an account and returns at once; verify() checks a code
+ * against it and returns at once. Nothing waits in between, so a transfer waiting for its
+ * OTP holds no thread and no account lock, just a pending challenge here.
+ *
+ * A challenge is good for one correct code, a few wrong ones, and a limited time. Pending
+ * challenges are found by id in a map, and expired from a hashed timing wheel: a ring of
+ * slots, one per tick, that a single background thread steps through, so expiry costs the
+ * same however many challenges are waiting. Codes come from a small pool of SecureRandoms.
+ */
+final class OtpService implements AutoCloseable {
+
+    static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+    static final long DEFAULT_TICK_MILLIS = 100;
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final int WHEEL_SLOTS = 512;
+
+    enum Result {
+        VERIFIED,
+        WRONG_CODE,         // the challenge is still pending and may be tried again
+        TOO_MANY_ATTEMPTS,  // that was the last allowed attempt; the challenge is gone
+        EXPIRED             // too late, already used, cancelled, or for another account
+    }
+
+    // One pending OTP. The code goes to the customer; the id stays with whoever asked for it.
+    static final class Challenge {
+        final long id;
+        final String accountNo;
+        final String code;
+        final long deadlineNanos;
+        final AtomicInteger attempts = new AtomicInteger();
+        long remainingRounds; // only touched by the wheel thread
+
+        private Challenge(long id, String accountNo, String code, long deadlineNanos) {
+            this.id = id;
+            this.accountNo = accountNo;
+            this.code = code;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private static volatile OtpService shared;
+
+    private final long ttlNanos;
+    private final long tickNanos;
+    private final int maxAttempts;
+    private final SecureRandom[] generators;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<Long, Challenge> pending = new ConcurrentHashMap<>();
+    private final LongAdder expired = new LongAdder();
+
+    // The wheel itself belongs to the wheel thread; new challenges reach it through this queue.
+    private final ConcurrentLinkedQueue<Challenge> incoming = new ConcurrentLinkedQueue<>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayList<Challenge>[] wheel = new ArrayList[WHEEL_SLOTS];
+    private final long startNanos = System.nanoTime();
+    private final Thread wheelThread;
+    private volatile boolean closed;
+
+    OtpService() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_TICK_MILLIS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    OtpService(long ttlMillis, long tickMillis, int maxAttempts) {
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.tickNanos = Math.max(1, tickMillis) * 1_000_000;
+        this.maxAttempts = maxAttempts;
+        // A SecureRandom serialises its callers, so spread them over a few. DRBG instances each
+        // have their own state; the platform default (NativePRNG) shares one lock between all of them.
+        this.generators = new SecureRandom[Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1];
+        for (int i = 0; i < generators.length; i++) {
+            generators[i] = newGenerator();
+        }
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.wheelThread = new Thread(this::turnWheel, "otp-expiry");
+        this.wheelThread.setDaemon(true);
+        this.wheelThread.start();
+    }
+
+    private static SecureRandom newGenerator() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    // The service the menus and the server share, started on first use.
+    static OtpService shared() {
+        OtpService service = shared;
+        if (service == null) {
+            synchronized (OtpService.class) {
+                service = shared;
+                if (service == null) {
+                    shared = service = new OtpService();
+                }
+            }
+        }
+        return service;
+    }
+
+    // Creates a 4-digit challenge for the account. Send challenge.code to the customer and keep challenge.id.
+    Challenge issue(String accountNo) {
+        SecureRandom generator = generators[ThreadLocalRandom.current().nextInt(generators.length)];
+        String code = Integer.toString(1000 + generator.nextInt(9000));
+        Challenge challenge = new Challenge(nextId.getAndIncrement(), accountNo, code, System.nanoTime() + ttlNanos);
+        pending.put(challenge.id, challenge);
+        incoming.add(challenge);
+        return challenge;
+    }
+
+    // Checks a code the customer entered. Only VERIFIED means the transfer may go ahead, and only once.
+    Result verify(long challengeId, String accountNo, String enteredCode) {
+        Challenge challenge = pending.get(challengeId);
+        if (challenge == null || !challenge.accountNo.equals(accountNo)) {
+            return Result.EXPIRED;
+        }
+        if (System.nanoTime() - challenge.deadlineNanos > 0) {
+            if (pending.remove(challengeId, challenge)) {
+                expired.increment();
+            }
+            return Result.EXPIRED;
+        }
+        if (challenge.code.equals(enteredCode.trim())) {
+            return pending.remove(challengeId, challenge) ? Result.VERIFIED : Result.EXPIRED;
+        }
+        if (challenge.attempts.incrementAndGet() >= maxAttempts) {
+            pending.remove(challengeId, challenge);
+            return Result.TOO_MANY_ATTEMPTS;
+        }
+        return Result.WRONG_CODE;
+    }
+
+    // Drops a challenge nobody is going to answer, e.g. when the customer gives up.
+    void cancel(long challengeId) {
+        pending.remove(challengeId);
+    }
+
+    int pendingCount() {
+        return pending.size();
+    }
+
+    long expiredCount() {
+        return expired.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(wheelThread);
+    }
+
+    // Runs on the wheel thread: one slot per tick, dropping the challenges that have run out of time.
+    private void turnWheel() {
+        long tick = 0;
+        while (!closed) {
+            long due = startNanos + (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0 && !closed) {
+                LockSupport.parkNanos(wait);
+            }
+            Challenge added;
+            while ((added = incoming.poll()) != null) {
+                long ticks = Math.max(tick + 1, (added.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+                added.remainingRounds = (ticks - tick - 1) / WHEEL_SLOTS;
+                wheel[(int) (ticks % WHEEL_SLOTS)].add(added);
+            }
+            tick++;
+            ArrayList<Challenge> slot = wheel[(int) (tick % WHEEL_SLOTS)];
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                Challenge challenge = slot.get(i);
+                if (pending.get(challenge.id) != challenge) {
+                    continue; // already verified, cancelled or used up
+                }
+                if (challenge.remainingRounds > 0) {
+                    challenge.remainingRounds--;
+                    slot.set(kept++, challenge);
+                } else if (pending.remove(challenge.id, challenge)) {
+                    expired.increment();
+                }
+            }
+            slot.subList(kept, slot.size()).clear();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package BANKING;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a stream of deposits, withdrawals and transfers on several threads at once while
+ * giving exactly the result a single thread would, in input order.
+ *
+ * Each account belongs to one lane, picked from the hash of its account number. A lane is a
+ * ring buffer with a single consumer thread, filled by the single thread that submits
+ * operations, so nothing inside a lane needs a lock and every account sees its operations
+ * in input order.
+ *
+ * A transfer between two lanes is put on both. It is a two-phase hand-off: when the target
+ * lane reaches it, the target lane marks it as arrived and waits; when the source lane reaches
+ * it, the source lane waits for that mark, applies the transfer, and marks it done, which
+ * releases the target lane. Neither account can see a later operation before the transfer,
+ * or an earlier one after it. The two lanes only ever wait for each other at the same input
+ * position, and every lane moves forward through the input, so they can't deadlock.
+ */
+class PartitionedExecutor implements AutoCloseable {
+
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAW = 2;
+    static final byte TRANSFER = 3;
+    private static final byte TRANSFER_TARGET = 4; // the target lane's half of a cross-lane transfer
+
+    // One ring entry. Entries are reused; the submitting thread refills them once the lane has moved past.
+    private static final class Slot {
+        byte type;
+        int resultIndex;
+        String accountNo;
+        String targetAccountNo;
+        long amount;
+        Slot peer;                  // on the source half of a cross-lane transfer: the target lane's half
+        volatile boolean arrived;   // target half: the target lane has reached this transfer
+        volatile boolean done;      // target half: the source lane has applied it
+    }
+
+    private final class Lane implements Runnable {
+        final Slot[] ring;
+        final int mask;
+        final AccountStore accounts;
+        volatile long published;    // written only by the submitting thread
+        volatile long consumed;     // written only by this lane's thread
+        final Thread thread;
+
+        Lane(int index, int ringSize, AccountStore accounts) {
+            this.ring = new Slot[ringSize];
+            for (int i = 0; i < ringSize; i++) {
+                ring[i] = new Slot();
+            }
+            this.mask = ringSize - 1;
+            this.accounts = accounts;
+            this.thread = new Thread(this, "lane-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long next = 0;
+            int idle = 0;
+            while (true) {
+                if (next == published) {
+                    if (closed) {
+                        return;
+                    }
+                    idle = backOff(idle);
+                    continue;
+                }
+                idle = 0;
+                process(ring[(int) next & mask]);
+                consumed = ++next;
+            }
+        }
+
+        private void process(Slot slot) {
+            switch (slot.type) {
+                case DEPOSIT:
+                    results[slot.resultIndex] = Transactions.deposit(accounts, slot.accountNo, slot.amount);
+                    break;
+                case WITHDRAW:
+                    results[slot.resultIndex] = Transactions.withdraw(accounts, slot.accountNo, slot.amount);
+                    break;
+                case TRANSFER:
+                    Slot peer = slot.peer;
+                    if (peer != null) {
+                        for (int spins = 0; !peer.arrived; ) {
+                            spins = backOff(spins);
+                        }
+                    }
+                    results[slot.resultIndex] = Transactions.transfer(accounts, slot.accountNo, slot.targetAccountNo, slot.amount);
+                    if (peer != null) {
+                        slot.peer = null;
+                        peer.done = true;
+                    }
+                    break;
+                case TRANSFER_TARGET:
+                    slot.arrived = true;
+                    for (int spins = 0; !slot.done; ) {
+                        spins = backOff(spins);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation type " + slot.type);
+            }
+        }
+    }
+
+    private final Lane[] lanes;
+    private final long[] results;
+    private volatile boolean closed;
+
+    /**
+     * @param laneViews One view of the accounts per lane; each is only used by its lane's thread,
+     *                  so it may be a single-threaded view such as a Ledger.Batch.
+     * @param ringSize  Entries per lane (rounded up to a power of two).
+     * @param results   Where each operation's result goes, at the index given when it was submitted.
+     */
+    PartitionedExecutor(AccountStore[] laneViews, int ringSize, long[] results) {
+        int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+        this.results = results;
+        this.lanes = new Lane[laneViews.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i, size, laneViews[i]);
+        }
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+    }
+
+    int laneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Queues one operation. Must always be called from the same thread.
+     * For DEPOSIT and WITHDRAW the target account is ignored.
+     */
+    void submit(int resultIndex, byte type, String accountNo, String targetAccountNo, long amount) {
+        Lane lane = laneOf(accountNo);
+        if (type == TRANSFER) {
+            Lane targetLane = laneOf(targetAccountNo);
+            if (targetLane != lane) {
+                Slot target = claim(targetLane);
+                target.type = TRANSFER_TARGET;
+                target.arrived = false;
+                target.done = false;
+                Slot source = fill(claim(lane), type, resultIndex, accountNo, targetAccountNo, amount);
+                source.peer = target;
+                targetLane.published = targetLane.published + 1;
+                lane.published = lane.published + 1;
+                return;
+            }
+        }
+        fill(claim(lane), type, resultIndex, accountNo, targetAccountNo, amount).peer = null;
+        lane.published = lane.published + 1;
+    }
+
+    // Waits until every lane has finished everything submitted so far.
+    void awaitQuiescence() {
+        for (Lane lane : lanes) {
+            for (int spins = 0; lane.consumed != lane.published; ) {
+                spins = backOff(spins);
+            }
+        }
+    }
+
+    // Finishes what was submitted and stops the lane threads.
+    @Override
+    public void close() {
+        awaitQuiescence();
+        closed = true;
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.thread);
+            try {
+                lane.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private Lane laneOf(String accountNo) {
+        int h = accountNo.hashCode() * 0x9E3779B9;
+        return lanes[Math.floorMod(h ^ (h >>> 16), lanes.length)];
+    }
+
+    // The next free entry of the lane, once the lane has consumed enough to make room.
+    private static Slot claim(Lane lane) {
+        long position = lane.published;
+        for (int spins = 0; position - lane.consumed >= lane.ring.length; ) {
+            spins = backOff(spins);
+        }
+        return lane.ring[(int) position & lane.mask];
+    }
+
+    private static Slot fill(Slot slot, byte type, int resultIndex, String accountNo, String targetAccountNo, long amount) {
+        slot.type = type;
+        slot.resultIndex = resultIndex;
+        slot.accountNo = accountNo;
+        slot.targetAccountNo = targetAccountNo;
+        slot.amount = amount;
+        return slot;
+    }
+
+    // Spin briefly, then yield, then sleep in short naps, so idle lanes don't burn a core.
+    private static int backOff(int spins) {
+        if (spins < 100) {
+            Thread.onSpinWait();
+        } else if (spins < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+        return spins + 1;
+    }
+}
@@ -0,0 +1,130 @@
+package BANKING;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Turns passwords into the credentials the account stores keep, and checks passwords against them.
+ *
+ * A credential looks like "$pbkdf2-sha256$100000$salt$hash": a PBKDF2 hash of the password with
+ * its own random salt, so the account files and journals never hold the password itself and two
+ * accounts with the same password don't share a credential. The KDF (any PBKDF2WithHmac... the
+ * JVM has) and its iteration count come from the banking.kdf and banking.kdf.iterations system
+ * properties or configure(). Each credential names its own settings, so changing them only
+ * affects accounts created afterwards.
+ *
+ * Credentials saved before passwords were hashed are the plain password; those still verify.
+ * Either way the final comparison takes the same time however much of it matches.
+ */
+final class PasswordHasher {
+
+    static final String DEFAULT_ALGORITHM = "PBKDF2WithHmacSHA256";
+    static final int DEFAULT_ITERATIONS = 100_000;
+    static final int MAX_ITERATIONS = 9_999_999; // seven digits keeps a credential inside an account record
+
+    private static final String ALGORITHM_PREFIX = "PBKDF2WithHmac";
+    private static final String CREDENTIAL_PREFIX = "$pbkdf2-";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    // Read together, so a hash never mixes one configuration's algorithm with another's iterations.
+    private static final class Settings {
+        final String algorithm;
+        final int iterations;
+
+        Settings(String algorithm, int iterations) {
+            this.algorithm = algorithm;
+            this.iterations = iterations;
+        }
+    }
+
+    private static final SecureRandom salts = new SecureRandom();
+    private static volatile Settings settings = new Settings(DEFAULT_ALGORITHM, DEFAULT_ITERATIONS);
+
+    static {
+        try {
+            configure(System.getProperty("banking.kdf", DEFAULT_ALGORITHM),
+                    Integer.getInteger("banking.kdf.iterations", DEFAULT_ITERATIONS));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error in KDF settings, using " + DEFAULT_ALGORITHM + " with "
+                    + DEFAULT_ITERATIONS + " iterations: " + e.getMessage());
+        }
+    }
+
+    private PasswordHasher() {
+    }
+
+    // Sets the KDF for credentials made from now on.
+    static void configure(String algorithm, int iterations) {
+        if (!algorithm.startsWith(ALGORITHM_PREFIX)) {
+            throw new IllegalArgumentException("Only PBKDF2WithHmac... algorithms are supported, not " + algorithm);
+        }
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Iterations must be 1 to " + MAX_ITERATIONS + ", not " + iterations);
+        }
+        try {
+            SecretKeyFactory.getInstance(algorithm);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("This JVM has no " + algorithm);
+        }
+        settings = new Settings(algorithm, iterations);
+    }
+
+    static String algorithm() {
+        return settings.algorithm;
+    }
+
+    static int iterations() {
+        return settings.iterations;
+    }
+
+    // A new salted credential for the password, to store in place of it.
+    static String hash(String password) {
+        Settings current = settings;
+        byte[] salt = new byte[SALT_BYTES];
+        salts.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        try {
+            return CREDENTIAL_PREFIX + current.algorithm.substring(ALGORITHM_PREFIX.length()).toLowerCase()
+                    + "$" + current.iterations
+                    + "$" + base64.encodeToString(salt)
+                    + "$" + base64.encodeToString(derive(current.algorithm, password, salt, current.iterations));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error hashing password: " + e.getMessage(), e);
+        }
+    }
+
+    // True if the password is the one the credential was made from.
+    static boolean verify(String credential, String password) {
+        if (!credential.startsWith(CREDENTIAL_PREFIX)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), credential.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = credential.split("\\$");
+        if (parts.length != 5) {
+            return false;
+        }
+        try {
+            String algorithm = ALGORITHM_PREFIX + parts[1].substring(CREDENTIAL_PREFIX.length() - 1).toUpperCase();
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[4]);
+            byte[] actual = derive(algorithm, password, base64.decode(parts[3]), Integer.parseInt(parts[2]));
+            return MessageDigest.isEqual(actual, expected);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false; // not something this JVM can check, so it can't match
+        }
+    }
+
+    private static byte[] derive(String algorithm, String password, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
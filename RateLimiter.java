@@ -0,0 +1,72 @@
+package BANKING;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of token buckets, each allowing `rate` operations a second on average and up
+ * to `burst` at once after a quiet spell.
+ *
+ * A bucket is a single long: the time at which it will be full again (the "theoretical arrival
+ * time" of the generic cell rate algorithm). Taking a token moves that time one interval later,
+ * and is refused if it would end up more than a full burst ahead of now. So there is no refill
+ * thread and no separate token count to keep in step: one compare-and-set per operation, no
+ * locks, and nothing allocated.
+ */
+final class RateLimiter {
+
+    private final AtomicLongArray fullAt;
+    private final int mask;
+    private final long intervalNanos;
+    private final long burstNanos;
+
+    RateLimiter(double perSecond, int burst, int buckets) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive, not " + perSecond + " and " + burst);
+        }
+        int size = Integer.highestOneBit(Math.max(2, buckets) - 1) << 1;
+        this.fullAt = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.intervalNanos = Math.max(1, (long) (1e9 / perSecond));
+        this.burstNanos = intervalNanos * burst;
+        long now = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            fullAt.set(i, now);
+        }
+    }
+
+    // Takes a token from the bucket (any int; it's masked) if one is left at nowNanos (from System.nanoTime()).
+    boolean tryAcquire(int bucket, long nowNanos) {
+        int i = bucket & mask;
+        while (true) {
+            long full = fullAt.get(i);
+            long next = (full - nowNanos < 0 ? nowNanos : full) + intervalNanos;
+            if (next - nowNanos > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(i, full, next)) {
+                return true;
+            }
+        }
+    }
+
+    // The tokens left in the bucket at nowNanos.
+    long available(int bucket, long nowNanos) {
+        long owed = fullAt.get(bucket & mask) - nowNanos;
+        return (burstNanos - Math.max(0, owed)) / intervalNanos;
+    }
+
+    // How many buckets have no token left at nowNanos. Looks at every bucket, so it's for metrics, not the hot path.
+    int exhausted(long nowNanos) {
+        int count = 0;
+        for (int i = 0; i <= mask; i++) {
+            if (fullAt.get(i) - nowNanos + intervalNanos > burstNanos) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int buckets() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,174 @@
+package BANKING;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The transactions of one login session, kept in a fixed-size ring instead of an ever-growing
+ * string, and handed to a Sink in the background.
+ *
+ * Each entry is a few primitive fields (time, type, amount, balance, the other account) in
+ * arrays allocated once, so logging allocates nothing and a session that runs for days uses
+ * the same memory as one that runs for a minute. The ring keeps the last `capacity` entries for
+ * showing at logout. One shared drainer thread passes new entries to each open log's sink every
+ * so often; if a session outruns it, the oldest undrained entries are overwritten and counted
+ * as dropped rather than blocking the session.
+ *
+ * One thread appends (the session's own); the drainer only reads.
+ */
+final class SessionLog implements AutoCloseable {
+
+    static final int DEFAULT_CAPACITY = 256;
+    static final long DRAIN_INTERVAL_MILLIS = 100;
+
+    // Where drained entries go. Called on the drainer thread, one entry at a time, oldest first.
+    interface Sink {
+        void accept(String accountNo, long timestamp, byte type, String counterparty, long amount, long balance);
+    }
+
+    // Receives each entry during forEach.
+    interface Visitor {
+        void visit(long timestamp, byte type, String counterparty, long amount, long balance);
+    }
+
+    private static final VarHandle WRITTEN;
+    static {
+        try {
+            WRITTEN = MethodHandles.lookup().findVarHandle(SessionLog.class, "written", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final CopyOnWriteArrayList<SessionLog> open = new CopyOnWriteArrayList<>();
+    private static Thread drainer;
+
+    private final String accountNo;
+    private final Sink sink;
+    private final int mask;
+    private final long[] timestamps;
+    private final byte[] types;
+    private final long[] amounts;
+    private final long[] balances;
+    private final String[] counterparties;
+
+    @SuppressWarnings("unused") // through WRITTEN
+    private volatile long written;  // entries ever appended; published after the entry is filled in
+    private long drained;           // entries handed to the sink or dropped; guarded by this
+    private long dropped;           // guarded by this
+
+    private SessionLog(String accountNo, int capacity, Sink sink) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.accountNo = accountNo;
+        this.sink = sink;
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.types = new byte[size];
+        this.amounts = new long[size];
+        this.balances = new long[size];
+        this.counterparties = new String[size];
+    }
+
+    // Starts a log for a session of the account, drained to the sink (null for none) until closed.
+    static SessionLog open(String accountNo, int capacity, Sink sink) {
+        SessionLog log = new SessionLog(accountNo, capacity, sink);
+        if (sink != null) {
+            open.add(log);
+            startDrainer();
+        }
+        return log;
+    }
+
+    private static synchronized void startDrainer() {
+        if (drainer == null) {
+            drainer = new Thread(SessionLog::drainLoop, "session-log-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+    }
+
+    /**
+     * Records one transaction. Type is JournalRecord.DEPOSIT, WITHDRAW or TRANSFER; counterparty
+     * is the other account of a transfer, or null.
+     */
+    void append(byte type, String counterparty, long amount, long balance) {
+        long sequence = (long) WRITTEN.getOpaque(this);
+        int slot = (int) sequence & mask;
+        timestamps[slot] = System.currentTimeMillis();
+        types[slot] = type;
+        amounts[slot] = amount;
+        balances[slot] = balance;
+        counterparties[slot] = counterparty;
+        WRITTEN.setRelease(this, sequence + 1);
+    }
+
+    // The entries still in the ring, oldest first. Only for the appending thread.
+    void forEach(Visitor visitor) {
+        long end = (long) WRITTEN.getOpaque(this);
+        for (long sequence = Math.max(0, end - mask - 1); sequence < end; sequence++) {
+            int slot = (int) sequence & mask;
+            visitor.visit(timestamps[slot], types[slot], counterparties[slot], amounts[slot], balances[slot]);
+        }
+    }
+
+    long appended() {
+        return (long) WRITTEN.getAcquire(this);
+    }
+
+    // Entries overwritten before the drainer got to them. Only exact once the log is closed.
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    // Hands everything appended so far to the sink and stops draining this log. Call from the appending thread.
+    @Override
+    public void close() {
+        if (open.remove(this)) {
+            drain(true);
+        }
+    }
+
+    /**
+     * Passes the entries appended since the last drain to the sink. An entry is copied out of
+     * the ring and then checked to still be there, so one overwritten mid-copy counts as dropped
+     * instead of reaching the sink half old and half new. The oldest slot of a full ring may be
+     * the one being written next, so it only counts as safe when the appending thread is the caller.
+     */
+    private synchronized void drain(boolean appendingThread) {
+        long end = (long) WRITTEN.getAcquire(this);
+        int capacity = appendingThread ? mask + 1 : mask;
+        if (end - drained > capacity) {
+            dropped += end - capacity - drained;
+            drained = end - capacity;
+        }
+        for (; drained < end; drained++) {
+            int slot = (int) drained & mask;
+            long timestamp = timestamps[slot];
+            byte type = types[slot];
+            long amount = amounts[slot];
+            long balance = balances[slot];
+            String counterparty = counterparties[slot];
+            VarHandle.loadLoadFence();
+            if ((long) WRITTEN.getAcquire(this) - drained > capacity) {
+                dropped++;
+                continue;
+            }
+            try {
+                sink.accept(accountNo, timestamp, type, counterparty, amount, balance);
+            } catch (RuntimeException e) {
+                System.out.println("Error writing session log for " + accountNo + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            for (SessionLog log : open) {
+                log.drain(false);
+            }
+            LockSupport.parkNanos(DRAIN_INTERVAL_MILLIS * 1_000_000);
+        }
+    }
+}
@@ -2,6 +2,9 @@ package BANKING;// A simple banking application with basic functionalities, prep
 
 // A simple banking application with basic functionalities, prepared for a school project.
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.*;
 
 /**
@@ -12,21 +15,27 @@ import java.util.*;
  */
 public class SimpleBankingApp {
 
-    // Now, instead of hardcoding a single account, we'll use a Map to store multiple accounts.
-    // The keys are account numbers, and the values are their passwords.
-    private static Map<String, String> userCredentials = new HashMap<>();
-    private static Map<String, Double> userBalances = new HashMap<>();
+    // Now, instead of hardcoding a single account, we'll use an AccountStore to keep multiple accounts.
+    // It holds each account's password (hashed, see PasswordHasher) and balance, and is safe to share between sessions.
+    private static final AccountStore accounts = AccountStore.inMemory();
+    // Recent logins, so logging in again doesn't redo the password hashing.
+    private static final LoginCache logins = new LoginCache();
     
     // Let's pre-populate with an initial account to make testing easier.
     static {
-        userCredentials.put("1234567890", "mysecretpassword");
-        userBalances.put("1234567890", 1000.00);
+        accounts.createAccount("1234567890", PasswordHasher.hash("mysecretpassword"), 1000 * Money.MINOR_UNITS);
     }
     
+    // Timings and failure counts for this bank's operations (see BankMetrics).
+    private static final BankMetrics metrics = BankMetrics.forBank("Simple Bank");
+    private static final OtpService otps = OtpService.shared();
+
     private static String loggedInAccountNo; // To keep track of the current user.
 
-    // Let's keep a record of transactions, just to be thorough.
-    private static StringBuilder transactionLog = new StringBuilder();
+    // Let's keep a record of transactions, just to be thorough. Each login gets its own fixed-size
+    // log (see SessionLog), which is also copied to a history file in the background.
+    private static SessionLog sessionLog;
+    private static final TransactionJournal historyFile = new TransactionJournal("simple_bank_transactions.txt");
 
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
@@ -37,6 +46,11 @@ public class SimpleBankingApp {
         showInitialMenu(scanner);
 
         scanner.close();
+        try {
+            historyFile.close(); // writes out whatever history is still queued
+        } catch (IOException e) {
+            System.out.println("Error closing transaction history: " + e.getMessage());
+        }
     }
 
     /**
@@ -86,8 +100,12 @@ public class SimpleBankingApp {
         String enteredPassword = scanner.nextLine();
 
         // Check if the entered account number exists and if the password matches.
-        if (userCredentials.containsKey(enteredAccountNo) && userCredentials.get(enteredAccountNo).equals(enteredPassword)) {
+        long start = System.nanoTime();
+        boolean matches = logins.checkPassword(accounts, enteredAccountNo, enteredPassword);
+        metrics.record(BankMetrics.Operation.LOGIN, start, matches);
+        if (matches) {
             loggedInAccountNo = enteredAccountNo; // Set the current user.
+            sessionLog = SessionLog.open(enteredAccountNo, SessionLog.DEFAULT_CAPACITY, SimpleBankingApp::writeHistory);
         } else {
             loggedInAccountNo = null; // No one is logged in.
         }
@@ -104,7 +122,7 @@ public class SimpleBankingApp {
         String newAccountNo = scanner.nextLine();
 
         // Let's do a quick check to see if the account number is already taken.
-        if (userCredentials.containsKey(newAccountNo)) {
+        if (accounts.exists(newAccountNo)) {
             System.out.println("That account number already exists. Please choose a different one.");
             return;
         }
@@ -112,9 +130,12 @@ public class SimpleBankingApp {
         System.out.print("Create a password for the new account: ");
         String newPassword = scanner.nextLine();
 
-        // Add the new credentials and initial balance to our maps.
-        userCredentials.put(newAccountNo, newPassword);
-        userBalances.put(newAccountNo, 0.00); // New accounts start with a zero balance.
+        // Add the new account. New accounts start with a zero balance, and only the password's hash is kept.
+        long created = accounts.create(newAccountNo, PasswordHasher.hash(newPassword), 0, null);
+        if (created < 0) {
+            System.out.println(Transactions.message(created));
+            return;
+        }
         System.out.println("Account created successfully! You can now log in with account number: " + newAccountNo);
     }
 
@@ -147,13 +168,16 @@ public class SimpleBankingApp {
                     handleTransfer(scanner);
                     break;
                 case "4":
-                    double currentBalance = userBalances.get(loggedInAccountNo);
-                    System.out.printf("Your current balance is: $%.2f%n", currentBalance);
+                    long currentBalance = accounts.getBalance(loggedInAccountNo);
+                    System.out.println("Your current balance is: $" + Money.format(currentBalance));
                     break;
                 case "5":
                     System.out.println("Thank you for using our service. Logging out...");
                     System.out.println("\n--- Transaction Log ---");
-                    System.out.println(transactionLog.toString());
+                    sessionLog.forEach((timestamp, type, counterparty, amount, balance) ->
+                            System.out.println(describe(type, counterparty, amount)));
+                    sessionLog.close();
+                    sessionLog = null;
                     loggedInAccountNo = null; // This will break the loop and go back to the initial menu.
                     break;
                 default:
@@ -170,13 +194,17 @@ public class SimpleBankingApp {
     private static void handleDeposit(Scanner scanner) {
         System.out.print("Enter amount to deposit: ");
         try {
-            double amount = Double.parseDouble(scanner.nextLine());
+            long amount = Money.parse(scanner.nextLine());
             if (amount > 0) {
-                double currentBalance = userBalances.get(loggedInAccountNo);
-                currentBalance += amount;
-                userBalances.put(loggedInAccountNo, currentBalance);
-                System.out.printf("Successfully deposited $%.2f. New balance is $%.2f.%n", amount, currentBalance);
-                transactionLog.append("Deposited $").append(String.format("%.2f", amount)).append("\n");
+                long start = System.nanoTime();
+                long currentBalance = accounts.deposit(loggedInAccountNo, amount);
+                metrics.record(BankMetrics.Operation.DEPOSIT, start, currentBalance);
+                if (currentBalance < 0) {
+                    System.out.println(Transactions.message(currentBalance) + " No action taken.");
+                    return;
+                }
+                System.out.println("Successfully deposited $" + Money.format(amount) + ". New balance is $" + Money.format(currentBalance) + ".");
+                logTransaction(JournalRecord.DEPOSIT, null, amount, currentBalance);
             } else {
                 System.out.println("Deposit amount must be positive. No action taken.");
             }
@@ -192,16 +220,19 @@ public class SimpleBankingApp {
     private static void handleWithdrawal(Scanner scanner) {
         System.out.print("Enter amount to withdraw: ");
         try {
-            double amount = Double.parseDouble(scanner.nextLine());
-            double currentBalance = userBalances.get(loggedInAccountNo);
+            long amount = Money.parse(scanner.nextLine());
             // Amount verification condition as per the problem statement.
-            if (amount > 0 && amount <= currentBalance) {
-                currentBalance -= amount;
-                userBalances.put(loggedInAccountNo, currentBalance);
-                System.out.printf("Successfully withdrew $%.2f. New balance is $%.2f.%n", amount, currentBalance);
-                transactionLog.append("Withdrew $").append(String.format("%.2f", amount)).append("\n");
-            } else if (amount > currentBalance) {
-                System.out.println("Insufficient funds. You cannot withdraw more than your balance.");
+            // The store does the balance check and the debit together, so no other session can sneak in between.
+            if (amount > 0) {
+                long start = System.nanoTime();
+                long currentBalance = accounts.withdraw(loggedInAccountNo, amount);
+                metrics.record(BankMetrics.Operation.WITHDRAW, start, currentBalance);
+                if (currentBalance != AccountStore.INSUFFICIENT_FUNDS) {
+                    System.out.println("Successfully withdrew $" + Money.format(amount) + ". New balance is $" + Money.format(currentBalance) + ".");
+                    logTransaction(JournalRecord.WITHDRAW, null, amount, currentBalance);
+                } else {
+                    System.out.println("Insufficient funds. You cannot withdraw more than your balance.");
+                }
             } else {
                 System.out.println("Withdrawal amount must be positive. No action taken.");
             }
@@ -219,37 +250,41 @@ public class SimpleBankingApp {
         String recipientAccount = scanner.nextLine(); 
 
         // Let's add a check to make sure the recipient account exists.
-        if (!userBalances.containsKey(recipientAccount)) {
+        if (!accounts.exists(recipientAccount)) {
             System.out.println("Recipient account not found. Transfer cancelled.");
             return;
         }
 
         System.out.print("Enter amount to transfer: ");
         try {
-            double amount = Double.parseDouble(scanner.nextLine());
-            double currentBalance = userBalances.get(loggedInAccountNo);
+            long amount = Money.parse(scanner.nextLine());
+            long currentBalance = accounts.getBalance(loggedInAccountNo);
 
             if (amount > 0 && amount <= currentBalance) {
                 // Now, for the OTP part!
-                int generatedOtp = generateOTP();
-                System.out.println("An OTP has been generated: " + generatedOtp);
+                OtpService.Challenge otp = generateOTP();
+                System.out.println("An OTP has been generated: " + otp.code);
                 System.out.print("Please enter the OTP to confirm the transfer: ");
-                int enteredOtp = Integer.parseInt(scanner.nextLine());
-
-                // Let's verify the OTP.
-                if (enteredOtp == generatedOtp) {
-                    currentBalance -= amount;
-                    userBalances.put(loggedInAccountNo, currentBalance);
-                    
-                    // Transfer the money to the recipient
-                    double recipientBalance = userBalances.get(recipientAccount);
-                    recipientBalance += amount;
-                    userBalances.put(recipientAccount, recipientBalance);
-
-                    System.out.printf("Transfer of $%.2f to account %s was successful. New balance is $%.2f.%n", amount, recipientAccount, currentBalance);
-                    transactionLog.append("Transferred $").append(String.format("%.2f", amount)).append(" to account ").append(recipientAccount).append("\n");
+                String enteredOtp = scanner.nextLine();
+
+                // Let's verify the OTP. It's good for one try from here.
+                OtpService.Result result = otps.verify(otp.id, loggedInAccountNo, enteredOtp);
+                otps.cancel(otp.id);
+                if (result == OtpService.Result.VERIFIED) {
+                    // Move the money to the recipient in one step, so nobody sees it half-done.
+                    long start = System.nanoTime();
+                    currentBalance = accounts.transfer(loggedInAccountNo, recipientAccount, amount);
+                    metrics.record(BankMetrics.Operation.TRANSFER, start, currentBalance);
+                    if (currentBalance < 0) {
+                        System.out.println("Transfer cancelled. " + Transactions.message(currentBalance));
+                        return;
+                    }
+
+                    System.out.println("Transfer of $" + Money.format(amount) + " to account " + recipientAccount + " was successful. New balance is $" + Money.format(currentBalance) + ".");
+                    logTransaction(JournalRecord.TRANSFER, recipientAccount, amount, currentBalance);
                 } else {
-                    System.out.println("Invalid OTP. Transfer cancelled.");
+                    metrics.otpFailed();
+                    System.out.println(result == OtpService.Result.EXPIRED ? "OTP expired. Transfer cancelled." : "Invalid OTP. Transfer cancelled.");
                 }
             } else if (amount > currentBalance) {
                 System.out.println("Insufficient funds. You cannot transfer more than your balance.");
@@ -262,16 +297,45 @@ public class SimpleBankingApp {
     }
 
     /**
-     * Generates a random 4-digit OTP.
-     * This is just for demonstration purposes. A real system would have much more secure generation.
-     * @return The 4-digit OTP.
+     * Adds an entry to this session's transaction log. Nothing is formatted until it's shown.
+     * @param type JournalRecord.DEPOSIT, WITHDRAW or TRANSFER.
+     * @param counterparty The recipient of a transfer, otherwise null.
+     */
+    private static void logTransaction(byte type, String counterparty, long amount, long balance) {
+        long start = System.nanoTime();
+        sessionLog.append(type, counterparty, amount, balance);
+        metrics.record(BankMetrics.Operation.JOURNAL, start, true);
+    }
+
+    // The log line for an entry, e.g. "Deposited $10.00".
+    private static String describe(byte type, String counterparty, long amount) {
+        switch (type) {
+            case JournalRecord.DEPOSIT:
+                return "Deposited $" + Money.format(amount);
+            case JournalRecord.WITHDRAW:
+                return "Withdrew $" + Money.format(amount);
+            default:
+                return "Transferred $" + Money.format(amount) + " to account " + counterparty;
+        }
+    }
+
+    // Runs on the session log's drainer thread: one line per entry in the history file.
+    private static void writeHistory(String accountNo, long timestamp, byte type, String counterparty, long amount, long balance) {
+        try {
+            historyFile.append((Instant.ofEpochMilli(timestamp) + " Account " + accountNo + ": "
+                    + describe(type, counterparty, amount) + ". Balance: $" + Money.format(balance) + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.out.println("Error writing transaction history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Generates a random 4-digit OTP for the logged-in account.
+     * The OTP service keeps it until it's checked or runs out of time (see OtpService).
+     * @return The challenge, holding the 4-digit code.
      */
-    private static int generateOTP() {
-        // Human-like thought: Use Random class to generate a number.
-        // It's a bit of a classic, simple approach.
-        Random random = new Random();
-        // Generates a number between 1000 (inclusive) and 10000 (exclusive)
-        int otp = 1000 + random.nextInt(9000);
-        return otp;
+    private static OtpService.Challenge generateOTP() {
+        return otps.issue(loggedInAccountNo);
     }
 }
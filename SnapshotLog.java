@@ -0,0 +1,158 @@
+package BANKING;
+
+/**
+ * The bookkeeping behind an account store's snapshots (see BalanceSnapshot). Instead of copying
+ * every balance when a snapshot is taken, the store notes an account's old balance the first
+ * time it changes afterwards. Taking a snapshot is then only starting a new epoch, and what it
+ * costs in time and memory grows with the accounts that change while it's open, not with the
+ * size of the book.
+ *
+ * An epoch runs from one snapshot to the next and holds, for each account changed during it,
+ * the balance the account had when it began. A snapshot's balance for an account is the one
+ * noted in its own epoch, or else in the first later epoch that noted one, or else the live
+ * balance, which hasn't changed since. The notes are kept per stripe of the store's locks and
+ * only touched by someone holding that stripe, so noting takes no locks of its own. While no
+ * snapshot is open, nothing is noted.
+ *
+ * Accounts are identified by the store's own index for them (a slot or record number).
+ */
+final class SnapshotLog {
+
+    // Noted for an account created after a snapshot, which isn't in it.
+    static final long ABSENT = Long.MIN_VALUE;
+    // Returned by noted() when the epoch has nothing for the account.
+    private static final long NOTHING = Long.MAX_VALUE;
+
+    // The old balances noted during one epoch: an open-addressing table per stripe, keys stored as index + 1.
+    static final class Epoch {
+        private final long[][] keys;
+        private final long[][] values;
+        private final int[] sizes;
+        private volatile Epoch newer;
+
+        private Epoch(int stripes) {
+            keys = new long[stripes][];
+            values = new long[stripes][];
+            sizes = new int[stripes];
+        }
+
+        private void note(int stripe, long index, long balance) {
+            long[] k = keys[stripe];
+            if (k == null || sizes[stripe] * 2 >= k.length) {
+                grow(stripe);
+                k = keys[stripe];
+            }
+            int mask = k.length - 1;
+            for (int i = slotOf(index, mask); ; i = (i + 1) & mask) {
+                if (k[i] == index + 1) {
+                    return; // the first change since the epoch began is the one that counts
+                }
+                if (k[i] == 0) {
+                    k[i] = index + 1;
+                    values[stripe][i] = balance;
+                    sizes[stripe]++;
+                    return;
+                }
+            }
+        }
+
+        private long noted(int stripe, long index) {
+            long[] k = keys[stripe];
+            if (k == null) {
+                return NOTHING;
+            }
+            int mask = k.length - 1;
+            for (int i = slotOf(index, mask); ; i = (i + 1) & mask) {
+                if (k[i] == index + 1) {
+                    return values[stripe][i];
+                }
+                if (k[i] == 0) {
+                    return NOTHING;
+                }
+            }
+        }
+
+        private void grow(int stripe) {
+            long[] oldKeys = keys[stripe];
+            long[] oldValues = values[stripe];
+            int size = oldKeys == null ? 16 : oldKeys.length * 2;
+            long[] k = new long[size];
+            long[] v = new long[size];
+            if (oldKeys != null) {
+                for (int j = 0; j < oldKeys.length; j++) {
+                    if (oldKeys[j] != 0) {
+                        int i = slotOf(oldKeys[j] - 1, size - 1);
+                        while (k[i] != 0) {
+                            i = (i + 1) & (size - 1);
+                        }
+                        k[i] = oldKeys[j];
+                        v[i] = oldValues[j];
+                    }
+                }
+            }
+            keys[stripe] = k;
+            values[stripe] = v;
+        }
+
+        private static int slotOf(long index, int mask) {
+            long h = index * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+
+    private final int stripes;
+    private volatile Epoch newest;  // the epoch changes are noted in; null while no snapshot is open
+    private int open;               // snapshots not yet closed; guarded by this
+
+    SnapshotLog(int stripes) {
+        this.stripes = stripes;
+    }
+
+    // Starts the epoch for a new snapshot. The caller must hold every stripe, so it is a single point in time.
+    synchronized Epoch open() {
+        Epoch epoch = new Epoch(stripes);
+        if (newest != null) {
+            newest.newer = epoch;
+        }
+        newest = epoch;
+        open++;
+        return epoch;
+    }
+
+    // Once every snapshot is closed, changes stop being noted and the epochs are left to the garbage collector.
+    synchronized void close() {
+        if (--open == 0) {
+            newest = null;
+        }
+    }
+
+    /**
+     * Notes the balance an account has just before it changes, or ABSENT just before it's
+     * created. The caller must hold the account's stripe.
+     */
+    void beforeChange(int stripe, long index, long balance) {
+        Epoch epoch = newest;
+        if (epoch != null) {
+            epoch.note(stripe, index, balance);
+        }
+    }
+
+    // True while changes are being noted, so a store can skip work for bulk changes when they aren't.
+    boolean active() {
+        return newest != null;
+    }
+
+    /**
+     * The account's balance as of the epoch's snapshot, given its live balance now; ABSENT if it
+     * didn't exist yet. The caller must hold the account's stripe.
+     */
+    static long balanceAt(Epoch epoch, int stripe, long index, long live) {
+        for (Epoch e = epoch; e != null; e = e.newer) {
+            long noted = e.noted(stripe, index);
+            if (noted != NOTHING) {
+                return noted;
+            }
+        }
+        return live;
+    }
+}
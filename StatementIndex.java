@@ -0,0 +1,435 @@
+package BANKING;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where each account's records are in a bank's journal, so a statement can be read without
+ * scanning the journal.
+ *
+ * The index is a memory-mapped file of 1KB pages. Each page belongs to one account and holds
+ * up to 60 entries of (timestamp, journal offset) in the order they were journaled, and an
+ * account's pages are numbered 0, 1, 2... So finding the first record of a date range is a
+ * binary search over that account's entries, and a page of statement is the next few entries,
+ * each one read from the journal at its offset. A transfer is listed under both accounts.
+ *
+ * Accounts with an AccountId are looked up by it in a table of longs, and only the rest, like
+ * the clearing account, by their number in a HashMap.
+ *
+ * The index is rebuilt from the journal when it is missing, and caught up from the journal
+ * position it was last saved at otherwise, the same way the accounts are (see JournalRecovery).
+ *
+ * File layout (little-endian):
+ *   page 0, header: magic, version, page size, then the journal position the saved index covers
+ *   pages 1..., 1024 bytes each:
+ *     0   int    state (0 = unused, 1 = in use)
+ *     4   int    page number within the account
+ *     8   int    entries in this page
+ *     12  byte   account number length, then up to 23 ASCII bytes
+ *     64  60 x (long timestamp, long journal offset)
+ */
+final class StatementIndex implements AutoCloseable {
+
+    static final int MAGIC = 0x58444953; // "SIDX"
+    static final int VERSION = 1;
+    static final int PAGE_SIZE = 1024;
+    static final int ENTRIES_PER_PAGE = 60;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_PAGE_SIZE = 8;
+    private static final int HEADER_COVERED = 16;
+
+    private static final int STATE = 0;
+    private static final int SEQUENCE = 4;
+    private static final int COUNT = 8;
+    private static final int ACCOUNT_LENGTH = 12;
+    private static final int ACCOUNT_BYTES = 13;
+    private static final int MAX_ACCOUNT_LENGTH = 23;
+    private static final int ENTRIES = 64;
+    private static final int ENTRY_SIZE = 16;
+
+    private static final int STATE_IN_USE = 1;
+
+    // Mapped 64MB at a time, so the file grows as pages are used.
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_PAGES = 1 << CHUNK_SHIFT;
+    private static final long CHUNK_BYTES = (long) CHUNK_PAGES * PAGE_SIZE;
+
+    // One account's pages, in order.
+    private static final class Account {
+        int[] pages = new int[4];
+        long entries;
+        long lastTimestamp;
+    }
+
+    // One page of an account's statement, oldest record first.
+    static final class Page {
+        final List<JournalRecord> records = new ArrayList<>();
+        final int pageNumber;
+        final int pageSize;
+        long matching;      // records in the whole date range
+
+        Page(int pageNumber, int pageSize) {
+            this.pageNumber = pageNumber;
+            this.pageSize = Math.max(1, pageSize);
+        }
+
+        boolean hasMore() {
+            return (long) (pageNumber + 1) * pageSize < matching;
+        }
+
+        int pageCount() {
+            return (int) ((matching + pageSize - 1) / pageSize);
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final JournalReader journal;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private final Map<String, Account> accounts = new HashMap<>();   // accounts with no id
+    private long[] ids = new long[64];                                 // open addressing, AccountId.NONE is empty
+    private Account[] byId = new Account[64];
+    private int idCount;
+    private int pageCount = 1; // the header page
+
+    private StatementIndex(Path path, Path journalFile) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.journal = new JournalReader(journalFile, 0);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Opens the index for a journal, creating or rebuilding it as needed, and indexes whatever
+     * the journal holds beyond what the index had saved.
+     */
+    static StatementIndex open(Path path, Path journalFile) throws IOException {
+        if (!Files.exists(journalFile)) {
+            Files.createFile(journalFile);
+        }
+        StatementIndex index = new StatementIndex(path, journalFile);
+        try {
+            long covered = index.load(Files.size(journalFile));
+            index.catchUp(journalFile, covered);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+    }
+
+    // Reads the saved pages, dropping entries past the saved position. Returns that position.
+    private long load(long journalSize) throws IOException {
+        boolean valid = header.getInt(HEADER_MAGIC) == MAGIC && header.getInt(HEADER_VERSION) == VERSION
+                && header.getInt(HEADER_PAGE_SIZE) == PAGE_SIZE && header.getLong(HEADER_COVERED) <= journalSize;
+        if (!valid) {
+            // New, or not for this journal any more: start again from the beginning of the journal.
+            channel.truncate(PAGE_SIZE);
+            for (int i = 0; i < PAGE_SIZE; i += 8) {
+                header.putLong(i, 0);
+            }
+            header.putInt(HEADER_MAGIC, MAGIC);
+            header.putInt(HEADER_VERSION, VERSION);
+            header.putInt(HEADER_PAGE_SIZE, PAGE_SIZE);
+            header.putLong(HEADER_COVERED, 0);
+            return 0;
+        }
+        long covered = header.getLong(HEADER_COVERED);
+        long pagesInFile = channel.size() / PAGE_SIZE;
+        while (pageCount < pagesInFile) {
+            MappedByteBuffer chunk = chunkOf(pageCount);
+            int at = offsetOf(pageCount);
+            if (chunk.getInt(at + STATE) != STATE_IN_USE) {
+                break;
+            }
+            int length = chunk.get(at + ACCOUNT_LENGTH);
+            long id = AccountId.parse(chunk, at + ACCOUNT_BYTES, length);
+            Account account;
+            if (id != AccountId.NONE) {
+                account = accountOf(id);
+                if (account == null) {
+                    account = new Account();
+                    putAccount(id, account);
+                }
+            } else {
+                byte[] accountNo = new byte[length];
+                chunk.get(at + ACCOUNT_BYTES, accountNo);
+                account = accounts.computeIfAbsent(new String(accountNo, StandardCharsets.US_ASCII), a -> new Account());
+            }
+            int sequence = chunk.getInt(at + SEQUENCE);
+            if (sequence >= account.pages.length) {
+                account.pages = Arrays.copyOf(account.pages, Math.max(sequence + 1, account.pages.length * 2));
+            }
+            account.pages[sequence] = pageCount;
+            account.entries += chunk.getInt(at + COUNT);
+            pageCount++;
+        }
+        // Entries are in journal order within an account, so anything the saved position doesn't cover is at the end.
+        for (Account account : accounts.values()) {
+            dropFrom(account, covered);
+        }
+        for (Account account : byId) {
+            if (account != null) {
+                dropFrom(account, covered);
+            }
+        }
+        return covered;
+    }
+
+    private void dropFrom(Account account, long covered) {
+        while (account.entries > 0 && offsetAt(account, account.entries - 1) >= covered) {
+            removeLast(account);
+        }
+        account.lastTimestamp = account.entries == 0 ? 0 : timestampAt(account, account.entries - 1);
+    }
+
+    private void catchUp(Path journalFile, long from) throws IOException {
+        try (JournalReader reader = new JournalReader(journalFile, from)) {
+            JournalRecord record = new JournalRecord();
+            long position = reader.position();
+            while (reader.next(record)) {
+                add(record, position);
+                position = reader.position();
+            }
+        }
+    }
+
+    // Indexes a record that starts at the given journal offset.
+    synchronized void add(JournalRecord record, long journalOffset) {
+        if (record.type == JournalRecord.END_OF_DAY) {
+            return; // belongs to every account, so to no one's statement in particular
+        }
+        addEntry(record.accountId, record.accountNo, record.timestamp, journalOffset);
+        if (record.type == JournalRecord.TRANSFER && record.hasCounterparty()) {
+            addEntry(record.counterpartyId, record.counterparty, record.timestamp, journalOffset);
+        }
+    }
+
+    // The account is named by its id, or by its number when the id is NONE.
+    private void addEntry(long id, String accountNo, long timestamp, long journalOffset) {
+        Account account;
+        if (id != AccountId.NONE) {
+            account = accountOf(id);
+            if (account == null) {
+                account = new Account();
+                putAccount(id, account);
+            }
+        } else {
+            if (accountNo.length() > MAX_ACCOUNT_LENGTH) {
+                return; // the account store refuses these too
+            }
+            account = accounts.get(accountNo);
+            if (account == null) {
+                account = new Account();
+                accounts.put(accountNo, account);
+            }
+        }
+        int slot = (int) (account.entries % ENTRIES_PER_PAGE);
+        int sequence = (int) (account.entries / ENTRIES_PER_PAGE);
+        if (slot == 0) {
+            newPage(account, id, accountNo, sequence);
+        }
+        int page = account.pages[sequence];
+        MappedByteBuffer chunk = chunkOf(page);
+        int at = offsetOf(page);
+        // Clocks can step back; the index keeps each account's times in order so it can be searched.
+        account.lastTimestamp = Math.max(account.lastTimestamp, timestamp);
+        chunk.putLong(at + ENTRIES + slot * ENTRY_SIZE, account.lastTimestamp);
+        chunk.putLong(at + ENTRIES + slot * ENTRY_SIZE + 8, journalOffset);
+        chunk.putInt(at + COUNT, slot + 1);
+        account.entries++;
+    }
+
+    private void newPage(Account account, long id, String accountNo, int sequence) {
+        int page = pageCount++;
+        if (sequence >= account.pages.length) {
+            account.pages = Arrays.copyOf(account.pages, account.pages.length * 2);
+        }
+        account.pages[sequence] = page;
+        MappedByteBuffer chunk = chunkOf(page);
+        int at = offsetOf(page);
+        chunk.putInt(at + SEQUENCE, sequence);
+        chunk.putInt(at + COUNT, 0);
+        if (id != AccountId.NONE) {
+            chunk.put(at + ACCOUNT_LENGTH, (byte) AccountId.length(id));
+            AccountId.putAscii(id, chunk, at + ACCOUNT_BYTES);
+        } else {
+            chunk.put(at + ACCOUNT_LENGTH, (byte) accountNo.length());
+            for (int i = 0; i < accountNo.length(); i++) {
+                chunk.put(at + ACCOUNT_BYTES + i, (byte) accountNo.charAt(i));
+            }
+        }
+        chunk.putInt(at + STATE, STATE_IN_USE);
+    }
+
+    private Account accountOf(long id) {
+        int mask = ids.length - 1;
+        for (int slot = AccountId.hash(id) & mask; ids[slot] != AccountId.NONE; slot = (slot + 1) & mask) {
+            if (ids[slot] == id) {
+                return byId[slot];
+            }
+        }
+        return null;
+    }
+
+    private void putAccount(long id, Account account) {
+        if (++idCount * 2 > ids.length) {
+            long[] oldIds = ids;
+            Account[] oldAccounts = byId;
+            ids = new long[oldIds.length * 2];
+            byId = new Account[oldIds.length * 2];
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldIds[i] != AccountId.NONE) {
+                    place(oldIds[i], oldAccounts[i]);
+                }
+            }
+        }
+        place(id, account);
+    }
+
+    private void place(long id, Account account) {
+        int mask = ids.length - 1;
+        int slot = AccountId.hash(id) & mask;
+        while (ids[slot] != AccountId.NONE) {
+            slot = (slot + 1) & mask;
+        }
+        ids[slot] = id;
+        byId[slot] = account;
+    }
+
+    private void removeLast(Account account) {
+        account.entries--;
+        int page = account.pages[(int) (account.entries / ENTRIES_PER_PAGE)];
+        int slot = (int) (account.entries % ENTRIES_PER_PAGE);
+        chunkOf(page).putInt(offsetOf(page) + COUNT, slot);
+    }
+
+    /**
+     * The account's records from fromMillis up to and including toMillis, pageSize at a time;
+     * pageNumber 0 is the oldest. Costs a binary search plus one journal read per record returned.
+     */
+    Page statement(String accountNo, long fromMillis, long toMillis, int pageNumber, int pageSize) throws IOException {
+        return statement(AccountId.parse(accountNo), accountNo, fromMillis, toMillis, pageNumber, pageSize);
+    }
+
+    // The same, for an account named by its id, or by its number when the id is NONE.
+    Page statement(long id, String accountNo, long fromMillis, long toMillis, int pageNumber, int pageSize) throws IOException {
+        Page page = new Page(pageNumber, pageSize);
+        long[] offsets;
+        synchronized (this) {
+            Account account = id != AccountId.NONE ? accountOf(id) : accounts.get(accountNo);
+            if (account == null || pageSize <= 0 || pageNumber < 0) {
+                return page;
+            }
+            long first = firstAtOrAfter(account, fromMillis);
+            long end = toMillis == Long.MAX_VALUE ? account.entries : firstAtOrAfter(account, toMillis + 1);
+            page.matching = Math.max(0, end - first);
+            long start = first + (long) pageNumber * pageSize;
+            int count = (int) Math.max(0, Math.min(pageSize, end - start));
+            offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = offsetAt(account, start + i);
+            }
+        }
+        for (long offset : offsets) {
+            JournalRecord record = new JournalRecord();
+            if (journal.readAt(offset, record)) {
+                page.records.add(record);
+            }
+        }
+        return page;
+    }
+
+    // Index of the account's first entry at or after the time, or its entry count if there is none.
+    private long firstAtOrAfter(Account account, long millis) {
+        long low = 0;
+        long high = account.entries;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (timestampAt(account, mid) < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    synchronized long entries(String accountNo) {
+        long id = AccountId.parse(accountNo);
+        Account account = id != AccountId.NONE ? accountOf(id) : accounts.get(accountNo);
+        return account == null ? 0 : account.entries;
+    }
+
+    /**
+     * Saves the index as covering the journal up to the given position. Every record before it
+     * must already have been added; the Ledger calls this from its checkpoint.
+     */
+    synchronized void force(long journalPosition) {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        header.putLong(HEADER_COVERED, journalPosition);
+        header.force();
+    }
+
+    @Override
+    public void close() {
+        try {
+            journal.close();
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing statement index " + path + ": " + e.getMessage());
+        }
+    }
+
+    private long timestampAt(Account account, long entry) {
+        int page = account.pages[(int) (entry / ENTRIES_PER_PAGE)];
+        return chunkOf(page).getLong(offsetOf(page) + ENTRIES + (int) (entry % ENTRIES_PER_PAGE) * ENTRY_SIZE);
+    }
+
+    private long offsetAt(Account account, long entry) {
+        int page = account.pages[(int) (entry / ENTRIES_PER_PAGE)];
+        return chunkOf(page).getLong(offsetOf(page) + ENTRIES + (int) (entry % ENTRIES_PER_PAGE) * ENTRY_SIZE + 8);
+    }
+
+    private MappedByteBuffer chunkOf(int page) {
+        int chunk = page >>> CHUNK_SHIFT;
+        if (chunk >= chunks.length) {
+            mapChunks(chunk + 1);
+        }
+        return chunks[chunk];
+    }
+
+    private static int offsetOf(int page) {
+        return (page & (CHUNK_PAGES - 1)) * PAGE_SIZE;
+    }
+
+    private void mapChunks(int count) {
+        MappedByteBuffer[] bigger = Arrays.copyOf(chunks, count);
+        try {
+            for (int i = chunks.length; i < count; i++) {
+                bigger[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * CHUNK_BYTES, CHUNK_BYTES);
+                bigger[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error growing statement index " + path + ": " + e.getMessage(), e);
+        }
+        chunks = bigger;
+    }
+}
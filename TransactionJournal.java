@@ -0,0 +1,548 @@
+package BANKING;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived, append-only transaction journal with group commit.
+ * Instead of every operation opening, appending to and closing the file,
+ * callers copy their record into a shared buffer and a single flusher thread
+ * writes everything that has piled up as one batch (and one fsync).
+ * Callers that need durability wait until the batch holding their record is written.
+ *
+ * Appending takes no lock and allocates nothing. A caller claims the next bytes of the file
+ * with one atomic add, copies its record to the same place in a preallocated direct ring
+ * buffer, and fills in a note of the range in the next of a fixed ring of slots for the
+ * flusher. The flusher writes the ring from where it left off up to the first range not yet
+ * copied in, with one gathering write (two slices when it wraps around the end of the ring).
+ * Only callers that wait, and appends that find the ring full, ever take a lock.
+ *
+ * A batch that fails to write is cut back off the file, and the journal takes no more records
+ * after it: every append from then on throws, and so does waiting on any record from the failed
+ * batch on. Positions always stay the file offsets the records would have had, and the file
+ * never has a gap. Closing the journal stops appends the same way.
+ *
+ * The ack policy says whether an operation waits for its record at all (see awaitAck()).
+ * It comes from the banking.journal.* system properties or configure(), read when a journal
+ * is opened. How long records sit in the ring before they are written is kept as the flush
+ * lag (see flushLag()).
+ */
+class TransactionJournal implements AutoCloseable {
+
+    // How hard each batch is pushed to disk once it has been written.
+    enum SyncPolicy {
+        NONE,   // leave it in the OS page cache, like the old FileWriter did
+        BATCH   // force() once per batch before anyone waiting on it is released
+    }
+
+    // When an operation whose record has been appended counts as done.
+    enum AckPolicy {
+        DURABLE,         // once the batch holding the record is written (and forced, with SyncPolicy.BATCH)
+        FIRE_AND_FORGET  // at once; a failed write is reported by the flusher, and appends fail from then on
+    }
+
+    static final int DEFAULT_BUFFER_BYTES = 1 << 20;
+    static final long DEFAULT_BATCH_WINDOW_MICROS = 0;
+    // Slots for appended ranges: one per 32 bytes of ring, enough for short lines, from 1K to 64K of them.
+    private static final int MIN_PENDING_SLOTS = 1 << 10;
+    private static final int MAX_PENDING_SLOTS = 1 << 16;
+
+    // Added to appendedBytes once the journal takes no more records, making it negative.
+    private static final long SEALED = Long.MIN_VALUE;
+
+    // Read together, so a journal never mixes two configurations.
+    private static final class Settings {
+        final SyncPolicy syncPolicy;
+        final AckPolicy ackPolicy;
+
+        Settings(SyncPolicy syncPolicy, AckPolicy ackPolicy) {
+            this.syncPolicy = syncPolicy;
+            this.ackPolicy = ackPolicy;
+        }
+    }
+
+    private static volatile Settings settings = new Settings(SyncPolicy.NONE, AckPolicy.DURABLE);
+
+    static {
+        try {
+            configure(SyncPolicy.valueOf(System.getProperty("banking.journal.sync", "none").toUpperCase(Locale.ROOT)),
+                    AckPolicy.valueOf(System.getProperty("banking.journal.ack", "durable").toUpperCase(Locale.ROOT)
+                            .replace('-', '_')));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error in journal settings, using the defaults: " + e.getMessage());
+        }
+    }
+
+    // One appended record's range of journal positions, on its way to the flusher. Slot t % pending.length
+    // is free for ticket t when its sequence is t, and holds that ticket's range once it is t + 1.
+    private static final class Pending {
+        volatile long sequence;
+        long start;
+        long end;
+        long appendNanos;
+    }
+
+    private final String fileName;
+    private final SyncPolicy syncPolicy;
+    private final AckPolicy ackPolicy;
+    private final long batchWindowNanos;
+    private final int maxRecordBytes;
+
+    // Position p of the journal is kept at ring[p & mask] until it has been written.
+    private final ByteBuffer ring;
+    private final long mask;
+    // Positions are file offsets: they start at the size the file had when the journal was opened.
+    private final AtomicLong appendedBytes;  // end of the last range claimed by append(), plus SEALED once sealed
+    private volatile long sealedAt = -1;     // appendedBytes when it was sealed; set under lock
+    private volatile long processedBytes;    // end of the last batch that has finished, successfully or not
+    private volatile boolean closed;
+    private volatile boolean stopped;        // the flusher has written its last batch
+
+    // Appended ranges, handed to the single flusher in ticket order through a fixed ring of slots.
+    private final AtomicLong tickets = new AtomicLong();
+    private final Pending[] pending;
+    private final int slotMask;
+    private volatile boolean flusherIdle;
+
+    // Only touched by the flusher thread.
+    private long nextTicket;
+    private long copied;  // the ring holds every record before this position
+    // Ranges taken ahead of one whose appender hasn't finished copying, held until it has: a heap by start.
+    private long[] heldStart = new long[16];
+    private long[] heldEnd = new long[16];
+    private long[] heldNanos = new long[16];
+    private int held;
+    private final ByteBuffer[] slices = new ByteBuffer[2];
+    private FileChannel channel;
+
+    // Callers waiting for a batch, or for room in the ring, wait on this.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchWritten = lock.newCondition();
+    // The first failed write, and where its batch started; every position past that is lost with it.
+    private volatile IOException failure;
+    private long failedFrom;
+    private volatile long failedBatches;
+
+    private final LatencyHistogram flushLag = new LatencyHistogram();
+    private final LongAdder batches = new LongAdder();
+    private final Thread flusher;
+
+    public TransactionJournal(String fileName) {
+        this(fileName, settings.syncPolicy, DEFAULT_BATCH_WINDOW_MICROS, DEFAULT_BUFFER_BYTES);
+    }
+
+    public TransactionJournal(String fileName, SyncPolicy syncPolicy, long batchWindowMicros, int bufferBytes) {
+        this(fileName, syncPolicy, settings.ackPolicy, batchWindowMicros, bufferBytes);
+    }
+
+    /**
+     * Opens the journal for appending. The ring holds 2 * bufferBytes, rounded up to a power of
+     * two, like the pair of buffers it replaced; a single record can be at most bufferBytes.
+     */
+    public TransactionJournal(String fileName, SyncPolicy syncPolicy, AckPolicy ackPolicy, long batchWindowMicros,
+                              int bufferBytes) {
+        if (bufferBytes < 1 || bufferBytes > 1 << 29) {
+            throw new IllegalArgumentException("Journal buffer must be 1 byte to 512 MB, not " + bufferBytes);
+        }
+        this.fileName = fileName;
+        this.syncPolicy = syncPolicy;
+        this.ackPolicy = ackPolicy;
+        this.batchWindowNanos = TimeUnit.MICROSECONDS.toNanos(batchWindowMicros);
+        this.maxRecordBytes = bufferBytes;
+        int capacity = Integer.highestOneBit(2 * bufferBytes - 1) << 1;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        this.mask = capacity - 1;
+        this.slices[0] = ring.duplicate();
+        this.slices[1] = ring.duplicate();
+        long size = new File(fileName).length();
+        this.appendedBytes = new AtomicLong(size);
+        this.processedBytes = size;
+        this.copied = size;
+        this.pending = new Pending[Math.max(MIN_PENDING_SLOTS, Math.min(MAX_PENDING_SLOTS, capacity / 32))];
+        this.slotMask = pending.length - 1;
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = new Pending();
+            pending[i].sequence = i;
+        }
+        this.flusher = new Thread(this::flushLoop, "journal-flusher-" + fileName);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // Sets the policies for journals opened from now on without giving them explicitly.
+    static void configure(SyncPolicy syncPolicy, AckPolicy ackPolicy) {
+        if (syncPolicy == null || ackPolicy == null) {
+            throw new IllegalArgumentException("Journal policies can't be null");
+        }
+        settings = new Settings(syncPolicy, ackPolicy);
+    }
+
+    AckPolicy ackPolicy() {
+        return ackPolicy;
+    }
+
+    // Appends one line and, under the DURABLE policy, waits until it is on disk (or the batch holding it failed).
+    public void writeLine(String line) throws IOException {
+        awaitAck(append((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Queues a record for the next batch without waiting for it to be written.
+     * @return The journal position just past this record, to pass to {@link #awaitDurable(long)}.
+     */
+    public long append(byte[] record) throws IOException {
+        if (record.length > maxRecordBytes) {
+            throw new IOException("Record of " + record.length + " bytes exceeds journal buffer of " + maxRecordBytes);
+        }
+        long appendNanos = System.nanoTime();
+        long start = appendedBytes.getAndAdd(record.length);
+        if (start < 0) {
+            throw sealedError();
+        }
+        long end = start + record.length;
+        // Back-pressure: the bytes this record goes over must have been written out already.
+        if (end - processedBytes > ring.capacity()) {
+            awaitProcessed(end - ring.capacity());
+        }
+        // Take a ticket straight away, so tickets mostly come in the order of the ranges they are for.
+        long ticket = tickets.getAndIncrement();
+        int offset = (int) (start & mask);
+        int first = Math.min(record.length, ring.capacity() - offset);
+        ring.put(offset, record, 0, first);
+        if (first < record.length) {
+            ring.put(0, record, first, record.length - first);
+        }
+
+        Pending slot = pending[(int) ticket & slotMask];
+        while (slot.sequence != ticket) {
+            // A whole ring of slots ahead of the flusher; it frees them as soon as it runs.
+            LockSupport.unpark(flusher);
+            Thread.yield();
+        }
+        slot.start = start;
+        slot.end = end;
+        slot.appendNanos = appendNanos;
+        slot.sequence = ticket + 1;
+        if (flusherIdle) {
+            LockSupport.unpark(flusher);
+        }
+        return end;
+    }
+
+    // The file offset just past the last record appended so far.
+    public long position() {
+        long claimed = appendedBytes.get();
+        if (claimed >= 0) {
+            return claimed;
+        }
+        lock.lock();
+        try {
+            return sealedAt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once the journal takes no more records: closed, or stopped by a failed write. Takes no lock.
+    public boolean sealed() {
+        return appendedBytes.get() < 0 || failure != null;
+    }
+
+    // How far the file is behind the records appended so far, in bytes. Takes no lock unless sealed, so it may be a moment out of date.
+    public long lagBytes() {
+        return position() - processedBytes;
+    }
+
+    // Waits for the record ending at the position as the ack policy says: awaitDurable() under DURABLE, not at all otherwise.
+    public void awaitAck(long position) throws IOException {
+        if (ackPolicy == AckPolicy.DURABLE) {
+            awaitDurable(position);
+        }
+    }
+
+    // Blocks until every record up to the given position has been written, or rethrows the error that lost it.
+    public void awaitDurable(long position) throws IOException {
+        if (processedBytes >= position && failure == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (true) {
+                if (failure != null && position > failedFrom) {
+                    throw failure;
+                }
+                if (processedBytes >= position) {
+                    return;
+                }
+                if (stopped) {
+                    throw new IOException("Journal " + fileName + " closed before position " + position + " was written");
+                }
+                batchWritten.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // How long records waited between append() and the end of the batch that wrote them, one value per batch for its oldest record.
+    LatencyHistogram.Snapshot flushLag() {
+        return flushLag.snapshot();
+    }
+
+    long batches() {
+        return batches.sum();
+    }
+
+    // Batches that failed to write, and those after them that were never tried.
+    long failedBatches() {
+        return failedBatches;
+    }
+
+    // Flushes whatever is pending, stops the flusher thread and closes the file.
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            seal();
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // Stops appendedBytes taking any more claims, and keeps where it stopped. The caller holds lock.
+    private void seal() {
+        if (sealedAt < 0) {
+            sealedAt = appendedBytes.getAndAdd(SEALED);
+        }
+    }
+
+    private IOException sealedError() {
+        IOException cause = failure;
+        return cause == null ? new IOException("Journal " + fileName + " is closed")
+                : new IOException("Journal " + fileName + " takes no more records after a failed write: " + cause.getMessage(), cause);
+    }
+
+    private void awaitProcessed(long position) throws IOException {
+        lock.lock();
+        try {
+            while (processedBytes < position) {
+                if (stopped) {
+                    throw new IOException("Journal " + fileName + " is closed");
+                }
+                batchWritten.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (awaitWork()) {
+            // Give other writers a short window to join this batch, unless the ring is already half full.
+            // Without a window, still let appenders that are already running finish first: the
+            // append that woke the flusher is usually one of several on their way.
+            if (batchWindowNanos > 0 && lagBytes() < ring.capacity() / 2) {
+                LockSupport.parkNanos(batchWindowNanos);
+            } else {
+                Thread.yield();
+            }
+            long batchStart = copied;
+            long oldest = takeCopied();
+            if (copied == batchStart) {
+                continue; // only records behind one that hasn't been copied in yet
+            }
+            // After a failed write, the batches already appended behind it are only marked as lost.
+            boolean tried = failure == null;
+            IOException error = tried ? writeBatch(batchStart, copied) : null;
+            if (oldest != Long.MAX_VALUE) {
+                flushLag.recordSince(oldest);
+            }
+            batches.increment();
+            if (error != null && ackPolicy == AckPolicy.FIRE_AND_FORGET) {
+                System.out.println("Error writing to transaction file " + fileName + ", nothing more will be written to it: "
+                        + error.getMessage());
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                    failedFrom = batchStart;
+                    seal();
+                }
+                if (!tried || error != null) {
+                    failedBatches++;
+                }
+                processedBytes = copied;
+                batchWritten.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        lock.lock();
+        try {
+            stopped = true;
+            batchWritten.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Parks until something has been appended; false once closed with every claimed range written.
+    private boolean awaitWork() {
+        while (true) {
+            if (published()) {
+                return true;
+            }
+            if (closed) {
+                if (copied == sealedAt) {
+                    return false;
+                }
+                // An append that claimed its range before the close is still copying.
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            flusherIdle = true;
+            if (!published() && !closed) {
+                LockSupport.park(this);
+            }
+            flusherIdle = false;
+        }
+    }
+
+    // Whether the next ticket's range has been filled in.
+    private boolean published() {
+        return pending[(int) nextTicket & slotMask].sequence == nextTicket + 1;
+    }
+
+    /**
+     * Takes every filled-in slot, freeing it for reuse, and moves copied past every range that is
+     * now contiguous. Returns the earliest append time among the ranges it moved past.
+     */
+    private long takeCopied() {
+        long oldest = Long.MAX_VALUE;
+        while (published()) {
+            Pending slot = pending[(int) nextTicket & slotMask];
+            long start = slot.start;
+            long end = slot.end;
+            long appendNanos = slot.appendNanos;
+            slot.sequence = nextTicket + pending.length;
+            nextTicket++;
+            if (start != copied) {
+                // Claimed after a range whose appender hasn't finished copying; held until it has.
+                hold(start, end, appendNanos);
+                continue;
+            }
+            copied = end;
+            oldest = Math.min(oldest, appendNanos);
+            while (held > 0 && heldStart[0] == copied) {
+                copied = heldEnd[0];
+                oldest = Math.min(oldest, heldNanos[0]);
+                unholdFirst();
+            }
+        }
+        return oldest;
+    }
+
+    private void hold(long start, long end, long appendNanos) {
+        if (held == heldStart.length) {
+            heldStart = Arrays.copyOf(heldStart, 2 * held);
+            heldEnd = Arrays.copyOf(heldEnd, 2 * held);
+            heldNanos = Arrays.copyOf(heldNanos, 2 * held);
+        }
+        int i = held++;
+        while (i > 0 && heldStart[(i - 1) / 2] > start) {
+            moveHeld((i - 1) / 2, i);
+            i = (i - 1) / 2;
+        }
+        heldStart[i] = start;
+        heldEnd[i] = end;
+        heldNanos[i] = appendNanos;
+    }
+
+    private void unholdFirst() {
+        held--;
+        long start = heldStart[held];
+        int i = 0;
+        while (2 * i + 1 < held) {
+            int child = 2 * i + 1;
+            if (child + 1 < held && heldStart[child + 1] < heldStart[child]) {
+                child++;
+            }
+            if (heldStart[child] >= start) {
+                break;
+            }
+            moveHeld(child, i);
+            i = child;
+        }
+        moveHeld(held, i);
+    }
+
+    private void moveHeld(int from, int to) {
+        heldStart[to] = heldStart[from];
+        heldEnd[to] = heldEnd[from];
+        heldNanos[to] = heldNanos[from];
+    }
+
+    // Writes ring positions [from, to) to the end of the file with one gathering write.
+    private IOException writeBatch(long from, long to) {
+        int offset = (int) (from & mask);
+        int length = (int) (to - from);
+        int first = Math.min(length, ring.capacity() - offset);
+        slices[0].limit(offset + first).position(offset);
+        slices[1].limit(length - first).position(0);
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(Paths.get(fileName),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            while (slices[0].hasRemaining() || slices[1].hasRemaining()) {
+                channel.write(slices);
+            }
+            if (syncPolicy == SyncPolicy.BATCH) {
+                channel.force(false);
+            }
+            return null;
+        } catch (IOException e) {
+            // Cut off whatever part of the batch made it, so the file still ends on a whole record, and drop the handle.
+            try {
+                if (channel != null) {
+                    try {
+                        channel.truncate(from);
+                    } finally {
+                        channel.close();
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+            channel = null;
+            return e;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package BANKING;
+
+/**
+ * The checks behind the Deposit, Withdraw and Transfer menu options, without the prompts,
+ * so the interactive menus and batch posting apply exactly the same rules.
+ *
+ * Each method returns the account's new balance (never negative) on success, or one of
+ * the negative result codes below. Nothing is allocated on the way: each account number is
+ * parsed into its AccountId once, here, and the store is called by id from then on (by
+ * number only for accounts that have no id).
+ */
+final class Transactions {
+
+    static final long INSUFFICIENT_FUNDS = AccountStore.INSUFFICIENT_FUNDS;
+    static final long INVALID_AMOUNT = AccountStore.INVALID_AMOUNT;
+    static final long NO_SUCH_ACCOUNT = -3;
+    static final long NO_SUCH_TARGET = -4;
+    static final long SAME_ACCOUNT = -5;
+    static final long RATE_LIMITED = -6;  // too many operations on the account or the bank just now
+    static final long BUSY = -7;          // the journal has fallen behind; nothing was done
+    static final long SCREENED = -8;      // a transfer outside the sender's velocity limits (see VelocityScreen)
+    static final long ACCOUNT_EXISTS = AccountStore.ACCOUNT_EXISTS;
+    static final long INVALID_ACCOUNT = AccountStore.INVALID_ACCOUNT;
+    static final long STORE_FULL = AccountStore.STORE_FULL;
+    static final long JOURNAL_FAILED = -12;  // the journal can't record it, so it won't survive a restart; see Ledger
+
+    private Transactions() {
+    }
+
+    static boolean succeeded(long result) {
+        return result >= 0;
+    }
+
+    // True for refusals that say nothing about the operation itself, so the same one may work if tried again later.
+    static boolean retryable(long result) {
+        return result == RATE_LIMITED || result == BUSY;
+    }
+
+    // A short, fixed name for a result code, as written to batch result files.
+    static String describe(long result) {
+        if (result >= 0) {
+            return "OK";
+        } else if (result == INSUFFICIENT_FUNDS) {
+            return "INSUFFICIENT_FUNDS";
+        } else if (result == INVALID_AMOUNT) {
+            return "INVALID_AMOUNT";
+        } else if (result == NO_SUCH_ACCOUNT) {
+            return "NO_SUCH_ACCOUNT";
+        } else if (result == NO_SUCH_TARGET) {
+            return "NO_SUCH_TARGET";
+        } else if (result == SAME_ACCOUNT) {
+            return "SAME_ACCOUNT";
+        } else if (result == RATE_LIMITED) {
+            return "RATE_LIMITED";
+        } else if (result == BUSY) {
+            return "BUSY";
+        } else if (result == SCREENED) {
+            return "SCREENED";
+        } else if (result == ACCOUNT_EXISTS) {
+            return "ACCOUNT_EXISTS";
+        } else if (result == INVALID_ACCOUNT) {
+            return "INVALID_ACCOUNT";
+        } else if (result == STORE_FULL) {
+            return "STORE_FULL";
+        } else if (result == JOURNAL_FAILED) {
+            return "JOURNAL_FAILED";
+        }
+        return "UNKNOWN";
+    }
+
+    static long deposit(AccountStore accounts, String accountNo, long amount) {
+        long id = AccountId.parse(accountNo);
+        if (!accounts.exists(id, accountNo)) {
+            return NO_SUCH_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return INVALID_AMOUNT;
+        }
+        return accounts.deposit(id, accountNo, amount);
+    }
+
+    static long withdraw(AccountStore accounts, String accountNo, long amount) {
+        long id = AccountId.parse(accountNo);
+        if (!accounts.exists(id, accountNo)) {
+            return NO_SUCH_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return INVALID_AMOUNT;
+        }
+        return accounts.withdraw(id, accountNo, amount);
+    }
+
+    // What to tell a customer about a refusal, as one sentence. Every menu uses this, so a new code only needs adding here.
+    static String message(long result) {
+        if (result == INSUFFICIENT_FUNDS) {
+            return "Insufficient balance.";
+        } else if (result == INVALID_AMOUNT) {
+            return "Invalid amount: it must be positive, and no balance can go past the most an account can hold.";
+        } else if (result == NO_SUCH_ACCOUNT) {
+            return "Account does not exist.";
+        } else if (result == NO_SUCH_TARGET) {
+            return "Target account does not exist.";
+        } else if (result == SAME_ACCOUNT) {
+            return "Cannot transfer to your own account.";
+        } else if (retryable(result)) {
+            return "Too many requests just now. Please try again in a moment.";
+        } else if (result == SCREENED) {
+            return "This transfer is outside your account's usual limits and was not made. Please contact the bank.";
+        } else if (result == ACCOUNT_EXISTS) {
+            return "Account number already exists! Try a different one.";
+        } else if (result == INVALID_ACCOUNT) {
+            return "That account number can't be used. Use up to 23 plain letters and digits.";
+        } else if (result == STORE_FULL) {
+            return "No new accounts can be opened just now. Please try again later.";
+        } else if (result == JOURNAL_FAILED) {
+            return "The bank can't record transactions just now, so this one was not made. Please contact the bank.";
+        }
+        return "That didn't work (" + describe(result) + ").";
+    }
+
+    // The OTP step is the caller's business; this is what happens once it has passed.
+    static long transfer(AccountStore accounts, String accountNo, String targetAccount, long amount) {
+        long id = AccountId.parse(accountNo);
+        if (!accounts.exists(id, accountNo)) {
+            return NO_SUCH_ACCOUNT;
+        }
+        long targetId = AccountId.parse(targetAccount);
+        long check = checkTransferTarget(accounts, id, accountNo, targetId, targetAccount);
+        if (check < 0) {
+            return check;
+        }
+        if (amount <= 0) {
+            return INVALID_AMOUNT;
+        }
+        return accounts.transfer(id, accountNo, targetId, targetAccount, amount);
+    }
+
+    // The checks the menus make on the target account before asking for an amount. Returns 0 if it's fine.
+    // The clearing account is the bank's own (see InterBankTransfers), so to customers it doesn't exist.
+    static long checkTransferTarget(AccountStore accounts, String accountNo, String targetAccount) {
+        return checkTransferTarget(accounts, AccountId.parse(accountNo), accountNo, AccountId.parse(targetAccount), targetAccount);
+    }
+
+    private static long checkTransferTarget(AccountStore accounts, long id, String accountNo, long targetId, String targetAccount) {
+        if (targetId == AccountId.NONE && InterBankTransfers.CLEARING_ACCOUNT.equals(targetAccount)
+                || !accounts.exists(targetId, targetAccount)) {
+            return NO_SUCH_TARGET;
+        }
+        if (targetId != AccountId.NONE ? targetId == id : targetAccount.equals(accountNo)) {
+            return SAME_ACCOUNT;
+        }
+        return 0;
+    }
+}
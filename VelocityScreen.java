@@ -0,0 +1,447 @@
+package BANKING;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Velocity checks on transfers, made before any money moves: how many transfers an account
+ * has sent, and how much, over the last minute, hour and day, and whether it's paying someone
+ * new. A transfer that would take any of these past its limit is turned away as
+ * Transactions.SCREENED.
+ *
+ * Each window is a ring of buckets: the minute is 6 buckets of 10 seconds, the hour 12 of 5
+ * minutes, and the day 24 of an hour. A bucket is one long, a count in the top 16 bits and an
+ * amount in the low 48, both stopping at their maximum rather than wrapping. Moving on in time
+ * just zeroes the buckets passed over, so a window covers its length give or take a bucket.
+ * The day has a second ring counting first transfers to new payees.
+ *
+ * An account's rings, the hash of its number and the time it last sent a transfer are one
+ * entry of 68 longs in a single long[]. There is a fixed number of entries, sized for the
+ * accounts sending money within a day, grouped in sets of 4. An account can go in any entry
+ * of one of two sets picked by its hash. When all 8 are taken by other accounts, the one idle
+ * longest gives its entry up and forgets its history, so busy accounts (the ones worth
+ * watching) keep theirs. Payees an account
+ * has sent money to are remembered in a fixed table of (sender, payee) hashes, any of 4 slots
+ * picked by the hash, so two pairs landing on the same slot don't keep pushing each other out
+ * and counting as new payees every time; a pair pushed out when all 4 are taken just counts as
+ * new again.
+ *
+ * Each entry is guarded by one of a set of striped locks, so checking and recording a transfer
+ * is one step. A transfer screened in is counted at once, so two at the same moment can't both
+ * slip under a limit; if the money then doesn't move, release() takes it back out again.
+ * The limits come from the banking.screen.* system properties or configure(); a limit of 0 is
+ * no limit. A ledger reads them when it opens.
+ */
+final class VelocityScreen {
+
+    static final int MINUTE = 0;
+    static final int HOUR = 1;
+    static final int DAY = 2;
+    private static final int NEW_PAYEES = 3;
+
+    private static final long[] BUCKET_NANOS = {10_000_000_000L, 300_000_000_000L, 3_600_000_000_000L, 3_600_000_000_000L};
+    private static final int[] RING = {6, 12, 24, 24};
+    private static final int[] RING_AT = {2, 8, 20, 44};  // where each ring starts in an entry
+    private static final int HASH = 0;
+    private static final int LAST_NANOS = 1;
+    static final int ENTRY_LONGS = 68;
+
+    private static final int COUNT_SHIFT = 48;
+    private static final long AMOUNT_MASK = (1L << COUNT_SHIFT) - 1;
+    private static final long COUNT_MAX = 0xFFFF;
+    private static final long DAY_NANOS = 86_400_000_000_000L;
+
+    // What screen() returns for a transfer let through to a payee the account hadn't paid before.
+    static final long NEW_PAYEE = 1;
+
+    static final int DEFAULT_ACCOUNTS = 1 << 16;
+    static final int DEFAULT_PAYEES = 1 << 20;
+    private static final int WAYS = 4;
+    private static final int PAYEE_WAYS = 4;
+    private static final int STRIPES = 256;
+
+    /** The limits, read together so a ledger never mixes two configurations. 0 means no limit. */
+    static final class Rules {
+        static final Rules NONE = new Rules(new int[3], new long[3], 0, 0);
+
+        final int[] maxCount;      // transfers, by MINUTE, HOUR and DAY
+        final long[] maxAmount;    // minor units, by MINUTE, HOUR and DAY
+        final long maxNewPayeeAmount;
+        final int maxNewPayeesPerDay;
+
+        Rules(int[] maxCount, long[] maxAmount, long maxNewPayeeAmount, int maxNewPayeesPerDay) {
+            if (maxCount.length != 3 || maxAmount.length != 3) {
+                throw new IllegalArgumentException("Need a count and an amount for the minute, hour and day");
+            }
+            for (int w = MINUTE; w <= DAY; w++) {
+                if (maxCount[w] < 0 || maxAmount[w] < 0) {
+                    throw new IllegalArgumentException("Limits can't be negative");
+                }
+            }
+            if (maxNewPayeeAmount < 0 || maxNewPayeesPerDay < 0) {
+                throw new IllegalArgumentException("Limits can't be negative");
+            }
+            this.maxCount = maxCount.clone();
+            this.maxAmount = maxAmount.clone();
+            this.maxNewPayeeAmount = maxNewPayeeAmount;
+            this.maxNewPayeesPerDay = maxNewPayeesPerDay;
+        }
+
+        boolean off() {
+            for (int w = MINUTE; w <= DAY; w++) {
+                if (maxCount[w] > 0 || maxAmount[w] > 0) {
+                    return false;
+                }
+            }
+            return maxNewPayeeAmount == 0 && maxNewPayeesPerDay == 0;
+        }
+    }
+
+    private static volatile Rules rules = new Rules(new int[] {10, 60, 200},
+            new long[] {200_000 * Money.MINOR_UNITS, 1_000_000 * Money.MINOR_UNITS, 5_000_000 * Money.MINOR_UNITS},
+            100_000 * Money.MINOR_UNITS, 5);
+    private static volatile int accountEntries = DEFAULT_ACCOUNTS;
+
+    static {
+        try {
+            Rules defaults = rules;
+            configure(new Rules(
+                    new int[] {Integer.getInteger("banking.screen.minuteCount", defaults.maxCount[MINUTE]),
+                            Integer.getInteger("banking.screen.hourCount", defaults.maxCount[HOUR]),
+                            Integer.getInteger("banking.screen.dayCount", defaults.maxCount[DAY])},
+                    new long[] {amountProperty("banking.screen.minuteAmount", defaults.maxAmount[MINUTE]),
+                            amountProperty("banking.screen.hourAmount", defaults.maxAmount[HOUR]),
+                            amountProperty("banking.screen.dayAmount", defaults.maxAmount[DAY])},
+                    amountProperty("banking.screen.newPayeeAmount", defaults.maxNewPayeeAmount),
+                    Integer.getInteger("banking.screen.newPayeesPerDay", defaults.maxNewPayeesPerDay)),
+                    Integer.getInteger("banking.screen.accounts", DEFAULT_ACCOUNTS));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error in screening settings, using the defaults: " + e.getMessage());
+        }
+    }
+
+    private final Rules limits;
+    private final long[] entries;       // null when screening is off
+    private final int setMask;
+    private final AtomicLongArray payees;
+    private final int payeeMask;
+    private final Object[] stripes = new Object[STRIPES];
+    private final LongAdder screened = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    VelocityScreen() {
+        this(rules, accountEntries, DEFAULT_PAYEES);
+    }
+
+    VelocityScreen(Rules limits, int accounts, int payeePairs) {
+        this.limits = limits;
+        int sets = Integer.highestOneBit(Math.max(2, accounts / WAYS) - 1) << 1;
+        this.entries = limits.off() ? null : new long[sets * WAYS * ENTRY_LONGS];
+        this.setMask = sets - 1;
+        int pairs = Integer.highestOneBit(Math.max(PAYEE_WAYS, payeePairs) - 1) << 1;
+        this.payees = new AtomicLongArray(limits.off() ? 1 : pairs);
+        this.payeeMask = limits.off() ? 0 : (pairs - 1) & -PAYEE_WAYS;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    // Sets the limits, and how many accounts to keep track of, for ledgers opened from now on.
+    static void configure(Rules newRules, int accounts) {
+        if (accounts < 2) {
+            throw new IllegalArgumentException("Need room for at least 2 accounts, not " + accounts);
+        }
+        rules = newRules;
+        accountEntries = accounts;
+    }
+
+    /**
+     * How many transfers of amount one account can send to the same payee in a day before the
+     * limits ledgers opened from now on would screen one out; Integer.MAX_VALUE if none would.
+     */
+    static int transfersAllowed(long amount) {
+        Rules current = rules;
+        if (current.maxNewPayeeAmount > 0 && amount > current.maxNewPayeeAmount) {
+            return 0;
+        }
+        long allowed = Integer.MAX_VALUE;
+        for (int w = MINUTE; w <= DAY; w++) {
+            if (current.maxCount[w] > 0) {
+                allowed = Math.min(allowed, current.maxCount[w]);
+            }
+            if (current.maxAmount[w] > 0) {
+                allowed = Math.min(allowed, current.maxAmount[w] / Math.max(1, amount));
+            }
+        }
+        return (int) allowed;
+    }
+
+    /**
+     * 0, or NEW_PAYEE if it's the sender's first transfer to this payee, if the transfer may go
+     * ahead at nowNanos (from System.nanoTime()), after counting it against the sender's windows;
+     * otherwise Transactions.SCREENED, with nothing counted.
+     */
+    long screen(String fromAccountNo, String toAccountNo, long amount, long nowNanos) {
+        return screen(AccountId.parse(fromAccountNo), fromAccountNo, AccountId.parse(toAccountNo), toAccountNo, amount, nowNanos);
+    }
+
+    // The same, for accounts named by their ids, or by their numbers where the id is NONE.
+    long screen(long fromId, String fromAccountNo, long toId, String toAccountNo, long amount, long nowNanos) {
+        if (entries == null) {
+            return 0;
+        }
+        long from = hash(fromId, fromAccountNo);
+        long pair = mix(from ^ hash(toId, toAccountNo) * 0x9E3779B97F4A7C15L) | 1; // never 0, an empty payee slot
+        int first = (int) from & setMask;
+        int second = (int) (from >>> 32) & setMask;
+        // Lock the lower stripe first, as the stores do, so two screens can't deadlock.
+        Object lower = stripes[Math.min(first & (STRIPES - 1), second & (STRIPES - 1))];
+        Object upper = stripes[Math.max(first & (STRIPES - 1), second & (STRIPES - 1))];
+        synchronized (lower) {
+            synchronized (upper) {
+                int at = entryFor(from, first, second, nowNanos);
+                advance(at, nowNanos);
+                boolean newPayee = !knownPayee(pair);
+                if (refused(at, amount, newPayee)) {
+                    screened.increment();
+                    return Transactions.SCREENED;
+                }
+                for (int w = MINUTE; w <= DAY; w++) {
+                    add(at, w, nowNanos, amount);
+                }
+                if (newPayee) {
+                    add(at, NEW_PAYEES, nowNanos, amount);
+                    rememberPayee(pair);
+                    return NEW_PAYEE;
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Takes back a transfer screen() let through at screenedNanos, with the result it gave,
+     * when the money didn't move after all. Buckets the windows have since moved past are
+     * left alone, as is an account that has lost its entry to another in the meantime.
+     */
+    void release(String fromAccountNo, String toAccountNo, long amount, long screenedNanos, long screenedAs) {
+        release(AccountId.parse(fromAccountNo), fromAccountNo, AccountId.parse(toAccountNo), toAccountNo, amount,
+                screenedNanos, screenedAs);
+    }
+
+    void release(long fromId, String fromAccountNo, long toId, String toAccountNo, long amount, long screenedNanos,
+                 long screenedAs) {
+        if (entries == null) {
+            return;
+        }
+        long from = hash(fromId, fromAccountNo);
+        long pair = mix(from ^ hash(toId, toAccountNo) * 0x9E3779B97F4A7C15L) | 1;
+        int first = (int) from & setMask;
+        int second = (int) (from >>> 32) & setMask;
+        Object lower = stripes[Math.min(first & (STRIPES - 1), second & (STRIPES - 1))];
+        Object upper = stripes[Math.max(first & (STRIPES - 1), second & (STRIPES - 1))];
+        synchronized (lower) {
+            synchronized (upper) {
+                int at = entryOf(from, first, second);
+                if (at < 0) {
+                    return;
+                }
+                for (int w = MINUTE; w <= DAY; w++) {
+                    remove(at, w, screenedNanos, amount);
+                }
+                if (screenedAs == NEW_PAYEE) {
+                    remove(at, NEW_PAYEES, screenedNanos, amount);
+                    forgetPayee(pair);
+                }
+            }
+        }
+    }
+
+    // Payee pairs are shared by all senders, whatever stripes they hold, so each slot is set atomically.
+    private boolean knownPayee(long pair) {
+        int base = (int) pair & payeeMask;
+        for (int i = 0; i < PAYEE_WAYS; i++) {
+            if (payees.get(base + i) == pair) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rememberPayee(long pair) {
+        int base = (int) pair & payeeMask;
+        for (int i = 0; i < PAYEE_WAYS; i++) {
+            if (payees.compareAndSet(base + i, 0, pair)) {
+                return;
+            }
+        }
+        payees.set(base + ((int) (pair >>> 32) & (PAYEE_WAYS - 1)), pair);
+    }
+
+    private void forgetPayee(long pair) {
+        int base = (int) pair & payeeMask;
+        for (int i = 0; i < PAYEE_WAYS; i++) {
+            payees.compareAndSet(base + i, pair, 0);
+        }
+    }
+
+    private boolean refused(int at, long amount, boolean newPayee) {
+        if (newPayee) {
+            if (limits.maxNewPayeeAmount > 0 && amount > limits.maxNewPayeeAmount) {
+                return true;
+            }
+            if (limits.maxNewPayeesPerDay > 0 && count(at, NEW_PAYEES) >= limits.maxNewPayeesPerDay) {
+                return true;
+            }
+        }
+        for (int w = MINUTE; w <= DAY; w++) {
+            if (limits.maxCount[w] > 0 && count(at, w) >= limits.maxCount[w]) {
+                return true;
+            }
+            if (limits.maxAmount[w] > 0 && amount > limits.maxAmount[w] - amount(at, w)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The entry holding the account's rings, taking one over if it has none. The caller holds
+     * both candidates' stripes.
+     */
+    private int entryFor(long hash, int first, int second, long nowNanos) {
+        int at = -1;
+        for (int way = 0; way < 2 * WAYS; way++) {
+            int candidate = ((way < WAYS ? first : second) * WAYS + way % WAYS) * ENTRY_LONGS;
+            if (entries[candidate + HASH] == hash) {
+                return candidate;
+            }
+            if (at < 0 || idleSince(candidate, nowNanos) > idleSince(at, nowNanos)) {
+                at = candidate;
+            }
+        }
+        if (entries[at + HASH] != 0 && idleSince(at, nowNanos) < DAY_NANOS) {
+            evicted.increment();
+        }
+        Arrays.fill(entries, at, at + ENTRY_LONGS, 0);
+        entries[at + HASH] = hash;
+        entries[at + LAST_NANOS] = nowNanos;
+        return at;
+    }
+
+    // The entry holding the account's rings, or -1 if it has none.
+    private int entryOf(long hash, int first, int second) {
+        for (int way = 0; way < 2 * WAYS; way++) {
+            int candidate = ((way < WAYS ? first : second) * WAYS + way % WAYS) * ENTRY_LONGS;
+            if (entries[candidate + HASH] == hash) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private long idleSince(int at, long nowNanos) {
+        return entries[at + HASH] == 0 ? Long.MAX_VALUE : nowNanos - entries[at + LAST_NANOS];
+    }
+
+    // Zeroes the buckets each ring has moved past since the entry was last used.
+    private void advance(int at, long nowNanos) {
+        long last = entries[at + LAST_NANOS];
+        if (nowNanos - last <= 0) {
+            return; // another thread's clock read a little behind ours; same moment as far as buckets go
+        }
+        for (int w = MINUTE; w <= NEW_PAYEES; w++) {
+            long passed = Math.floorDiv(nowNanos, BUCKET_NANOS[w]) - Math.floorDiv(last, BUCKET_NANOS[w]);
+            if (passed >= RING[w]) {
+                Arrays.fill(entries, at + RING_AT[w], at + RING_AT[w] + RING[w], 0);
+            } else {
+                for (long s = 1; s <= passed; s++) {
+                    entries[at + RING_AT[w] + bucket(w, last + s * BUCKET_NANOS[w])] = 0;
+                }
+            }
+        }
+        entries[at + LAST_NANOS] = nowNanos;
+    }
+
+    private void add(int at, int window, long nowNanos, long amount) {
+        int i = at + RING_AT[window] + bucket(window, nowNanos);
+        long value = entries[i];
+        long count = Math.min(COUNT_MAX, (value >>> COUNT_SHIFT) + 1);
+        long sum = Math.min(AMOUNT_MASK, (value & AMOUNT_MASK) + Math.min(amount, AMOUNT_MASK));
+        entries[i] = count << COUNT_SHIFT | sum;
+    }
+
+    // Undoes add() for a transfer counted at thenNanos, unless its bucket has been zeroed since.
+    private void remove(int at, int window, long thenNanos, long amount) {
+        long last = entries[at + LAST_NANOS];
+        if (Math.floorDiv(last, BUCKET_NANOS[window]) - Math.floorDiv(thenNanos, BUCKET_NANOS[window]) >= RING[window]) {
+            return;
+        }
+        int i = at + RING_AT[window] + bucket(window, thenNanos);
+        long value = entries[i];
+        long count = Math.max(0, (value >>> COUNT_SHIFT) - 1);
+        long sum = Math.max(0, (value & AMOUNT_MASK) - Math.min(amount, AMOUNT_MASK));
+        entries[i] = count << COUNT_SHIFT | sum;
+    }
+
+    private long count(int at, int window) {
+        long count = 0;
+        for (int i = at + RING_AT[window]; i < at + RING_AT[window] + RING[window]; i++) {
+            count += entries[i] >>> COUNT_SHIFT;
+        }
+        return count;
+    }
+
+    private long amount(int at, int window) {
+        long sum = 0;
+        for (int i = at + RING_AT[window]; i < at + RING_AT[window] + RING[window]; i++) {
+            sum += entries[i] & AMOUNT_MASK;
+        }
+        return sum;
+    }
+
+    private static int bucket(int window, long nanos) {
+        return (int) Math.floorMod(Math.floorDiv(nanos, BUCKET_NANOS[window]), (long) RING[window]);
+    }
+
+    long screened() {
+        return screened.sum();
+    }
+
+    // Accounts that lost their history to another within a day of using it: a sign there are too few entries.
+    long evicted() {
+        return evicted.sum();
+    }
+
+    // The longs held for accounts and payees.
+    long bytes() {
+        return (entries == null ? 0 : (long) entries.length * Long.BYTES) + (long) payees.length() * Long.BYTES;
+    }
+
+    private static long amountProperty(String name, long defaultAmount) {
+        String value = System.getProperty(name);
+        return value == null ? defaultAmount : Money.parse(value);
+    }
+
+    // 64 bits of the account, never 0 (which marks an empty entry).
+    private static long hash(long id, String accountNo) {
+        if (id != AccountId.NONE || accountNo == null) {
+            long h = mix(id);
+            return h == 0 ? 1 : h;
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < accountNo.length(); i++) {
+            h = (h ^ accountNo.charAt(i)) * 0x100000001b3L;
+        }
+        h = mix(h);
+        return h == 0 ? 1 : h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
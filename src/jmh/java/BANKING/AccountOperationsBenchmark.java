@@ -0,0 +1,103 @@
+package BANKING;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deposit, withdraw, transfer and login on both kinds of bank, the same operations as
+ * BankBenchmark's baseline suite: "memory" is SimpleBankingApp's in-memory store, "ledger" is
+ * a Bank's journaled account file. The thread count comes from the command line (-t 1, -t 4...).
+ *
+ * Accounts are created with a single KDF iteration so that login measures the lookup, not the
+ * hash; BankBenchmark's login suite measures the configured KDF.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class AccountOperationsBenchmark {
+
+    @Param({"memory", "ledger"})
+    public String target;
+
+    @Param({"1000", "10000"})
+    public int accounts;
+
+    private AccountStore store;
+    private Ledger ledger;
+    private Path dir;
+    private String[] numbers;
+    private String[] passwords;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        PasswordHasher.configure(PasswordHasher.algorithm(), 1);
+        AdmissionControl.configure(0, 1, 0, 1, 0);
+        VelocityScreen.configure(VelocityScreen.Rules.NONE, VelocityScreen.DEFAULT_ACCOUNTS);
+        numbers = new String[accounts];
+        passwords = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            numbers[i] = BankBenchmark.accountNo(i);
+            passwords[i] = "pw" + i;
+        }
+        long openingBalance = 1_000_000_000L * Money.MINOR_UNITS; // enough that no withdrawal is refused
+        if (target.equals("ledger")) {
+            dir = Files.createTempDirectory("bank-jmh");
+            ledger = Ledger.open("jmh-" + accounts, dir.resolve("a.dat").toString(), dir.resolve("a.journal").toString());
+            store = ledger;
+        } else {
+            store = AccountStore.inMemory();
+        }
+        for (int i = 0; i < accounts; i++) {
+            store.createAccount(numbers[i], passwords[i], openingBalance);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        if (ledger != null) {
+            ledger.close();
+        }
+    }
+
+    @Benchmark
+    public long deposit() {
+        return Transactions.deposit(store, numbers[ThreadLocalRandom.current().nextInt(accounts)], 1);
+    }
+
+    @Benchmark
+    public long withdraw() {
+        return Transactions.withdraw(store, numbers[ThreadLocalRandom.current().nextInt(accounts)], 1);
+    }
+
+    @Benchmark
+    public long transfer() {
+        int from = ThreadLocalRandom.current().nextInt(accounts);
+        return Transactions.transfer(store, numbers[from], numbers[(from + 1) % accounts], 1);
+    }
+
+    @Benchmark
+    public boolean login() {
+        int account = ThreadLocalRandom.current().nextInt(accounts);
+        return store.checkPassword(numbers[account], passwords[account]);
+    }
+}
@@ -0,0 +1,50 @@
+package BANKING;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Writing one transaction line, which is what logTransaction used to do (BankBenchmark's "journal" target).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class TransactionLogBenchmark {
+
+    private TransactionJournal journal;
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        Path dir = Files.createTempDirectory("bank-jmh");
+        journal = new TransactionJournal(dir.resolve("log.txt").toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    @Benchmark
+    public void logTransaction() throws IOException {
+        long i = sequence.incrementAndGet();
+        journal.writeLine("Account " + BankBenchmark.accountNo((int) (i % 1_000)) + ": Deposited " + i + ". Balance: " + i);
+    }
+}
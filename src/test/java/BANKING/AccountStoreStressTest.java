@@ -0,0 +1,92 @@
+package BANKING;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Many threads moving money between a few hot accounts, on each kind of in-memory store: no
+ * update may be lost, no balance may go below zero, and transfers in opposite directions
+ * between the same accounts must not deadlock.
+ */
+class AccountStoreStressTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 50_000;
+    private static final int HOT_ACCOUNTS = 64;
+
+    @Test
+    void heapStoreConservesMoney() throws Exception {
+        stress(new ConcurrentAccountStore());
+    }
+
+    @Test
+    void offHeapStoreConservesMoney() throws Exception {
+        stress(new OffHeapAccountStore());
+    }
+
+    @Test
+    void heapStoreTransfersBothWaysWithoutDeadlock() throws Exception {
+        crossTransfers(new ConcurrentAccountStore());
+    }
+
+    @Test
+    void offHeapStoreTransfersBothWaysWithoutDeadlock() throws Exception {
+        crossTransfers(new OffHeapAccountStore());
+    }
+
+    // Random transfers, and withdraw/deposit pairs, between a small set of accounts so threads collide.
+    private static void stress(AccountStore store) throws Exception {
+        open(store, HOT_ACCOUNTS, 1000);
+        long before = store.totalBalance();
+        BankBenchmark.run(THREADS, OPERATIONS_PER_THREAD, (t, i) -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String from = BankBenchmark.accountNo(random.nextInt(HOT_ACCOUNTS));
+            String to = BankBenchmark.accountNo(random.nextInt(HOT_ACCOUNTS));
+            int amount = 1 + random.nextInt(200);
+            if (i % 4 == 0) {
+                if (store.withdraw(from, amount) != AccountStore.INSUFFICIENT_FUNDS) {
+                    store.deposit(to, amount);
+                }
+            } else {
+                store.transfer(from, to, amount);
+            }
+        });
+        assertEquals(before, store.totalBalance(), "total balance");
+        store.forEach((accountNo, password, balance) -> assertTrue(balance >= 0, accountNo + " went to " + balance));
+    }
+
+    // Half the threads send from A to B and half from B to A, so a lock taken in argument order would deadlock.
+    private static void crossTransfers(AccountStore store) throws Exception {
+        open(store, 2, 1_000_000);
+        String a = BankBenchmark.accountNo(0);
+        String b = BankBenchmark.accountNo(1);
+        Thread runner = new Thread(() -> {
+            try {
+                BankBenchmark.run(THREADS, OPERATIONS_PER_THREAD, (t, i) -> {
+                    if (t % 2 == 0) {
+                        store.transfer(a, b, 1);
+                    } else {
+                        store.transfer(b, a, 1);
+                    }
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        runner.setDaemon(true);
+        runner.start();
+        runner.join(60_000);
+        assertTrue(!runner.isAlive(), "transfers in opposite directions didn't finish within a minute");
+        assertEquals(2_000_000, store.getBalance(a) + store.getBalance(b), "total balance");
+    }
+
+    private static void open(AccountStore store, int accounts, long openingBalance) {
+        for (int i = 0; i < accounts; i++) {
+            store.createAccount(BankBenchmark.accountNo(i), "pw" + i, openingBalance);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package BANKING;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * A request sent again, however many times and from however many threads, must run once and
+ * get the first answer every time, even while the table's generations turn over.
+ */
+class IdempotencyTableTest {
+
+    @Test
+    void eachRequestRunsOnceWhileGenerationsTurnOver() throws Exception {
+        int threads = 4;
+        int requests = 20_000;
+        String[] ids = new String[requests];
+        for (int i = 0; i < requests; i++) {
+            ids[i] = "req-" + i;
+        }
+        // Every thread sends the same requests to a small table, so generations keep filling up and turning
+        // over meanwhile. The threads stay within a few hundred requests of each other, well inside a generation.
+        IdempotencyTable table = new IdempotencyTable(4, 1024, IdempotencyTable.DEFAULT_WINDOW_MILLIS);
+        AtomicIntegerArray runs = new AtomicIntegerArray(requests);
+        CyclicBarrier together = new CyclicBarrier(threads);
+        AtomicLong mismatches = new AtomicLong();
+        BankBenchmark.run(threads, requests, (t, i) -> {
+            if (i % 256 == 0) {
+                together.await();
+            }
+            long result = table.execute(BankBenchmark.accountNo(0), ids[i], () -> runs.incrementAndGet(i) * 1_000_000L + i);
+            if (result != 1_000_000L + i) {
+                mismatches.incrementAndGet();
+            }
+        });
+        int ranTwice = 0;
+        for (int i = 0; i < requests; i++) {
+            ranTwice += runs.get(i) > 1 ? 1 : 0;
+        }
+        assertEquals(0, ranTwice, "requests that ran more than once");
+        assertEquals(0, mismatches.get(), "answers that differed from the first");
+        assertEquals(requests, table.executed());
+        assertEquals((long) requests * (threads - 1), table.duplicates());
+    }
+}
@@ -0,0 +1,179 @@
+package BANKING;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Transfers between banks may neither make nor lose money: not while cycles settle in the
+ * background, not when some have to come back, and not across a crash and restart.
+ */
+class InterBankTransfersTest {
+
+    private static final String[] NAMES = {"Bank A", "Bank B", "Bank C"};
+    private static final int ACCOUNTS = 1_000;
+
+    private static int kdfIterations;
+
+    // Hashing a few thousand passwords with the real KDF would swamp the test, as in BankBenchmark.
+    @BeforeAll
+    static void cheapPasswords() {
+        kdfIterations = PasswordHasher.iterations();
+        PasswordHasher.configure(PasswordHasher.algorithm(), 1);
+    }
+
+    @AfterAll
+    static void restorePasswords() {
+        PasswordHasher.configure(PasswordHasher.algorithm(), kdfIterations);
+    }
+
+    @Test
+    void moneyIsConservedWhileCyclesSettleInTheBackground() throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        Ledger[] ledgers = open(dir);
+        InterBankTransfers clearing = new InterBankTransfers(0);
+        for (int b = 0; b < NAMES.length; b++) {
+            clearing.register(NAMES[b], ledgers[b]);
+        }
+        long before = total(ledgers);
+
+        AtomicBoolean done = new AtomicBoolean();
+        Thread settler = new Thread(() -> {
+            while (!done.get()) {
+                clearing.settle();
+                LockSupport.parkNanos(5_000_000);
+            }
+        });
+        settler.start();
+        // One in twenty goes to an account that doesn't exist, and has to come back.
+        BankBenchmark.run(4, 5_000, (t, i) -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int from = random.nextInt(NAMES.length);
+            int to = (from + 1 + random.nextInt(NAMES.length - 1)) % NAMES.length;
+            String target = i % 20 == 0 ? "missing-" + i : BankBenchmark.accountNo(random.nextInt(ACCOUNTS));
+            clearing.submit(NAMES[from], BankBenchmark.accountNo(random.nextInt(ACCOUNTS)), NAMES[to], target, 1 + random.nextInt(50));
+        });
+        done.set(true);
+        settler.join();
+        clearing.close(); // settles anything still on its way
+
+        assertEquals(0, clearing.pendingCount());
+        assertEquals(before, total(ledgers));
+        for (Ledger ledger : ledgers) {
+            assertEquals(0, ledger.getBalance(InterBankTransfers.CLEARING_ACCOUNT), "left in the clearing account");
+            ledger.close();
+        }
+    }
+
+    @Test
+    void holdsNoCycleTookAreSettledAfterARestart() throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        Path live = Files.createDirectories(dir.resolve("live"));
+        InterBankTransfers journaled = new InterBankTransfers(0, live.resolve("clearing.journal"));
+        journaled.recover(name -> null);
+        Ledger[] ledgers = open(live);
+        for (int b = 0; b < NAMES.length; b++) {
+            journaled.register(NAMES[b], ledgers[b]);
+        }
+        long before = total(ledgers);
+        // One cycle settles, more transfers are held, then the process dies.
+        int heldSince = 0;
+        for (int i = 0; i < 2_000; i++) {
+            if (i == 1_000) {
+                journaled.settle();
+            }
+            int from = i % NAMES.length;
+            String target = i % 20 == 0 ? "missing-" + i : BankBenchmark.accountNo((i * 7) % ACCOUNTS);
+            long held = journaled.submit(NAMES[from], BankBenchmark.accountNo(i % ACCOUNTS), NAMES[(from + 1) % NAMES.length], target, 1 + i % 50);
+            if (i >= 1_000 && Transactions.succeeded(held)) {
+                heldSince++;
+            }
+        }
+        Path crashed = Files.createDirectories(dir.resolve("crashed"));
+        Files.copy(live.resolve("clearing.journal"), crashed.resolve("clearing.journal"));
+        for (int b = 0; b < NAMES.length; b++) {
+            Files.copy(live.resolve(b + ".dat"), crashed.resolve(b + ".dat"));
+            Files.copy(live.resolve(b + ".journal"), crashed.resolve(b + ".journal"));
+        }
+
+        // The restart: recovery puts the holds no cycle took into the next one.
+        Ledger[] reopened = new Ledger[NAMES.length];
+        InterBankTransfers restarted = new InterBankTransfers(0, crashed.resolve("clearing.journal"));
+        restarted.recover(name -> {
+            for (int b = 0; b < NAMES.length; b++) {
+                if (NAMES[b].equals(name)) {
+                    try {
+                        reopened[b] = Ledger.open(NAMES[b], crashed.resolve(b + ".dat").toString(), crashed.resolve(b + ".journal").toString());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return reopened[b];
+                }
+            }
+            return null;
+        });
+        int waiting = restarted.pendingCount();
+        InterBankTransfers.Settlement resumed = restarted.settle();
+        restarted.close();
+
+        assertEquals(heldSince, waiting);
+        assertEquals(waiting, resumed.settled + resumed.reversed);
+        assertEquals(0, resumed.failed);
+        for (int b = 0; b < NAMES.length; b++) {
+            assertNotNull(reopened[b], NAMES[b] + " wasn't reopened by recovery");
+            assertEquals(0, reopened[b].getBalance(InterBankTransfers.CLEARING_ACCOUNT), "left in the clearing account");
+        }
+        assertEquals(before, total(reopened));
+        for (int b = 0; b < NAMES.length; b++) {
+            reopened[b].close();
+        }
+        journaled.close();
+        for (Ledger ledger : ledgers) {
+            ledger.close();
+        }
+    }
+
+    @Test
+    void customersCannotReachTheClearingAccount() throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        try (Ledger ledger = Ledger.open("Bank A", dir.resolve("a.dat").toString(), dir.resolve("a.journal").toString())) {
+            assertEquals(Transactions.INVALID_ACCOUNT, ledger.create(InterBankTransfers.CLEARING_ACCOUNT, "pw", 0, null));
+            new InterBankTransfers(0).register("Bank A", ledger);
+            ledger.createAccount("1001", "pw", 1_000);
+            assertEquals(Transactions.NO_SUCH_TARGET, Transactions.transfer(ledger, "1001", InterBankTransfers.CLEARING_ACCOUNT, 10));
+            assertFalse(ledger.checkPassword(InterBankTransfers.CLEARING_ACCOUNT, "pw"));
+            assertEquals(1_000, ledger.getBalance("1001"));
+        }
+    }
+
+    private static Ledger[] open(Path dir) throws IOException {
+        Ledger[] ledgers = new Ledger[NAMES.length];
+        for (int b = 0; b < NAMES.length; b++) {
+            ledgers[b] = Ledger.open(NAMES[b], dir.resolve(b + ".dat").toString(), dir.resolve(b + ".journal").toString());
+            for (int i = 0; i < ACCOUNTS; i++) {
+                ledgers[b].createAccount(BankBenchmark.accountNo(i), "pw" + i, 1_000_000);
+            }
+        }
+        return ledgers;
+    }
+
+    private static long total(Ledger[] ledgers) {
+        long total = 0;
+        for (Ledger ledger : ledgers) {
+            total += ledger.totalBalance();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,92 @@
+package BANKING;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+// Replaying a journal written by hand, record by record.
+class JournalRecoveryTest {
+
+    @Test
+    void recordsLoggedOutOfOrderStillAddUp() throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        // Two sessions on one account can log in either order; the withdrawal's came first here.
+        write(dir.resolve("a.journal"),
+                new JournalRecord().set(JournalRecord.CREATE, "1001", null, 0, 0),
+                new JournalRecord().set(JournalRecord.WITHDRAW, "1001", null, 100, 50),
+                new JournalRecord().set(JournalRecord.DEPOSIT, "1001", null, 150, 150));
+        try (Ledger ledger = Ledger.open("replay", dir.resolve("a.dat").toString(), dir.resolve("a.journal").toString())) {
+            assertEquals(50, ledger.getBalance("1001"));
+        }
+    }
+
+    @Test
+    void aTransferToAnAccountThatDoesNotExistFailsRecovery() throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        write(dir.resolve("a.journal"),
+                new JournalRecord().set(JournalRecord.CREATE, "1001", null, 500, 500),
+                new JournalRecord().set(JournalRecord.TRANSFER, "1001", "9999", 100, 400));
+        long size = Files.size(dir.resolve("a.journal"));
+        assertThrows(IOException.class,
+                () -> Ledger.open("replay", dir.resolve("a.dat").toString(), dir.resolve("a.journal").toString()));
+        assertEquals(size, Files.size(dir.resolve("a.journal")), "the journal was changed");
+    }
+
+    @Test
+    void aTornLastRecordIsCutOffAndEverythingBeforeItReplayed() throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        Path journalFile = dir.resolve("a.journal");
+        int accounts = 100;
+        long expected = accounts * 1000L;
+        try (TransactionJournal journal = new TransactionJournal(journalFile.toString())) {
+            JournalRecord record = new JournalRecord();
+            long end = 0;
+            for (int i = 0; i < accounts; i++) {
+                record.set(JournalRecord.CREATE, BankBenchmark.accountNo(i), null, 1000, 1000).credential = "pw" + i;
+                end = journal.append(record.encode());
+            }
+            for (int i = 0; i < 3_000; i++) {
+                String account = BankBenchmark.accountNo(i % accounts);
+                if (i % 3 == 2) {
+                    record.set(JournalRecord.TRANSFER, account, BankBenchmark.accountNo((i * 7) % accounts), 1, 0);
+                } else {
+                    record.set(i % 3 == 0 ? JournalRecord.DEPOSIT : JournalRecord.WITHDRAW, account, null, 5, 0);
+                    expected += i % 3 == 0 ? 5 : -5;
+                }
+                end = journal.append(record.encode());
+            }
+            journal.awaitDurable(end);
+        }
+        // A crash in the middle of writing one more record.
+        byte[] torn = new JournalRecord().set(JournalRecord.DEPOSIT, BankBenchmark.accountNo(0), null, 1, 0).encode();
+        Files.write(journalFile, Arrays.copyOf(torn, torn.length / 2), StandardOpenOption.APPEND);
+        long written = Files.size(journalFile);
+
+        JournalRecovery.Result result = new JournalRecovery.Result();
+        try (MappedAccountStore store = JournalRecovery.recover(dir.resolve("a.dat"), dir.resolve("a.dat.work"), journalFile,
+                accounts * 2L, result)) {
+            assertEquals(expected, store.totalBalance());
+            assertEquals(accounts + 3_000, result.records);
+            assertEquals(torn.length / 2, result.truncatedBytes);
+            assertEquals(written - torn.length / 2, Files.size(journalFile));
+        }
+    }
+
+    private static void write(Path file, JournalRecord... records) throws IOException {
+        try (TransactionJournal journal = new TransactionJournal(file.toString())) {
+            long end = 0;
+            for (JournalRecord record : records) {
+                record.credential = record.type == JournalRecord.CREATE ? PasswordHasher.hash("pw") : "";
+                end = journal.append(record.encode());
+            }
+            journal.awaitDurable(end);
+        }
+    }
+}
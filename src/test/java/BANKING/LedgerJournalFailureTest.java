@@ -0,0 +1,86 @@
+package BANKING;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Once a ledger's journal takes no more records, every operation must be refused as
+ * JOURNAL_FAILED before it changes anything, and nothing may be reported as done.
+ */
+class LedgerJournalFailureTest {
+
+    @Test
+    void operationsAreRefusedOnceTheJournalTakesNoMoreRecords() throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        Ledger ledger = Ledger.open("journal-failure", dir.resolve("a.dat").toString(), dir.resolve("a.journal").toString());
+        ledger.createAccount("1001", "pw", 1_000);
+        ledger.createAccount("1002", "pw", 1_000);
+
+        // Sealing it is what a failed write does too, without needing a disk that fails.
+        Field field = Ledger.class.getDeclaredField("journal");
+        field.setAccessible(true);
+        ((TransactionJournal) field.get(ledger)).close();
+
+        assertEquals(Transactions.JOURNAL_FAILED, Transactions.deposit(ledger, "1001", 10));
+        assertEquals(Transactions.JOURNAL_FAILED, Transactions.withdraw(ledger, "1001", 10));
+        assertEquals(Transactions.JOURNAL_FAILED, Transactions.transfer(ledger, "1001", "1002", 10));
+        assertEquals(Transactions.JOURNAL_FAILED, ledger.create("1003", "pw", 5, null));
+        Ledger.Batch batch = ledger.openBatch();
+        assertEquals(Transactions.JOURNAL_FAILED, batch.deposit("1001", 10));
+        assertEquals(1_000, ledger.getBalance("1001"));
+        assertEquals(1_000, ledger.getBalance("1002"));
+        assertEquals(2_000, ledger.totalBalance());
+        ledger.close();
+    }
+
+    @Test
+    void operationsAfterCloseChangeNothing() throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        String accountFile = dir.resolve("c.dat").toString();
+        String journalFile = dir.resolve("c.journal").toString();
+        Ledger ledger = Ledger.open("closed", accountFile, journalFile);
+        ledger.createAccount("1001", "pw", 1_000);
+        ledger.createAccount("1002", "pw", 1_000);
+        ledger.close();
+
+        // A session the server hasn't stopped yet.
+        assertEquals(Transactions.JOURNAL_FAILED, Transactions.deposit(ledger, "1001", 10));
+        assertEquals(Transactions.JOURNAL_FAILED, Transactions.transfer(ledger, "1001", "1002", 10));
+        assertEquals(Transactions.JOURNAL_FAILED, ledger.openBatch().withdraw("1001", 10));
+        ledger.close();
+
+        Ledger reopened = Ledger.open("closed", accountFile, journalFile);
+        assertEquals(1_000, reopened.getBalance("1001"));
+        assertEquals(1_000, reopened.getBalance("1002"));
+        reopened.close();
+    }
+
+    @Test
+    void aBatchWhoseRecordsAreLostDoesNotCommit() throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        Ledger ledger = Ledger.open("journal-failure", dir.resolve("b.dat").toString(), dir.resolve("b.journal").toString());
+        ledger.createAccount("1001", "pw", 1_000);
+        Ledger.Batch batch = ledger.openBatch();
+        assertEquals(1_010, batch.deposit("1001", 10));
+
+        // As if the write holding the deposit had failed.
+        Field field = Ledger.class.getDeclaredField("journal");
+        field.setAccessible(true);
+        TransactionJournal journal = (TransactionJournal) field.get(ledger);
+        Field failure = TransactionJournal.class.getDeclaredField("failure");
+        failure.setAccessible(true);
+        failure.set(journal, new IOException("disk full"));
+
+        assertFalse(batch.commit());
+        assertTrue(ledger.openBatch().commit()); // nothing posted, nothing to lose
+        ledger.close();
+    }
+}
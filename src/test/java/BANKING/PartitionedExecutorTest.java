@@ -0,0 +1,72 @@
+package BANKING;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Posting on several lanes must give every operation the result it gets when the same stream
+ * is posted in order on one thread, and leave every balance the same.
+ */
+class PartitionedExecutorTest {
+
+    private static final int ACCOUNTS = 1_000;
+    private static final int OPERATIONS = 200_000;
+
+    @Test
+    void oneLaneMatchesSequentialPosting() {
+        assertMatchesSequential(1);
+    }
+
+    @Test
+    void fourLanesMatchSequentialPosting() {
+        assertMatchesSequential(4);
+    }
+
+    private static void assertMatchesSequential(int lanes) {
+        byte[] types = new byte[OPERATIONS];
+        String[] from = new String[OPERATIONS];
+        String[] to = new String[OPERATIONS];
+        long[] amounts = new long[OPERATIONS];
+        Random random = new Random(lanes);
+        for (int i = 0; i < OPERATIONS; i++) {
+            types[i] = (byte) (1 + random.nextInt(3));
+            from[i] = BankBenchmark.accountNo(random.nextInt(ACCOUNTS));
+            to[i] = BankBenchmark.accountNo(random.nextInt(ACCOUNTS));
+            // Large amounts against small balances, so plenty are refused and order matters.
+            amounts[i] = 1 + random.nextInt(2000);
+        }
+
+        AccountStore sequential = BankBenchmark.newStore(ACCOUNTS, 1000);
+        long[] expected = new long[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            expected[i] = BatchPoster.execute(sequential, types[i], from[i], to[i], amounts[i]);
+        }
+
+        AccountStore partitioned = BankBenchmark.newStore(ACCOUNTS, 1000);
+        AccountStore[] views = new AccountStore[lanes];
+        Arrays.fill(views, partitioned);
+        long[] results = new long[OPERATIONS];
+        try (PartitionedExecutor executor = new PartitionedExecutor(views, 4096, results)) {
+            for (int i = 0; i < OPERATIONS; i++) {
+                executor.submit(i, types[i], from[i], to[i], amounts[i]);
+            }
+            executor.awaitQuiescence();
+        }
+
+        int rejected = 0;
+        for (int i = 0; i < OPERATIONS; i++) {
+            assertEquals(expected[i], results[i], "result of operation " + i);
+            if (!Transactions.succeeded(expected[i])) {
+                rejected++;
+            }
+        }
+        assertTrue(rejected > 0, "no operation was refused, so the stream doesn't test ordering");
+        sequential.forEach((accountNo, password, balance) ->
+                assertEquals(balance, partitioned.getBalance(accountNo), "balance of " + accountNo));
+    }
+}
@@ -0,0 +1,75 @@
+package BANKING;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Each screening rule, on a clock the test moves by hand: transfers are let through up to a
+ * limit and screened out past it, and come back in once the window has moved on.
+ */
+class VelocityScreenTest {
+
+    private static final long MINOR = Money.MINOR_UNITS;
+    private static final long SECOND = 1_000_000_000L;
+    private static final VelocityScreen.Rules RULES = new VelocityScreen.Rules(new int[] {10, 60, 200},
+            new long[] {200_000 * MINOR, 1_000_000 * MINOR, 5_000_000 * MINOR}, 100_000 * MINOR, 5);
+
+    private final VelocityScreen screen = new VelocityScreen(RULES, 1_024, 1 << 16);
+
+    @Test
+    void theMinuteCountsTransfers() {
+        for (int i = 0; i < 10; i++) {
+            expect(i == 0 ? VelocityScreen.NEW_PAYEE : 0, screen.screen("A", "B", 100, i), "transfer " + (i + 1) + " in a minute");
+        }
+        expect(Transactions.SCREENED, screen.screen("A", "B", 100, 10), "the 11th in a minute");
+        expect(0, screen.screen("A", "B", 100, 70 * SECOND), "a transfer once the minute has passed");
+    }
+
+    @Test
+    void newPayeesAndAmountsHaveTheirOwnLimits() {
+        expect(Transactions.SCREENED, screen.screen("C", "D", 150_000 * MINOR, 0), "a large first payment to a new payee");
+        expect(VelocityScreen.NEW_PAYEE, screen.screen("C", "D", 90_000 * MINOR, 0), "a first payment to a new payee under the limit");
+        expect(0, screen.screen("C", "D", 150_000 * MINOR, 70 * SECOND), "a large payment to a known payee");
+        expect(Transactions.SCREENED, screen.screen("C", "D", 150_000 * MINOR, 75 * SECOND), "more than the minute's amount");
+    }
+
+    @Test
+    void aDayTakesFiveNewPayees() {
+        for (int payee = 0; payee < 5; payee++) {
+            expect(VelocityScreen.NEW_PAYEE, screen.screen("E", "payee" + payee, 100, payee * 20 * SECOND), "new payee " + (payee + 1) + " in a day");
+        }
+        expect(Transactions.SCREENED, screen.screen("E", "payee5", 100, 120 * SECOND), "a 6th new payee in a day");
+        expect(VelocityScreen.NEW_PAYEE, screen.screen("E", "payee5", 100, 25 * 3600 * SECOND), "a new payee the next day");
+    }
+
+    @Test
+    void releasedTransfersDoNotCount() {
+        for (int i = 0; i < 19; i++) { // ones the store turned away
+            long result = screen.screen("F", "G", 100, i);
+            expect(i == 0 ? VelocityScreen.NEW_PAYEE : 0, result, "released transfer " + (i + 1) + " in a minute");
+            if (i % 2 == 1) {
+                screen.release("F", "G", 100, i, result);
+            }
+        }
+        expect(Transactions.SCREENED, screen.screen("F", "G", 100, 19), "the 11th counted in a minute");
+    }
+
+    @Test
+    void payingTheSamePayeeAgainIsNeverANewPayee() {
+        // Enough (sender, payee) pairs that some share a slot in the payee table.
+        VelocityScreen busy = new VelocityScreen(RULES, VelocityScreen.DEFAULT_ACCOUNTS, VelocityScreen.DEFAULT_PAYEES);
+        int senders = 5_000;
+        for (int round = 0; round < 10; round++) {
+            for (int s = 0; s < senders; s++) {
+                String from = BankBenchmark.accountNo(s);
+                String to = BankBenchmark.accountNo((s + 1) % senders);
+                expect(round == 0 ? VelocityScreen.NEW_PAYEE : 0, busy.screen(from, to, 100, round), "transfer " + (round + 1) + " from " + from);
+            }
+        }
+    }
+
+    private static void expect(long expected, long result, String what) {
+        assertEquals(expected, result, () -> what + ": got " + Transactions.describe(result));
+    }
+}